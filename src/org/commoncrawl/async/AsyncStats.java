@@ -55,6 +55,14 @@ public final  class AsyncStats extends RuntimeStatsCollector.Namespace {
     AsyncStats_LoopTimeinSelectorPoll_ProcessingWritable,
     AsyncStats_LoopTimeinSelectorPoll_ProcessingWritableAVG,
     
+    AsyncStats_RunQueueDepth,
+    AsyncStats_RunQueueDepthMax,
+    AsyncStats_RunQueueCallbacksRun,
+    AsyncStats_RunQueueWakeups,
+    AsyncStats_RunQueueDrainCountAVG,
+    AsyncStats_RunQueueDrainLatencyAVG,
+    AsyncStats_RunQueueDrainTimeAVG,
+    
   };
     
   public static AsyncStats ID = new AsyncStats();
@@ -54,10 +54,10 @@ public class ConcurrentTask<V>  extends FutureTask<V>{
 
   protected void done() {
 
-    // schedule an async event to process loaded results ... 
-    Timer timer = new Timer(1,false,new Timer.Callback() {
+    // queue a callback to process loaded results in the server's main event loop thread ... 
+    _eventLoop.queueRunnable(new Runnable() {
 
-      public void timerFired(Timer timer) {
+      public void run() {
 
         try {
           _callback.taskComplete(get());
@@ -73,7 +73,5 @@ public class ConcurrentTask<V>  extends FutureTask<V>{
         }
       } 
     });
-    // schedule the timer in the server's main event loop thread ... 
-    _eventLoop.setTimer(timer);
   }
 }
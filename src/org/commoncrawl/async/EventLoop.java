@@ -17,16 +17,28 @@
 package org.commoncrawl.async;
 
 import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.util.StringUtils;
 import org.commoncrawl.io.internal.NIODNSLocalResolver;
 import org.commoncrawl.io.internal.NIOSocketSelector;
+import org.commoncrawl.util.internal.RuntimeStatsCollector;
+import org.commoncrawl.util.shared.SmoothedAverage;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Async Event Loop used to dispatch messages and events
  * 
@@ -47,6 +59,32 @@ public final class EventLoop implements Runnable {
   
 	NIOSocketSelector.TimeUsageDetail   _selectorTimeUsage = new NIOSocketSelector.TimeUsageDetail(); 
 	
+	/** a callback queued to run in the event thread **/
+	private static final class QueuedCallback { 
+	  
+	  QueuedCallback(Runnable runnable) { 
+	    _runnable = runnable;
+	    _queueTime = System.nanoTime();
+	  }
+	  
+	  Runnable _runnable;
+	  long     _queueTime;
+	}
+	
+	/** multi-producer / single consumer run queue (drained by the event thread only) **/
+	private final ConcurrentLinkedQueue<QueuedCallback> _runQueue = new ConcurrentLinkedQueue<QueuedCallback>();
+	private final AtomicInteger _runQueueDepth = new AtomicInteger();
+	/** set by the first producer after a drain, so a burst of callbacks costs one selector wakeup **/
+	private final AtomicBoolean _runQueueWakeupPending = new AtomicBoolean();
+	
+	// run queue stats (event thread only)
+	private int    _runQueueDepthMax = 0;
+	private long   _runQueueCallbacksRun = 0;
+	private long   _runQueueWakeups = 0;
+	private SmoothedAverage _runQueueDrainLatency = new SmoothedAverage(.8);
+	private SmoothedAverage _runQueueDrainTime = new SmoothedAverage(.8);
+	private SmoothedAverage _runQueueDrainCount = new SmoothedAverage(.8);
+	
 	public EventLoop() { 
 	  init(Executors.newFixedThreadPool(1));
 	}
@@ -146,6 +184,11 @@ public final class EventLoop implements Runnable {
 
 		  long nextFireTime = _timerRegistry.fireTimers();
 		  
+		  if (drainRunQueue() != 0) { 
+		    // callbacks may have set timers ... 
+		    nextFireTime = _timerRegistry.fireTimers();
+		  }
+		  
 		  waitTime = timeEnd - System.currentTimeMillis();
 		  
 		  if (waitTime > 0) { 
@@ -172,6 +215,12 @@ public final class EventLoop implements Runnable {
   			long waitTime = 0;
   			long nextFireTime = _timerRegistry.fireTimers();
   			
+  			// run queued callbacks before blocking in the selector
+  			if (drainRunQueue() != 0) { 
+  			  // callbacks may have set timers ... 
+  			  nextFireTime = _timerRegistry.fireTimers();
+  			}
+  			
   			if (nextFireTime != 0){
   				waitTime = Math.max(1,nextFireTime - System.currentTimeMillis());
   			}
@@ -212,25 +261,101 @@ public final class EventLoop implements Runnable {
 	}
 	
 	public void queueAsyncCallback(final Callback callback) { 
-	 setTimer(new Timer(0,false,new Timer.Callback() {
-
-    @Override
-    public void timerFired(Timer timer) {
-      callback.execute();
-    } 
-	   
-	 }));
+	  queueRunnable(new Runnable() {
+
+	    @Override
+	    public void run() {
+	      callback.execute();
+	    } 
+	  });
 	}
 	
 	public <ResultType> void queueAsyncCallbackWithResult(final CallbackWithResult<ResultType> callback,final ResultType result) { 
-	   setTimer(new Timer(0,false,new Timer.Callback() {
-
-	     @Override
-	     public void timerFired(Timer timer) {
-	       callback.execute(result);
-	     } 
-	      
-	    }));
+	  queueRunnable(new Runnable() {
+
+	    @Override
+	    public void run() {
+	      callback.execute(result);
+	    } 
+	  });
+	}
+	
+	/** 
+	 * queue a runnable for execution in the event thread. safe to call from any thread. 
+	 * only the first callback queued after a drain wakes up the selector (this includes 
+	 * callbacks queued from the event thread, so that the next poll does not block). 
+	 */
+	public void queueRunnable(Runnable runnable) { 
+	  _runQueue.add(new QueuedCallback(runnable));
+	  _runQueueDepth.incrementAndGet();
+	  
+	  if (_runQueueWakeupPending.compareAndSet(false, true)) { 
+	    wakeup();
+	  }
+	}
+	
+	/** run all callbacks queued before this call (callbacks queued while draining run in the next pass) **/ 
+	private int drainRunQueue() { 
+	  
+	  // clear the wakeup flag first, so that producers racing with the drain wake us up again ...
+	  if (_runQueueWakeupPending.getAndSet(false)) { 
+	    _runQueueWakeups++;
+	  }
+	  
+	  int count = _runQueueDepth.get();
+	  
+	  if (count == 0)
+	    return 0;
+	  
+	  _runQueueDepthMax = Math.max(_runQueueDepthMax,count);
+	  
+	  long drainStart = System.nanoTime();
+	  long totalLatency = 0;
+	  int  ran = 0;
+	  
+	  while (ran < count) { 
+	    QueuedCallback queued = _runQueue.poll();
+	    if (queued == null)
+	      break;
+	    _runQueueDepth.decrementAndGet();
+	    ++ran;
+	    totalLatency += drainStart - queued._queueTime;
+	    try { 
+	      queued._runnable.run();
+	    }
+	    catch (Exception e) { 
+	      LOG.error("Unhandled Exception in queued callback:" + StringUtils.stringifyException(e));
+	    }
+	  }
+	  
+	  if (ran == 0)
+	    return 0;
+	  
+	  long drainEnd = System.nanoTime();
+	  
+	  _runQueueCallbacksRun += ran;
+	  _runQueueDrainCount.addSample((double)ran);
+	  _runQueueDrainLatency.addSample((double)(totalLatency / ran) / 1000000.0);
+	  _runQueueDrainTime.addSample((double)(drainEnd - drainStart) / 1000000.0);
+	  
+	  return ran;
+	}
+	
+	/** number of callbacks waiting in the run queue **/
+	public int getRunQueueDepth() { 
+	  return _runQueueDepth.get();
+	}
+	
+	public void collectStats(RuntimeStatsCollector stats) { 
+	  stats.setIntValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_TimersInQueue,_timerRegistry.getTimerCount());
+	  stats.setIntValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueDepth,_runQueueDepth.get());
+	  stats.setIntValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueDepthMax,_runQueueDepthMax);
+	  stats.setLongValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueCallbacksRun,_runQueueCallbacksRun);
+	  stats.setLongValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueWakeups,_runQueueWakeups);
+	  stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueDrainCountAVG,_runQueueDrainCount.getAverage());
+	  stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueDrainLatencyAVG,_runQueueDrainLatency.getAverage());
+	  stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_RunQueueDrainTimeAVG,_runQueueDrainTime.getAverage());
+	  _runQueueDepthMax = 0;
 	}
 	
 	@Test
@@ -268,4 +393,127 @@ public final class EventLoop implements Runnable {
 		eventLoop.getEventThread().join();
 		System.out.println("Event loop stopped. Shutting down.");
 	}
+
+	@Test
+	public void testTimingWheel() throws Exception {
+
+	  final EventLoop eventLoop = new EventLoop();
+	  eventLoop.start();
+
+	  try {
+	    // spread delays across level 0 (< 256ms) and the first upper levels, arming half of the
+	    // timers from the event thread and half via the hand-off queue, and cancelling half of each
+	    final int timerCount = 256;
+	    final long delays[] = new long[timerCount];
+	    final AtomicLongArray armTimes = new AtomicLongArray(timerCount);
+	    final AtomicLongArray fireTimes = new AtomicLongArray(timerCount);
+	    final AtomicInteger fireCounts[] = new AtomicInteger[timerCount];
+	    final Timer timers[] = new Timer[timerCount];
+	    final CountDownLatch pending = new CountDownLatch(timerCount / 2);
+
+	    Random random = new Random(1);
+	    for (int i=0;i<timerCount;++i) {
+	      final int index = i;
+	      delays[i] = random.nextInt(1500);
+	      fireCounts[i] = new AtomicInteger();
+	      timers[i] = new Timer(delays[i],false,new Timer.Callback() {
+	        public void timerFired(Timer timer) {
+	          fireTimes.set(index,System.currentTimeMillis());
+	          fireCounts[index].incrementAndGet();
+	          pending.countDown();
+	        }
+	      });
+	    }
+
+	    final CountDownLatch armed = new CountDownLatch(1);
+	    eventLoop.queueRunnable(new Runnable() {
+	      public void run() {
+	        for (int i=0;i<timerCount;i+=2) {
+	          armTimes.set(i,System.currentTimeMillis());
+	          eventLoop.setTimer(timers[i]);
+	          if (i % 4 == 0)
+	            eventLoop.cancelTimer(timers[i]);
+	        }
+	        armed.countDown();
+	      }
+	    });
+	    for (int i=1;i<timerCount;i+=2) {
+	      armTimes.set(i,System.currentTimeMillis());
+	      eventLoop.setTimer(timers[i]);
+	      if (i % 4 == 1)
+	        eventLoop.cancelTimer(timers[i]);
+	    }
+	    assertTrue(armed.await(10,TimeUnit.SECONDS));
+	    assertTrue(pending.await(10,TimeUnit.SECONDS));
+	    // give cancelled timers a chance to (wrongly) fire
+	    Thread.sleep(300);
+
+	    for (int i=0;i<timerCount;++i) {
+	      if (i % 4 <= 1) {
+	        assertEquals(0,fireCounts[i].get());
+	      }
+	      else {
+	        assertEquals(1,fireCounts[i].get());
+	        long scheduledTime = armTimes.get(i) + delays[i];
+	        assertTrue(fireTimes.get(i) >= scheduledTime);
+	        assertTrue(fireTimes.get(i) - scheduledTime < 500);
+	      }
+	    }
+	    assertEquals(0,eventLoop._timerRegistry.getTimerCount());
+	  }
+	  finally {
+	    eventLoop.stop();
+	  }
+	}
+
+	@Test
+	public void testPeriodicAndOutOfRangeTimers() throws Exception {
+
+	  final EventLoop eventLoop = new EventLoop();
+	  eventLoop.start();
+
+	  try {
+	    final AtomicInteger periodicFireCount = new AtomicInteger();
+	    final Timer periodic = new Timer(50,true,new Timer.Callback() {
+	      public void timerFired(Timer timer) {
+	        periodicFireCount.incrementAndGet();
+	      }
+	    });
+	    // beyond the timer wheel's 2^32 ms range, parked in the top level
+	    final AtomicInteger farFireCount = new AtomicInteger();
+	    final Timer far = new Timer((1L << 33),false,new Timer.Callback() {
+	      public void timerFired(Timer timer) {
+	        farFireCount.incrementAndGet();
+	      }
+	    });
+	    eventLoop.setTimer(periodic);
+	    eventLoop.setTimer(far);
+
+	    Thread.sleep(600);
+
+	    final CountDownLatch cancelled = new CountDownLatch(1);
+	    final AtomicInteger timerCount = new AtomicInteger();
+	    eventLoop.queueRunnable(new Runnable() {
+	      public void run() {
+	        timerCount.set(eventLoop._timerRegistry.getTimerCount());
+	        eventLoop.cancelTimer(periodic);
+	        eventLoop.cancelTimer(far);
+	        cancelled.countDown();
+	      }
+	    });
+	    assertTrue(cancelled.await(10,TimeUnit.SECONDS));
+	    assertEquals(2,timerCount.get());
+
+	    int fireCount = periodicFireCount.get();
+	    assertTrue(fireCount >= 5 && fireCount <= 12);
+	    assertEquals(0,farFireCount.get());
+
+	    Thread.sleep(200);
+	    assertEquals(fireCount,periodicFireCount.get());
+	    assertEquals(0,eventLoop._timerRegistry.getTimerCount());
+	  }
+	  finally {
+	    eventLoop.stop();
+	  }
+	}
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.async;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A fixed set of EventLoops (each with its own selector and event thread),
+ * used to spread socket i/o across cores. Work is bound to a loop by key, so
+ * that everything related to a given key (interface, host ip etc.) is always
+ * serviced by the same thread. Use EventLoop.queueRunnable to hand work to
+ * a loop from another thread.
+ *
+ * @author rana
+ *
+ */
+public final class EventLoopGroup {
+
+  /** logging **/
+  private static final Log LOG = LogFactory.getLog(EventLoopGroup.class);
+
+  private EventLoop _loops[];
+  private ExecutorService _resolverThreadPool;
+  private int _nextLoop = 0;
+
+  /**
+   * construct a group of loopCount loops, sharing a resolver thread pool of
+   * the specified size
+   */
+  public EventLoopGroup(int loopCount,int resolverThreadCount) {
+    if (loopCount < 1) {
+      throw new IllegalArgumentException("Invalid Loop Count:" + loopCount);
+    }
+    _resolverThreadPool = Executors.newFixedThreadPool(resolverThreadCount);
+    _loops = new EventLoop[loopCount];
+    for (int i=0;i<loopCount;++i) {
+      _loops[i] = new EventLoop(_resolverThreadPool);
+    }
+  }
+
+  public int getLoopCount() {
+    return _loops.length;
+  }
+
+  public EventLoop getLoop(int index) {
+    return _loops[index];
+  }
+
+  /** get the loop that owns the specified key **/
+  public EventLoop getLoopForKey(int key) {
+    return _loops[getLoopIndexForKey(key)];
+  }
+
+  /** map a key (ip address, interface index etc.) to a loop index **/
+  public int getLoopIndexForKey(int key) {
+    // spread the low entropy bits of ip addresses etc. ...
+    key ^= (key >>> 16);
+    key *= 0x85ebca6b;
+    key ^= (key >>> 13);
+    return (key & Integer.MAX_VALUE) % _loops.length;
+  }
+
+  /** round robin loop selection (not thread safe - call from a single owner thread) **/
+  public EventLoop next() {
+    EventLoop loop = _loops[_nextLoop];
+    _nextLoop = (_nextLoop + 1) % _loops.length;
+    return loop;
+  }
+
+  public void start() {
+    LOG.info("Starting EventLoopGroup with:" + _loops.length + " loops");
+    for (EventLoop loop : _loops) {
+      loop.start();
+    }
+  }
+
+  public void stop() {
+    LOG.info("Stopping EventLoopGroup");
+    for (EventLoop loop : _loops) {
+      if (loop.getEventThread() != null) {
+        loop.stop();
+      }
+    }
+    _resolverThreadPool.shutdown();
+  }
+}
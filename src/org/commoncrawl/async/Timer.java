@@ -16,6 +16,8 @@
 
 package org.commoncrawl.async;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * A Timer that can fire inside of an event loop
  * 
@@ -26,7 +28,16 @@ public final class Timer implements Comparable<Timer> {
 	
 	private long _delay;
 	private boolean _periodic;
-	private long _nextFireTime = 0;
+	private volatile long _nextFireTime = 0;
+	
+	private static final AtomicLongFieldUpdater<Timer> _nextFireTimeUpdater 
+	  = AtomicLongFieldUpdater.newUpdater(Timer.class,"_nextFireTime");
+	
+	// timing wheel linkage - only ever touched by the owning event loop thread
+	Timer _wheelNext;
+	Timer _wheelPrev;
+	int   _wheelLevel = TimerRegistry.NOT_LINKED;
+	int   _wheelSlot  = 0;
 	
 	public static interface Callback { 
 		public void timerFired(Timer timer);
@@ -41,6 +52,8 @@ public final class Timer implements Comparable<Timer> {
 	}
 	
 	public long     getDelay() { return _delay; }
+	/** change the delay of a disarmed timer (takes effect the next time it is armed) **/
+	public void     setDelay(long delay) { _delay = delay; }
 	public boolean  isPeriodic() { return _periodic; }
 	public boolean  isArmed() { return _nextFireTime != 0; }
 	
@@ -59,6 +72,26 @@ public final class Timer implements Comparable<Timer> {
 	
 	void   arm() { _nextFireTime = System.currentTimeMillis() + _delay; }
 	void 	 disarm() { _nextFireTime = 0; }
+	
+	/** arm the timer only if it is currently disarmed - returns true if this call armed it **/
+	boolean armIfDisarmed() { 
+	  return _nextFireTimeUpdater.compareAndSet(this,0,System.currentTimeMillis() + _delay);
+	}
+	
+	/** 
+	 * atomically claim the right to fire the timer for the given fire time, 
+	 * rearming (periodic) or disarming (one shot) it in the process. fails if 
+	 * the timer was cancelled or rearmed by another thread in the interim. 
+	 */
+	boolean claimFire(long expectedFireTime) { 
+	  long newFireTime = (_periodic) ? System.currentTimeMillis() + _delay : 0;
+	  return _nextFireTimeUpdater.compareAndSet(this,expectedFireTime,newFireTime);
+	}
+	
+	/** invoke the callback without touching the armed state **/
+	void     fireCallback() { 
+	  _callback.timerFired(this);
+	}
 	public void rearm() { arm(); }
 	
 	//@Override
@@ -1,7 +1,7 @@
 /**
  * Copyright 2008 - CommonCrawl Foundation
- * 
- * CommonCrawl licenses this file to you under the Apache License, 
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
  * Version 2.0 (the "License"); you may not use this file except in compliance
  * with the License.  You may obtain a copy of the License at
  *
@@ -16,174 +16,345 @@
 
 package org.commoncrawl.async;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.Vector;
-
-/*
-import org.commoncrawl.util.MovingAverage;
-import org.commoncrawl.util.SmoothedAverage;
-import org.commoncrawl.util.StatsCollector;
-*/
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A registry of timers that will fire inside an event loop
- * 
+ *
+ * Timers are kept in a hierarchical timing wheel (1ms resolution). Level 0
+ * has 256 one millisecond slots, and each of the 4 upper levels has 64 slots,
+ * each slot spanning a full revolution of the level below it, which gives a
+ * range of 2^32 ms (~49 days). Timers beyond the range are parked in the
+ * top level and re-inserted when they cascade down.
+ *
+ * Arming and cancelling from the event loop thread is O(1). Other threads
+ * arm timers via a lock-free hand-off queue that the event loop drains at
+ * the top of every fireTimers pass, and cancel them by simply disarming them
+ * (the wheel drops disarmed timers lazily when their slot comes up).
+ *
  * @author rana
  *
  */
 public final class TimerRegistry {
 
+  static final int NOT_LINKED = -1;
+  static final int FIRING_LIST = -2;
+
+  private static final int LEVEL0_BITS = 8;
+  private static final int LEVEL0_SIZE = 1 << LEVEL0_BITS;
+  private static final int LEVEL0_MASK = LEVEL0_SIZE - 1;
+  private static final int LEVELN_BITS = 6;
+  private static final int LEVELN_SIZE = 1 << LEVELN_BITS;
+  private static final int LEVELN_MASK = LEVELN_SIZE - 1;
+  private static final int LEVEL_COUNT = 5;
+  private static final long MAX_WHEEL_RANGE = 1L << (LEVEL0_BITS + (LEVEL_COUNT-1) * LEVELN_BITS);
+
 	private EventLoop _eventLoop;
-  //private int _timersInQueueLast = 0;
-	//private SmoothedAverage _timersInQueueAVG = new SmoothedAverage(.8);
-	//private SmoothedAverage _loopTimersFiredCount = new SmoothedAverage(.8);
-	//private int _loopTimersFiredCountMax = 0;
-	//private long                _timeSpentInTimersFiredLast = 0;
-	//private SmoothedAverage _timeSpentInTimersFiredAVG = new SmoothedAverage(.8);
-  //private SmoothedAverage _sortTime = new SmoothedAverage(.8);
-
-	
-	
-	public TimerRegistry(EventLoop eventLoop) { 
+
+	/** wheel slots - one doubly linked list of timers per slot **/
+	private final Timer _slots[][] = new Timer[LEVEL_COUNT][];
+	/** slot occupancy bitmaps, used to skip empty slots **/
+	private final long  _occupied[][] = new long[LEVEL_COUNT][];
+	/** the list of timers being fired in the current tick **/
+	private Timer _firingList = null;
+	/** the next tick (ms) that has not been processed yet **/
+	private long _currentTick;
+	/** number of timers linked into the wheel **/
+	private int  _linkedCount = 0;
+	/** timers armed by threads other than the event loop thread **/
+	private final ConcurrentLinkedQueue<Timer> _incoming = new ConcurrentLinkedQueue<Timer>();
+
+	public TimerRegistry(EventLoop eventLoop) {
 		_eventLoop = eventLoop;
+		for (int level=0;level<LEVEL_COUNT;++level) {
+		  int slotCount = (level == 0) ? LEVEL0_SIZE : LEVELN_SIZE;
+		  _slots[level] = new Timer[slotCount];
+		  _occupied[level] = new long[(slotCount + 63) / 64];
+		}
+		_currentTick = System.currentTimeMillis();
 	}
-	
+
 	public void setTimer(Timer t) {
-	  synchronized (t) { 
-  		if (!t.isArmed()) { 
-  			t.arm();
-  			
-  			synchronized(this) { 
-    			_active.add(t);
-    			_sort = true;
-  			}
-  			// wakeup event loop if current thread != event loop thread
-  			// and this timer is the timer with the earliest fire time ...
-  			if (Thread.currentThread() != _eventLoop.getEventThread()) { 
-  				_eventLoop.wakeup();
-  			}
-  		}
+	  if (t.armIfDisarmed()) {
+	    if (isEventThread()) {
+	      // a timer cancelled from another thread may still be sitting in the wheel
+	      if (t._wheelLevel != NOT_LINKED) {
+	        unlink(t);
+	      }
+	      link(t,t.getNextFireTime());
+	    }
+	    else {
+	      // hand off to the event loop thread and wake it up ...
+	      _incoming.add(t);
+	      _eventLoop.wakeup();
+	    }
 	  }
 	}
-	
-	public void cancelTimer(Timer t) { 
-		synchronized(t) { 
-  	  if (t.isArmed()) { 
-  			t.disarm();
-  			synchronized(this) { 
-  			  _sort = true;
-  			}
-  		}
-		}
+
+	public void cancelTimer(Timer t) {
+	  t.disarm();
+	  // if we own the wheel, unlink it right away, otherwise the wheel
+	  // discards it when its slot comes up
+	  if (isEventThread() && t._wheelLevel != NOT_LINKED) {
+	    unlink(t);
+	  }
+	}
+
+	/** number of timers currently held by the registry **/
+	public int getTimerCount() {
+	  return _linkedCount + _incoming.size();
 	}
-	
+
+	private boolean isEventThread() {
+	  return Thread.currentThread() == _eventLoop.getEventThread();
+	}
+
 	// fire the timer
-	long fireTimers() { 
-		
-	  //_timersInQueueLast = _active.size();
-	  //_timersInQueueAVG.addSample(_active.size());
-	  
+	long fireTimers() {
+
 	  long currentTime = System.currentTimeMillis();
-		
-    LinkedList<Timer> fireList = new LinkedList<Timer>();
-
-    int fired = 0;
-
-	  synchronized (this) {
-	    
-  		if (_sort) { 
-  		  // long timeStart = System.currentTimeMillis();
-  			Collections.sort(_active);
-  			// long timeEnd = System.currentTimeMillis();
-  			//_sortTime.addSample((double)timeEnd-timeStart);
-  			_sort = false;
-  		}
-  		
-  		
-  		// first pass ... fire all timers in list (that need to be fired)
-  		for (int i=0;i<_active.size();++i) {
-  			
-  			Timer t = _active.get(i);
-  			
-  			if (t.isArmed() && t.getNextFireTime() <= currentTime) {
-  			  // add to fire list ... 
-  			  fireList.add(t);
-  			}
-  			else { 
-  				break;
-  			}
-  		}
-	  }
-	  
-	  // now in an unblocked manner ... iterate list and fire timers ...
-	  for (Timer t : fireList) {
-	    
-	    synchronized (t) { 
-  	    if (t.isArmed() && t.getNextFireTime() <= currentTime) {
-  	      t.fire();
-  	      fired++;
-  	    }
-	    }
-	  }
-	  
-	  synchronized (this) {
-
-  		// now, second pass... walk entire array
-  		int activeCount = _active.size();
-  		
-  		for (int i=0;i<activeCount;++i) {
-  			Timer t = _active.elementAt(i);
-  			
-  			// if not armed, remove from list ...
-  			if (!t.isArmed()) { 
-  				_active.remove(i--);
-  				// reduce total count 
-  				activeCount--;
-  			}
-  		}
-  		
-  		// now if something fired, or sort flag is true ... 
-  		if (fired != 0 || _sort) { 
-        //long timeStart = System.currentTimeMillis();
-  		  Collections.sort(_active);
-  		  //long timeEnd = System.currentTimeMillis();
-  		  //_sortTime.addSample((double)timeEnd-timeStart);
-  			_sort = false;
-  		}
-  		
-
-  		
-  		// track time spent in fire timers ...
-  		/*
-  		long timeSpentInFireTimer = System.currentTimeMillis() - currentTime;
-  		_timeSpentInTimersFiredLast = timeSpentInFireTimer;
-  		_timeSpentInTimersFiredAVG.addSample((double)timeSpentInFireTimer);
-  		_loopTimersFiredCount.addSample((double)fired);
-  		_loopTimersFiredCountMax =Math.max(_loopTimersFiredCountMax,fired);
-  		*/
-  		
-  		
-  		
-  		// return the next fire time 
-  		return (_active.size() != 0) ? _active.get(0).getNextFireTime() : 0;
+
+	  drainIncoming();
+
+	  while (_currentTick <= currentTime) {
+
+	    int slot = (int)(_currentTick & LEVEL0_MASK);
+
+	    if (slot == 0) {
+	      cascade();
+	    }
+
+	    if (_linkedCount == 0) {
+	      // nothing in the wheel, fast forward ...
+	      _currentTick = currentTime + 1;
+	      break;
+	    }
+
+	    int nextSlot = nextOccupiedSlot(_occupied[0],slot);
+
+	    if (nextSlot == -1) {
+	      // nothing left in this revolution, skip to the next one ...
+	      _currentTick = Math.min(currentTime + 1, (_currentTick | LEVEL0_MASK) + 1);
+	    }
+	    else {
+	      long tick = _currentTick + (nextSlot - slot);
+
+	      if (tick > currentTime) {
+	        _currentTick = currentTime + 1;
+	      }
+	      else {
+	        // advance first, so that timers set by callbacks land in a future slot
+	        _currentTick = tick + 1;
+	        fireSlot(nextSlot,currentTime);
+	      }
+	    }
 	  }
+
+	  return nextFireTime();
 	}
-	
-	/*
-	public void collectStats(StatsCollector stats) { 
-	  
-	   stats.setIntValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_TimersInQueue,_timersInQueueLast);
-	  stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_TimersInQueueAVG,_timersInQueueAVG.getAverage());
-	  stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_LoopTimerFiredCountAVG,_loopTimersFiredCount.getAverage());
-    stats.setIntValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_LoopTimerFiredCountMax,_loopTimersFiredCountMax);
-    stats.setLongValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_LoopTimeinFireTimer,_timeSpentInTimersFiredLast);
-    stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_LoopTimeinFireTimerAVG,_timeSpentInTimersFiredAVG.getAverage());
-    stats.setDoubleValue(AsyncStats.ID,AsyncStats.Name.AsyncStats_FireTimerSortTimeAVG,_sortTime.getAverage());
-	  
+
+	private void drainIncoming() {
+	  Timer t;
+	  while ((t = _incoming.poll()) != null) {
+	    long fireTime = t.getNextFireTime();
+	    // the timer may have been cancelled before we got to it ...
+	    if (fireTime != 0) {
+	      if (t._wheelLevel != NOT_LINKED) {
+	        unlink(t);
+	      }
+	      link(t,fireTime);
+	    }
+	  }
+	}
+
+	private void fireSlot(int slot,long currentTime) {
+
+	  // move the slot's timers to the firing list ...
+	  Timer head = _slots[0][slot];
+	  _slots[0][slot] = null;
+	  clearOccupied(0,slot);
+	  for (Timer t = head;t != null;t = t._wheelNext) {
+	    t._wheelLevel = FIRING_LIST;
+	  }
+	  _firingList = head;
+
+	  // and fire them one at a time (callbacks may cancel timers still in the list)
+	  while (_firingList != null) {
+	    Timer t = _firingList;
+	    unlink(t);
+
+	    long fireTime = t.getNextFireTime();
+
+	    if (fireTime == 0) {
+	      // cancelled
+	      continue;
+	    }
+	    else if (fireTime > currentTime) {
+	      // rearmed or not due yet
+	      link(t,fireTime);
+	    }
+	    else if (t.claimFire(fireTime)) {
+	      t.fireCallback();
+	      // relink periodic timers (unless the callback did it already)
+	      if (t.isArmed() && t._wheelLevel == NOT_LINKED) {
+	        link(t,t.getNextFireTime());
+	      }
+	    }
+	  }
+	}
+
+	private void cascade() {
+	  long tick = _currentTick >>> LEVEL0_BITS;
+	  for (int level=1;level<LEVEL_COUNT;++level) {
+	    int slot = (int)(tick & LEVELN_MASK);
+
+	    Timer t = _slots[level][slot];
+	    _slots[level][slot] = null;
+	    clearOccupied(level,slot);
+
+	    while (t != null) {
+	      Timer next = t._wheelNext;
+	      t._wheelNext = t._wheelPrev = null;
+	      t._wheelLevel = NOT_LINKED;
+	      _linkedCount--;
+	      long fireTime = t.getNextFireTime();
+	      if (fireTime != 0) {
+	        link(t,fireTime);
+	      }
+	      t = next;
+	    }
+	    // only cascade the next level if this level wrapped around
+	    if (slot != 0)
+	      break;
+	    tick >>>= LEVELN_BITS;
+	  }
+	}
+
+	private void link(Timer t,long fireTime) {
+
+	  long delta = fireTime - _currentTick;
+
+	  if (delta < 0) {
+	    fireTime = _currentTick;
+	    delta = 0;
+	  }
+	  else if (delta >= MAX_WHEEL_RANGE) {
+	    // park in the top level, it will be re-inserted as it cascades
+	    fireTime = _currentTick + MAX_WHEEL_RANGE - 1;
+	    delta = MAX_WHEEL_RANGE - 1;
+	  }
+
+	  int level;
+	  int slot;
+
+	  if (delta < LEVEL0_SIZE) {
+	    level = 0;
+	    slot = (int)(fireTime & LEVEL0_MASK);
+	  }
+	  else {
+	    level = 1;
+	    int shift = LEVEL0_BITS;
+	    while (delta >= (1L << (shift + LEVELN_BITS))) {
+	      shift += LEVELN_BITS;
+	      level++;
+	    }
+	    slot = (int)((fireTime >>> shift) & LEVELN_MASK);
+	  }
+
+	  Timer head = _slots[level][slot];
+	  t._wheelNext = head;
+	  t._wheelPrev = null;
+	  if (head != null)
+	    head._wheelPrev = t;
+	  _slots[level][slot] = t;
+	  t._wheelLevel = level;
+	  t._wheelSlot = slot;
+	  _occupied[level][slot >>> 6] |= (1L << (slot & 63));
+	  _linkedCount++;
+	}
+
+	private void unlink(Timer t) {
+	  if (t._wheelPrev != null) {
+	    t._wheelPrev._wheelNext = t._wheelNext;
+	  }
+	  else if (t._wheelLevel == FIRING_LIST) {
+	    _firingList = t._wheelNext;
+	  }
+	  else {
+	    _slots[t._wheelLevel][t._wheelSlot] = t._wheelNext;
+	    if (t._wheelNext == null) {
+	      clearOccupied(t._wheelLevel,t._wheelSlot);
+	    }
+	  }
+	  if (t._wheelNext != null) {
+	    t._wheelNext._wheelPrev = t._wheelPrev;
+	  }
+	  t._wheelNext = t._wheelPrev = null;
+	  t._wheelLevel = NOT_LINKED;
+	  _linkedCount--;
+	}
+
+	private void clearOccupied(int level,int slot) {
+	  _occupied[level][slot >>> 6] &= ~(1L << (slot & 63));
+	}
+
+	/** find the first occupied slot >= fromSlot, or -1 **/
+	private static int nextOccupiedSlot(long bits[],int fromSlot) {
+	  int word = fromSlot >>> 6;
+	  long mask = bits[word] & (-1L << (fromSlot & 63));
+	  while (true) {
+	    if (mask != 0) {
+	      return (word << 6) + Long.numberOfTrailingZeros(mask);
+	    }
+	    if (++word == bits.length)
+	      return -1;
+	    mask = bits[word];
+	  }
+	}
+
+	/**
+	 * the earliest time at which fireTimers needs to run again, or 0 if empty.
+	 * for upper levels this is the time the next occupied slot cascades, which
+	 * is a lower bound on the fire time of anything in that slot.
+	 */
+	private long nextFireTime() {
+
+	  if (_linkedCount == 0)
+	    return 0;
+
+	  long nextTime = Long.MAX_VALUE;
+
+	  // level 0
+	  int slot = (int)(_currentTick & LEVEL0_MASK);
+	  int nextSlot = nextOccupiedSlot(_occupied[0],slot);
+	  if (nextSlot != -1) {
+	    return _currentTick + (nextSlot - slot);
+	  }
+	  nextSlot = nextOccupiedSlot(_occupied[0],0);
+	  if (nextSlot != -1) {
+	    nextTime = (_currentTick | LEVEL0_MASK) + 1 + nextSlot;
+	  }
+
+	  // upper levels
+	  int shift = LEVEL0_BITS;
+	  for (int level=1;level<LEVEL_COUNT;++level) {
+	    // the slot at the current position has already cascaded, unless we
+	    // are sitting on an unprocessed boundary
+	    long levelTick = _currentTick >>> shift;
+	    if ((_currentTick & ((1L << shift) - 1)) != 0)
+	      levelTick++;
+	    slot = (int)(levelTick & LEVELN_MASK);
+	    nextSlot = nextOccupiedSlot(_occupied[level],slot);
+	    long distance = nextSlot - slot;
+	    if (nextSlot == -1) {
+	      nextSlot = nextOccupiedSlot(_occupied[level],0);
+	      distance = nextSlot + LEVELN_SIZE - slot;
+	    }
+	    if (nextSlot != -1) {
+	      nextTime = Math.min(nextTime,(levelTick + distance) << shift);
+	    }
+	    shift += LEVELN_BITS;
+	  }
+	  return nextTime;
 	}
-*/	
-	
-	private Vector<Timer> _active = new Vector<Timer>();
-	private boolean _sort = false;
 }
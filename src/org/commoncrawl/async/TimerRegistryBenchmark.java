@@ -0,0 +1,214 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.async;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Compares the timing wheel based TimerRegistry against the old sorted
+ * Vector implementation, with 10K, 100K and 1M timers armed. Each operation
+ * is an arm + cancel of a probe timer followed by a fireTimers pass, which is
+ * what a busy event loop iteration looks like.
+ *
+ * usage: TimerRegistryBenchmark [secondsPerRun]
+ *
+ * @author rana
+ *
+ */
+public class TimerRegistryBenchmark {
+
+  private static final int ARMED_TIMER_COUNTS[] = { 10000, 100000, 1000000 };
+
+  private static final Timer.Callback NOOP_CALLBACK = new Timer.Callback() {
+    public void timerFired(Timer timer) {
+    }
+  };
+
+  /** the pre timing wheel registry, kept here as a baseline **/
+  static final class SortedVectorRegistry {
+
+    private Vector<Timer> _active = new Vector<Timer>();
+    private boolean _sort = false;
+
+    public void setTimer(Timer t) {
+      synchronized (t) {
+        if (!t.isArmed()) {
+          t.arm();
+          synchronized(this) {
+            _active.add(t);
+            _sort = true;
+          }
+        }
+      }
+    }
+
+    public void cancelTimer(Timer t) {
+      synchronized(t) {
+        if (t.isArmed()) {
+          t.disarm();
+          synchronized(this) {
+            _sort = true;
+          }
+        }
+      }
+    }
+
+    long fireTimers() {
+      long currentTime = System.currentTimeMillis();
+      LinkedList<Timer> fireList = new LinkedList<Timer>();
+      int fired = 0;
+      synchronized (this) {
+        if (_sort) {
+          Collections.sort(_active);
+          _sort = false;
+        }
+        for (int i=0;i<_active.size();++i) {
+          Timer t = _active.get(i);
+          if (t.isArmed() && t.getNextFireTime() <= currentTime) {
+            fireList.add(t);
+          }
+          else {
+            break;
+          }
+        }
+      }
+      for (Timer t : fireList) {
+        synchronized (t) {
+          if (t.isArmed() && t.getNextFireTime() <= currentTime) {
+            t.fire();
+            fired++;
+          }
+        }
+      }
+      synchronized (this) {
+        int activeCount = _active.size();
+        for (int i=0;i<activeCount;++i) {
+          Timer t = _active.elementAt(i);
+          if (!t.isArmed()) {
+            _active.remove(i--);
+            activeCount--;
+          }
+        }
+        if (fired != 0 || _sort) {
+          Collections.sort(_active);
+          _sort = false;
+        }
+        return (_active.size() != 0) ? _active.get(0).getNextFireTime() : 0;
+      }
+    }
+  }
+
+  private static Timer[] createTimers(int count) {
+    Random random = new Random(count);
+    Timer timers[] = new Timer[count];
+    for (int i=0;i<count;++i) {
+      // between 1 minute and 1 hour out, so nothing fires during the run
+      timers[i] = new Timer(60000 + random.nextInt(3540000),false,NOOP_CALLBACK);
+    }
+    return timers;
+  }
+
+  private static void benchmarkWheel(EventLoop eventLoop,int armedCount,long runTimeMS) {
+    TimerRegistry registry = new TimerRegistry(eventLoop);
+    Timer timers[] = createTimers(armedCount);
+
+    long armStart = System.nanoTime();
+    for (Timer t : timers)
+      registry.setTimer(t);
+    long armTime = System.nanoTime() - armStart;
+
+    Timer probe = new Timer(5000,false,NOOP_CALLBACK);
+    long opCount = 0;
+    long runStart = System.nanoTime();
+    long runEnd   = runStart + (runTimeMS * 1000000L);
+    do {
+      for (int i=0;i<100;++i) {
+        registry.setTimer(probe);
+        registry.cancelTimer(probe);
+        registry.fireTimers();
+      }
+      opCount += 100;
+    } while (System.nanoTime() < runEnd);
+    long runTime = System.nanoTime() - runStart;
+
+    report("TimingWheel",armedCount,armTime,runTime,opCount);
+
+    for (Timer t : timers)
+      registry.cancelTimer(t);
+  }
+
+  private static void benchmarkSortedVector(int armedCount,long runTimeMS) {
+    SortedVectorRegistry registry = new SortedVectorRegistry();
+    Timer timers[] = createTimers(armedCount);
+
+    long armStart = System.nanoTime();
+    for (Timer t : timers)
+      registry.setTimer(t);
+    registry.fireTimers();
+    long armTime = System.nanoTime() - armStart;
+
+    Timer probe = new Timer(5000,false,NOOP_CALLBACK);
+    long opCount = 0;
+    long runStart = System.nanoTime();
+    long runEnd   = runStart + (runTimeMS * 1000000L);
+    do {
+      registry.setTimer(probe);
+      registry.cancelTimer(probe);
+      registry.fireTimers();
+      opCount++;
+    } while (System.nanoTime() < runEnd);
+    long runTime = System.nanoTime() - runStart;
+
+    report("SortedVector",armedCount,armTime,runTime,opCount);
+  }
+
+  private static void report(String name,int armedCount,long armTimeNS,long runTimeNS,long opCount) {
+    System.out.println(String.format("%1$-12.12s armed:%2$8d arm(ns/timer):%3$10.1f arm+cancel+fire(ns/op):%4$14.1f ops:%5$d",
+        name,armedCount,(double)armTimeNS / armedCount,(double)runTimeNS / opCount,opCount));
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    final long runTimeMS = (args.length != 0) ? Long.parseLong(args[0]) * 1000 : 5000;
+
+    final EventLoop eventLoop = new EventLoop();
+
+    eventLoop.start();
+
+    // the wheel must be driven from the event loop thread ...
+    eventLoop.setTimer(new Timer(0,false,new Timer.Callback() {
+
+      public void timerFired(Timer timer) {
+        for (int armedCount : ARMED_TIMER_COUNTS) {
+          // warmup
+          benchmarkWheel(eventLoop,armedCount,runTimeMS / 5);
+          benchmarkWheel(eventLoop,armedCount,runTimeMS);
+        }
+        for (int armedCount : ARMED_TIMER_COUNTS) {
+          benchmarkSortedVector(armedCount,runTimeMS / 5);
+          benchmarkSortedVector(armedCount,runTimeMS);
+        }
+        eventLoop.stop();
+      }
+    }));
+
+    eventLoop.getEventThread().join();
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+/**
+ * Per host (ip) crawl delay controller, driven by the outcome of each fetch.
+ *
+ * AIMD on the delay between fetches: a healthy fetch (quick response, low
+ * recent error rate) takes DECREASE_STEP ms off the delay, a slow response
+ * that is getting slower multiplies it by BACKOFF_FACTOR, and an io error /
+ * timeout / 5xx / 429 multiplies it by ERROR_BACKOFF_FACTOR. Other successful
+ * fetches let a backed off delay decay back towards the initial delay.
+ * Independently of that, the delay never drops below DUTY_CYCLE_FACTOR x the
+ * (smoothed) total fetch time, so we occupy a server for at most a fraction
+ * of the time no matter how quickly it answers, nor below MIN_DELAY.
+ *
+ * Robots Crawl-delay and crawl rate overrides are applied on top of this by
+ * the CrawlList (robots as a floor, overrides verbatim).
+ *
+ * Not thread safe, updated from the crawl queue's thread.
+ *
+ * @author rana
+ *
+ */
+final class AdaptiveCrawlDelay {
+
+  static final int   MIN_DELAY = 250;
+  static final int   MAX_DELAY = 60000;
+  /** additive decrease per healthy fetch **/
+  static final int   DECREASE_STEP = 100;
+  /** multiplicative increase on a slow response **/
+  static final float BACKOFF_FACTOR = 1.5f;
+  /** multiplicative increase on an error **/
+  static final float ERROR_BACKOFF_FACTOR = 2.0f;
+  /** response times (time to first byte) at or below this count as healthy **/
+  static final int   FAST_RESPONSE_TIME = 500;
+  /** response times at or above this trigger a back off if they are also trending up **/
+  static final int   SLOW_RESPONSE_TIME = 2000;
+  /** a slow response this much above the running average counts as trending up **/
+  static final float SLOWDOWN_RATIO = 1.25f;
+  /** fraction of the excess over the initial delay recovered per successful fetch **/
+  static final int   RECOVERY_SHIFT = 2;
+  /** delay >= fetch time x this **/
+  static final int   DUTY_CYCLE_FACTOR = 4;
+  /** no speedups until this many samples have been seen **/
+  static final int   WARMUP_SAMPLES = 3;
+  static final float MAX_HEALTHY_ERROR_RATE = .05f;
+  static final float EWMA_ALPHA = .2f;
+
+  private int   _initialDelay;
+  private int   _delay;
+  private float _responseTimeAvg = 0;
+  private float _fetchTimeAvg = 0;
+  private float _errorRate = 0;
+  private int   _sampleCount = 0;
+  private int   _speedupCount = 0;
+  private int   _backoffCount = 0;
+
+  AdaptiveCrawlDelay(int initialDelay) {
+    _initialDelay = clamp(initialDelay);
+    _delay = _initialDelay;
+  }
+
+  /** the delay to apply between fetches (ms) **/
+  int getDelay() {
+    return Math.max(_delay,Math.min(MAX_DELAY,(int)(_fetchTimeAvg * DUTY_CYCLE_FACTOR)));
+  }
+
+  /**
+   * record a completed fetch.
+   * @param responseTime time to first byte (ms)
+   * @param fetchTime    total time for the fetch (ms)
+   * @param serverError  the server answered with a 5xx or 429
+   */
+  void fetchSucceeded(int responseTime,int fetchTime,boolean serverError) {
+    boolean slowingDown = _sampleCount != 0 && responseTime >= SLOW_RESPONSE_TIME && responseTime > _responseTimeAvg * SLOWDOWN_RATIO;
+
+    _responseTimeAvg = smooth(_responseTimeAvg,responseTime);
+    _fetchTimeAvg = smooth(_fetchTimeAvg,fetchTime);
+    _sampleCount++;
+
+    if (serverError) {
+      recordError();
+      return;
+    }
+    _errorRate = _errorRate * (1.0f - EWMA_ALPHA);
+
+    if (slowingDown) {
+      _delay = clamp((int)(_delay * BACKOFF_FACTOR));
+      _backoffCount++;
+    }
+    else if (_sampleCount >= WARMUP_SAMPLES && responseTime <= FAST_RESPONSE_TIME && _errorRate <= MAX_HEALTHY_ERROR_RATE) {
+      _delay = clamp(_delay - DECREASE_STEP);
+      _speedupCount++;
+    }
+    else if (_delay > _initialDelay) {
+      // consistently slow (but stable) hosts are held at the duty cycle floor, backed off hosts recover gradually
+      _delay -= Math.max(1,(_delay - _initialDelay) >> RECOVERY_SHIFT);
+    }
+  }
+
+  /** record an io error or timeout **/
+  void fetchFailed() {
+    _sampleCount++;
+    recordError();
+  }
+
+  private void recordError() {
+    _errorRate = _errorRate * (1.0f - EWMA_ALPHA) + EWMA_ALPHA;
+    _delay = clamp((int)(_delay * ERROR_BACKOFF_FACTOR));
+    _backoffCount++;
+  }
+
+  private float smooth(float average,int sample) {
+    return (_sampleCount == 0) ? sample : average + EWMA_ALPHA * (sample - average);
+  }
+
+  private static int clamp(int delay) {
+    return Math.max(MIN_DELAY,Math.min(MAX_DELAY,delay));
+  }
+
+  float getResponseTimeAverage() { return _responseTimeAvg; }
+  float getFetchTimeAverage() { return _fetchTimeAvg; }
+  float getErrorRate() { return _errorRate; }
+  int getSampleCount() { return _sampleCount; }
+  int getSpeedupCount() { return _speedupCount; }
+  int getBackoffCount() { return _backoffCount; }
+
+  public String toString() {
+    return "Delay:" + getDelay() + " ResponseTimeAvg:" + (int)_responseTimeAvg + " FetchTimeAvg:" + (int)_fetchTimeAvg
+      + " ErrorRate:" + _errorRate + " Samples:" + _sampleCount + " Speedups:" + _speedupCount + " Backoffs:" + _backoffCount;
+  }
+}
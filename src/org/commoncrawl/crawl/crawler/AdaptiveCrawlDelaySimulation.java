@@ -0,0 +1,154 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.util.Random;
+
+/**
+ * Simulation harness for AdaptiveCrawlDelay. Crawls a set of synthetic hosts
+ * (fast, average, slow, overload sensitive, flaky) sequentially, one fetch at
+ * a time per host as the crawler does, in simulated time, and compares pages
+ * fetched, errors and server duty cycle against the fixed default delay.
+ *
+ * usage: AdaptiveCrawlDelaySimulation [simulated minutes] [seed]
+ *
+ * @author rana
+ *
+ */
+public class AdaptiveCrawlDelaySimulation {
+
+  /** synthetic server latency profile **/
+  static class HostProfile {
+
+    String _name;
+    int    _baseResponseTime;
+    int    _downloadTime;
+    float  _errorRate;
+    /** fetches per second beyond which the server starts to degrade (0 = never) **/
+    float  _capacity;
+
+    HostProfile(String name,int baseResponseTime,int downloadTime,float errorRate,float capacity) {
+      _name = name;
+      _baseResponseTime = baseResponseTime;
+      _downloadTime = downloadTime;
+      _errorRate = errorRate;
+      _capacity = capacity;
+    }
+
+    /** response time given the recent request rate. latency and errors climb once the rate passes capacity **/
+    int responseTime(Random random,float requestRate) {
+      float load = (_capacity == 0) ? 0 : Math.max(0,requestRate / _capacity - 1.0f);
+      float jitter = 0.75f + random.nextFloat() * 0.5f;
+      return (int)(_baseResponseTime * jitter * (1.0f + 4.0f * load));
+    }
+
+    float errorRate(float requestRate) {
+      float load = (_capacity == 0) ? 0 : Math.max(0,requestRate / _capacity - 1.0f);
+      return Math.min(1.0f,_errorRate + load * 0.5f);
+    }
+  }
+
+  static class Result {
+    int   _fetches = 0;
+    int   _errors = 0;
+    long  _busyTime = 0;
+    int   _minDelay = Integer.MAX_VALUE;
+    int   _maxDelay = 0;
+    int   _finalDelay = 0;
+  }
+
+  static final int TIMEOUT = 30000;
+
+  static Result simulate(HostProfile profile,long duration,boolean adaptive,long seed) {
+    Random random = new Random(seed);
+    AdaptiveCrawlDelay controller = new AdaptiveCrawlDelay(CrawlHostImpl.DEFAULT_CRAWL_DELAY);
+    Result result = new Result();
+
+    long now = 0;
+    // recent request rate, smoothed over roughly the last ten fetches
+    float requestRate = 0;
+
+    while (now < duration) {
+      int responseTime = profile.responseTime(random,requestRate);
+      boolean failed = random.nextFloat() < profile.errorRate(requestRate);
+      int fetchTime;
+
+      if (failed && random.nextBoolean()) {
+        // timeout / io error
+        fetchTime = Math.min(TIMEOUT,responseTime * 4);
+        controller.fetchFailed();
+      }
+      else {
+        fetchTime = Math.min(TIMEOUT,responseTime + profile._downloadTime);
+        controller.fetchSucceeded(responseTime,fetchTime,failed);
+      }
+      if (failed) {
+        result._errors++;
+      }
+      else {
+        result._fetches++;
+      }
+      result._busyTime += fetchTime;
+
+      int delay = adaptive ? controller.getDelay() : CrawlHostImpl.DEFAULT_CRAWL_DELAY;
+      result._minDelay = Math.min(result._minDelay,delay);
+      result._maxDelay = Math.max(result._maxDelay,delay);
+      result._finalDelay = delay;
+
+      long interval = fetchTime + delay;
+      requestRate = requestRate + 0.1f * ((1000.0f / interval) - requestRate);
+      now += interval;
+    }
+    return result;
+  }
+
+  public static void main(String[] args) {
+    int  minutes = (args.length >= 1) ? Integer.parseInt(args[0]) : 60;
+    long seed = (args.length >= 2) ? Long.parseLong(args[1]) : 42L;
+    long duration = minutes * 60L * 1000L;
+
+    HostProfile profiles[] = {
+        new HostProfile("fast",          50,  50, 0.001f, 0),
+        new HostProfile("average",      300, 200, 0.01f,  0),
+        new HostProfile("slow",        2500, 500, 0.01f,  0),
+        new HostProfile("overload",     150, 100, 0.005f, 1.0f),
+        new HostProfile("flaky",        200, 100, 0.15f,  0)
+    };
+
+    System.out.println("Simulated Duration:" + minutes + " min Seed:" + seed);
+    System.out.println(String.format("%-10s %8s %8s %8s %8s | %8s %8s %8s %8s %8s %8s",
+        "host","fixed","errors","duty%","", "adaptive","errors","duty%","minDelay","maxDelay","final"));
+
+    long fixedTotal = 0;
+    long adaptiveTotal = 0;
+
+    for (HostProfile profile : profiles) {
+      Result fixed = simulate(profile,duration,false,seed);
+      Result adaptive = simulate(profile,duration,true,seed);
+      fixedTotal += fixed._fetches;
+      adaptiveTotal += adaptive._fetches;
+
+      System.out.println(String.format("%-10s %8d %8d %8.1f %8s | %8d %8d %8.1f %8d %8d %8d",
+          profile._name,
+          fixed._fetches,fixed._errors,100.0 * fixed._busyTime / duration,"",
+          adaptive._fetches,adaptive._errors,100.0 * adaptive._busyTime / duration,
+          adaptive._minDelay,adaptive._maxDelay,adaptive._finalDelay));
+    }
+    System.out.println("Total Pages Fixed:" + fixedTotal + " Adaptive:" + adaptiveTotal
+        + " Ratio:" + String.format("%.2f",(double)adaptiveTotal / Math.max(1,fixedTotal)));
+  }
+}
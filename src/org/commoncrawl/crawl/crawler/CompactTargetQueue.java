@@ -0,0 +1,772 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.commoncrawl.protocol.CrawlURL;
+import org.commoncrawl.util.shared.IntrusiveList;
+import org.junit.Test;
+
+/**
+ * A FIFO queue of not yet active crawl targets, held in a compact encoding.
+ *
+ * Targets that carry no per request state (see CrawlTarget.isCompactable) are
+ * encoded into a per queue byte array arena as url fingerprint, segment id,
+ * flags, retry / redirect counts, last modified time, url bytes and optional
+ * etag / crawl directive, with the url's scheme://host/ prefix and the host
+ * fingerprint shared by the whole queue. Anything else (targets with completion
+ * callbacks, redirect or request data) is kept as an object. A CrawlTarget is
+ * only materialized when it is removed from the queue.
+ *
+ * Not thread safe - access is guarded by the owning CrawlList.
+ *
+ * @author rana
+ *
+ */
+final class CompactTargetQueue {
+
+  private static final int MIN_SLOTS = 4;
+  private static final int MIN_ARENA_SIZE = 256;
+  /** arenas larger than this are released once the queue drains **/
+  private static final int RETAINED_ARENA_SIZE = 4096;
+
+  /** slot value for entries held as objects **/
+  private static final int OBJECT_SLOT = -1;
+
+  /** record header bits **/
+  private static final int HAS_PREFIX        = 1 << 0;
+  private static final int HAS_HOSTFP        = 1 << 1;
+  private static final int HAS_SERVERIP      = 1 << 2;
+  private static final int HAS_LASTMODIFIED  = 1 << 3;
+  private static final int HAS_ETAG          = 1 << 4;
+  private static final int HAS_DIRECTIVE     = 1 << 5;
+
+  /** ring of arena offsets (or OBJECT_SLOT) **/
+  private int          _slots[] = null;
+  /** ring of object entries, allocated on first use **/
+  private CrawlTarget  _objects[] = null;
+  private int          _head = 0;
+  private int          _count = 0;
+
+  /** record arena **/
+  private byte         _arena[] = null;
+  private int          _arenaEnd = 0;
+  private int          _liveBytes = 0;
+
+  /** state shared by all records **/
+  private char         _urlPrefix[] = null;
+  private long         _hostFP = -1;
+  private boolean      _hostFPSet = false;
+
+  /** decode cursor **/
+  private int          _cursor;
+
+  int size() {
+    return _count;
+  }
+
+  /** the number of bytes currently held by the arena (including dead space) **/
+  int getArenaSize() {
+    return (_arena != null) ? _arena.length : 0;
+  }
+
+  void addTail(CrawlTarget target) {
+    ensureSlotCapacity();
+    setSlot((_head + _count) & (_slots.length - 1),target);
+    _count++;
+  }
+
+  void addHead(CrawlTarget target) {
+    ensureSlotCapacity();
+    // encode before moving the head (encoding may compact the arena, which walks the live slots)
+    int slot = (_head - 1) & (_slots.length - 1);
+    setSlot(slot,target);
+    _head = slot;
+    _count++;
+  }
+
+  /** remove the head of the queue, materializing it as a CrawlTarget (owned by sourceList) **/
+  CrawlTarget removeHead(CrawlList sourceList) {
+    if (_count == 0)
+      return null;
+    CrawlTarget targetOut = materialize(_head,sourceList);
+    clearSlot(_head);
+    _head = (_head + 1) & (_slots.length - 1);
+    _count--;
+    entryRemoved();
+    return targetOut;
+  }
+
+  /** move the head of this queue to the tail of another queue **/
+  void moveHeadTo(CompactTargetQueue destination,CrawlList sourceList) {
+    if (_count != 0) {
+      destination.addTail(removeHead(sourceList));
+    }
+  }
+
+  /** the active url of the head of the queue (or null) **/
+  String peekHeadURL() {
+    return (_count != 0) ? getURL(0,true) : null;
+  }
+
+  /** the original (or active) url of the entry at the given queue position **/
+  String getURL(int index,boolean activeURL) {
+    int slot = (_head + index) & (_slots.length - 1);
+    if (_slots[slot] == OBJECT_SLOT) {
+      return (activeURL) ? _objects[slot].getActiveURL() : _objects[slot].getOriginalURL();
+    }
+    // encoded targets are never redirected, so the active url is the original url
+    _cursor = _slots[slot];
+    readVarInt();
+    int header = _arena[_cursor++] & 0xFF;
+    _cursor += 8 + 3;
+    readVarInt();
+    skipOptionalFields(header);
+    return readURL(header);
+  }
+
+  /** add all targets in the given list to the tail of the queue (the list is emptied) **/
+  void addAll(IntrusiveList<CrawlTarget> targets) {
+    CrawlTarget target;
+    while ((target = targets.removeHead()) != null) {
+      addTail(target);
+    }
+  }
+
+  /** remove and materialize all targets **/
+  IntrusiveList<CrawlTarget> removeAllTargets(CrawlList sourceList) {
+    IntrusiveList<CrawlTarget> listOut = new IntrusiveList<CrawlTarget>();
+    while (_count != 0) {
+      listOut.addTail(removeHead(sourceList));
+    }
+    return listOut;
+  }
+
+  /**
+   * remove low priority targets, starting from the tail of the queue, until the
+   * queue is down to retainCount targets (high priority targets are never removed)
+   *
+   * @return the removed targets in queue order, or null if there were no low priority targets
+   */
+  IntrusiveList<CrawlTarget> removeLowPriority(CrawlList sourceList,int retainCount) {
+
+    IntrusiveList<CrawlTarget> listOut = null;
+
+    if (_count == 0)
+      return null;
+
+    int mask = _slots.length - 1;
+    int removed = 0;
+    for (int index=_count - 1;index >= 0;--index) {
+      int slot = (_head + index) & mask;
+      if ((getFlags(slot) & CrawlURL.Flags.IsHighPriorityURL) == 0) {
+        if (listOut == null)
+          listOut = new IntrusiveList<CrawlTarget>();
+        listOut.addHead(materialize(slot,sourceList));
+        clearSlot(slot);
+        _slots[slot] = Integer.MIN_VALUE;
+        removed++;
+        if (_count - removed <= retainCount)
+          break;
+      }
+    }
+
+    if (removed != 0) {
+      // close the gaps, preserving queue order
+      int writeIndex = 0;
+      for (int readIndex=0;readIndex<_count;++readIndex) {
+        int readSlot = (_head + readIndex) & mask;
+        if (_slots[readSlot] != Integer.MIN_VALUE) {
+          int writeSlot = (_head + writeIndex) & mask;
+          if (writeSlot != readSlot) {
+            _slots[writeSlot] = _slots[readSlot];
+            if (_objects != null) {
+              _objects[writeSlot] = _objects[readSlot];
+              _objects[readSlot] = null;
+            }
+          }
+          writeIndex++;
+        }
+      }
+      _count = writeIndex;
+      entryRemoved();
+    }
+    return listOut;
+  }
+
+  void removeAll() {
+    _slots = null;
+    _objects = null;
+    _head = 0;
+    _count = 0;
+    _arena = null;
+    _arenaEnd = 0;
+    _liveBytes = 0;
+  }
+
+  /*********************************************************************/
+  // internal
+
+  private void setSlot(int slot,CrawlTarget target) {
+    if (target.isCompactable()) {
+      _slots[slot] = encode(target);
+    }
+    else {
+      if (_objects == null)
+        _objects = new CrawlTarget[_slots.length];
+      _slots[slot] = OBJECT_SLOT;
+      _objects[slot] = target;
+    }
+  }
+
+  private void clearSlot(int slot) {
+    if (_slots[slot] == OBJECT_SLOT) {
+      _objects[slot] = null;
+    }
+    else {
+      _cursor = _slots[slot];
+      int recordLength = readVarInt();
+      _liveBytes -= (_cursor - _slots[slot]) + recordLength;
+    }
+  }
+
+  private void entryRemoved() {
+    if (_count == 0) {
+      _head = 0;
+      _arenaEnd = 0;
+      _liveBytes = 0;
+      if (_arena != null && _arena.length > RETAINED_ARENA_SIZE)
+        _arena = null;
+      if (_slots.length > 64) {
+        _slots = null;
+        _objects = null;
+      }
+    }
+  }
+
+  private void ensureSlotCapacity() {
+    if (_slots == null) {
+      _slots = new int[MIN_SLOTS];
+      _head = 0;
+    }
+    else if (_count == _slots.length) {
+      int newSlots[] = new int[_slots.length << 1];
+      CrawlTarget newObjects[] = (_objects != null) ? new CrawlTarget[newSlots.length] : null;
+      for (int i=0;i<_count;++i) {
+        int slot = (_head + i) & (_slots.length - 1);
+        newSlots[i] = _slots[slot];
+        if (newObjects != null)
+          newObjects[i] = _objects[slot];
+      }
+      _slots = newSlots;
+      _objects = newObjects;
+      _head = 0;
+    }
+  }
+
+  private int getFlags(int slot) {
+    if (_slots[slot] == OBJECT_SLOT) {
+      return _objects[slot].getFlags();
+    }
+    _cursor = _slots[slot];
+    readVarInt();
+    _cursor += 1 + 8;
+    return _arena[_cursor];
+  }
+
+  /** encode the target into the arena, returning the record's offset **/
+  private int encode(CrawlTarget target) {
+
+    String url = target.getOriginalURL();
+    String etag = target.getETag();
+    String directive = target.getCrawlDirectiveJSON();
+
+    if (!_hostFPSet) {
+      _hostFP = target.getHostFP();
+      _hostFPSet = true;
+    }
+    if (_urlPrefix == null) {
+      _urlPrefix = extractPrefix(url);
+    }
+
+    int header = 0;
+    if (_urlPrefix.length != 0 && url.length() >= _urlPrefix.length && startsWithPrefix(url))
+      header |= HAS_PREFIX;
+    if (target.getHostFP() != _hostFP)
+      header |= HAS_HOSTFP;
+    if (target.getServerIP() != 0)
+      header |= HAS_SERVERIP;
+    if (target.getLastModifiedTime() != -1)
+      header |= HAS_LASTMODIFIED;
+    if (etag != null)
+      header |= HAS_ETAG;
+    if (directive != null)
+      header |= HAS_DIRECTIVE;
+
+    int urlStart = ((header & HAS_PREFIX) != 0) ? _urlPrefix.length : 0;
+
+    int urlLength = encodedLength(url,urlStart);
+    int etagLength = (etag != null) ? encodedLength(etag,0) : 0;
+    int directiveLength = (directive != null) ? encodedLength(directive,0) : 0;
+
+    int bodyLength = 1 + 8 + 3 + varIntSize(target.getSegmentId())
+        + varIntSize(urlLength) + urlLength;
+    if ((header & HAS_LASTMODIFIED) != 0)
+      bodyLength += varLongSize(target.getLastModifiedTime());
+    if ((header & HAS_HOSTFP) != 0)
+      bodyLength += 8;
+    if ((header & HAS_SERVERIP) != 0)
+      bodyLength += 4 + varLongSize(target.getServerIPTTL());
+    if (etag != null)
+      bodyLength += varIntSize(etagLength) + etagLength;
+    if (directive != null)
+      bodyLength += varIntSize(directiveLength) + directiveLength;
+
+    int recordLength = varIntSize(bodyLength) + bodyLength;
+
+    ensureArenaCapacity(recordLength);
+
+    int offset = _arenaEnd;
+    _cursor = offset;
+
+    writeVarInt(bodyLength);
+    _arena[_cursor++] = (byte) header;
+    writeLong(target.getFingerprint());
+    _arena[_cursor++] = (byte) target.getFlags();
+    _arena[_cursor++] = (byte) target.getRetryCount();
+    _arena[_cursor++] = (byte) target.getRedirectCount();
+    writeVarInt(target.getSegmentId());
+    if ((header & HAS_LASTMODIFIED) != 0)
+      writeVarLong(target.getLastModifiedTime());
+    if ((header & HAS_HOSTFP) != 0)
+      writeLong(target.getHostFP());
+    if ((header & HAS_SERVERIP) != 0) {
+      writeInt(target.getServerIP());
+      writeVarLong(target.getServerIPTTL());
+    }
+    writeString(url,urlStart,urlLength);
+    if (etag != null)
+      writeString(etag,0,etagLength);
+    if (directive != null)
+      writeString(directive,0,directiveLength);
+
+    _arenaEnd = offset + recordLength;
+    _liveBytes += recordLength;
+
+    return offset;
+  }
+
+  private CrawlTarget materialize(int slot,CrawlList sourceList) {
+
+    if (_slots[slot] == OBJECT_SLOT) {
+      return _objects[slot];
+    }
+
+    _cursor = _slots[slot];
+    readVarInt();
+
+    int  header = _arena[_cursor++] & 0xFF;
+    long urlFP = readLong();
+    byte flags = _arena[_cursor++];
+    byte retryCount = _arena[_cursor++];
+    byte redirectCount = _arena[_cursor++];
+    int  segmentId = readVarInt();
+    long lastModifiedTime = ((header & HAS_LASTMODIFIED) != 0) ? readVarLong() : -1;
+    long hostFP = ((header & HAS_HOSTFP) != 0) ? readLong() : _hostFP;
+    int  serverIP = 0;
+    long serverIPTTL = 0;
+    if ((header & HAS_SERVERIP) != 0) {
+      serverIP = readInt();
+      serverIPTTL = readVarLong();
+    }
+    String url = readURL(header);
+    String etag = ((header & HAS_ETAG) != 0) ? readString(null) : null;
+    String directive = ((header & HAS_DIRECTIVE) != 0) ? readString(null) : null;
+
+    return new CrawlTarget(sourceList,segmentId,urlFP,url,hostFP,serverIP,serverIPTTL,
+        retryCount,redirectCount,flags,lastModifiedTime,etag,directive);
+  }
+
+  /** position the cursor at the url, given a cursor just past the segment id **/
+  private void skipOptionalFields(int header) {
+    if ((header & HAS_LASTMODIFIED) != 0)
+      readVarLong();
+    if ((header & HAS_HOSTFP) != 0)
+      _cursor += 8;
+    if ((header & HAS_SERVERIP) != 0) {
+      _cursor += 4;
+      readVarLong();
+    }
+  }
+
+  private String readURL(int header) {
+    return readString(((header & HAS_PREFIX) != 0) ? _urlPrefix : null);
+  }
+
+  private void ensureArenaCapacity(int recordSize) {
+    if (_arena == null) {
+      _arena = new byte[Math.max(MIN_ARENA_SIZE,recordSize)];
+      _arenaEnd = 0;
+      _liveBytes = 0;
+    }
+    else if (_arenaEnd + recordSize > _arena.length) {
+      // size the arena for the live records (compacting away dead space), growing by 1.5x ...
+      int required = _liveBytes + recordSize;
+      int newSize = _arena.length;
+      if (required > newSize - (newSize >> 2))
+        newSize = Math.max(newSize + (newSize >> 1),required + (required >> 1));
+      compactArena(newSize);
+    }
+  }
+
+  /** copy live records (in queue order) into a new arena **/
+  private void compactArena(int newSize) {
+    byte newArena[] = new byte[newSize];
+    int newEnd = 0;
+    for (int i=0;i<_count;++i) {
+      int slot = (_head + i) & (_slots.length - 1);
+      int offset = _slots[slot];
+      if (offset != OBJECT_SLOT) {
+        _cursor = offset;
+        int bodyLength = readVarInt();
+        int recordLength = (_cursor - offset) + bodyLength;
+        System.arraycopy(_arena,offset,newArena,newEnd,recordLength);
+        _slots[slot] = newEnd;
+        newEnd += recordLength;
+      }
+    }
+    _arena = newArena;
+    _arenaEnd = newEnd;
+    _liveBytes = newEnd;
+  }
+
+  private static char[] extractPrefix(String url) {
+    // scheme://host/
+    int schemeEnd = url.indexOf("://");
+    if (schemeEnd == -1)
+      return new char[0];
+    int hostEnd = url.indexOf('/',schemeEnd + 3);
+    if (hostEnd == -1)
+      return new char[0];
+    return url.substring(0,hostEnd + 1).toCharArray();
+  }
+
+  private boolean startsWithPrefix(String url) {
+    for (int i=_urlPrefix.length - 1;i>=0;--i) {
+      if (url.charAt(i) != _urlPrefix[i])
+        return false;
+    }
+    return true;
+  }
+
+  private static int varIntSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static int varLongSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private void writeVarInt(int value) {
+    while ((value & ~0x7F) != 0) {
+      _arena[_cursor++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    _arena[_cursor++] = (byte) value;
+  }
+
+  private int readVarInt() {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = _arena[_cursor++];
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  private void writeVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      _arena[_cursor++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    _arena[_cursor++] = (byte) value;
+  }
+
+  private long readVarLong() {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = _arena[_cursor++];
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  private void writeInt(int value) {
+    _arena[_cursor++] = (byte) (value >>> 24);
+    _arena[_cursor++] = (byte) (value >>> 16);
+    _arena[_cursor++] = (byte) (value >>> 8);
+    _arena[_cursor++] = (byte) value;
+  }
+
+  private int readInt() {
+    int value = ((_arena[_cursor] & 0xFF) << 24) | ((_arena[_cursor + 1] & 0xFF) << 16)
+        | ((_arena[_cursor + 2] & 0xFF) << 8) | (_arena[_cursor + 3] & 0xFF);
+    _cursor += 4;
+    return value;
+  }
+
+  private void writeLong(long value) {
+    writeInt((int) (value >>> 32));
+    writeInt((int) value);
+  }
+
+  private long readLong() {
+    long high = readInt();
+    long low = readInt();
+    return (high << 32) | (low & 0xFFFFFFFFL);
+  }
+
+  /** the (modified) utf-8 length of the chars of value from start on **/
+  private static int encodedLength(String value,int start) {
+    int length = value.length();
+    int encodedLength = 0;
+    for (int i=start;i<length;++i) {
+      char c = value.charAt(i);
+      encodedLength += (c != 0 && c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+    }
+    return encodedLength;
+  }
+
+  /** write the chars of value from start on as (modified) utf-8, preceded by the encoded length **/
+  private void writeString(String value,int start,int encodedLength) {
+    int length = value.length();
+    writeVarInt(encodedLength);
+    for (int i=start;i<length;++i) {
+      char c = value.charAt(i);
+      if (c != 0 && c < 0x80) {
+        _arena[_cursor++] = (byte) c;
+      }
+      else if (c < 0x800) {
+        _arena[_cursor++] = (byte) (0xC0 | (c >> 6));
+        _arena[_cursor++] = (byte) (0x80 | (c & 0x3F));
+      }
+      else {
+        _arena[_cursor++] = (byte) (0xE0 | (c >> 12));
+        _arena[_cursor++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        _arena[_cursor++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private String readString(char prefix[]) {
+    int encodedLength = readVarInt();
+    int prefixLength = (prefix != null) ? prefix.length : 0;
+    char chars[] = new char[prefixLength + encodedLength];
+    if (prefixLength != 0)
+      System.arraycopy(prefix,0,chars,0,prefixLength);
+    int charCount = prefixLength;
+    int end = _cursor + encodedLength;
+    while (_cursor < end) {
+      int b = _arena[_cursor++] & 0xFF;
+      if (b < 0x80) {
+        chars[charCount++] = (char) b;
+      }
+      else if ((b & 0xE0) == 0xC0) {
+        chars[charCount++] = (char) (((b & 0x1F) << 6) | (_arena[_cursor++] & 0x3F));
+      }
+      else {
+        chars[charCount++] = (char) (((b & 0x0F) << 12) | ((_arena[_cursor] & 0x3F) << 6) | (_arena[_cursor + 1] & 0x3F));
+        _cursor += 2;
+      }
+    }
+    return new String(chars,0,charCount);
+  }
+
+  /*********************************************************************/
+  // tests
+
+  private static final String TEST_URLS[] = {
+    "http://www.example.com/index.html",
+    "http://www.example.com/caf\u00e9/\u4e2d\u6587?q=\u0000",
+    "https://www.example.com/secure/",
+    "http://other.example.com/path",
+    "not-a-url"
+  };
+
+  /** a random target, compactable unless a crawl interface is assigned **/
+  private static CrawlTarget testTarget(Random random) {
+    String url = TEST_URLS[random.nextInt(TEST_URLS.length)] + random.nextInt(100000);
+    boolean hasValidator = random.nextInt(4) == 0;
+    CrawlTarget target = new CrawlTarget(null,random.nextInt(1000),random.nextLong(),url,
+        (random.nextInt(10) == 0) ? random.nextLong() : 1234L,
+        (random.nextInt(8) == 0) ? random.nextInt() : 0,
+        random.nextLong(),
+        (byte)random.nextInt(4),(byte)0,
+        (byte)(random.nextBoolean() ? CrawlURL.Flags.IsHighPriorityURL : 0),
+        hasValidator ? random.nextLong() & Long.MAX_VALUE : -1,
+        hasValidator ? "\"" + random.nextInt() + "\"" : null,
+        (random.nextInt(8) == 0) ? "{\"directive\":" + random.nextInt() + "}" : null);
+    if (random.nextInt(15) == 0)
+      target.setCrawlInterface(1);
+    return target;
+  }
+
+  private static void assertSameTarget(CrawlTarget expected,CrawlTarget actual) {
+    if (!expected.isCompactable()) {
+      assertSame(expected,actual);
+      return;
+    }
+    assertEquals(expected.getSegmentId(),actual.getSegmentId());
+    assertEquals(expected.getFingerprint(),actual.getFingerprint());
+    assertEquals(expected.getOriginalURL(),actual.getOriginalURL());
+    assertEquals(expected.getHostFP(),actual.getHostFP());
+    assertEquals(expected.getServerIP(),actual.getServerIP());
+    if (expected.getServerIP() != 0)
+      assertEquals(expected.getServerIPTTL(),actual.getServerIPTTL());
+    assertEquals(expected.getRetryCount(),actual.getRetryCount());
+    assertEquals(expected.getRedirectCount(),actual.getRedirectCount());
+    assertEquals(expected.getFlags(),actual.getFlags());
+    assertEquals(expected.getLastModifiedTime(),actual.getLastModifiedTime());
+    assertEquals(expected.getETag(),actual.getETag());
+    assertEquals(expected.getCrawlDirectiveJSON(),actual.getCrawlDirectiveJSON());
+  }
+
+  @Test
+  public void testQueueOrderAndEncoding() throws Exception {
+
+    Random random = new Random(1);
+
+    for (int round=0;round<20;++round) {
+      CompactTargetQueue queue = new CompactTargetQueue();
+      LinkedList<CrawlTarget> expected = new LinkedList<CrawlTarget>();
+
+      // enough churn to wrap the slot ring and compact / grow the arena repeatedly
+      for (int op=0;op<5000;++op) {
+        int choice = random.nextInt(10);
+        if (choice < 4) {
+          CrawlTarget target = testTarget(random);
+          queue.addTail(target);
+          expected.addLast(target);
+        }
+        else if (choice < 5) {
+          CrawlTarget target = testTarget(random);
+          queue.addHead(target);
+          expected.addFirst(target);
+        }
+        else if (choice < 8) {
+          CrawlTarget target = queue.removeHead(null);
+          if (expected.isEmpty()) {
+            assertNull(target);
+          }
+          else {
+            assertSameTarget(expected.removeFirst(),target);
+          }
+        }
+        else if (choice < 9) {
+          if (!expected.isEmpty()) {
+            int index = random.nextInt(expected.size());
+            assertEquals(expected.get(index).getOriginalURL(),queue.getURL(index,false));
+            assertEquals(expected.getFirst().getActiveURL(),queue.peekHeadURL());
+          }
+        }
+        else {
+          CompactTargetQueue destination = new CompactTargetQueue();
+          queue.moveHeadTo(destination,null);
+          if (!expected.isEmpty()) {
+            assertSameTarget(expected.removeFirst(),destination.removeHead(null));
+          }
+          assertEquals(0,destination.size());
+        }
+        assertEquals(expected.size(),queue.size());
+      }
+
+      IntrusiveList<CrawlTarget> remaining = queue.removeAllTargets(null);
+      assertEquals(expected.size(),remaining.size());
+      for (CrawlTarget target : remaining)
+        assertSameTarget(expected.removeFirst(),target);
+      assertEquals(0,queue.size());
+      assertNull(queue.peekHeadURL());
+    }
+  }
+
+  @Test
+  public void testRemoveLowPriority() throws Exception {
+
+    Random random = new Random(1);
+
+    for (int round=0;round<200;++round) {
+      CompactTargetQueue queue = new CompactTargetQueue();
+      ArrayList<CrawlTarget> expected = new ArrayList<CrawlTarget>();
+      int targetCount = random.nextInt(100);
+      for (int i=0;i<targetCount;++i) {
+        CrawlTarget target = testTarget(random);
+        queue.addTail(target);
+        expected.add(target);
+      }
+      int retainCount = random.nextInt(50);
+
+      IntrusiveList<CrawlTarget> removed = queue.removeLowPriority(null,retainCount);
+
+      // reference: drop low priority targets from the tail until retainCount remain
+      LinkedList<CrawlTarget> expectedRemoved = new LinkedList<CrawlTarget>();
+      for (int i=expected.size() - 1;i >= 0;--i) {
+        if ((expected.get(i).getFlags() & CrawlURL.Flags.IsHighPriorityURL) == 0) {
+          expectedRemoved.addFirst(expected.remove(i));
+          if (expected.size() <= retainCount)
+            break;
+        }
+      }
+
+      if (expectedRemoved.isEmpty()) {
+        assertNull(removed);
+      }
+      else {
+        assertEquals(expectedRemoved.size(),removed.size());
+        for (CrawlTarget target : removed)
+          assertSameTarget(expectedRemoved.removeFirst(),target);
+      }
+      assertEquals(expected.size(),queue.size());
+      for (CrawlTarget target : expected)
+        assertSameTarget(target,queue.removeHead(null));
+      assertEquals(0,queue.size());
+    }
+  }
+}
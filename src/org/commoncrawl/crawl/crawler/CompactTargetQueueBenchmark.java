@@ -0,0 +1,108 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.util.Random;
+
+import org.commoncrawl.util.shared.IntrusiveList;
+
+/**
+ * Measures the heap held by pending crawl targets, queued as CrawlTarget
+ * objects in IntrusiveLists (the old CrawlList representation) versus queued
+ * in CompactTargetQueues, and the time to drain the compact queues (i.e. to
+ * materialize every target). Run with a fixed heap (e.g. -Xms2g -Xmx2g) so
+ * heap measurements are stable.
+ *
+ * usage: CompactTargetQueueBenchmark [targetCount] [targetsPerList] [etagPercent]
+ *
+ * @author rana
+ *
+ */
+public class CompactTargetQueueBenchmark {
+
+  private static final String PATHS[] = { "index.html", "news/", "products/item.php?id=", "blog/2009/03/", "forum/viewtopic.php?t=" };
+
+  static CrawlTarget makeTarget(Random random,int listIndex,int targetIndex,int etagPercent) {
+    String url = "http://www.host" + listIndex + ".com/" + PATHS[random.nextInt(PATHS.length)] + random.nextInt(1000000) + "/page" + targetIndex + ".html";
+    boolean hasEtag = random.nextInt(100) < etagPercent;
+    return new CrawlTarget(null,random.nextInt(64),random.nextLong(),url,listIndex,0,0,(byte)0,(byte)0,(byte)0,
+        hasEtag ? 1230000000000L + random.nextInt(1000000000) : -1,
+        hasEtag ? "\"" + Long.toHexString(random.nextLong()) + "\"" : null,null);
+  }
+
+  static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i=0;i<4;++i) {
+      System.gc();
+      try { Thread.sleep(100); } catch (InterruptedException e) { }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) {
+
+    int targetCount    = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+    int targetsPerList = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+    int etagPercent    = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+    int listCount      = (targetCount + targetsPerList - 1) / targetsPerList;
+
+    System.out.println("Targets:" + targetCount + " Lists:" + listCount + " TargetsPerList:" + targetsPerList + " EtagPercent:" + etagPercent);
+
+    // object representation
+    long baseline = usedHeap();
+    IntrusiveList<CrawlTarget> objectLists[] = new IntrusiveList[listCount];
+    Random random = new Random(1);
+    for (int i=0;i<targetCount;++i) {
+      int listIndex = i / targetsPerList;
+      if (objectLists[listIndex] == null)
+        objectLists[listIndex] = new IntrusiveList<CrawlTarget>();
+      objectLists[listIndex].addTail(makeTarget(random,listIndex,i,etagPercent));
+    }
+    long objectBytes = usedHeap() - baseline;
+    System.out.println("CrawlTarget objects: " + (objectBytes / (1024 * 1024)) + "MB (" + (objectBytes / targetCount) + " bytes/target)");
+    objectLists = null;
+
+    // compact representation
+    baseline = usedHeap();
+    CompactTargetQueue compactLists[] = new CompactTargetQueue[listCount];
+    random = new Random(1);
+    long startTime = System.currentTimeMillis();
+    for (int i=0;i<targetCount;++i) {
+      int listIndex = i / targetsPerList;
+      if (compactLists[listIndex] == null)
+        compactLists[listIndex] = new CompactTargetQueue();
+      compactLists[listIndex].addTail(makeTarget(random,listIndex,i,etagPercent));
+    }
+    long buildTime = System.currentTimeMillis() - startTime;
+    long compactBytes = usedHeap() - baseline;
+    System.out.println("CompactTargetQueue: " + (compactBytes / (1024 * 1024)) + "MB (" + (compactBytes / targetCount) + " bytes/target) build:" + buildTime + "ms");
+    System.out.println("Ratio: " + String.format("%.2f",(double)objectBytes / (double)Math.max(1,compactBytes)) + "x");
+
+    // materialization cost
+    startTime = System.currentTimeMillis();
+    long checksum = 0;
+    for (CompactTargetQueue queue : compactLists) {
+      CrawlTarget target;
+      while ((target = queue.removeHead(null)) != null) {
+        checksum += target.getFingerprint();
+      }
+    }
+    long drainTime = Math.max(1,System.currentTimeMillis() - startTime);
+    System.out.println("Drain: " + drainTime + "ms (" + (targetCount * 1000L / drainTime) + " targets/sec) checksum:" + checksum);
+  }
+}
@@ -35,7 +35,6 @@ import org.commoncrawl.util.internal.HttpCookieUtils.CookieStore;
 import org.commoncrawl.util.shared.CCStringUtils;
 import org.commoncrawl.util.shared.IPAddressUtils;
 import org.commoncrawl.util.shared.IntrusiveList;
-import org.commoncrawl.util.shared.IntrusiveList.IntrusiveListElement;
 
 /**
  * 
@@ -90,21 +89,12 @@ public final class CrawlHostImpl implements CrawlListHost, CrawlQueueHost {
   private short       _consecutiveIOErrors = 0;
   private long        _lastIOErrorTime = -1;
   private CookieStore _cookieStore = new CookieStore();
+  /** adapts the crawl delay to the server's observed responsiveness **/
+  private AdaptiveCrawlDelay _crawlDelay = new AdaptiveCrawlDelay(DEFAULT_CRAWL_DELAY);
   
   // private boolean       _skipRobots = false;
   // private String            _resolvedHostName = null;
   
-  private static int MAX_ROBOTS_CACHE_ENTIRES = 20;
-  
-  private static class RobotRuleSetCacheItem extends IntrusiveListElement<RobotRuleSetCacheItem> { 
-    public long         _crc;
-    public RobotRuleSet _ruleSetObject;
-    public long         _lastTouched;
-  }
-
-  /** robots rule set cache **/
-  private IntrusiveList<RobotRuleSetCacheItem> _robotsRuleSetCache = new IntrusiveList<RobotRuleSetCacheItem>();
-
   public CrawlHostImpl(CrawlQueue queue,int ipAddress) { 
     _ipAddress = ipAddress;
     _queue = queue;
@@ -300,7 +290,17 @@ public final class CrawlHostImpl implements CrawlListHost, CrawlQueueHost {
       return SUPERHOST_CRAWL_DELAY_2;
     else
 */    
-      return DEFAULT_CRAWL_DELAY;
+      return _crawlDelay.getDelay();
+  }
+  
+  @Override
+  public void recordFetchTiming(int responseTime,int fetchTime,int httpResultCode) { 
+    _crawlDelay.fetchSucceeded(responseTime,fetchTime,httpResultCode >= 500 || httpResultCode == 429);
+  }
+  
+  @Override
+  public void recordFetchIOFailure() { 
+    _crawlDelay.fetchFailed();
   }
   
   /*
@@ -545,38 +545,14 @@ public final class CrawlHostImpl implements CrawlListHost, CrawlQueueHost {
     return "";
   }
   
-  /** cache a robots file by crc **/ 
-  public void cacheRobotsFile(RobotRuleSet ruleSet,long robotsCRC) { 
-    RobotRuleSetCacheItem oldestItem = null;
-    boolean found = false;
-    for (RobotRuleSetCacheItem item : _robotsRuleSetCache) { 
-      if (item._crc == robotsCRC) { 
-        item._lastTouched = System.currentTimeMillis();
-        found = true;
-      }
-      oldestItem = (oldestItem == null) ? item : (oldestItem._lastTouched > item._lastTouched) ? item : oldestItem;
-    }
-    
-    if (!found) { 
-      if (_robotsRuleSetCache.size() == MAX_ROBOTS_CACHE_ENTIRES) { 
-        _robotsRuleSetCache.removeElement(oldestItem);
-      }
-      RobotRuleSetCacheItem cacheItem = new RobotRuleSetCacheItem();
-      
-      cacheItem._crc = robotsCRC;
-      cacheItem._lastTouched = System.currentTimeMillis();
-      cacheItem._ruleSetObject = ruleSet;
-      _robotsRuleSetCache.addHead(cacheItem);
-    }    
-  }
-  
-  /** check for a cached robots entry via the given crc value **/  
-  public RobotRuleSet getCachedRobotsEntry(long crcValue) { 
-    for (RobotRuleSetCacheItem cacheItem : _robotsRuleSetCache) { 
-      if (cacheItem._crc == crcValue) 
-        return cacheItem._ruleSetObject;
-    }
-    return null;
+  /** cache a robots file by content fingerprint (in the process wide cache). returns the shared rule set instance **/ 
+  public RobotRuleSet cacheRobotsFile(RobotRuleSet ruleSet,long robotsFP,int robotsLength) { 
+    return RobotRulesCache.getSingleton().put(robotsFP, robotsLength, ruleSet);
+  }
+  
+  /** check for a cached robots entry via the given content fingerprint and length **/  
+  public RobotRuleSet getCachedRobotsEntry(long robotsFP,int robotsLength) { 
+    return RobotRulesCache.getSingleton().get(robotsFP,robotsLength);
   }
   
   @Override
@@ -592,6 +568,7 @@ public final class CrawlHostImpl implements CrawlListHost, CrawlQueueHost {
     sb.append("LastDispChangeTime:" +dateStringFromTimeValue(_lastDispositionChangeTime) + "\n");
     sb.append("WaitTime:" +dateStringFromTimeValue(_waitTime) + "\n");
     sb.append("CrawlDelay:" + ((_lastFetchStartTime != -1) ? (Math.max(0,_waitTime - _lastFetchStartTime)) : 0) + "\n");
+    sb.append("AdaptiveCrawlDelay:" + _crawlDelay + "\n");
     sb.append("UniqueDomainCount:" +_uniqueDomainCount + "\n");
     sb.append("SuccessfulGETs:" +_successfulGETCount + "\n");
     sb.append("HTTP-200-Count:" +_http200Count + "\n");
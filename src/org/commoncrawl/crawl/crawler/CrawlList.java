@@ -19,20 +19,15 @@ package org.commoncrawl.crawl.crawler;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
 import java.io.DataInputStream;
-import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.LinkedList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,16 +44,17 @@ import org.commoncrawl.io.internal.NIOHttpConnection;
 import org.commoncrawl.io.shared.NIOHttpHeaders;
 import org.commoncrawl.protocol.CrawlURL;
 import org.commoncrawl.protocol.CrawlURLMetadata;
+import org.commoncrawl.util.internal.RuntimeStatsCollector;
 import org.commoncrawl.util.internal.URLFingerprint;
 import org.commoncrawl.util.internal.URLUtils;
 import org.commoncrawl.util.shared.CCStringUtils;
+import org.commoncrawl.util.shared.FPGenerator;
 import org.commoncrawl.util.shared.FileUtils;
 import org.commoncrawl.util.shared.IPAddressUtils;
 import org.commoncrawl.util.shared.IntrusiveList;
 import org.commoncrawl.util.shared.IntrusiveList.IntrusiveListElement;
 import org.junit.Test;
 
-import com.google.common.collect.Iterables;
 
 /**
  * CrawlList - a collection of CrawlTargets (disk backed)
@@ -72,6 +68,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   private static int DISK_FLUSH_THRESHOLD = 50;
   private static int DISK_LOAD_THRESHOLD = 10;
   private static int IDEAL_TARGET_COUNT = 25;
+  private static final int DISK_QUEUE_THREAD_COUNT = 4;
   private static final int MAX_ROBOTS_EXCLUSION_IN_LOOP = 3;
   private static final int MAX_FAILED_TARGETS_IN_LOOP   = 50;
   private static final int IOEXCEPTION_TIMEOUT_BOOST = 60000;
@@ -113,9 +110,10 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   }  
   
   private static PriorityBlockingQueue<DiskQueueEntry> _diskOperationQueue = new PriorityBlockingQueue<DiskQueueEntry>();
-  private static Thread  _diskOperationThread = null;
-  private static boolean _diskOpThreadShuttingDown = false;
-  private static long    _diskHeaderActiveVersionTimestamp = System.currentTimeMillis();
+  private static Thread  _diskOperationThreads[] = null;
+  private static volatile boolean _diskOpThreadShuttingDown = false;
+  /** the store backing all lists' offline targets **/
+  private static CrawlListSpillStore _spillStore = null;
   
     
   /** logging **/
@@ -132,10 +130,12 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   private long   _uniqueListId;
   /** next crawl interface used to service this list **/
   private int    _nextCrawlInterface = 0;
-  /** cumilative list of crawl targets associated with this queue ...*/ 
-  private IntrusiveList<CrawlTarget> _pending = new IntrusiveList<CrawlTarget>();
+  /** cumilative list of crawl targets associated with this queue (held in compact form until dispatched) ...*/ 
+  private CompactTargetQueue _pending = new CompactTargetQueue();
   /** list of crawl targets directly scheduled for disk queue */
-  private IntrusiveList<CrawlTarget> _queued = new IntrusiveList<CrawlTarget>();
+  private CompactTargetQueue _queued = new CompactTargetQueue();
+  /** index of this list's targets in the spill store (also serializes the list's disk operations) **/
+  private final CrawlListSpillStore.ListIndex _spillIndex = new CrawlListSpillStore.ListIndex();
   
   /** offline item count  - the set of crawl targets that are stored offline on disk **/
   private int _offlineTargetCount = 0;
@@ -161,7 +161,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     public String  _domainName;
     public boolean _domainFailed = false;
     public boolean _domainBlackListed = false;
-    public long    _robotsCRC = -1;
+    public long    _robotsFP = -1;
+    public int     _robotsLength = 0;
     public long    _lastTouched;
     /** host retry counter **/
     public byte   _domainRetryCounter = 0;
@@ -189,8 +190,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   private boolean   _robotsReturned400;
   private boolean   _robotsReturned403;
 
-  /** the crc value for the active rule set - computed at pre-parse time**/
-  private long _robotsCRC = 0;
+  /** the 64 bit fingerprint and length of the active rule set's robots content - computed at pre-parse time**/
+  private long _robotsFP = 0;
+  private int  _robotsLength = 0;
   /** robots file retrieved */
   private boolean   _robotsRetrieved;
   /** robots host name **/
@@ -200,7 +202,6 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   /** last fetched robots data **/
   private String    _lastFetchedRobotsData;
   /** crc calculator **/
-  private static CRC32 _crc32 = new CRC32();
   /** last request was io exception **/
   private boolean _lastRequestWasIOException = false;
   
@@ -284,6 +285,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   IntrusiveList<DNSCacheItem> _dnsCacheItem = new IntrusiveList<DNSCacheItem>();
   
   public void cacheDNSEntry(String hostName,int ipAddress,long ttl) { 
+    // share with the engine's resolution stage (and other lists) 
+    DNSResultCache.getSingleton().cachePositive(hostName,ipAddress,ttl);
+    
     DNSCacheItem oldestItem = null;
     DNSCacheItem found = null;
     for (DNSCacheItem item : _dnsCacheItem) { 
@@ -500,40 +504,43 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
       
       DomainInfo domainInfo = getDomainInfoFromDomain(activeDomainName);
       
-      // get the cached crc for the active domain if it exists ... 
-      long cachedRobotsCRC = (domainInfo == null) ? -1 : domainInfo._robotsCRC;
+      // get the cached fingerprint for the active domain if it exists ... 
+      long cachedRobotsFP = (domainInfo == null) ? -1 : domainInfo._robotsFP;
+      int  cachedRobotsLength = (domainInfo == null) ? 0 : domainInfo._robotsLength;
       
-      // if cached crc found ...   
-      if (cachedRobotsCRC != -1) { 
-        // if cached robots file matches the actvie robots file's crc ... 
-        if (_robotsRetrieved && cachedRobotsCRC == _robotsCRC) {
-          //LOG.info("### Skipping Robots Fetch. Cached CRC == robotsCRC");
+      // if cached fingerprint found ...   
+      if (cachedRobotsFP != -1) { 
+        // if cached robots file matches the actvie robots file's fingerprint ... 
+        if (_robotsRetrieved && cachedRobotsFP == _robotsFP && cachedRobotsLength == _robotsLength) {
+          //LOG.info("### Skipping Robots Fetch. Cached FP == robotsFP");
           // no need to refetch 
           return false;
         }
         // otherwise, check the host's cache ... 
         else { 
           // special case for the empty rule set 
-          if (cachedRobotsCRC == 0) {
+          if (cachedRobotsFP == 0) {
             
-            _robotsCRC = cachedRobotsCRC;
+            _robotsFP = cachedRobotsFP;
+            _robotsLength = 0;
             _robotsHostName = activeDomainName;
             _robotsReturned400 = domainInfo._robotsReturned400;
             _robotsReturned403 = domainInfo._robotsReturned403;
             _ruleSet = RobotRulesParser.getEmptyRules();
             _robotsRetrieved = true;
             if (Environment.detailLogEnabled())
-              LOG.info("### Skipping Robots Fetch. Cached CRC is Zero, indicating empty rule set.");
+              LOG.info("### Skipping Robots Fetch. Cached FP is Zero, indicating empty rule set.");
             
             return false;
           }
           else {
             
-            // check the rule set cache in the host (by crc)
-            RobotRuleSet ruleSet = _host.getCachedRobotsEntry(cachedRobotsCRC);
+            // check the rule set cache in the host (by fingerprint and length)
+            RobotRuleSet ruleSet = _host.getCachedRobotsEntry(cachedRobotsFP,cachedRobotsLength);
             // if cached object found .... 
             if (ruleSet != null) { 
-              _robotsCRC = cachedRobotsCRC;
+              _robotsFP = cachedRobotsFP;
+              _robotsLength = cachedRobotsLength;
               _robotsHostName = activeDomainName;
               _robotsReturned400 = domainInfo._robotsReturned400;
               _robotsReturned403 = domainInfo._robotsReturned403;
@@ -541,7 +548,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
               _robotsRetrieved = true;
               
               if (Environment.detailLogEnabled())
-                LOG.info("### Skipping Robots Fetch. Cached CRC is Non-Zero and cached rule-set found via host.");
+                LOG.info("### Skipping Robots Fetch. Cached FP is Non-Zero and cached rule-set found via host.");
               
               return false;
             }
@@ -602,17 +609,17 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     return found;
   }
   
-  private long checkDomainCacheForRobotsCRC(String hostName){ 
+  private long checkDomainCacheForRobotsFP(String hostName){ 
     for (DomainInfo aliasInfo : _domainInfo) { 
       if (aliasInfo._domainName.equalsIgnoreCase(hostName)) {
         aliasInfo._lastTouched = System.currentTimeMillis();
         _domainInfo.removeElement(aliasInfo);
         _domainInfo.addHead(aliasInfo);
-        if (aliasInfo._robotsCRC != -1) { 
+        if (aliasInfo._robotsFP != -1) { 
           if (Environment.detailLogEnabled())
             LOG.info("### Found Robots Match in Cache for host:" + hostName);          
         }
-        return aliasInfo._robotsCRC;
+        return aliasInfo._robotsFP;
       }
     }
     return -1;
@@ -620,8 +627,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   
   
   
-  private void updateRobotsCRCForDomain(long crc,String domainName,boolean robotsReturned400,boolean robotsReturned403) {
-    getDomainInfoFromDomain(domainName)._robotsCRC = crc;
+  private void updateRobotsFPForDomain(long robotsFP,int robotsLength,String domainName,boolean robotsReturned400,boolean robotsReturned403) {
+    getDomainInfoFromDomain(domainName)._robotsFP = robotsFP;
+    getDomainInfoFromDomain(domainName)._robotsLength = robotsLength;
     getDomainInfoFromDomain(domainName)._robotsReturned400 = robotsReturned400;
     getDomainInfoFromDomain(domainName)._robotsReturned403 = robotsReturned403;
   }
@@ -632,7 +640,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     _robotsReturned400 = false;
     _robotsReturned403 = false;
     _robotsHostName = null;
-    _robotsCRC = 0;
+    _robotsFP = 0;
+    _robotsLength = 0;
     _ruleSet = RobotRulesParser.getEmptyRules();
   }    
   
@@ -663,7 +672,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
       // cheat 
       _robotsRetrieved = true;
       // and update the robot info in the alias map 
-      updateRobotsCRCForDomain(_robotsCRC, _robotsHostName,_robotsReturned400,_robotsReturned403);
+      updateRobotsFPForDomain(_robotsFP,_robotsLength, _robotsHostName,_robotsReturned400,_robotsReturned403);
     }
     else {
       // ok , the robots url is good 
@@ -692,9 +701,16 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
           target.setServerIPTTL(item._ttl);
           return true;
         }
-        return false;
+        break;
       }
     }
+    // fall back to the process wide cache 
+    DNSResultCache.Entry entry = DNSResultCache.getSingleton().lookup(hostName,System.currentTimeMillis());
+    if (entry != null && !entry.isNegative()) { 
+      target.setServerIP(entry.getIPAddress());
+      target.setServerIPTTL(entry.getExpireTime());
+      return true;
+    }
     return false;
   }
   
@@ -740,10 +756,10 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     
     String domainName = "";
     
-    while (targetOut == null && getNextPending(false) != null && getDisposition() == CrawlList.Disposition.ItemAvailable) { 
+    while (targetOut == null && hasNextPending() && getDisposition() == CrawlList.Disposition.ItemAvailable) { 
       
       // pop the next target off of the queue ... 
-      CrawlTarget potentialTarget = getNextPending(true);
+      CrawlTarget potentialTarget = removeNextPending();
       
       // mark request start time 
       potentialTarget.setRequestStartTime(System.currentTimeMillis());
@@ -999,7 +1015,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     
   static class RobotRuleResult { 
     public RobotRuleSet ruleSet;
-    public long         crcValue;
+    public long         contentFP;
+    public int          contentLength;
   };
   
   /** fetch succeeded **/
@@ -1038,6 +1055,12 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     
     final int resultCode = NIOHttpConnection.getHttpResponseCode(httpHeaders);
     
+    // feed the host's crawl delay controller (time to first byte approximated as fetch time less body download time) 
+    int fetchTime = getLastRequestFetchTime();
+    if (httpHeaders != null && fetchTime != 0) { 
+      getHost().recordFetchTiming(Math.max(0,fetchTime - downloadTime),fetchTime,resultCode);
+    }
+    
     if (resultCode == 200){
       
       getHost().incrementCounter(CrawlListHost.CounterId.Http200Count,1);        
@@ -1177,17 +1200,19 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
                       RobotRuleResult result = new RobotRuleResult();
                       
                       if (contentData != null) { 
-                        synchronized (_crc32) { 
-                          _crc32.reset();
-                          _crc32.update(contentData);
-                          result.crcValue = _crc32.getValue();
+                        result.contentFP = FPGenerator.std64.fp(contentData,0,contentData.length);
+                        result.contentLength = contentData.length;
+                        // identical robots files are common across ips (shared hosting, cdns), skip the parse if already cached 
+                        result.ruleSet = _host.getCachedRobotsEntry(result.contentFP,result.contentLength);
+                        if (result.ruleSet == null) { 
+                          RobotRulesParser parser = new RobotRulesParser(getServerSingleton().getConfig());
+                          result.ruleSet = parser.parseRules(contentData,0,contentData.length);
                         }
-                        RobotRulesParser parser = new RobotRulesParser(getServerSingleton().getConfig());
-                        result.ruleSet = parser.parseRules(contentData,0,contentData.length); 
                       }
                       else {
                         result.ruleSet = RobotRulesParser.getEmptyRules();
-                        result.crcValue = 0;
+                        result.contentFP = 0;
+                        result.contentLength = 0;
                       }
                       return result;
                     }
@@ -1240,9 +1265,12 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
 
                       
                       _ruleSet    = loadResult.ruleSet;
-                      _robotsCRC  = loadResult.crcValue;
+                      _robotsFP  = loadResult.contentFP;
+                      _robotsLength = loadResult.contentLength;
                       
-                      _host.cacheRobotsFile(_ruleSet, _robotsCRC);
+                      if (_robotsFP != 0) { 
+                        _ruleSet = _host.cacheRobotsFile(_ruleSet, _robotsFP, _robotsLength);
+                      }
                     }
                     else {
 
@@ -1255,22 +1283,23 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
                       
                       // LOG.error("####Robots parsing for host:" + activeHost + " failed.");
                       _ruleSet    = RobotRulesParser.getEmptyRules();
-                      _robotsCRC  = 0;
+                      _robotsFP  = 0;
+                      _robotsLength = 0;
                     }
                     
                     //if (Environment.detailLogEnabled())
                       LOG.info("####Robots RETRIEVED for Host:"+activeHost + " CrawlDelay IS:" + getCrawlDelay(false));
                     
                     if (originalHost != null && activeHost != null) { 
-	                    updateRobotsCRCForDomain(_robotsCRC, originalHost,_robotsReturned400,_robotsReturned403);
+	                    updateRobotsFPForDomain(_robotsFP,_robotsLength, originalHost,_robotsReturned400,_robotsReturned403);
 	                    if (activeHost.compareToIgnoreCase(originalHost) != 0) { 
-	                      updateRobotsCRCForDomain(_robotsCRC, activeHost,_robotsReturned400,_robotsReturned403);
+	                      updateRobotsFPForDomain(_robotsFP,_robotsLength, activeHost,_robotsReturned400,_robotsReturned403);
 	                    }
                     }
                       
                     Disposition oldDisposition = _disposition;
                     
-                    if (getNextPending(false) != null) {
+                    if (hasNextPending()) {
                       _disposition = Disposition.ItemAvailable;
                     }
                     else { 
@@ -1290,7 +1319,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
                     
                     Disposition oldDisposition = _disposition;
                     
-                    if (getNextPending(false) != null) {
+                    if (hasNextPending()) {
                       _disposition = Disposition.ItemAvailable;
                     }
                     else { 
@@ -1318,7 +1347,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
           CrawlerServer.getEngine().logRobots(System.currentTimeMillis(),_robotsHostName, 
               resultCode, null,CrawlerEngine.RobotsLogEventType.HTTP_GET_Failed,0);
           
-          _robotsCRC = 0;
+          _robotsFP = 0;
+          _robotsLength = 0;
           if (Environment.detailLogEnabled())
             LOG.info("####Robots GET for Host:" + activeHost + "FAILED With Result Code:" + resultCode);
           //TODO: MAKE THIS MORE ROBUST ... 
@@ -1335,9 +1365,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
           _ruleSet = RobotRulesParser.getEmptyRules();
           
           if (originalHost != null && activeHost != null) { 
-	          updateRobotsCRCForDomain(_robotsCRC, originalHost,_robotsReturned400,_robotsReturned403);
+	          updateRobotsFPForDomain(_robotsFP,_robotsLength, originalHost,_robotsReturned400,_robotsReturned403);
 	          if (activeHost.compareToIgnoreCase(originalHost) != 0) { 
-	            updateRobotsCRCForDomain(_robotsCRC, activeHost,_robotsReturned400,_robotsReturned403);
+	            updateRobotsFPForDomain(_robotsFP,_robotsLength, activeHost,_robotsReturned400,_robotsReturned403);
 	          }
           }
           
@@ -1350,7 +1380,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
       }
         
       // if there are no more items in the queue 
-      if (getNextPending(false) == null) {
+      if (!hasNextPending()) {
         // if offline count is zero then mark this domain's queue as empty
         if (_offlineTargetCount == 0) { 
           _disposition = Disposition.QueueEmpty;
@@ -1510,6 +1540,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     if (failureReason == CrawlURL.FailureReason.IOException || failureReason == CrawlURL.FailureReason.Timeout) { 
       // increment host failure counter ... 
       _host.incrementCounter(CrawlListHost.CounterId.ConsecutiveIOErrorCount,1);
+      _host.recordFetchIOFailure();
       _lastRequestWasIOException = true;
     }
     
@@ -1723,24 +1754,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     else {
       // first calculate crawl delay based on robots delay value * number of hops to service last request 
       //int crawlDelay = (getCrawlDelay(true) * (_lastRequestRedirectCount+1));
+      // (the host's adaptive delay already keeps the delay at or above a multiple of the observed fetch time) 
       int crawlDelay = getCrawlDelay(true);
       
-      // if the crawl delay is the default host crawl delay 
-      if (crawlDelay == _host.getCrawlDelay()) { 
-        // see if fetch time is available 
-        int lastDocFetchTime = getLastRequestFetchTime();
-        
-        if (lastDocFetchTime != 0) { 
-          // calculate alternate crawl delay based on fetch time ... 
-          int alternateCrawlDelay = lastDocFetchTime * 4;
-          if (alternateCrawlDelay > crawlDelay) { 
-            crawlDelay = alternateCrawlDelay;
-            if (Environment.detailLogEnabled())
-              LOG.info("### CRAWLDELAY Using Alternate Crawl Delay of:" + alternateCrawlDelay + " for URL:" + getNextPending(false));
-          }
-        }
-      }
-      
       /*
       if (_lastRequestDownloadTime != -1) { 
         // next see if host took more than crawl delay millseconds to respond
@@ -1762,18 +1778,19 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     }
   }
   
-  /** getNextPending */
-  private synchronized CrawlTarget getNextPending(boolean removeItem) {
-
-    CrawlTarget targetOut = null;
-    
-    if (_pending.size() != 0) { 
-      targetOut = _pending.getHead();
-     if (removeItem && targetOut != null) { 
-       _pending.removeElement(targetOut);
-      }
-    }
-    return targetOut;
+  /** hasNextPending */
+  private synchronized boolean hasNextPending() { 
+    return _pending.size() != 0;
+  }
+  
+  /** removeNextPending - materializes the next pending target */
+  private synchronized CrawlTarget removeNextPending() {
+    return _pending.removeHead(this);
+  }
+  
+  /** peekNextPendingURL */
+  private synchronized String peekNextPendingURL() { 
+    return _pending.peekHeadURL();
   }
 
   /** indicates if robots file need to be retrieved for the specified host */
@@ -1783,12 +1800,12 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   private final int getCrawlDelay(boolean checkForOverride) { 
     
     if (checkForOverride) { 
-      CrawlTarget potentialTarget = getNextPending(false);
+      String potentialTargetURL = peekNextPendingURL();
       
-      if (potentialTarget != null) { 
+      if (potentialTargetURL != null) { 
   
         try {
-          URL targetURL = new URL(potentialTarget.getActiveURL());
+          URL targetURL = new URL(potentialTargetURL);
           // validate against the server for crawl delay
           //LOG.info("Checking Crawl Delay for url:" + targetURL.toString());
           int overridenCrawlDelay = CrawlerServer.getServer().checkForCrawlRateOverride(targetURL);
@@ -1811,7 +1828,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     else { 
       crawlDelayOut += (int)Math.min(_ruleSet.getCrawlDelay(),MAX_CRAWL_DELAY);
       crawlDelayOut = Math.max(MIN_CRAWL_DELAY, crawlDelayOut);
-      
+      // robots delay is a floor, the adaptive delay may back off beyond it 
+      crawlDelayOut = Math.max(crawlDelayOut, getHost().getCrawlDelay());
     }
     
     if (_lastRequestWasIOException) { 
@@ -1845,13 +1863,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
         
         sb.append("next 100 scheduled urls:\n");
         
-        int itemCount =0;
-        CrawlTarget target = _pending.getHead();
-        while (target != null) { 
-          
-          sb.append("["+(itemCount++)+"]:<a href='" + target.getOriginalURL() +"'>" + target.getOriginalURL()  + "</a>\n");
-          
-          target = target.getNext();
+        for (int itemCount=0;itemCount<_pending.size();++itemCount) { 
+          String url = _pending.getURL(itemCount,false);
+          sb.append("["+itemCount+"]:<a href='" + url +"'>" + url  + "</a>\n");
         }
       }
       
@@ -1872,306 +1886,297 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     public static int getPendingDiskOperationCount() { 
       return _diskOperationQueue.size();
     }
+    
+    /** signalled by the disk threads (while someone is waiting) as operations complete **/
+    private static final Object _diskQueueDrainMonitor = new Object();
+    private static volatile int _diskQueueDrainWaiters = 0;
+    
+    /** 
+     * block until the pending disk operation count is at or below lowWaterMark, or maxWaitTime (ms) elapses.
+     * returns true if the queue drained. 
+     */
+    public static boolean waitForPendingDiskOperations(int lowWaterMark,long maxWaitTime) {
+      long waitUntil = System.currentTimeMillis() + maxWaitTime;
+      synchronized (_diskQueueDrainMonitor) { 
+        _diskQueueDrainWaiters++;
+        try { 
+          while (_diskOperationQueue.size() > lowWaterMark) { 
+            long waitTime = waitUntil - System.currentTimeMillis();
+            if (waitTime <= 0) 
+              return false;
+            _diskQueueDrainMonitor.wait(waitTime);
+          }
+          return true;
+        }
+        catch (InterruptedException e) { 
+          return false;
+        }
+        finally { 
+          _diskQueueDrainWaiters--;
+        }
+      }
+    }
   
     public static void stopDiskQueueingThread() { 
       
-      if (_diskOperationThread != null) {
+      if (_diskOperationThreads != null) {
         _diskOpThreadShuttingDown = true;
-        LOG.info("shutting down Disk Queue Thread - sending null item to queue");
-        _diskOperationQueue.add(new DiskQueueEntry(null,false));
+        LOG.info("shutting down Disk Queue Threads - sending null items to queue");
+        for (int i=0;i<_diskOperationThreads.length;++i) { 
+          _diskOperationQueue.add(new DiskQueueEntry(null,false));
+        }
         try {
-          LOG.info("Waiting for Disk Queue Thread to Die");
-          _diskOperationThread.join();
-          LOG.info("Done Waiting for Disk Queue Thread");
+          LOG.info("Waiting for Disk Queue Threads to Die");
+          for (Thread thread : _diskOperationThreads) { 
+            thread.join();
+          }
+          LOG.info("Done Waiting for Disk Queue Threads");
         } catch (InterruptedException e) {
           e.printStackTrace();
         }
         
+        _diskOperationQueue.clear();
         _diskOpThreadShuttingDown = false;
-        _diskOperationThread = null;
+        _diskOperationThreads = null;
+      }
+      if (_spillStore != null) { 
+        _spillStore.close();
+        _spillStore = null;
       }
     }
+    
     public static void startDiskQueueingThread(final EventLoop serverEventLoop,final File baseStoragePath) { 
       
-      // figure out 
+      // open the shared spill store ... 
+      try { 
+        _spillStore = new CrawlListSpillStore(baseStoragePath);
+        _spillStore.startCompactionThread();
+      }
+      catch (IOException e) { 
+        LOG.fatal("### DiskThread: Failed to open Spill Store at:" + baseStoragePath + " " + CCStringUtils.stringifyException(e));
+        throw new RuntimeException(e);
+      }
+      
+      // and finally start the disk i/o threads ...
+      _diskOperationThreads = new Thread[DISK_QUEUE_THREAD_COUNT];
       
-      // and finally start the blocking writer thread ...
-      _diskOperationThread = new Thread(new Runnable() {
+      for (int i=0;i<_diskOperationThreads.length;++i) { 
+        _diskOperationThreads[i] = new Thread(new Runnable() {
+      
+          public void run() {
+            
+            for (;;) { 
+              try {
+                
+                DiskQueueEntry entry = _diskOperationQueue.take();
+  
+                // if buffer item is null... this is considered an eof condition ... break out ... 
+                if (entry.getListItem() == null) {
+                  LOG.info("### DiskThread:Received Null Item ... Shutting down CrawlDomain Disk Queue Thread");
+                  // now matter what ... break out ... 
+                  break;
+                }
+                // otherwise .. figure out what to do with the domain ... 
+                else if (_diskOpThreadShuttingDown == false) {
+                  processDiskOperation(entry.getListItem());
+                  
+                  if (_diskQueueDrainWaiters != 0) { 
+                    synchronized (_diskQueueDrainMonitor) { 
+                      _diskQueueDrainMonitor.notifyAll();
+                    }
+                  }
+                }
+              } catch (InterruptedException e) {
+      
+              }
+              catch (Exception e) { 
+                LOG.fatal("### DiskThread: Encountered Unhandled Exception:" + CCStringUtils.stringifyException(e));
+              }
+            }
+           
+            LOG.info("### DiskThread: Exiting CrawlDomain Disk Queue Thread");
+          } 
+        });
+        _diskOperationThreads[i].setName("CrawlList Disk Queue Thread-" + i);
+        // launch the i/o thread ...
+        _diskOperationThreads[i].start();
+      }
+    }
     
-        public void run() {
+    /** 
+     * service a disk request for the list (flush excess targets to / load targets from the spill store). 
+     * disk operations for a given list are serialized via the list's spill index.
+     */
+    private static void processDiskOperation(final CrawlList domain) { 
+      
+      synchronized (domain._spillIndex) { 
+        try {
+          if (Environment.detailLogEnabled())
+            LOG.info("### DiskThread: Got List:" + domain.getListName());
           
-          for (;;) { 
-            try {
-              
-              DiskQueueEntry entry = _diskOperationQueue.take();
+          IntrusiveList<CrawlTarget> flushList = null;
+          
+          int desiredLoadAmount = 0;
 
-              // if buffer item is null... this is considered an eof condition ... break out ... 
-              if (entry.getListItem() == null) {
-                LOG.info("### DiskThread:Received Null Item ... Shutting down CrawlDomain Disk Queue Thread");
-                // now matter what ... break out ... 
-                break;
-              }
-              // otherwise .. figure out what to do with the domain ... 
-              else { 
+          boolean discardSpilledTargets = false;
+          
+          synchronized(domain) { 
+            if (domain._offlineTargetCount == 0) { 
+              discardSpilledTargets = true;
+            }
+          }
+          
+          // if the list was reset, anything still in the store is stale ... 
+          if (discardSpilledTargets && domain._spillIndex.getRecordCount() != 0) { 
+            
+            if (Environment.detailLogEnabled())
+              LOG.info("### DiskThread: Discarding Stale Spilled Targets for List:" + domain.getListName());
+            
+            _spillStore.discard(domain._spillIndex);
+          }
+          
+          // now lock access to the domain's pending queue
+          synchronized(domain) { 
 
-                if (_diskOpThreadShuttingDown == false) {
-                  
-                  final CrawlList domain = entry.getListItem();
-                  
-                  try {
+            // if a disk request was pending ...
+            if (domain._diskRequestPending) { 
+
+              // reset disk request pending flag here to prevent race condition ...
+              domain._diskRequestPending = false;
+
+              // figure out what action to take with respect to the domain ...
+
+              // if list count exceeds flush threshold 
+              if (domain._pending.size() >= DISK_FLUSH_THRESHOLD || domain._queued.size() != 0) {
+
+                if (domain._queued.size() == 0) { 
+                  // remove low priority candidates (starting from the tail) until we are back to the ideal target count ... 
+                  flushList = domain._pending.removeLowPriority(domain,IDEAL_TARGET_COUNT);
+
+                  // if there were low priority candidates we can flush ... 
+                  if (flushList != null) {
                     if (Environment.detailLogEnabled())
-                      LOG.info("### DiskThread: Got List:" + domain.getListName());
-                    // build a hierarchichal path for the given domain id ... 
-                    File logFilePath = null;
-                    String listName = null;
-                    synchronized(domain) { 
-                      logFilePath = FileUtils.buildHierarchicalPathForId(baseStoragePath,domain.getUniqueListId());
-                      listName = domain.getListName();
-                    }
-                    // get the immediate parent directory ... 
-                    File parentDirectory = logFilePath.getParentFile();
-                    // and recursively create the directory chain (if necessary).
-                    parentDirectory.mkdirs();
-                    
-                    IntrusiveList<CrawlTarget> flushList = null;
-                    
-                    int desiredLoadAmount = 0;
+                      LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM PENDING of Size:" + flushList.size());
 
-                    boolean truncateFile = false;
-                    
-                    synchronized(domain) { 
-                      if (domain._offlineTargetCount == 0) { 
-                        truncateFile = true;
-                      }
-                    }
-                    
-                    if (truncateFile && logFilePath.exists()) { 
-                      
-                      if (Environment.detailLogEnabled())
-                        LOG.info("### DiskThread: Truncating Existing Log File for List:" + listName);
-                      
-                      LogFileHeader header = new LogFileHeader();
-                           
-                      RandomAccessFile file = new RandomAccessFile(logFilePath,"rw"); 
-                      
-                      try { 
-                          writeLogFileHeader(file,header);
-                      }
-                      finally { 
-                        file.close();
-                      }
-                    }
-                    
-                    // now lock access to the domain's pending queue
-                    synchronized(domain) { 
-                      
-                      // if a disk request was pending ...
-                      if (domain._diskRequestPending) { 
-                      
-                        // reset disk request pending flag here to prevent race condition ...
-                        domain._diskRequestPending = false;
-                        
-                        // figure out what action to take with respect to the domain ...
-                        
-                        // if list count exceeds flush threshold 
-                        if (domain._pending.size() >= DISK_FLUSH_THRESHOLD || domain._queued.size() != 0) {
-                         
-                          if (domain._queued.size() == 0) { 
-                            LinkedList<CrawlTarget> candidates = new LinkedList<CrawlTarget>();
-                            for (CrawlTarget candidate : domain._pending) { 
-                              if ((candidate.getFlags() & CrawlURL.Flags.IsHighPriorityURL) == 0) { 
-                                // add candidates in proper order ... 
-                                candidates.add(candidate);
-                              }
-                            }
-                            
-                            // if there are low priority candidates we can flush ... 
-                            if (candidates.size() != 0) {
-                              // create a new flush list ... 
-                              flushList = new IntrusiveList<CrawlTarget>();
-                              
-                              // reverse candidate list and start removing items from pending 
-                              for (CrawlTarget candidate : Iterables.reverse(candidates)) { 
-                                domain._pending.removeElement(candidate);
-                                flushList.addHead(candidate);
-                                // if we are back to ideal target count bail ... 
-                                if (domain._pending.size() <= IDEAL_TARGET_COUNT)
-                                  break;
-                              }
-                              
-                              if (Environment.detailLogEnabled())
-                                LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM PENDING of Size:" + flushList.size());
-                              
-                              // increment offline target count ...
-                              domain._offlineTargetCount += flushList.size();
-                            }
-                          }
-                          else { 
-                            flushList = domain._queued.detach(domain._queued.getHead());
-                            
-                            if (Environment.detailLogEnabled())
-                              LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM QUEUED of Size:" + flushList.size());
+                    // increment offline target count ...
+                    domain._offlineTargetCount += flushList.size();
+                  }
+                }
+                else { 
+                  flushList = domain._queued.removeAllTargets(domain);
 
-                            // increment offline target count ...
-                            domain._offlineTargetCount += flushList.size();
-                            
-                          }
-                          
-
-                          /*
-                          // walk one past IDEAL target item count... 
-                          int i=0;
-                          CrawlTarget target = domain._pending.getHead();  
-                          while (i<IDEAL_TARGET_COUNT) { 
-                            target = target.getNext();
-                            ++i;
-                          }
-                          
-                          // and extract a sub-list starting at the target ...  
-                          flushList = domain._pending.detach(target);
-                          */
-                          //and immediately update offline target count in domain ... 
-                          //domain._offlineTargetCount += flushList.size();
-                        }
-                        // otherwise ... 
-                        else { 
-                          // check queued size ... 
-                          if (domain._queued.size() != 0) {
-                            // if pending size <= DISK_LOAD_THRESHOLD 
-                            if (domain._offlineTargetCount == 0 && domain._pending.size() <= DISK_LOAD_THRESHOLD) {
-                              if (Environment.detailLogEnabled())
-                                LOG.info("### DiskThread: Moving Items from Queued List to Pending List for CrawlList:" + domain.getListName());
-                              // move over items from queued to pending 
-                              
-                              while (domain._queued.getHead() != null) { 
-                                domain._pending.addTail(domain._queued.removeHead());
-                                if (domain._pending.size() == (DISK_FLUSH_THRESHOLD - 1))
-                                  break;
-                              }
-                            }
-                            
-                            //now if domain queue exceeds flush threshold ... 
-                            if (domain._queued.size() >= IDEAL_TARGET_COUNT) { 
-                              if (Environment.detailLogEnabled())
-                                LOG.info("### DiskThread: Queued Size Exceed Flush Threshold. Flushing to Disk for CrawlList:" + domain.getListName());
-                              // extract a sub-list starting at head of queued list   
-                              flushList = domain._queued.detach(domain._queued.getHead());
-                              //and immediately update offline target count in domain ... 
-                              domain._offlineTargetCount += flushList.size();
-                            }
-                          }
-                          
-                          // check to see if a load is desired ...
-                          if (domain._pending.size() <= DISK_LOAD_THRESHOLD) { 
-                            // calculate load amount ... 
-                            desiredLoadAmount = IDEAL_TARGET_COUNT - domain._pending.size();
-                          }
-                        }
-                      }
-                      else { 
-                        if (Environment.detailLogEnabled())
-                          LOG.info("### DiskThread: Skipping List:" + domain.getListName());
-                      }
-                    }
-                    
-                    // now figure out what to do ... 
-                    if (flushList != null) {
-                      if (Environment.detailLogEnabled())
-                        LOG.info("### DiskThread: Flushing"+ flushList.size() + " Items To Disk for Domain:" + domain.getListName());
-                      // flush crawl targets to disk ... 
-                      appendTargetsToLogFile(logFilePath,flushList);
-                      // clear list ... 
-                      flushList.removeAll();
-                    }
-                    // ... if load is desired ... 
-                    if (desiredLoadAmount  != 0) { 
-                      
-                      IntrusiveList<CrawlTarget> loadList = new IntrusiveList<CrawlTarget>();
+                  if (Environment.detailLogEnabled())
+                    LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM QUEUED of Size:" + flushList.size());
 
-                      int loadCount = readTargetsFromLogFile(domain,logFilePath,desiredLoadAmount,loadList);
-                      
-                      // if (Environment.detailLogEnabled())
-                        LOG.info("### DiskThread:Disk Queue Loaded: " + loadCount + "Items To Disk for Domain:" + domain.getListName());
-                      
-                      if (loadCount != 0) { 
-                        // time to lock domain again ... 
-                        synchronized(domain) { 
-                          // and reduce offline count ... 
-                          domain._offlineTargetCount -= loadList.size(); 
-                          // load new items into domain's list ... 
-                          domain._pending.attach(loadList);
-                        }
-                      }
+                  // increment offline target count ...
+                  domain._offlineTargetCount += flushList.size();
+
+                }
+
+
+                /*
+                // walk one past IDEAL target item count... 
+                int i=0;
+                CrawlTarget target = domain._pending.getHead();  
+                while (i<IDEAL_TARGET_COUNT) { 
+                  target = target.getNext();
+                  ++i;
+                }
+
+                // and extract a sub-list starting at the target ...  
+                flushList = domain._pending.detach(target);
+                */
+                //and immediately update offline target count in domain ... 
+                //domain._offlineTargetCount += flushList.size();
+              }
+              // otherwise ... 
+              else { 
+                // check queued size ... 
+                if (domain._queued.size() != 0) {
+                  // if pending size <= DISK_LOAD_THRESHOLD 
+                  if (domain._offlineTargetCount == 0 && domain._pending.size() <= DISK_LOAD_THRESHOLD) {
+                    if (Environment.detailLogEnabled())
+                      LOG.info("### DiskThread: Moving Items from Queued List to Pending List for CrawlList:" + domain.getListName());
+                    // move over items from queued to pending 
+
+                    while (domain._queued.size() != 0) { 
+                      domain._queued.moveHeadTo(domain._pending,domain);
+                      if (domain._pending.size() == (DISK_FLUSH_THRESHOLD - 1))
+                        break;
                     }
                   }
-                  catch (IOException e) { 
-                    LOG.error("### DiskThread:" + CCStringUtils.stringifyException(e));
+
+                  //now if domain queue exceeds flush threshold ... 
+                  if (domain._queued.size() >= IDEAL_TARGET_COUNT) { 
+                    if (Environment.detailLogEnabled())
+                      LOG.info("### DiskThread: Queued Size Exceed Flush Threshold. Flushing to Disk for CrawlList:" + domain.getListName());
+                    // extract a sub-list starting at head of queued list   
+                    flushList = domain._queued.removeAllTargets(domain);
+                    //and immediately update offline target count in domain ... 
+                    domain._offlineTargetCount += flushList.size();
                   }
                 }
+
+                // check to see if a load is desired ...
+                if (domain._pending.size() <= DISK_LOAD_THRESHOLD) { 
+                  // calculate load amount ... 
+                  desiredLoadAmount = IDEAL_TARGET_COUNT - domain._pending.size();
+                }
               }
-            } catch (InterruptedException e) {
-    
             }
-            catch (Exception e) { 
-              LOG.fatal("### DiskThread: Encountered Unhandled Exception:" + CCStringUtils.stringifyException(e));
+            else { 
+              if (Environment.detailLogEnabled())
+                LOG.info("### DiskThread: Skipping List:" + domain.getListName());
+            }
+          }
+
+          // now figure out what to do ... 
+          if (flushList != null) {
+            if (Environment.detailLogEnabled())
+              LOG.info("### DiskThread: Flushing"+ flushList.size() + " Items To Disk for Domain:" + domain.getListName());
+            // flush crawl targets to disk ... 
+            try { 
+              appendTargetsToSpillStore(domain,flushList);
+            }
+            catch (IOException e) { 
+              // the targets never made it to disk - put them back in memory (as a load would) 
+              // and stop counting them as offline, so the list neither loses nor waits on them ... 
+              synchronized(domain) { 
+                domain._offlineTargetCount -= flushList.size();
+                domain._pending.addAll(flushList);
+              }
+              throw e;
+            }
+            // clear list ... 
+            flushList.removeAll();
+          }
+          // ... if load is desired ... 
+          if (desiredLoadAmount  != 0) { 
+            
+            IntrusiveList<CrawlTarget> loadList = new IntrusiveList<CrawlTarget>();
+
+            int loadCount = readTargetsFromSpillStore(domain,desiredLoadAmount,loadList);
+            
+            if (Environment.detailLogEnabled())
+              LOG.info("### DiskThread:Disk Queue Loaded: " + loadCount + "Items To Disk for Domain:" + domain.getListName());
+            
+            if (loadCount != 0) { 
+              // time to lock domain again ... 
+              synchronized(domain) { 
+                // and reduce offline count ... 
+                domain._offlineTargetCount -= loadList.size(); 
+                // load new items into domain's list ... 
+                domain._pending.addAll(loadList);
+              }
             }
           }
-         
-          LOG.info("### DiskThread: Exiting CrawlDomain Disk Queue Thread");
-        } 
-      });
-      // launch the writer thread ... 
-      _diskOperationThread.start();
-    }
-    
-    private static class LogFileHeader {
-      
-      public static final int LogFileHeaderBytes = 0xCC00CC00;
-      public static final int LogFileVersion         = 1;
-      
-      public LogFileHeader() { 
-        _readPos = 0;
-        _writePos = 0;
-        _itemCount = 0;
-      }
-      
-      public long _readPos;
-      public long _writePos;
-      public int   _itemCount;
-      
-      public void writeHeader(DataOutput stream) throws IOException { 
-        stream.writeInt(LogFileHeaderBytes);
-        stream.writeInt(LogFileVersion);
-        stream.writeLong(_diskHeaderActiveVersionTimestamp);
-        stream.writeLong(_readPos);
-        stream.writeLong(_writePos);
-        stream.writeInt(_itemCount);
-      }
-      
-      public void readHeader(DataInput stream) throws IOException { 
-        int headerBytes = stream.readInt();
-        int version         = stream.readInt();
-        long timestamp = stream.readLong();
-        
-        if (headerBytes != LogFileHeaderBytes && version !=LogFileVersion) { 
-          throw new IOException("Invalid CrawlLog File Header Detected!");
         }
-        
-        _readPos     = stream.readLong();
-        _writePos     = stream.readLong();
-        _itemCount  = stream.readInt();
-        
-        // if timestamps don't match ... 
-        if (timestamp != _diskHeaderActiveVersionTimestamp) {
-          // then reset cursors .. eveything in the file is invalid ... 
-          _writePos = 0;
-          _readPos = 0;
-          _itemCount =0;
+        catch (IOException e) { 
+          LOG.error("### DiskThread:" + CCStringUtils.stringifyException(e));
         }
       }
     }
     
-    
     private static final class CustomByteArrayOutputStream extends ByteArrayOutputStream { 
       public CustomByteArrayOutputStream(int initialSize) { 
         super(initialSize);
@@ -2179,180 +2184,59 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
       public byte[] getBuffer() { return buf; }
     }
     
-    private static void appendTargetsToLogFile(File logFileName,IntrusiveList<CrawlTarget> list)throws IOException { 
-      
-      LogFileHeader header = new LogFileHeader();
+    private static void appendTargetsToSpillStore(CrawlList domain,IntrusiveList<CrawlTarget> list)throws IOException { 
       
-      boolean preExistingHeader = logFileName.exists();
-            
-      RandomAccessFile file = new RandomAccessFile(logFileName,"rw"); 
+      CustomByteArrayOutputStream bufferOutputStream = new CustomByteArrayOutputStream(1 << 12);
+      DataOutputStream dataOutputStream = new DataOutputStream(bufferOutputStream);
+      CrawlListSpillStore.RecordBatch batch = new CrawlListSpillStore.RecordBatch();
       
-      try { 
-        long headerOffset = 0;
-        
-        if(preExistingHeader) {
-          
-          headerOffset = readLogFileHeader(file, header);
-          
-          if (header._writePos == 0) { 
-            file.seek(headerOffset);
-          }
-          else {
-            // seelk to appropriate write position 
-            file.seek(header._writePos);
-          }
-        }
-        else { 
-          headerOffset = writeLogFileHeader(file,header);
-        }
-        
-  
-        CustomByteArrayOutputStream bufferOutputStream = new CustomByteArrayOutputStream(1 << 17);
-        DataOutputStream dataOutputStream = new DataOutputStream(bufferOutputStream);
-        CRC32 crc = new CRC32();
+      for (CrawlTarget target : list) { 
         
-        for (CrawlTarget target : list) { 
-          
-          PersistentCrawlTarget persistentTarget = target.createPersistentTarget();
-          
-          bufferOutputStream.reset();
-          // write to intermediate stream ... 
-          persistentTarget.write(dataOutputStream);
-          // and crc the data ... 
-          crc.reset();
-          crc.update(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
-          // write out length first 
-          file.writeInt(bufferOutputStream.size());
-          //crc next
-          long computedValue = crc.getValue();
-          //TODO: waste of space - write 32 bit values as long because having problems with java sign promotion rules during read...
-          file.writeLong(computedValue);
-          // and then the data 
-          file.write(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
-        }
-        
-        // now update header ... 
-        header._itemCount += list.size();
-        header._writePos   = file.getFilePointer();
+        PersistentCrawlTarget persistentTarget = target.createPersistentTarget();
         
-        // now write out header anew ... 
-        writeLogFileHeader(file,header);
-        
-      }
-      finally { 
-        if (file != null) { 
-          file.close();
-        }
+        bufferOutputStream.reset();
+        // write to intermediate stream ... 
+        persistentTarget.write(dataOutputStream);
+        // and add it to the batch (the store frames and crcs each record) 
+        batch.addRecord(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
       }
+      // append the batch to the list's spilled runs (group committed with other lists' flushes)
+      _spillStore.append(domain._spillIndex,batch);
     }
     
-    private static int readTargetsFromLogFile(CrawlList domain,File logFileName,int desiredReadAmount,IntrusiveList<CrawlTarget> targetsOut)throws IOException { 
+    private static int readTargetsFromSpillStore(final CrawlList domain,int desiredReadAmount,final IntrusiveList<CrawlTarget> targetsOut)throws IOException { 
      
-      int itemsRead = 0;
+      final PersistentCrawlTarget persistentTarget = new PersistentCrawlTarget();
       
-      if (logFileName.exists()) { 
-       
-        RandomAccessFile file = new RandomAccessFile(logFileName,"rw");
-        
-        LogFileHeader header = new LogFileHeader();     
-        
-        try { 
-          
-          long headerOffset = readLogFileHeader(file, header);
-            
-          // seelk to appropriate write position 
-          if (header._readPos != 0)
-            file.seek(header._readPos);
-          
-          int itemsToRead  = Math.min(desiredReadAmount, header._itemCount);
+      return _spillStore.read(domain._spillIndex,desiredReadAmount,new CrawlListSpillStore.RecordReader() {
 
-          PersistentCrawlTarget persistentTarget = new PersistentCrawlTarget();
-          CRC32 crc = new CRC32();
-          CustomByteArrayOutputStream buffer = new CustomByteArrayOutputStream(1 << 16);
+        public void readRecord(byte[] data, int offset, int length) throws IOException {
+          //populate a persistentTarget from the (in memory) data stream
+          DataInputStream bufferReader = new DataInputStream(new ByteArrayInputStream(data,offset,length));
           
-          for (int i=0;i<itemsToRead;++i) { 
-            // read length ... 
-            int urlDataLen     = file.readInt();
-            long urlDataCRC = file.readLong();
+          persistentTarget.clear();
+          persistentTarget.readFields(bufferReader);
 
-            buffer.reset();
-            
-            if (urlDataLen > buffer.getBuffer().length) { 
-              buffer = new  CustomByteArrayOutputStream( ((urlDataLen / 65536) + 1) * 65536 );
-            }
-            file.read(buffer.getBuffer(), 0, urlDataLen);
-            crc.reset();
-            crc.update(buffer.getBuffer(), 0, urlDataLen);
-            
-            long computedValue = crc.getValue();
-            
-            // validate crc values ... 
-            if (computedValue != urlDataCRC) { 
-              throw new IOException("Crawl Target Log File Corrupt");
-            }
-            else { 
-              //populate a persistentTarget from the (in memory) data stream
-              DataInputStream bufferReader = new DataInputStream(new ByteArrayInputStream(buffer.getBuffer(),0,urlDataLen));
-              
-              persistentTarget.clear();
-              persistentTarget.readFields(bufferReader);
-
-              //populate a new crawl target structure ... 
-              CrawlTarget newTarget = new CrawlTarget(domain,persistentTarget);
-              
-              targetsOut.addTail(newTarget);
-            }
-          }
-          
-          itemsRead = itemsToRead;
+          //populate a new crawl target structure ... 
+          CrawlTarget newTarget = new CrawlTarget(domain,persistentTarget);
           
-          // now update header ... 
-          header._itemCount -= itemsRead;
-          // now if item count is non zero ... 
-          if (header._itemCount != 0) { 
-            // set read cursor to next record location 
-            header._readPos     = file.getFilePointer();
-          }
-          // otherwise ... 
-          else { 
-            // reset both cursors ... 
-            header._readPos = 0;
-            header._writePos = 0;
-          }
-          
-          // now write out header anew ... 
-          writeLogFileHeader(file,header);
+          targetsOut.addTail(newTarget);
         }
-        finally { 
-          if (file != null) { 
-            file.close();
-          }
-        }
-      }
-      return itemsRead;
-    }
-
-    
-    private static long writeLogFileHeader(RandomAccessFile file, LogFileHeader header )throws IOException {
-      
-      // set the position at zero .. 
-      file.seek(0);
-      // and write header to disk ... 
-      header.writeHeader(file);
-      
-      //took sync out because it was becoming a sever bottleneck
-      // file.getFD().sync();
-      
-      return file.getFilePointer();
+      });
     }
     
-    private static long readLogFileHeader(RandomAccessFile file,LogFileHeader header) throws IOException {
-      
-      file.seek(0);
-      
-      header.readHeader(file);
-      
-      return file.getFilePointer();
+    /** disk queue stats **/
+    static void collectDiskQueueStats(RuntimeStatsCollector stats) { 
+      CrawlListSpillStore store = _spillStore;
+      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_PendingOperations,_diskOperationQueue.size());
+      if (store != null) { 
+        stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_SpillSegments,store.getSegmentCount());
+        stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_SpillBytes,store.getTotalBytes());
+        stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_SpillLiveBytes,store.getLiveBytes());
+        stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_GroupCommits,store.getCommitCount());
+        stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_AvgAppendsPerCommit,store.getAverageCommitSize());
+        stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DiskQueue_CompactedBytes,store.getBytesCompacted());
+      }
     }
     
   
@@ -30,11 +30,11 @@ public interface CrawlListHost extends CrawlHost {
 		RobotsExcludedCount, SuccessfullGetCount, Http200Count, Http403Count, FailedDomainCount, FailedGetCount, ConsecutiveIOErrorCount
 	}
 
-	/** associated the given content crc with the givn robotruleset object**/
-	public void cacheRobotsFile(RobotRuleSet ruleSet, long robotsCRC);
+	/** associated the given content fingerprint and length with the givn robotruleset object. returns the (possibly shared) instance to use **/
+	public RobotRuleSet cacheRobotsFile(RobotRuleSet ruleSet, long robotsFP, int robotsLength);
 
-	/** get cached robots entry given crc */
-	public RobotRuleSet getCachedRobotsEntry(long crcValue);
+	/** get cached robots entry given content fingerprint and length */
+	public RobotRuleSet getCachedRobotsEntry(long robotsFP, int robotsLength);
 
 	/** get the cookie store associated with the host **/
 	public CookieStore getCookieStore();
@@ -42,6 +42,12 @@ public interface CrawlListHost extends CrawlHost {
 	/** get the crawl delay to use for this host **/
 	public int getCrawlDelay();
 
+	/** feed the host's crawl delay controller the timing (ms) and result code of a completed fetch **/
+	public void recordFetchTiming(int responseTime,int fetchTime,int httpResultCode);
+
+	/** feed the host's crawl delay controller an io error / timeout **/
+	public void recordFetchIOFailure();
+
 	/** get the scheme (http/https) used to retrieve urls for this host **/
 	public String getScheme();
 
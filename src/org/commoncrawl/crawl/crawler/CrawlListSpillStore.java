@@ -0,0 +1,811 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.util.shared.CCStringUtils;
+import org.junit.Test;
+
+/**
+ * A log structured spill store for CrawlList disk queues, shared by all lists.
+ *
+ * Flushed records are appended to large append-only segment files, and each list
+ * keeps an in memory index (ListIndex) of the runs (segment, offset, length, record
+ * count) it has spilled, oldest first. Appends from concurrent flushers are group
+ * committed - the first flusher to arrive writes everyone's pending runs with a
+ * single sequential gathering write. Loads are positional reads, so they proceed in
+ * parallel with each other and with appends.
+ *
+ * Segments track their live (unconsumed) bytes. A sealed segment is deleted as soon
+ * as its last run is consumed, and a background thread compacts sealed segments that
+ * are mostly consumed by moving their remaining runs to the active segment.
+ *
+ * The contents of the store do not survive a restart (the directory is wiped on
+ * open), matching the old per list log files, which were invalidated on startup.
+ *
+ * Callers must serialize operations on a given list by synchronizing on its
+ * ListIndex (compaction does the same).
+ *
+ * Record framing: [int length][int crc32][bytes]
+ *
+ * @author rana
+ *
+ */
+final class CrawlListSpillStore {
+
+  /** logging **/
+  private static final Log LOG = LogFactory.getLog(CrawlListSpillStore.class);
+
+  static final long   DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  /** sealed segments with less than this ratio of live bytes are compacted **/
+  static final double COMPACTION_LIVE_RATIO = .25;
+  static final long   COMPACTION_INTERVAL = 30000;
+
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final String SEGMENT_PREFIX = "spill-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  /** visits records read back from the store **/
+  static interface RecordReader {
+    void readRecord(byte[] data,int offset,int length) throws IOException;
+  }
+
+  /** a buffer of framed records, to be appended to a list as a single run **/
+  static final class RecordBatch {
+
+    private byte _buffer[];
+    private int  _length = 0;
+    private int  _count = 0;
+    private CRC32 _crc = new CRC32();
+
+    RecordBatch() {
+      this(1 << 14);
+    }
+
+    RecordBatch(int initialSize) {
+      _buffer = new byte[initialSize];
+    }
+
+    void addRecord(byte[] data,int offset,int length) {
+      ensureCapacity(_length + RECORD_HEADER_SIZE + length);
+      _crc.reset();
+      _crc.update(data,offset,length);
+      writeInt(_length,length);
+      writeInt(_length + 4,(int)_crc.getValue());
+      System.arraycopy(data,offset,_buffer,_length + RECORD_HEADER_SIZE,length);
+      _length += RECORD_HEADER_SIZE + length;
+      _count++;
+    }
+
+    int getRecordCount() { return _count; }
+    int getLength() { return _length; }
+
+    void reset() {
+      _length = 0;
+      _count = 0;
+    }
+
+    private void ensureCapacity(int size) {
+      if (size > _buffer.length) {
+        byte newBuffer[] = new byte[Math.max(size,_buffer.length << 1)];
+        System.arraycopy(_buffer,0,newBuffer,0,_length);
+        _buffer = newBuffer;
+      }
+    }
+
+    private void writeInt(int pos,int value) {
+      _buffer[pos]     = (byte)(value >>> 24);
+      _buffer[pos + 1] = (byte)(value >>> 16);
+      _buffer[pos + 2] = (byte)(value >>> 8);
+      _buffer[pos + 3] = (byte)value;
+    }
+  }
+
+  /** a contiguous run of records in a segment **/
+  static final class Run {
+    Segment _segment;
+    long    _offset;
+    int     _length;
+    int     _count;
+    Run     _next;
+  }
+
+  /** per list index of spilled runs, oldest first **/
+  static final class ListIndex {
+    private Run _head;
+    private Run _tail;
+    private int _recordCount;
+
+    /** number of records spilled by the list and not yet read back **/
+    synchronized int getRecordCount() {
+      return _recordCount;
+    }
+
+    private void addRun(Run run) {
+      if (_tail != null)
+        _tail._next = run;
+      else
+        _head = run;
+      _tail = run;
+      _recordCount += run._count;
+    }
+  }
+
+  /** a segment file **/
+  static final class Segment {
+    final int   _id;
+    final File  _file;
+    RandomAccessFile _raf;
+    FileChannel _channel;
+    /** bytes written (only advanced by the group commit leader) **/
+    long _size = 0;
+    /** bytes not yet consumed (guarded by the store) **/
+    long _liveBytes = 0;
+    boolean _sealed = false;
+    boolean _deleted = false;
+    /** lists that (may) have runs in the segment (guarded by the store) **/
+    Set<ListIndex> _lists = Collections.newSetFromMap(new IdentityHashMap<ListIndex,Boolean>());
+
+    Segment(int id,File file) throws IOException {
+      _id = id;
+      _file = file;
+      _raf = new RandomAccessFile(file,"rw");
+      _raf.setLength(0);
+      _channel = _raf.getChannel();
+    }
+  }
+
+  /** an append waiting for (or completed by) a group commit **/
+  private static final class PendingWrite {
+    final ListIndex _list;
+    final byte _data[];
+    final int  _offset;
+    final int  _length;
+    Segment  _segment;
+    long     _position;
+    IOException _error;
+    boolean  _done = false;
+
+    PendingWrite(ListIndex list,byte[] data,int offset,int length) {
+      _list = list;
+      _data = data;
+      _offset = offset;
+      _length = length;
+    }
+  }
+
+  private File    _directory;
+  private long    _segmentSize;
+  private int     _nextSegmentId = 0;
+  private Segment _activeSegment;
+  private ArrayList<Segment> _segments = new ArrayList<Segment>();
+
+  /** group commit state **/
+  private final Object _commitLock = new Object();
+  private ArrayList<PendingWrite> _commitQueue = new ArrayList<PendingWrite>();
+  private boolean _commitInProgress = false;
+
+  /** compaction **/
+  private Thread  _compactionThread = null;
+  private volatile boolean _closed = false;
+
+  /** stats **/
+  private long _appendCount = 0;
+  private long _commitCount = 0;
+  private long _bytesAppended = 0;
+  private long _bytesRead = 0;
+  private long _bytesCompacted = 0;
+  private long _segmentsDeleted = 0;
+
+  CrawlListSpillStore(File directory) throws IOException {
+    this(directory,DEFAULT_SEGMENT_SIZE);
+  }
+
+  CrawlListSpillStore(File directory,long segmentSize) throws IOException {
+    _directory = directory;
+    _segmentSize = segmentSize;
+    _directory.mkdirs();
+    // anything left over from a previous run is invalid
+    File existing[] = _directory.listFiles();
+    if (existing != null) {
+      for (File file : existing) {
+        if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+          file.delete();
+        }
+      }
+    }
+    synchronized (this) {
+      _activeSegment = createSegment();
+    }
+  }
+
+  /** start the background compaction thread **/
+  void startCompactionThread() {
+    _compactionThread = new Thread(new Runnable() {
+
+      public void run() {
+        while (!_closed) {
+          try {
+            Thread.sleep(COMPACTION_INTERVAL);
+          }
+          catch (InterruptedException e) {
+          }
+          if (!_closed) {
+            try {
+              compact();
+            }
+            catch (IOException e) {
+              LOG.error("Spill Store Compaction Failed:" + CCStringUtils.stringifyException(e));
+            }
+          }
+        }
+      }
+    });
+    _compactionThread.setName("CrawlListSpillStore Compactor");
+    _compactionThread.setDaemon(true);
+    _compactionThread.start();
+  }
+
+  /**
+   * append a batch of records to the list as a new run. blocks until the run is
+   * written (possibly as part of another thread's group commit).
+   */
+  void append(ListIndex list,RecordBatch batch) throws IOException {
+    if (batch.getRecordCount() == 0)
+      return;
+    PendingWrite write = appendRaw(list,batch._buffer,0,batch.getLength());
+    Run run = new Run();
+    run._segment = write._segment;
+    run._offset = write._position;
+    run._length = batch.getLength();
+    run._count = batch.getRecordCount();
+    list.addRun(run);
+  }
+
+  /**
+   * read up to maxRecords records from the head of the list, consuming them
+   *
+   * @return number of records read
+   */
+  int read(ListIndex list,int maxRecords,RecordReader reader) throws IOException {
+
+    int recordsRead = 0;
+    CRC32 crc = new CRC32();
+
+    while (recordsRead < maxRecords && list._head != null) {
+
+      Run run = list._head;
+
+      // runs are small (one flush worth of targets), so read the remainder of the run in one go
+      ByteBuffer buffer = ByteBuffer.allocate(run._length);
+      readFully(run._segment,run._offset,buffer);
+      synchronized (this) {
+        _bytesRead += run._length;
+      }
+
+      byte data[] = buffer.array();
+      int pos = 0;
+      int runRecordsRead = 0;
+      while (pos < run._length && recordsRead < maxRecords) {
+        int length = ((data[pos] & 0xFF) << 24) | ((data[pos+1] & 0xFF) << 16) | ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+        int expectedCRC = ((data[pos+4] & 0xFF) << 24) | ((data[pos+5] & 0xFF) << 16) | ((data[pos+6] & 0xFF) << 8) | (data[pos+7] & 0xFF);
+        if (length < 0 || pos + RECORD_HEADER_SIZE + length > run._length) {
+          throw new IOException("Spill Store Corrupt - Invalid Record Length:" + length + " in Segment:" + run._segment._id);
+        }
+        crc.reset();
+        crc.update(data,pos + RECORD_HEADER_SIZE,length);
+        if ((int)crc.getValue() != expectedCRC) {
+          throw new IOException("Spill Store Corrupt - CRC Mismatch in Segment:" + run._segment._id);
+        }
+        reader.readRecord(data,pos + RECORD_HEADER_SIZE,length);
+        pos += RECORD_HEADER_SIZE + length;
+        runRecordsRead++;
+        recordsRead++;
+      }
+
+      consume(list,run,pos,(pos == run._length) ? 0 : run._count - runRecordsRead);
+    }
+    return recordsRead;
+  }
+
+  /** drop all of the list's spilled runs **/
+  void discard(ListIndex list) {
+    while (list._head != null) {
+      Run run = list._head;
+      consume(list,run,run._length,0);
+    }
+  }
+
+  /** stop compaction, and close and delete all segments **/
+  void close() {
+    _closed = true;
+    if (_compactionThread != null) {
+      _compactionThread.interrupt();
+      try {
+        _compactionThread.join();
+      }
+      catch (InterruptedException e) {
+      }
+      _compactionThread = null;
+    }
+    synchronized (this) {
+      for (Segment segment : new ArrayList<Segment>(_segments)) {
+        deleteSegment(segment);
+      }
+      _activeSegment = null;
+    }
+  }
+
+  /** stats **/
+  synchronized int getSegmentCount() { return _segments.size(); }
+  synchronized long getTotalBytes() {
+    long total = 0;
+    for (Segment segment : _segments)
+      total += segment._size;
+    return total;
+  }
+  synchronized long getLiveBytes() {
+    long live = 0;
+    for (Segment segment : _segments)
+      live += segment._liveBytes;
+    return live;
+  }
+  synchronized long getAppendCount() { return _appendCount; }
+  synchronized long getCommitCount() { return _commitCount; }
+  synchronized long getBytesAppended() { return _bytesAppended; }
+  synchronized long getBytesCompacted() { return _bytesCompacted; }
+  synchronized long getSegmentsDeleted() { return _segmentsDeleted; }
+  synchronized long getBytesRead() { return _bytesRead; }
+
+  /** average number of appends written per group commit **/
+  synchronized double getAverageCommitSize() {
+    return (_commitCount == 0) ? 0.0 : (double)_appendCount / (double)_commitCount;
+  }
+
+  /**
+   * move the remaining runs of mostly consumed sealed segments into the active segment,
+   * so that the old segments can be deleted
+   */
+  void compact() throws IOException {
+
+    ArrayList<Segment> candidates = new ArrayList<Segment>();
+
+    synchronized (this) {
+      for (Segment segment : _segments) {
+        if (segment._sealed && segment._size != 0 && (double)segment._liveBytes / (double)segment._size < COMPACTION_LIVE_RATIO) {
+          candidates.add(segment);
+        }
+      }
+    }
+
+    for (Segment segment : candidates) {
+
+      ArrayList<ListIndex> lists;
+      synchronized (this) {
+        if (segment._deleted)
+          continue;
+        lists = new ArrayList<ListIndex>(segment._lists);
+      }
+
+      long bytesMoved = 0;
+
+      for (ListIndex list : lists) {
+        synchronized (list) {
+          for (Run run = list._head;run != null;run = run._next) {
+            if (run._segment == segment) {
+              ByteBuffer buffer = ByteBuffer.allocate(run._length);
+              readFully(segment,run._offset,buffer);
+              PendingWrite write = appendRaw(list,buffer.array(),0,run._length);
+              synchronized (this) {
+                segment._liveBytes -= run._length;
+                run._segment = write._segment;
+                run._offset = write._position;
+                bytesMoved += run._length;
+              }
+            }
+          }
+        }
+        synchronized (this) {
+          segment._lists.remove(list);
+        }
+      }
+
+      synchronized (this) {
+        _bytesCompacted += bytesMoved;
+        if (segment._liveBytes == 0 && !segment._deleted) {
+          deleteSegment(segment);
+        }
+      }
+    }
+  }
+
+  /** consume bytesConsumed bytes from the head run of the list, leaving recordsRemaining records in it **/
+  private void consume(ListIndex list,Run run,int bytesConsumed,int recordsRemaining) {
+    list._recordCount -= (run._count - recordsRemaining);
+    synchronized (this) {
+      run._segment._liveBytes -= bytesConsumed;
+      if (recordsRemaining == 0) {
+        list._head = run._next;
+        if (list._head == null)
+          list._tail = null;
+        run._next = null;
+      }
+      else {
+        run._offset += bytesConsumed;
+        run._length -= bytesConsumed;
+        run._count = recordsRemaining;
+      }
+      if (run._segment._sealed && run._segment._liveBytes == 0 && !run._segment._deleted) {
+        deleteSegment(run._segment);
+      }
+    }
+  }
+
+  private void readFully(Segment segment,long position,ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      int bytesRead = segment._channel.read(buffer,position + buffer.position());
+      if (bytesRead == -1) {
+        throw new IOException("Unexpected EOF in Segment:" + segment._id + " at:" + (position + buffer.position()));
+      }
+    }
+    buffer.flip();
+  }
+
+  /** queue an append and wait for it to be group committed **/
+  private PendingWrite appendRaw(ListIndex list,byte[] data,int offset,int length) throws IOException {
+
+    PendingWrite write = new PendingWrite(list,data,offset,length);
+
+    synchronized (_commitLock) {
+      _commitQueue.add(write);
+    }
+
+    for (;;) {
+      ArrayList<PendingWrite> batch = null;
+      synchronized (_commitLock) {
+        while (!write._done && _commitInProgress) {
+          try {
+            _commitLock.wait();
+          }
+          catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for Group Commit");
+          }
+        }
+        if (write._done)
+          break;
+        // become the commit leader, and write out everything queued so far
+        _commitInProgress = true;
+        batch = _commitQueue;
+        _commitQueue = new ArrayList<PendingWrite>();
+      }
+      try {
+        commit(batch);
+      }
+      finally {
+        synchronized (_commitLock) {
+          _commitInProgress = false;
+          _commitLock.notifyAll();
+        }
+      }
+    }
+
+    if (write._error != null) {
+      throw write._error;
+    }
+    return write;
+  }
+
+  /** write a batch of appends, using one gathering write per segment touched **/
+  private void commit(ArrayList<PendingWrite> batch) {
+
+    int start = 0;
+
+    while (start < batch.size()) {
+
+      Segment segment;
+      int end = start;
+
+      synchronized (this) {
+        segment = _activeSegment;
+        // roll the active segment if the next append doesn't fit (non empty segments only)
+        if (segment._size != 0 && segment._size + batch.get(start)._length > _segmentSize) {
+          segment._sealed = true;
+          if (segment._liveBytes == 0)
+            deleteSegment(segment);
+          try {
+            segment = _activeSegment = createSegment();
+          }
+          catch (IOException e) {
+            LOG.error("Failed to create Spill Segment:" + CCStringUtils.stringifyException(e));
+            failWrites(batch,start,batch.size(),e);
+            return;
+          }
+        }
+        // take as many appends as fit in the active segment (at least one)
+        long size = segment._size;
+        while (end < batch.size() && (end == start || size + batch.get(end)._length <= _segmentSize)) {
+          size += batch.get(end)._length;
+          end++;
+        }
+      }
+
+      ByteBuffer buffers[] = new ByteBuffer[end - start];
+      long position = segment._size;
+      long totalBytes = 0;
+      for (int i=start;i<end;++i) {
+        PendingWrite write = batch.get(i);
+        buffers[i - start] = ByteBuffer.wrap(write._data,write._offset,write._length);
+        write._segment = segment;
+        write._position = position + totalBytes;
+        totalBytes += write._length;
+      }
+
+      try {
+        segment._channel.position(position);
+        long bytesWritten = 0;
+        while (bytesWritten < totalBytes) {
+          bytesWritten += segment._channel.write(buffers);
+        }
+      }
+      catch (IOException e) {
+        LOG.error("Spill Store Write Failed for Segment:" + segment._id + " " + CCStringUtils.stringifyException(e));
+        failWrites(batch,start,end,e);
+        start = end;
+        continue;
+      }
+
+      synchronized (this) {
+        segment._size = position + totalBytes;
+        segment._liveBytes += totalBytes;
+        for (int i=start;i<end;++i) {
+          segment._lists.add(batch.get(i)._list);
+        }
+        _appendCount += (end - start);
+        _bytesAppended += totalBytes;
+        _commitCount++;
+      }
+
+      synchronized (_commitLock) {
+        for (int i=start;i<end;++i) {
+          batch.get(i)._done = true;
+        }
+      }
+      start = end;
+    }
+  }
+
+  private void failWrites(ArrayList<PendingWrite> batch,int start,int end,IOException e) {
+    synchronized (_commitLock) {
+      for (int i=start;i<end;++i) {
+        batch.get(i)._error = e;
+        batch.get(i)._done = true;
+      }
+    }
+  }
+
+  /** create a new (active) segment - call with the store locked **/
+  private Segment createSegment() throws IOException {
+    int id = _nextSegmentId++;
+    Segment segment = new Segment(id,new File(_directory,SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+    _segments.add(segment);
+    return segment;
+  }
+
+  /** close and delete a segment - call with the store locked **/
+  private void deleteSegment(Segment segment) {
+    segment._deleted = true;
+    segment._lists.clear();
+    _segments.remove(segment);
+    try {
+      segment._channel.close();
+      segment._raf.close();
+    }
+    catch (IOException e) {
+      LOG.error("Error closing Segment:" + segment._id + " " + CCStringUtils.stringifyException(e));
+    }
+    if (!segment._file.delete()) {
+      LOG.error("Failed to delete Spill Segment:" + segment._file);
+    }
+    _segmentsDeleted++;
+  }
+
+  /** test record: [int list][int sequence][filler], with a sequence dependent length **/
+  private static byte[] testRecord(int listId,int sequence,int fillerLength) {
+    byte record[] = new byte[8 + fillerLength];
+    ByteBuffer.wrap(record).putInt(listId).putInt(sequence);
+    for (int i=8;i<record.length;++i)
+      record[i] = (byte)(sequence + i);
+    return record;
+  }
+
+  /** reads records back, checking that the list's sequence numbers come back in order **/
+  private static final class SequenceChecker implements RecordReader {
+
+    final int _listId;
+    final int _fillerLength;
+    int _nextSequence = 0;
+
+    SequenceChecker(int listId,int fillerLength) {
+      _listId = listId;
+      _fillerLength = fillerLength;
+    }
+
+    public void readRecord(byte[] data,int offset,int length) throws IOException {
+      byte expected[] = testRecord(_listId,_nextSequence++,_fillerLength);
+      assertEquals(expected.length,length);
+      for (int i=0;i<length;++i)
+        assertEquals(expected[i],data[offset + i]);
+    }
+  }
+
+  private static File testDirectory(String name) {
+    File directory = new File(System.getProperty("java.io.tmpdir"),name);
+    directory.mkdirs();
+    return directory;
+  }
+
+  @Test
+  public void testConcurrentAppendAndRead() throws Exception {
+
+    final CrawlListSpillStore store = new CrawlListSpillStore(testDirectory("spillStoreTest"),16 * 1024);
+
+    try {
+      final int listCount = 8;
+      final int batchesPerList = 200;
+      final ListIndex lists[] = new ListIndex[listCount];
+      Thread threads[] = new Thread[listCount];
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+      // one flusher thread per list, so appends get group committed across lists
+      for (int i=0;i<listCount;++i) {
+        final int listId = i;
+        lists[i] = new ListIndex();
+        threads[i] = new Thread(new Runnable() {
+
+          public void run() {
+            try {
+              Random random = new Random(listId);
+              RecordBatch batch = new RecordBatch(64);
+              int sequence = 0;
+              for (int b=0;b<batchesPerList;++b) {
+                batch.reset();
+                int recordCount = 1 + random.nextInt(10);
+                for (int r=0;r<recordCount;++r) {
+                  byte record[] = testRecord(listId,sequence++,listId * 10);
+                  batch.addRecord(record,0,record.length);
+                }
+                synchronized (lists[listId]) {
+                  store.append(lists[listId],batch);
+                }
+              }
+            }
+            catch (Exception e) {
+              failure.set(e);
+            }
+          }
+        });
+        threads[i].start();
+      }
+      for (Thread thread : threads)
+        thread.join();
+      if (failure.get() != null)
+        throw failure.get();
+
+      assertTrue(store.getSegmentCount() > 1);
+      assertEquals(listCount * batchesPerList,store.getAppendCount());
+      assertEquals(store.getTotalBytes(),store.getLiveBytes());
+
+      // read back in small chunks, so runs are split across reads
+      Random random = new Random(1);
+      for (int i=0;i<listCount;++i) {
+        SequenceChecker checker = new SequenceChecker(i,i * 10);
+        int expectedCount = lists[i].getRecordCount();
+        int recordsRead;
+        do {
+          synchronized (lists[i]) {
+            recordsRead = store.read(lists[i],1 + random.nextInt(7),checker);
+          }
+        } while (recordsRead != 0);
+        assertEquals(expectedCount,checker._nextSequence);
+        assertEquals(0,lists[i].getRecordCount());
+      }
+
+      // fully consumed sealed segments are deleted, leaving only the active one
+      assertEquals(0,store.getLiveBytes());
+      assertEquals(1,store.getSegmentCount());
+    }
+    finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testCompactionAndDiscard() throws Exception {
+
+    File directory = testDirectory("spillStoreCompactionTest");
+    CrawlListSpillStore store = new CrawlListSpillStore(directory,8 * 1024);
+
+    try {
+      ListIndex bigList = new ListIndex();
+      ListIndex smallList = new ListIndex();
+      ListIndex discardList = new ListIndex();
+
+      // interleave large and small runs, so consuming the large list leaves mostly dead segments
+      RecordBatch batch = new RecordBatch();
+      int smallSequence = 0;
+      int bigSequence = 0;
+      for (int i=0;i<100;++i) {
+        batch.reset();
+        byte bigRecord[] = testRecord(0,bigSequence++,1000);
+        batch.addRecord(bigRecord,0,bigRecord.length);
+        store.append(bigList,batch);
+
+        batch.reset();
+        byte smallRecord[] = testRecord(1,smallSequence++,4);
+        batch.addRecord(smallRecord,0,smallRecord.length);
+        store.append(smallList,batch);
+
+        batch.reset();
+        byte discardRecord[] = testRecord(2,i,4);
+        batch.addRecord(discardRecord,0,discardRecord.length);
+        store.append(discardList,batch);
+      }
+
+      store.discard(discardList);
+      assertEquals(0,discardList.getRecordCount());
+
+      SequenceChecker bigChecker = new SequenceChecker(0,1000);
+      assertEquals(100,store.read(bigList,Integer.MAX_VALUE,bigChecker));
+
+      int segmentCount = store.getSegmentCount();
+      assertTrue(segmentCount > 2);
+
+      store.compact();
+
+      // the small list's runs were moved out of the dead segments, which are gone
+      assertTrue(store.getBytesCompacted() > 0);
+      assertTrue(store.getSegmentCount() < segmentCount);
+
+      SequenceChecker smallChecker = new SequenceChecker(1,4);
+      assertEquals(100,store.read(smallList,Integer.MAX_VALUE,smallChecker));
+      assertEquals(0,store.getLiveBytes());
+    }
+    finally {
+      store.close();
+    }
+    // close deletes the segment files
+    for (File file : directory.listFiles())
+      assertTrue(!file.getName().startsWith(SEGMENT_PREFIX));
+  }
+}
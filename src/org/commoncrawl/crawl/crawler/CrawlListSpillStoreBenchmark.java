@@ -0,0 +1,160 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures CrawlListSpillStore flush and load throughput with a large number
+ * of lists. Each i/o thread repeatedly picks a random list and either flushes
+ * a batch of targets to it or loads a batch back, the way the CrawlList disk
+ * queue threads do, then all lists are drained.
+ *
+ * usage: CrawlListSpillStoreBenchmark [listCount] [ioThreads] [operations] [targetsPerFlush] [targetSize] [directory]
+ *
+ * @author rana
+ *
+ */
+public class CrawlListSpillStoreBenchmark {
+
+  public static void main(String[] args) throws Exception {
+
+    final int  listCount       = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    final int  threadCount     = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+    final int  operationCount  = (args.length > 2) ? Integer.parseInt(args[2]) : 2000000;
+    final int  targetsPerFlush = (args.length > 3) ? Integer.parseInt(args[3]) : 25;
+    final int  targetSize      = (args.length > 4) ? Integer.parseInt(args[4]) : 120;
+    File directory = (args.length > 5) ? new File(args[5]) : new File(System.getProperty("java.io.tmpdir"),"spillStoreBenchmark");
+
+    directory.mkdirs();
+
+    final CrawlListSpillStore store = new CrawlListSpillStore(directory);
+    store.startCompactionThread();
+
+    final CrawlListSpillStore.ListIndex lists[] = new CrawlListSpillStore.ListIndex[listCount];
+    for (int i=0;i<listCount;++i)
+      lists[i] = new CrawlListSpillStore.ListIndex();
+
+    System.out.println("Lists:" + listCount + " Threads:" + threadCount + " Operations:" + operationCount
+        + " TargetsPerFlush:" + targetsPerFlush + " TargetSize:" + targetSize + " Dir:" + directory);
+
+    final AtomicInteger nextOperation = new AtomicInteger();
+    final AtomicLong flushCount = new AtomicLong();
+    final AtomicLong loadCount = new AtomicLong();
+    final AtomicLong targetsLoaded = new AtomicLong();
+
+    final CrawlListSpillStore.RecordReader reader = new CrawlListSpillStore.RecordReader() {
+      public void readRecord(byte[] data,int offset,int length) throws IOException {
+      }
+    };
+
+    // mixed phase: flushes outnumber loads two to one, so the store grows
+    Thread threads[] = new Thread[threadCount];
+    long startTime = System.currentTimeMillis();
+    for (int t=0;t<threadCount;++t) {
+      final int seed = t;
+      threads[t] = new Thread(new Runnable() {
+
+        public void run() {
+          Random random = new Random(seed);
+          byte target[] = new byte[targetSize];
+          CrawlListSpillStore.RecordBatch batch = new CrawlListSpillStore.RecordBatch();
+          try {
+            while (nextOperation.getAndIncrement() < operationCount) {
+              CrawlListSpillStore.ListIndex list = lists[random.nextInt(listCount)];
+              synchronized (list) {
+                if (random.nextInt(3) != 0 || list.getRecordCount() == 0) {
+                  batch.reset();
+                  for (int i=0;i<targetsPerFlush;++i) {
+                    random.nextBytes(target);
+                    batch.addRecord(target,0,target.length);
+                  }
+                  store.append(list,batch);
+                  flushCount.incrementAndGet();
+                }
+                else {
+                  targetsLoaded.addAndGet(store.read(list,targetsPerFlush,reader));
+                  loadCount.incrementAndGet();
+                }
+              }
+            }
+          }
+          catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+
+    long mixedTime = Math.max(1,System.currentTimeMillis() - startTime);
+
+    System.out.println("Mixed: " + operationCount + " ops in " + mixedTime + "ms ("
+        + (operationCount * 1000L / mixedTime) + " ops/sec) Flushes:" + flushCount.get() + " Loads:" + loadCount.get()
+        + " Appended:" + (store.getBytesAppended() / (1024 * 1024)) + "MB ("
+        + (store.getBytesAppended() / 1024 * 1000 / mixedTime / 1024) + " MB/sec)");
+    System.out.println("GroupCommits:" + store.getCommitCount() + " AvgAppendsPerCommit:" + String.format("%.2f",store.getAverageCommitSize())
+        + " Segments:" + store.getSegmentCount() + " TotalBytes:" + store.getTotalBytes() + " LiveBytes:" + store.getLiveBytes());
+
+    // drain phase: load everything back
+    final AtomicInteger nextList = new AtomicInteger();
+    final AtomicLong drained = new AtomicLong();
+    long bytesReadBefore = store.getBytesRead();
+    startTime = System.currentTimeMillis();
+    for (int t=0;t<threadCount;++t) {
+      threads[t] = new Thread(new Runnable() {
+
+        public void run() {
+          try {
+            int listIndex;
+            while ((listIndex = nextList.getAndIncrement()) < listCount) {
+              CrawlListSpillStore.ListIndex list = lists[listIndex];
+              synchronized (list) {
+                while (list.getRecordCount() != 0) {
+                  drained.addAndGet(store.read(list,targetsPerFlush,reader));
+                }
+              }
+            }
+          }
+          catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+
+    long drainTime = Math.max(1,System.currentTimeMillis() - startTime);
+    long drainBytes = store.getBytesRead() - bytesReadBefore;
+
+    System.out.println("Drain: " + drained.get() + " targets in " + drainTime + "ms ("
+        + (drained.get() * 1000L / drainTime) + " targets/sec, " + (drainBytes / 1024 * 1000 / drainTime / 1024) + " MB/sec)");
+    System.out.println("After Drain - Segments:" + store.getSegmentCount() + " TotalBytes:" + store.getTotalBytes()
+        + " LiveBytes:" + store.getLiveBytes() + " SegmentsDeleted:" + store.getSegmentsDeleted()
+        + " BytesCompacted:" + store.getBytesCompacted());
+
+    store.close();
+  }
+}
@@ -18,8 +18,6 @@ package org.commoncrawl.crawl.crawler;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -34,29 +32,26 @@ import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
-import java.util.zip.CRC32;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.DataOutputBuffer;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
 import org.commoncrawl.async.ConcurrentTask;
 import org.commoncrawl.async.ConcurrentTask.CompletionCallback;
 import org.commoncrawl.async.EventLoop;
@@ -85,11 +80,13 @@ public final class CrawlLog {
 
   public static final Log LOG = LogFactory.getLog(CrawlLog.class);
   
-  private static final int LOG_FLUSH_INTERVAL = 30000;
+  private static final int LOG_CHECKPOINT_CHECK_INTERVAL = 30000;
   
   private static final int LOG_CHECKPOINT_INTERVAL = 60000 * 5;
   
   private static final int LOG_FILE_CHECKPOINT_ITEM_COUNT_THRESHOLD = 100000;
+  
+  private static final int SEGMENT_LOG_UPLOAD_THREADS = 4;
  
   /** log file header **/
   LogFileHeader _header = new LogFileHeader();
@@ -112,6 +109,15 @@ public final class CrawlLog {
   /** robots segment logger **/
   CrawlSegmentLog _robotsSegment = new CrawlSegmentLog(null,-1,-1,null);
   
+  /** group commit log writer **/
+  CrawlLogWriter _writer;
+  
+  /** uploads the active log to the checkpoint staging area as it is committed **/
+  volatile CrawlLogUploader _uploader;
+  
+  /** sequence number of the last uploader started - each uploader writes to its own output path **/
+  long _uploaderSequence = 0;
+  
   /** individual crawl segment loggers **/
   Map<Long,CrawlSegmentLog> _loggers =new HashMap<Long,CrawlSegmentLog>();
   
@@ -219,6 +225,50 @@ public final class CrawlLog {
     
     LOG.info("Crawl Log Initialize returned " + _header._itemCount + " Entries in Active Log");
     
+    // start the log writer ... 
+    _writer = new CrawlLogWriter(_eventLoop,_rootDirectory,new CrawlLogWriter.Listener() {
+
+      public void itemWritten(CrawlURL url, int recordSize) {
+        if (_engine != null) 
+          logCrawlLogWrite(url,recordSize);
+      }
+
+      public void logCommitted(long fileSize, long itemCount) {
+        // update cached header ... 
+        _header._fileSize = fileSize;
+        _header._itemCount = itemCount;
+        // and let the uploader know it can go ahead ... 
+        CrawlLogUploader uploader = _uploader;
+        if (uploader != null) 
+          uploader.setCommittedSize(fileSize);
+      }
+
+      public void backPressureChanged(boolean applyBackPressure) {
+        // the writer has fallen behind. pause the fetcher until it catches up, so that completed 
+        // items (and their content buffers) don't pile up in memory 
+        if (_engine != null) { 
+          if (applyBackPressure)
+            _engine.pauseFetch();
+          else 
+            _engine.resumeFetch();
+        }
+      }
+
+      public void writerFailed(IOException e) {
+        // all failures are critical ... 
+        LOG.fatal("Crawl Log Writer Threw Exception:" + CCStringUtils.stringifyException(e));
+        // no matter ... it is time to CORE the server. a clean shutdown is not an option here: 
+        // stopping the crawl flushes the log through a writer barrier, and the writer thread 
+        // is gone, so that flush would never complete. exiting is safe, as headers are only 
+        // written once the data they cover has been forced, so the logs on disk are consistent 
+        // up to the last commit, and anything after it is fetched again on restart. this runs 
+        // as a queued runnable, and the event loop swallows exceptions thrown from those, so 
+        // exit explicitly rather than throwing ... 
+        System.exit(-1);
+      } 
+    });
+    _robotsSegment.setLogWriter(_writer);
+    _writer.start();
   }
   
   
@@ -279,6 +329,7 @@ public final class CrawlLog {
       LOG.error("Attempt to Activate an Already Active Segment Log. Segment Id:" + log.getSegmentId());
       throw new RuntimeException("Attempt to Activate an Already Active Segment Log. Segment Id:" + log.getSegmentId());
     }
+    log.setLogWriter(_writer);
     _loggers.put(makeSegmentLogId(log.getListId(),log.getSegmentId()), log);
   }
 
@@ -297,17 +348,19 @@ public final class CrawlLog {
     return _loggers.remove(makeSegmentLogId(listId,segmentId));
   }
   
-  private static class LogFileHeader {
+  static final class LogFileHeader {
     
     public static final int LogFileHeaderBytes = 0xCC00CC00;
     public static final int LogFileVersion         = 1;
+    public static final int HeaderSize             = 24;
     
     public LogFileHeader() { 
       _fileSize = 0;
       _itemCount = 0;
     }
-    public long _fileSize;
-    public long _itemCount;
+    // updated by the log writer thread 
+    public volatile long _fileSize;
+    public volatile long _itemCount;
     
     public void writeHeader(DataOutput stream) throws IOException { 
       stream.writeInt(LogFileHeaderBytes);
@@ -328,26 +381,6 @@ public final class CrawlLog {
     }
   }
   
-  private void updateLogFileHeader(File logFileName, long addedRecordCount)throws IOException {
-    
-    RandomAccessFile file = new RandomAccessFile(logFileName,"rw");
-    
-    try { 
-      
-      // update cached header ... 
-      _header._fileSize = file.getChannel().size();
-      _header._itemCount += addedRecordCount;
-      // set the position at zero .. 
-      file.seek(0);
-      // and write header to disk ... 
-      _header.writeHeader(file);
-    }
-    finally {
-      // major bottle neck.. 
-      // file.getFD().sync();
-      file.close();
-    }
-  }
   private static LogFileHeader initializeEmptyLogFile(DataOutput stream) throws IOException { 
     
     LogFileHeader header = new LogFileHeader();
@@ -469,96 +502,74 @@ public final class CrawlLog {
   }
   
 
-  private static class CorruptCrawlLogException extends IOException { 
+  static class CorruptCrawlLogException extends IOException { 
     
     public CorruptCrawlLogException(String description) { 
       super(description);
     }
   }
   
-  private Path transferLocalCheckpointLog(FileSystem hdfs,File crawlLogPath, long checkpointId) throws IOException { 
-    
-    // construct a target path (where we are going to store the checkpointed crawl log )
-    Path stagingDirectory      = new Path(CrawlEnvironment.getCheckpointStagingDirectory());
-    Path tempFileName       = new Path(stagingDirectory,CrawlEnvironment.buildCrawlLogCheckpointName(getNodeName(),checkpointId));
-    
-    // delete the temp file ... 
-    hdfs.delete(tempFileName);
-    
-    // open a sequence file writer at the temp file location ...
-    SequenceFile.Writer writer = new SequenceFile.Writer(hdfs,CrawlEnvironment.getHadoopConfig(),tempFileName,Text.class,CrawlURL.class);
-    // and open the crawl log file ...
-    FileInputStream inputStream = null;
+  /** 
+   * path the active log is uploaded to ahead of the next checkpoint. unique per uploader, since 
+   * the uploader for the log being checkpointed is still finishing when the next one starts 
+   **/
+  private Path getActiveUploadPath(long uploaderSequence) { 
+    return new Path(CrawlEnvironment.getCheckpointStagingDirectory(),CrawlEnvironment.buildCrawlLogCheckpointName(getNodeName(),0) + "_active_" + uploaderSequence);
+  }
+  
+  /** start uploading the (current) active log **/
+  private void startUploader() { 
+    try { 
+      CrawlLogUploader uploader = new CrawlLogUploader(CrawlEnvironment.getDefaultFileSystem(),CrawlEnvironment.getHadoopConfig(),getActivePath(_rootDirectory),getActiveUploadPath(++_uploaderSequence),_header._fileSize);
+      uploader.start();
+      _uploader = uploader;
+    }
+    catch (IOException e) { 
+      // not fatal, the log will get uploaded at checkpoint time 
+      LOG.error("Failed to start CrawlLog Uploader:" + CCStringUtils.stringifyException(e));
+      _uploader = null;
+    }
+  }
+  
+  /** stop the active log upload (if any) **/
+  private void stopUploader() { 
+    final CrawlLogUploader uploader = _uploader;
+    _uploader = null;
+    if (uploader != null) {
+      // abort joins the upload threads and deletes the partial upload, so keep it off the event loop ... 
+      _threadPool.submit(new Runnable() {
+        public void run() {
+          uploader.abort();
+        } 
+      });
+    }
+  }
+  
+  private Path transferLocalCheckpointLog(FileSystem hdfs,File crawlLogPath, long checkpointId,CrawlLogUploader uploader) throws IOException { 
     
-    IOException exception = null;
+    // read the header ... we can only read up to file size specified  
+    LogFileHeader header = readLogFileHeader(crawlLogPath);
     
-    CRC32 crc = new CRC32();
-    CustomByteArrayOutputStream buffer = new CustomByteArrayOutputStream(1 << 17);
+    if (uploader == null) { 
+      // construct a target path (where we are going to store the checkpointed crawl log )
+      Path stagingDirectory      = new Path(CrawlEnvironment.getCheckpointStagingDirectory());
+      Path tempFileName       = new Path(stagingDirectory,CrawlEnvironment.buildCrawlLogCheckpointName(getNodeName(),checkpointId));
+      
+      uploader = new CrawlLogUploader(hdfs,CrawlEnvironment.getHadoopConfig(),crawlLogPath,tempFileName,header._fileSize);
+      uploader.start();
+    }
     
     try { 
-      inputStream = new FileInputStream(crawlLogPath);
-      // and a data input stream ...
-      DataInputStream reader = new DataInputStream(inputStream);
-      
-      // read the header ... 
-      LogFileHeader header =  readLogFileHeader(reader);
-      
-      // we can only read up to file size specified ... get the channel to keep track of position 
-      FileChannel channel = inputStream.getChannel();
-
-      // read a crawl url from the stream... 
-      
-      while (channel.position() < header._fileSize) { 
-        
-        // save position for potential debug output.
-        long readPosition = channel.position();
-        // read length ... 
-        int urlDataLen = reader.readInt();
-        long urlDataCRC = reader.readLong();
-        
-        if (urlDataLen > buffer.getBuffer().length) { 
-          buffer = new  CustomByteArrayOutputStream( ((urlDataLen / 65536) + 1) * 65536 );
-        }
-        reader.read(buffer.getBuffer(), 0, urlDataLen);
-        crc.reset();
-        crc.update(buffer.getBuffer(), 0, urlDataLen);
-        
-        long computedValue = crc.getValue();
-        
-        // validate crc values ... 
-        if (computedValue != urlDataCRC) { 
-          throw new CorruptCrawlLogException("CRC Mismatch Detected during HDFS transfer in CrawlLog:" + crawlLogPath.getAbsolutePath() + " Checkpoint Id:" + checkpointId + " FilePosition:" + readPosition);
-        }
-        else { 
-          // allocate a crawl url data structure 
-          CrawlURL url = new CrawlURL();
-          DataInputStream bufferReader = new DataInputStream(new ByteArrayInputStream(buffer.getBuffer(),0,urlDataLen));
-          //populate it from the (in memory) data stream
-          url.readFields(bufferReader);
-          // and write out appropriate sequence file entries ...
-          writer.append(new Text(url.getUrl()),url);
-        }
-      }
+      // wait for the upload to catch up to the checkpoint ... 
+      uploader.finish(header._fileSize);
     }
     catch (IOException e) {
-    	LOG.error(CCStringUtils.stringifyException(e));
-      exception = e;
+      LOG.error("HDFS Write of CrawlLog failed with Exception:" + CCStringUtils.stringifyException(e));
       throw e;
     }
-    finally {
-    	if (inputStream != null) 
-    		inputStream.close();
-    	if (writer != null) 
-    		writer.close();
-
-      // if there was an exception ... 
-      if (exception != null) { 
-        LOG.error("HDFS Write of CrawlLog failed with Exception:" + CCStringUtils.stringifyException(exception));
-        // delete any hdfs output ... 
-        hdfs.delete(tempFileName);
-      }
-    }
-    return tempFileName;
+    LOG.info("CrawlLog Checkpoint - Uploaded " + uploader.getItemCount() + " CrawlLog Items to:" + uploader.getOutputPath());
+    
+    return uploader.getOutputPath();
   }
   
   private Path getFinalSegmentLogPath(FileSystem hdfs,long checkpointId,int listId, int segmentId) throws IOException {
@@ -619,23 +630,51 @@ public final class CrawlLog {
     //collect all necessary information from thread-unsafe data structure now (in async thread context)
     final Set<Long> activeSegments = new HashSet<Long>();
     
-    try { 
-      // add all active segment ids to our key set ... 
-      activeSegments.addAll(_loggers.keySet());
-      LOG.info("CrawlLog Checkpoint - Preparing CrawlLog Files");
-      // checkpoint crawl log ... 
-      checkpointLocalCrawlLog();
-      LOG.info("CrawlLog Checkpoint - Preparing Segment Log Files");
-      // next checkpoint all active segment logs ... 
-      for (CrawlSegmentLog segmentLog : _loggers.values()) { 
-        segmentLog.checkpointLocalLog();      
-      }
-      LOG.info("CrawlLog Checkpoint - Ready for HDFS Transfer");
-    }
-    catch (IOException e) { 
-      LOG.error("Checkpoint failed with Exception:" + CCStringUtils.stringifyException(e));
+    // add all active segment ids to our key set ... 
+    activeSegments.addAll(_loggers.keySet());
+    // capture checkpoint item counts. everything completed up to this point precedes the barrier below 
+    for (CrawlSegmentLog segmentLog : _loggers.values()) { 
+      segmentLog.prepareCheckpoint();
     }
     
+    LOG.info("CrawlLog Checkpoint - Waiting for Log Writer");
+    // wait for the writer to commit all pending items and suspend itself, so we can swap logs 
+    _writer.barrier(new Runnable() {
+
+      public void run() {
+        // the current upload (if any) covers the log being checkpointed 
+        final CrawlLogUploader checkpointUploader = _uploader;
+        _uploader = null;
+        try { 
+          LOG.info("CrawlLog Checkpoint - Preparing CrawlLog Files");
+          // checkpoint crawl log ... 
+          checkpointLocalCrawlLog();
+          LOG.info("CrawlLog Checkpoint - Preparing Segment Log Files");
+          // next checkpoint all active segment logs ... 
+          for (long packedSegmentId : activeSegments) { 
+            CrawlSegmentLog segmentLog = _loggers.get(packedSegmentId);
+            if (segmentLog != null) 
+              segmentLog.checkpointLocalLog();      
+          }
+          LOG.info("CrawlLog Checkpoint - Ready for HDFS Transfer");
+        }
+        catch (IOException e) { 
+          LOG.error("Checkpoint failed with Exception:" + CCStringUtils.stringifyException(e));
+        }
+        finally { 
+          // writer can continue with the new active logs 
+          _writer.resume();
+        }
+        // start uploading the new active log 
+        if (_logFlusherTimer != null) 
+          startUploader();
+        transferCheckpoint(activeSegments,checkpointUploader);
+      }
+    },true);
+  }
+  
+  /** transfer local checkpoint logs to hdfs **/
+  private void transferCheckpoint(final Set<Long> activeSegments,final CrawlLogUploader checkpointUploader) { 
     // spawn a thread to do most of the blocking io ... 
     _threadPool.submit(new ConcurrentTask<Boolean>(_eventLoop,
         
@@ -649,30 +688,55 @@ public final class CrawlLog {
             Vector<Path> segmentLogFinalPaths = new Vector<Path>();
 
             // get the file system 
-            FileSystem hdfs = CrawlEnvironment.getDefaultFileSystem();
+            final FileSystem hdfs = CrawlEnvironment.getDefaultFileSystem();
+            
+            // segment logs upload in parallel with the crawl log ... 
+            ExecutorService segmentUploadPool = Executors.newFixedThreadPool(SEGMENT_LOG_UPLOAD_THREADS);
             
             try { 
               
-              LOG.info("CrawlLog Checkpoint - Transferring CrawlLog to HDFS");
-              // write out crawl log to hdfs ... 
-              checkpointTempFileName = transferLocalCheckpointLog(hdfs,getCheckpointPath(_rootDirectory),_checkpointId);
-              
               LOG.info("CrawlLog Checkpoint - Transferring CrawlSegment Logs");
-              // and next for every segment 
-              for (long packedLogId : activeSegments) {
+              // queue an upload for every segment 
+              Vector<Long> segmentIds = new Vector<Long>(activeSegments);
+              Vector<Future<Path>> segmentUploads = new Vector<Future<Path>>();
+              for (final long packedLogId : segmentIds) {
                 
-                File segmentLogPath = CrawlSegmentLog.buildCheckpointPath(_rootDirectory,getListIdFromLogId(packedLogId),getSegmentIdFromLogId(packedLogId));
+                final File segmentLogPath = CrawlSegmentLog.buildCheckpointPath(_rootDirectory,getListIdFromLogId(packedLogId),getSegmentIdFromLogId(packedLogId));
                 
-                // LOG.info("CrawlLog Checkpoint - Transferring CrawlSegment Log for Segment:" + segmentId);
-                // copy the segment log ... 
-                Path remoteLogFilePath = transferLocalSegmentLog(hdfs,segmentLogPath,_checkpointId,getListIdFromLogId(packedLogId),getSegmentIdFromLogId(packedLogId));
-                // if path is not null (data was copied) ... 
-                if (remoteLogFilePath != null) { 
-                  // add it to vector ... 
-                  segmentLogStagingPaths.add(remoteLogFilePath);
-                  // and add final path to vector while we are at it ... 
-                  segmentLogFinalPaths.add(getFinalSegmentLogPath(hdfs, _checkpointId, getListIdFromLogId(packedLogId),getSegmentIdFromLogId(packedLogId)));
+                segmentUploads.add(segmentUploadPool.submit(new Callable<Path>() {
+
+                  public Path call() throws Exception {
+                    // copy the segment log ... 
+                    return transferLocalSegmentLog(hdfs,segmentLogPath,_checkpointId,getListIdFromLogId(packedLogId),getSegmentIdFromLogId(packedLogId));
+                  } 
+                }));
+              }
+              
+              LOG.info("CrawlLog Checkpoint - Transferring CrawlLog to HDFS");
+              // write out crawl log to hdfs ... 
+              checkpointTempFileName = transferLocalCheckpointLog(hdfs,getCheckpointPath(_rootDirectory),_checkpointId,checkpointUploader);
+              
+              // wait for all segment uploads, tracking staging paths even on failure, so we can clean up 
+              Exception segmentUploadException = null;
+              for (int i=0;i<segmentUploads.size();++i) { 
+                long packedLogId = segmentIds.get(i);
+                try { 
+                  Path remoteLogFilePath = segmentUploads.get(i).get();
+                  // if path is not null (data was copied) ... 
+                  if (remoteLogFilePath != null) { 
+                    // add it to vector ... 
+                    segmentLogStagingPaths.add(remoteLogFilePath);
+                    // and add final path to vector while we are at it ... 
+                    segmentLogFinalPaths.add(getFinalSegmentLogPath(hdfs, _checkpointId, getListIdFromLogId(packedLogId),getSegmentIdFromLogId(packedLogId)));
+                  }
                 }
+                catch (ExecutionException e) { 
+                  if (segmentUploadException == null) 
+                    segmentUploadException = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+                }
+              }
+              if (segmentUploadException != null) { 
+                throw segmentUploadException;
               }
               LOG.info("CrawlLog Checkpoint - Finished Transferring CrawlSegment Logs");
               
@@ -695,6 +759,9 @@ public final class CrawlLog {
               return true;
             }
             catch (Exception e) { 
+              // let any in progress segment uploads finish before cleaning up after them 
+              segmentUploadPool.shutdown();
+              segmentUploadPool.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
               LOG.error("Checkpoint:" + _checkpointId +" FAILED with exception:" + CCStringUtils.stringifyException(e));
               // in case of error ... we need to undo the checkpoint (as best as possible) ... 
               if (checkpointTempFileName != null) { 
@@ -708,6 +775,9 @@ public final class CrawlLog {
               }
               throw e;
             }
+            finally { 
+              segmentUploadPool.shutdown();
+            }
           }
         },
         
@@ -765,62 +835,72 @@ public final class CrawlLog {
               
             }
 
-            public void taskFailed(Exception e) {
-              
-              // all failures are critical in this particular task ... 
+            public void taskFailed(final Exception e) {
+
+              // all failures are critical in this particular task ...
               LOG.error("Crawl Log FLUSH Threw Exception:" + CCStringUtils.stringifyException(e));
-              
-              // revert checkpoint logs ...
-              abortCheckpoint();
-              
-              for (CrawlSegmentLog segmentLog : _loggers.values()) { 
-                segmentLog.abortCheckpoint();
-              }
-              
-              
-              CheckpointCompletionCallback callback = _checkpointCompletionCallback;
-              long checkpointId = _checkpointId;
 
-              // otherwise transition to a checkpoint in progress state 
-              _checkpointCompletionCallback = null;
-              _checkpointId = -1;
+              // suspend the log writer while the checkpointed logs are restored ...
+              _writer.barrier(new Runnable() {
+
+                public void run() {
+                  try {
+                    // revert checkpoint logs ...
+                    abortCheckpoint();
 
-              // now check to see if this was corrupt crawl log exception
-              if (e.getCause() instanceof CorruptCrawlLogException) { 
-                  // ACK!!!
-                  LOG.fatal("Corrupt CrawlLog detected with Exception:" + CCStringUtils.stringifyException(e));
-
-                  try { 
-                    // this is a serious error ... time to purge the crawl log directory altogether ... 
-                    purgeActiveLog();
-                    
-                    // and all active segment logs as well... 
-                    for (CrawlSegmentLog segmentLog : _loggers.values()) { 
-                      segmentLog.purgeActiveLog();
+                    for (CrawlSegmentLog segmentLog : _loggers.values()) {
+                      segmentLog.abortCheckpoint();
+                    }
+
+                    // now check to see if this was corrupt crawl log exception
+                    if (e.getCause() instanceof CorruptCrawlLogException) {
+                      // ACK!!!
+                      LOG.fatal("Corrupt CrawlLog detected with Exception:" + CCStringUtils.stringifyException(e));
+
+                      try {
+                        // this is a serious error ... time to purge the crawl log directory altogether ...
+                        purgeActiveLog();
+
+                        // and all active segment logs as well...
+                        for (CrawlSegmentLog segmentLog : _loggers.values()) {
+                          segmentLog.purgeActiveLog();
+                        }
+                      }
+                      catch (IOException e2) {
+                        LOG.error("IOException during Segment Log PURGE:" + CCStringUtils.stringifyException(e2));
+                      }
                     }
                   }
-                  catch (IOException e2) { 
-                    LOG.error("IOException during Segment Log PURGE:" + CCStringUtils.stringifyException(e2));
+                  finally {
+                    _writer.resume();
                   }
-                                    
-                  // time to die hard ... 
-                  throw new RuntimeException(e);
-              }
-              
-              // and complete transaction ... 
-              callback.checkpointFailed(checkpointId, e);
+
+                  // the restored active log needs to be uploaded from the start
+                  stopUploader();
+                  if (_logFlusherTimer != null)
+                    startUploader();
+
+                  CheckpointCompletionCallback callback = _checkpointCompletionCallback;
+                  long checkpointId = _checkpointId;
+
+                  // otherwise transition to a checkpoint in progress state
+                  _checkpointCompletionCallback = null;
+                  _checkpointId = -1;
+
+                  if (e.getCause() instanceof CorruptCrawlLogException) {
+                    // time to die hard ...
+                    throw new RuntimeException(e);
+                  }
+
+                  // and complete transaction ...
+                  callback.checkpointFailed(checkpointId, e);
+                }
+              },true);
             }
           }
           ));
   }
   
-  private static final class CustomByteArrayOutputStream extends ByteArrayOutputStream { 
-    public CustomByteArrayOutputStream(int initialSize) { 
-      super(initialSize);
-    }
-    public byte[] getBuffer() { return buf; }
-  }
-  
   private void logCrawlLogWrite(CrawlURL url,int bufferSizeOut) { 
     StringBuffer sb = new StringBuffer();
     
@@ -837,224 +917,31 @@ public final class CrawlLog {
   
   private void flushLog(final FlushCompletionCallback completionCallback) { 
     if (Environment.detailLogEnabled())
-      LOG.info("LOG_FLUSH:Collecting Entries....");
+      LOG.info("LOG_FLUSH:Waiting for Log Writer....");
     // set flush in progress indicator ... 
     setFlushInProgress(true);
-    // and collect buffers in async thread context (thus not requiring synchronization)
-    final LinkedList<CrawlSegmentLog.LogItemBuffer> collector = new LinkedList<CrawlSegmentLog.LogItemBuffer>();
-    // flush robots log 
-    _robotsSegment.flushLog(collector);
-    // walk segments collecting log items .... 
-    for (CrawlSegmentLog logger : _loggers.values()) { 
-      // flush any log items into the collector   
-      logger.flushLog(collector);
-    }
-    if (Environment.detailLogEnabled())
-      LOG.info("LOG_FLUSH:Collection Returned "+collector.size() + " Buffers");
-    
-    // walk collector list identifying the list of unique segment ids 
-    final Set<Long> packedSegmentIdSet = new HashSet<Long>();
     
-    int urlItemCount = 0;
-    
-    for (CrawlSegmentLog.LogItemBuffer buffer : collector) {
-      if (buffer.getListId() != -1 && buffer.getSegmentId() != -1) { 
-        packedSegmentIdSet.add(makeSegmentLogId(buffer.getListId(), buffer.getSegmentId()));
-      }
-      urlItemCount += buffer.getItemCount();
-    }
+    final long startTime = System.currentTimeMillis();
     
-    if (Environment.detailLogEnabled())
-      LOG.info("LOG_FLUSH:There are  "+urlItemCount + " Items in Flush Buffer Associated With " + packedSegmentIdSet.size() + " Segments");
-
-    final File crawlLogFile   = getActivePath(_rootDirectory);
-
-    // now check to see if there is anything to do ... 
-    if (collector.size() != 0) { 
-      if (Environment.detailLogEnabled())
-        LOG.info("LOG_FLUSH: Collector Size is NOT Zero... Starting Log Flusher Thread");
-      // ok ... time to spawn a thread to do the blocking flush io 
-      _threadPool.submit(new ConcurrentTask<Boolean>(_eventLoop,
-          
-          new Callable<Boolean>() {
-
-            public Boolean call() throws Exception {
+    // the writer commits continuously, so a flush just waits for everything queued so far to be durable 
+    _writer.barrier(new Runnable() {
 
-              if (Environment.detailLogEnabled())
-                LOG.info("LOG_FLUSH: Log Flusher Thread Started");
-              long startTime = System.currentTimeMillis();
-              
-              Map<Long,DataOutputStream> streamsMapByPackedId = new HashMap<Long,DataOutputStream> ();
-              Map<Long,Integer> recordCountsByPackedId= new HashMap<Long,Integer> ();
-              
-              long crawlLogRecordCount =0;
-
-              // open the actual crawler log file ... 
-              final DataOutputStream crawlLogStream = new DataOutputStream(new FileOutputStream(crawlLogFile,true));
-
-              try { 
-                if (Environment.detailLogEnabled())
-                  LOG.info("LOG_FLUSH: Log Flusher Thread Opening Streams for Segments in Buffer");
-                // now open a set of file descriptors related to the identified segments 
-                for (long packedSegmentId : packedSegmentIdSet) {
-                  // construct the unique filename for the given log file... 
-                  File activeSegmentLog = CrawlSegmentLog.buildActivePath(_rootDirectory,getListIdFromLogId(packedSegmentId),getSegmentIdFromLogId(packedSegmentId));
-                  // initialize the segment log ...
-                  CrawlSegmentLog.initializeLogFile(activeSegmentLog);
-                  // initialize record counts per stream ... 
-                  recordCountsByPackedId.put(packedSegmentId,CrawlSegmentLog.readerHeader(activeSegmentLog));
-                  // and open an output stream for the specified log file ... 
-                  streamsMapByPackedId.put(packedSegmentId, new DataOutputStream(new FileOutputStream(activeSegmentLog,true)));
-                }
-                
-                if (Environment.detailLogEnabled())
-                  LOG.info("LOG_FLUSH: Log Flusher Thread Walking Items in Buffer");
-                
-                // initialize a total item count variable 
-                int totalItemCount = 0;
-                
-                // crawl history stream 
-                DataOutputBuffer historyStream = new DataOutputBuffer();
-                
-                // and now walk log buffers ... 
-                for (CrawlSegmentLog.LogItemBuffer buffer : collector) { 
-                  if (Environment.detailLogEnabled())
-                    LOG.info("LOG_FLUSH: Log Flusher Thread Writing " + buffer.getItemCount() + " Entries for Segment:" + buffer.getSegmentId());
-
-                  // output stream
-                  DataOutputStream segmentLogStream = null;
-
-                  if (buffer.getListId() != -1 && buffer.getSegmentId() != -1) { 
-                    // update segment count first ... 
-                    recordCountsByPackedId.put(makeSegmentLogId(buffer.getListId(),buffer.getSegmentId()), recordCountsByPackedId.get(makeSegmentLogId(buffer.getListId(),buffer.getSegmentId())) + buffer.getItemCount());
-                    // get output stream associated with segment id   
-                    segmentLogStream = streamsMapByPackedId.get(makeSegmentLogId(buffer.getListId(),buffer.getSegmentId()));                  
-                  }
-                  
-                  // and our local record counter ... 
-                  crawlLogRecordCount += buffer.getItemCount();
-                  
-                  // and next do the actual disk flush ... 
-                  totalItemCount += buffer.flushToDisk(totalItemCount, 
-                      
-                      new CrawlSegmentLog.LogItemBuffer.CrawlURLWriter() {
-
-                        private CustomByteArrayOutputStream bufferOutputStream = new CustomByteArrayOutputStream(1 << 17);
-                        private DataOutputStream dataOutputStream = new DataOutputStream(bufferOutputStream);
-                        private CRC32 crc = new CRC32();
-                        
-                        
-                        public void writeItem(CrawlURL url) throws IOException {
-
-                          bufferOutputStream.reset();
-                          // write to intermediate stream ... 
-                          url.write(dataOutputStream);
-                          // log it 
-                          logCrawlLogWrite(url,dataOutputStream.size());
-                          // and crc the data ... 
-                          crc.reset();
-                          crc.update(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
-                          // write out length first 
-                          crawlLogStream.writeInt(bufferOutputStream.size());
-                          //crc next
-                          long computedValue = crc.getValue();
-                          //TODO: waste of space - write 32 bit values as long because having problems with java sign promotion rules during read...
-                          crawlLogStream.writeLong(computedValue);
-                          // and then the data 
-                          crawlLogStream.write(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
-                        }
-    
-                        public void writeItemCount(int entryCount)throws IOException {
-                        } 
-                    
-                  },segmentLogStream,historyStream);
-                }
-                
-                if (Environment.detailLogEnabled())
-                  LOG.info("LOG_FLUSH: Log Flusher Finished Writing Entries To Disk");
-                collector.clear();
-                
-              }
-              catch (IOException e) { 
-                LOG.error("Critical Exception during Crawl Log Flush:" + CCStringUtils.stringifyException(e));
-                throw e;
-              }
-              finally { 
-                if (crawlLogStream != null) { 
-                  crawlLogStream.flush();
-                  crawlLogStream.close();
-                }
-                
-                for (DataOutputStream stream : streamsMapByPackedId.values()) { 
-                  if (stream != null) 
-                    stream.flush();
-                    stream.close();
-                }
-              }
-              // at this point... update the crawl log header ... 
-              try {
-                if (Environment.detailLogEnabled())
-                  LOG.info("LOG_FLUSH: Updating Log File Headers");
-                // update the log file header 
-                updateLogFileHeader(crawlLogFile,crawlLogRecordCount);
-                // and update each completion log header ... 
-                for (long packedSegmentId : recordCountsByPackedId.keySet()) { 
-                  File activeSegmentLogPath = CrawlSegmentLog.buildActivePath(_rootDirectory,getListIdFromLogId(packedSegmentId), getSegmentIdFromLogId(packedSegmentId));
-                  CrawlSegmentLog.writeHeader(activeSegmentLogPath, recordCountsByPackedId.get(packedSegmentId));
-                }
-              }
-              catch (IOException e) { 
-                LOG.error("Criticial Exception during Crawl Log Fluhs:" + CCStringUtils.stringifyException(e));
-                throw e;
-              }
-              finally { 
-
-              }
-              
-              long endTime = System.currentTimeMillis();
-              
-              _flushTimeAVG.addSample((double)endTime - startTime);
-              _flushTimeSmoothed.addSample((double)endTime - startTime);
-              _lastFlushTime = endTime - startTime;              
-              
-              LOG.info("LOG_FLUSH: Log Flusher Flushed Successfully");
-              return true;
-            } 
-          },
-          
-          new CompletionCallback<Boolean>() {
-
-            public void taskComplete(Boolean updateResult) {
-              setFlushInProgress(false);
-              if (completionCallback != null) { 
-                completionCallback.flushComplete();
-              }
-            }
-
-            public void taskFailed(Exception e) {
-              
-              setFlushInProgress(false);
-              
-              if (completionCallback != null) { 
-                completionCallback.flushFailed(e);
-              }
-              
-              // all failures are critical in this particular task ... 
-              LOG.fatal("Crawl Log FLUSH Threw Exception:" + CCStringUtils.stringifyException(e));
-              
-              // no matter ... it is time to CORE the server ... 
-              throw new RuntimeException("CRITICAL FAILURE: Crawl Log FLUSH Threw Exception:" + CCStringUtils.stringifyException(e));
-              
-            }
-          }
-          ));
-    }
-    else { 
-      setFlushInProgress(false);
-      if (completionCallback != null) { 
-        completionCallback.flushComplete();
-      }
-    }
+      public void run() {
+        long endTime = System.currentTimeMillis();
+        
+        _flushTimeAVG.addSample((double)endTime - startTime);
+        _flushTimeSmoothed.addSample((double)endTime - startTime);
+        _lastFlushTime = endTime - startTime;              
+        
+        if (Environment.detailLogEnabled())
+          LOG.info("LOG_FLUSH: Log Flushed Successfully");
+        
+        setFlushInProgress(false);
+        if (completionCallback != null) { 
+          completionCallback.flushComplete();
+        }
+      } 
+    },false);
   }
 
   public boolean isForcedCheckpointPossible() {
@@ -1140,76 +1027,50 @@ public final class CrawlLog {
   }
   public void startLogFlusher() { 
     
-    _logFlusherTimer = new Timer(LOG_FLUSH_INTERVAL,true, new Timer.Callback() {
+    // the log writer commits continuously, so this timer only needs to check for checkpoints ... 
+    _logFlusherTimer = new Timer(LOG_CHECKPOINT_CHECK_INTERVAL,true, new Timer.Callback() {
 
       public void timerFired(Timer timer) {
         // if checkpoint is NOT in progress ... 
         if (!isCheckpointInProgress() && !isFlushInProgress()) {
           
-          LOG.info("LOG_FLUSH Starting ...");
+          long currentTime = System.currentTimeMillis();
           
-          flushLog( 
+          if (isCheckpointPossible(currentTime)) { 
           
-              new FlushCompletionCallback() {
-
-                public void flushComplete() {
-                  // flush is complete ... check to see if we want to do a checkpoint ... 
-                  long currentTime = System.currentTimeMillis();
-                  
-                  LOG.info("LOG_FLUSH Flush Complete... Checking to see if Checkpoint Possilbe");
-                  if (isCheckpointPossible(currentTime)) { 
-                  
-                    LOG.info("Checkpointing Logs to HDFS");
-
-                    // pause fetcher to prevent race condition where log flush takes a long time and causes the fetcher to consume all avaliable memory with content buffers 
-                    _engine.pauseFetch();  
-                    
-                      // start the checkpoint ... 
-                      checkpoint(currentTime,new CheckpointCompletionCallback() {
-
-                        public void checkpointComplete(long checkpointId,Vector<Long> completedSegmentList) {
-                          LOG.info("CrawlLog Checkpoint:" + checkpointId + " completed");
-
-                          _engine.resumeFetch();  
-                          
-                          if (completedSegmentList != null) { 
-                            // walk completed segments ... updating their crawl state ... 
-                            if (_engine != null) { 
-                              for (long packedSegmentId : completedSegmentList) { 
-                                // notify crawler engine of status change ... 
-                                _engine.crawlSegmentComplete(packedSegmentId);
-                              }
-                            }
-                          }
-                        }
+            LOG.info("Checkpointing Logs to HDFS");
+
+            // start the checkpoint ... 
+            checkpoint(currentTime,new CheckpointCompletionCallback() {
+
+              public void checkpointComplete(long checkpointId,Vector<Long> completedSegmentList) {
+                LOG.info("CrawlLog Checkpoint:" + checkpointId + " completed");
 
-                        public void checkpointFailed(long checkpointId,Exception e) {
-                          
-                          _engine.resumeFetch();
-                          
-                          LOG.error("Checkpoint Failed for Checkpoint:" + checkpointId + " With Exception:" + CCStringUtils.stringifyException(e));
-                        } 
-                        
-                      }, currentTime);
+                if (completedSegmentList != null) { 
+                  // walk completed segments ... updating their crawl state ... 
+                  if (_engine != null) { 
+                    for (long packedSegmentId : completedSegmentList) { 
+                      // notify crawler engine of status change ... 
+                      _engine.crawlSegmentComplete(packedSegmentId);
+                    }
                   }
                 }
-
-                public void flushFailed(Exception e) {
-                  LOG.error("Flush Failed with Exception:" + CCStringUtils.stringifyException(e));
-                } 
-                
               }
-          
-          );
-          
-          _engine.resumeFetch();
+
+              public void checkpointFailed(long checkpointId,Exception e) {
+                LOG.error("Checkpoint Failed for Checkpoint:" + checkpointId + " With Exception:" + CCStringUtils.stringifyException(e));
+              } 
+              
+            }, currentTime);
+          }
         }
-        
-        // now 
       }
     }); 
       
     _eventLoop.setTimer(_logFlusherTimer);
+    
+    // and start uploading the active log ahead of the first checkpoint ... 
+    startUploader();
   }
   
   public interface LogFlusherStopActionCallback { 
@@ -1238,9 +1099,22 @@ public final class CrawlLog {
           _eventLoop.cancelTimer(timer);
           // and cleanup ...
           _logFlusherTimer = null;
-          _shutdownInProgress = false;
-          // initiate callback ... 
-          completionCallback.stopComplete();
+          // the active log will be uploaded from scratch on restart 
+          stopUploader();
+          // commit anything still queued in the log writer 
+          flushLog(new FlushCompletionCallback() {
+
+            public void flushComplete() {
+              _shutdownInProgress = false;
+              // initiate callback ... 
+              completionCallback.stopComplete();
+            }
+
+            public void flushFailed(Exception e) {
+              _shutdownInProgress = false;
+              completionCallback.stopComplete();
+            } 
+          });
         }
         else { 
           LOG.info("CrawlLog - stopLog Timer - Flush or Checkpoint in Progress... Waiting ... ");
@@ -1256,6 +1130,14 @@ public final class CrawlLog {
     collector.setDoubleValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_FlushTimeAVG,_flushTimeAVG.getAverage());
     collector.setDoubleValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_FlushTimeSmoothed,_flushTimeSmoothed.getAverage());
     collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_FlushTimeLast,_lastFlushTime);
+    collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_CommitLatencyP50,_writer.getCommitLatencyPercentile(.50));
+    collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_CommitLatencyP99,_writer.getCommitLatencyPercentile(.99));
+    collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_BytesPerSec,_writer.getBytesPerSecond());
+    collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_SyncCount,_writer.getSyncCount());
+    collector.setDoubleValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_ItemsPerSync,_writer.getAverageItemsPerSync());
+    collector.setIntValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_WriterQueueSize,_writer.getQueuedCount());
+    collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_BackPressureCount,_writer.getBackPressureCount());
+    collector.setLongValue(CrawlerEngineStats.ID, CrawlerEngineStats.Name.CrawlLog_RejectedAppendCount,_writer.getRejectedAppendCount());
   }
   
     
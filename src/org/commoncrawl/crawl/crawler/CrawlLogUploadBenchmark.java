@@ -0,0 +1,212 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.commoncrawl.protocol.CrawlURL;
+import org.commoncrawl.util.shared.FlexBuffer;
+
+/**
+ * Compares the old single threaded CrawlLog checkpoint transfer (read, crc check,
+ * decode and SequenceFile append all on one thread) against CrawlLogUploader,
+ * both writing to the local file system. Also measures how much of the upload
+ * is left at checkpoint time when the uploader tails the log as it is written.
+ *
+ * usage: CrawlLogUploadBenchmark [logSizeMB] [decoderThreads] [directory]
+ *
+ * @author rana
+ *
+ */
+public class CrawlLogUploadBenchmark {
+
+  /** write a crawl log of (at least) the given size, returns the item count **/
+  static long writeLog(File logFile,long targetSize,CrawlLogUploader tailingUploader) throws IOException {
+
+    RandomAccessFile headerFile = new RandomAccessFile(logFile,"rw");
+    CrawlLog.LogFileHeader header = new CrawlLog.LogFileHeader();
+    header.writeHeader(headerFile);
+    headerFile.close();
+
+    DataOutputStream logStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile,true),1 << 20));
+    ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(1 << 17);
+    DataOutputStream recordStream = new DataOutputStream(recordBuffer);
+    CRC32 crc = new CRC32();
+    Random random = new Random(1);
+    byte content[] = new byte[32768];
+
+    long size = CrawlLog.LogFileHeader.HeaderSize;
+    long itemCount = 0;
+
+    while (size < targetSize) {
+      CrawlURL url = new CrawlURL();
+      url.setUrl("http://www.host" + random.nextInt(100000) + ".com/path/" + random.nextInt() + ".html");
+      url.setFingerprint(random.nextLong());
+      url.setHostFP(random.nextLong());
+      url.setHeaders("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nServer: Apache\r\n");
+      // semi compressible content
+      int contentSize = 4096 + random.nextInt(24576);
+      for (int i=0;i<contentSize;++i)
+        content[i] = (byte)('a' + ((i * 31 + random.nextInt(4)) % 26));
+      url.setContentRaw(new FlexBuffer(content,0,contentSize));
+
+      recordBuffer.reset();
+      url.write(recordStream);
+      byte data[] = recordBuffer.toByteArray();
+      crc.reset();
+      crc.update(data,0,data.length);
+
+      logStream.writeInt(data.length);
+      logStream.writeLong(crc.getValue());
+      logStream.write(data);
+
+      size += 12 + data.length;
+      itemCount++;
+
+      // commit periodically, the way the log writer does
+      if (tailingUploader != null && itemCount % 1000 == 0) {
+        logStream.flush();
+        tailingUploader.setCommittedSize(size);
+      }
+    }
+    logStream.close();
+
+    header._fileSize = size;
+    header._itemCount = itemCount;
+    headerFile = new RandomAccessFile(logFile,"rw");
+    header.writeHeader(headerFile);
+    headerFile.close();
+
+    return itemCount;
+  }
+
+  /** the original (serial) transfer loop **/
+  static long serialTransfer(FileSystem fs,Configuration conf,File logFile,Path outputPath) throws IOException {
+    SequenceFile.Writer writer = new SequenceFile.Writer(fs,conf,outputPath,Text.class,CrawlURL.class);
+    FileInputStream inputStream = new FileInputStream(logFile);
+    long itemCount = 0;
+    try {
+      DataInputStream reader = new DataInputStream(inputStream);
+      CrawlLog.LogFileHeader header = new CrawlLog.LogFileHeader();
+      header.readHeader(reader);
+      CRC32 crc = new CRC32();
+      byte buffer[] = new byte[1 << 17];
+      long position = CrawlLog.LogFileHeader.HeaderSize;
+      while (position < header._fileSize) {
+        int urlDataLen = reader.readInt();
+        long urlDataCRC = reader.readLong();
+        if (urlDataLen > buffer.length)
+          buffer = new byte[((urlDataLen / 65536) + 1) * 65536];
+        reader.readFully(buffer,0,urlDataLen);
+        crc.reset();
+        crc.update(buffer,0,urlDataLen);
+        if (crc.getValue() != urlDataCRC)
+          throw new IOException("CRC Mismatch at:" + position);
+        CrawlURL url = new CrawlURL();
+        url.readFields(new DataInputStream(new ByteArrayInputStream(buffer,0,urlDataLen)));
+        writer.append(new Text(url.getUrl()),url);
+        position += 12 + urlDataLen;
+        itemCount++;
+      }
+    }
+    finally {
+      inputStream.close();
+      writer.close();
+    }
+    return itemCount;
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    long logSizeMB   = (args.length > 0) ? Long.parseLong(args[0]) : 10240;
+    int decoderCount = (args.length > 1) ? Integer.parseInt(args[1]) : CrawlLogUploader.DEFAULT_DECODER_COUNT;
+    File directory   = (args.length > 2) ? new File(args[2]) : new File(System.getProperty("java.io.tmpdir"),"crawlLogUploadBenchmark");
+
+    directory.mkdirs();
+
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+
+    File logFile = new File(directory,"crawlLog");
+    logFile.delete();
+    Path serialOutput = new Path(new File(directory,"serial.seq").getAbsolutePath());
+    Path pipelinedOutput = new Path(new File(directory,"pipelined.seq").getAbsolutePath());
+    Path tailingOutput = new Path(new File(directory,"tailing.seq").getAbsolutePath());
+
+    System.out.println("LogSize:" + logSizeMB + "MB Decoders:" + decoderCount + " Dir:" + directory);
+
+    long startTime = System.currentTimeMillis();
+    long itemCount = writeLog(logFile,logSizeMB * 1024 * 1024,null);
+    long logSize = logFile.length();
+    System.out.println("Generated " + itemCount + " items (" + (logSize / (1024 * 1024)) + "MB) in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    // serial
+    startTime = System.currentTimeMillis();
+    long serialCount = serialTransfer(fs,conf,logFile,serialOutput);
+    long serialTime = Math.max(1,System.currentTimeMillis() - startTime);
+    System.out.println("Serial:    " + serialCount + " items in " + serialTime + "ms (" + (logSize / 1024 * 1000 / serialTime / 1024) + " MB/sec) Output:" + (fs.getFileStatus(serialOutput).getLen() / (1024 * 1024)) + "MB");
+    fs.delete(serialOutput);
+
+    // pipelined, started at checkpoint time
+    startTime = System.currentTimeMillis();
+    CrawlLogUploader uploader = new CrawlLogUploader(fs,conf,logFile,pipelinedOutput,logSize,decoderCount);
+    uploader.start();
+    uploader.finish(logSize);
+    long pipelinedTime = Math.max(1,System.currentTimeMillis() - startTime);
+    System.out.println("Pipelined: " + uploader.getItemCount() + " items in " + pipelinedTime + "ms (" + (logSize / 1024 * 1000 / pipelinedTime / 1024) + " MB/sec) Output:" + (fs.getFileStatus(pipelinedOutput).getLen() / (1024 * 1024)) + "MB"
+        + " Speedup:" + String.format("%.2f",(double)serialTime / (double)pipelinedTime) + "x");
+    fs.delete(pipelinedOutput);
+
+    // tailing: upload while the log is being written, measure the time left at the checkpoint boundary
+    logFile.delete();
+    File tailingLog = new File(directory,"crawlLog.tailing");
+    RandomAccessFile emptyLog = new RandomAccessFile(tailingLog,"rw");
+    emptyLog.setLength(0);
+    new CrawlLog.LogFileHeader().writeHeader(emptyLog);
+    emptyLog.close();
+    CrawlLogUploader tailingUploader = new CrawlLogUploader(fs,conf,tailingLog,tailingOutput,CrawlLog.LogFileHeader.HeaderSize,decoderCount);
+    tailingUploader.start();
+    startTime = System.currentTimeMillis();
+    writeLog(tailingLog,logSizeMB * 1024 * 1024,tailingUploader);
+    long writeTime = System.currentTimeMillis() - startTime;
+    startTime = System.currentTimeMillis();
+    tailingUploader.finish(tailingLog.length());
+    long checkpointTime = Math.max(1,System.currentTimeMillis() - startTime);
+    System.out.println("Tailing:   " + tailingUploader.getItemCount() + " items. Log written in " + writeTime + "ms, upload finished " + checkpointTime + "ms after checkpoint"
+        + " Speedup (at checkpoint):" + String.format("%.2f",(double)serialTime / (double)checkpointTime) + "x");
+    fs.delete(tailingOutput);
+
+    logFile.delete();
+    tailingLog.delete();
+  }
+}
@@ -0,0 +1,622 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.commoncrawl.protocol.CrawlURL;
+import org.commoncrawl.util.shared.CCStringUtils;
+
+/**
+ * Pipelined transfer of a local crawl log into a (block compressed) SequenceFile
+ * of <Text,CrawlURL> tuples.
+ *
+ * The transfer runs as a set of stages connected by bounded queues: a reader
+ * thread pulls raw record batches off the local log, decoder threads CRC verify
+ * and deserialize batches in parallel, an append thread feeds the decoded urls
+ * (in log order) to the SequenceFile writer, which does the block compression,
+ * and a stream thread writes the compressed blocks to the file system.
+ *
+ * The uploader can be started against the ACTIVE log. It then tails the log up
+ * to its committed size (see setCommittedSize) while the crawler is running, so
+ * that by the time the log is checkpointed most of it has already been uploaded.
+ * The open file handle survives the checkpoint rename, so finish only needs to
+ * upload the tail past the last committed size.
+ *
+ * @author rana
+ *
+ */
+final class CrawlLogUploader {
+
+  private static final Log LOG = LogFactory.getLog(CrawlLogUploader.class);
+
+  /** target size of a raw record batch **/
+  static final int BATCH_SIZE = 1 << 20;
+  /** max number of batches between the reader and the append thread **/
+  static final int MAX_BATCHES_IN_FLIGHT = 16;
+  /** number of decoder threads **/
+  static final int DEFAULT_DECODER_COUNT = 2;
+  /** size / count of the blocks queued between the writer and the stream thread **/
+  static final int STREAM_BLOCK_SIZE = 1 << 20;
+  static final int STREAM_BLOCK_COUNT = 4;
+
+  private static final int RECORD_HEADER_SIZE = 12; // length(int) + crc(long)
+
+  /** a batch of raw log records **/
+  private static final class RecordBatch {
+    long   _sequence;
+    long   _filePosition;
+    byte[] _data;
+    int    _length;
+    // set by the decoder ...
+    Text     _keys[];
+    CrawlURL _values[];
+    int      _count;
+  }
+
+  private static final RecordBatch END_OF_LOG = new RecordBatch();
+
+  private final FileSystem    _fileSystem;
+  private final Configuration _conf;
+  private final Path          _outputPath;
+  private final File          _logPath;
+  private final RandomAccessFile _logFile;
+  private final FileChannel   _logChannel;
+  private final int           _decoderCount;
+
+  private final BlockingQueue<RecordBatch> _decodeQueue = new ArrayBlockingQueue<RecordBatch>(MAX_BATCHES_IN_FLIGHT + 1);
+  private final Semaphore _inFlight = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+  private final Map<Long,RecordBatch> _decoded = new HashMap<Long,RecordBatch>();
+
+  private final Object _monitor = new Object();
+  /** log size up to which records are complete (guarded by _monitor) **/
+  private long    _committedSize;
+  /** final log size - set by finish (guarded by _monitor) **/
+  private long    _finalSize = -1;
+  /** total number of batches, known once the reader is done (guarded by _monitor) **/
+  private long    _batchCount = -1;
+  private boolean _complete = false;
+  private volatile IOException _failure = null;
+  private volatile boolean _aborted = false;
+
+  private long _readPosition;
+  private long _itemCount = 0;
+  private long _bytesRead = 0;
+
+  private Thread _threads[];
+
+  CrawlLogUploader(FileSystem fileSystem,Configuration conf,File logPath,Path outputPath,long committedSize) throws IOException {
+    this(fileSystem,conf,logPath,outputPath,committedSize,DEFAULT_DECODER_COUNT);
+  }
+
+  CrawlLogUploader(FileSystem fileSystem,Configuration conf,File logPath,Path outputPath,long committedSize,int decoderCount) throws IOException {
+    _fileSystem = fileSystem;
+    _conf = conf;
+    _logPath = logPath;
+    _outputPath = outputPath;
+    _committedSize = committedSize;
+    _decoderCount = Math.max(1,decoderCount);
+    _logFile = new RandomAccessFile(logPath,"r");
+    _logChannel = _logFile.getChannel();
+    _readPosition = CrawlLog.LogFileHeader.HeaderSize;
+  }
+
+  Path getOutputPath() {
+    return _outputPath;
+  }
+
+  long getItemCount() {
+    return _itemCount;
+  }
+
+  long getBytesRead() {
+    return _bytesRead;
+  }
+
+  void start() throws IOException {
+
+    // delete any stale output ...
+    _fileSystem.delete(_outputPath);
+
+    _threads = new Thread[_decoderCount + 2];
+
+    _threads[0] = new Thread(new Runnable() {
+      public void run() {
+        try {
+          readLog();
+        }
+        catch (Throwable e) {
+          fail(e);
+        }
+      }
+    });
+    _threads[0].setName("CrawlLog Uploader - Reader");
+
+    for (int i=0;i<_decoderCount;++i) {
+      _threads[i+1] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            decodeBatches();
+          }
+          catch (Throwable e) {
+            fail(e);
+          }
+        }
+      });
+      _threads[i+1].setName("CrawlLog Uploader - Decoder " + i);
+    }
+
+    _threads[_decoderCount + 1] = new Thread(new Runnable() {
+      public void run() {
+        try {
+          appendBatches();
+        }
+        catch (Throwable e) {
+          fail(e);
+        }
+      }
+    });
+    _threads[_decoderCount + 1].setName("CrawlLog Uploader - Writer");
+
+    for (Thread thread : _threads) {
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /** records up to the given log size are complete and can be uploaded **/
+  void setCommittedSize(long committedSize) {
+    synchronized (_monitor) {
+      if (committedSize > _committedSize) {
+        _committedSize = committedSize;
+        _monitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * upload the remainder of the log up to finalSize and close the output.
+   * blocks until the output is complete, and throws the first failure of any
+   * stage (a CorruptCrawlLogException on crc mismatch).
+   */
+  void finish(long finalSize) throws IOException {
+    synchronized (_monitor) {
+      _finalSize = finalSize;
+      _committedSize = Math.max(_committedSize,finalSize);
+      _monitor.notifyAll();
+      while (!_complete && _failure == null) {
+        try {
+          _monitor.wait(1000);
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for CrawlLog Upload");
+        }
+      }
+    }
+    if (_failure != null) {
+      cleanup();
+      throw _failure;
+    }
+    _logFile.close();
+  }
+
+  /** stop all stages and delete any output **/
+  void abort() {
+    _aborted = true;
+    fail(new IOException("CrawlLog Upload Aborted"));
+    cleanup();
+  }
+
+  private void fail(Throwable e) {
+    synchronized (_monitor) {
+      if (_failure == null) {
+        if (!_aborted)
+          LOG.error("CrawlLog Upload of:" + _logPath + " Failed with Exception:" + CCStringUtils.stringifyException(e));
+        _failure = (e instanceof IOException) ? (IOException)e : new IOException(CCStringUtils.stringifyException(e));
+      }
+      _monitor.notifyAll();
+    }
+    // unblock anyone waiting on the pipeline ...
+    _inFlight.release(MAX_BATCHES_IN_FLIGHT);
+  }
+
+  private void cleanup() {
+    if (_threads != null) {
+      for (Thread thread : _threads) {
+        if (thread != Thread.currentThread()) {
+          thread.interrupt();
+          try {
+            thread.join();
+          }
+          catch (InterruptedException e) {
+          }
+        }
+      }
+    }
+    try {
+      _logFile.close();
+    }
+    catch (IOException e) {
+    }
+    try {
+      _fileSystem.delete(_outputPath);
+    }
+    catch (IOException e) {
+      LOG.error("Failed to delete partial CrawlLog Upload:" + _outputPath + " Exception:" + CCStringUtils.stringifyException(e));
+    }
+  }
+
+  /** reader stage: tail the log file, handing off batches of complete records **/
+  private void readLog() throws IOException, InterruptedException {
+
+    long sequence = 0;
+    ByteBuffer recordHeader = ByteBuffer.allocate(4);
+
+    for (;;) {
+      long limit;
+      boolean finalLimit;
+
+      synchronized (_monitor) {
+        while (_readPosition >= _committedSize && _finalSize == -1 && _failure == null)
+          _monitor.wait();
+        if (_failure != null)
+          return;
+        finalLimit = (_finalSize != -1);
+        limit = finalLimit ? _finalSize : _committedSize;
+      }
+
+      if (_readPosition >= limit) {
+        if (finalLimit)
+          break;
+        continue;
+      }
+
+      // make sure the batch holds at least one complete record ...
+      recordHeader.clear();
+      readFully(recordHeader,_readPosition);
+      int firstRecordSize = RECORD_HEADER_SIZE + recordHeader.getInt(0);
+      int batchSize = (int)Math.min(limit - _readPosition,Math.max(BATCH_SIZE,firstRecordSize));
+
+      while (!_inFlight.tryAcquire(1000,TimeUnit.MILLISECONDS)) {
+        if (_failure != null)
+          return;
+      }
+      if (_failure != null)
+        return;
+
+      RecordBatch batch = new RecordBatch();
+      batch._sequence = sequence;
+      batch._filePosition = _readPosition;
+      batch._data = new byte[batchSize];
+      readFully(ByteBuffer.wrap(batch._data),_readPosition);
+
+      // trim to the last complete record, the remainder is read again with the next batch
+      int offset = 0;
+      while (offset + RECORD_HEADER_SIZE <= batchSize) {
+        int recordSize = RECORD_HEADER_SIZE + readInt(batch._data,offset);
+        if (offset + recordSize > batchSize)
+          break;
+        offset += recordSize;
+      }
+      batch._length = offset;
+
+      _readPosition += offset;
+      _bytesRead += offset;
+      sequence++;
+
+      if (!enqueue(batch))
+        return;
+    }
+
+    synchronized (_monitor) {
+      _batchCount = sequence;
+      _monitor.notifyAll();
+    }
+    for (int i=0;i<_decoderCount;++i) {
+      if (!enqueue(END_OF_LOG))
+        return;
+    }
+  }
+
+  private boolean enqueue(RecordBatch batch) throws InterruptedException {
+    while (!_decodeQueue.offer(batch,1000,TimeUnit.MILLISECONDS)) {
+      if (_failure != null)
+        return false;
+    }
+    return true;
+  }
+
+  /** decoder stage: crc verify and deserialize record batches **/
+  private void decodeBatches() throws IOException, InterruptedException {
+
+    CRC32 crc = new CRC32();
+
+    for (;;) {
+      RecordBatch batch = _decodeQueue.poll(1000,TimeUnit.MILLISECONDS);
+      if (_failure != null)
+        return;
+      if (batch == null)
+        continue;
+      if (batch == END_OF_LOG)
+        return;
+
+      // count records first ...
+      int count = 0;
+      for (int offset=0;offset < batch._length;offset += RECORD_HEADER_SIZE + readInt(batch._data,offset))
+        count++;
+
+      batch._keys = new Text[count];
+      batch._values = new CrawlURL[count];
+
+      int offset = 0;
+      for (int i=0;i<count;++i) {
+        int urlDataLen = readInt(batch._data,offset);
+        long urlDataCRC = readLong(batch._data,offset + 4);
+        int dataOffset = offset + RECORD_HEADER_SIZE;
+
+        crc.reset();
+        crc.update(batch._data,dataOffset,urlDataLen);
+
+        // validate crc values ...
+        if (crc.getValue() != urlDataCRC) {
+          throw new CrawlLog.CorruptCrawlLogException("CRC Mismatch Detected during HDFS transfer in CrawlLog:" + _logPath.getAbsolutePath() + " FilePosition:" + (batch._filePosition + offset));
+        }
+        CrawlURL url = new CrawlURL();
+        url.readFields(new DataInputStream(new ByteArrayInputStream(batch._data,dataOffset,urlDataLen)));
+        batch._keys[i] = new Text(url.getUrl());
+        batch._values[i] = url;
+
+        offset = dataOffset + urlDataLen;
+      }
+      batch._count = count;
+      // release raw data
+      batch._data = null;
+
+      synchronized (_decoded) {
+        _decoded.put(batch._sequence,batch);
+        _decoded.notifyAll();
+      }
+    }
+  }
+
+  /** append stage: write decoded batches to the sequence file in log order **/
+  private void appendBatches() throws IOException, InterruptedException {
+
+    FSDataOutputStream rawStream = _fileSystem.create(_outputPath);
+    PipelinedOutputStream pipelinedStream = new PipelinedOutputStream(rawStream);
+    SequenceFile.Writer writer = null;
+    boolean success = false;
+
+    try {
+      writer = SequenceFile.createWriter(_conf,new FSDataOutputStream(pipelinedStream,null),Text.class,CrawlURL.class,CompressionType.BLOCK,new DefaultCodec());
+
+      long nextSequence = 0;
+
+      for (;;) {
+        RecordBatch batch = null;
+
+        // wait for the next batch in sequence (or for the end of the log)
+        while (batch == null) {
+          if (_failure != null)
+            return;
+          synchronized (_monitor) {
+            if (_batchCount != -1 && nextSequence == _batchCount)
+              break;
+          }
+          synchronized (_decoded) {
+            batch = _decoded.remove(nextSequence);
+            if (batch == null)
+              _decoded.wait(100);
+          }
+        }
+        if (batch == null)
+          break;
+
+        for (int i=0;i<batch._count;++i) {
+          writer.append(batch._keys[i],batch._values[i]);
+        }
+        _itemCount += batch._count;
+        nextSequence++;
+        _inFlight.release();
+      }
+
+      writer.close();
+      writer = null;
+      pipelinedStream.close();
+      success = true;
+    }
+    finally {
+      if (!success) {
+        if (writer != null) {
+          try { writer.close(); } catch (IOException e) { }
+        }
+        pipelinedStream.abort();
+      }
+    }
+
+    synchronized (_monitor) {
+      _complete = true;
+      _monitor.notifyAll();
+    }
+  }
+
+  private void readFully(ByteBuffer buffer,long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int bytesRead = _logChannel.read(buffer,position);
+      if (bytesRead == -1)
+        throw new IOException("Unexpected EOF in CrawlLog:" + _logPath + " at:" + position);
+      position += bytesRead;
+    }
+  }
+
+  private static int readInt(byte[] data,int offset) {
+    return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16) | ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+  }
+
+  private static long readLong(byte[] data,int offset) {
+    return ((long)readInt(data,offset) << 32) | ((long)readInt(data,offset + 4) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * OutputStream that hands full blocks to a dedicated thread for writing to
+   * the underlying (file system) stream, so that compression and the file
+   * system write overlap.
+   */
+  static final class PipelinedOutputStream extends OutputStream {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final OutputStream _out;
+    private final BlockingQueue<byte[]> _blocks = new ArrayBlockingQueue<byte[]>(STREAM_BLOCK_COUNT);
+    private final Thread _thread;
+    private byte[] _block = new byte[STREAM_BLOCK_SIZE];
+    private int _blockSize = 0;
+    private volatile IOException _failure = null;
+    private boolean _closed = false;
+
+    PipelinedOutputStream(OutputStream out) {
+      _out = out;
+      _thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (;;) {
+              byte[] block = _blocks.take();
+              if (block == EOF)
+                break;
+              _out.write(block);
+            }
+          }
+          catch (IOException e) {
+            _failure = e;
+            // drain so the producer never blocks ...
+            _blocks.clear();
+          }
+          catch (InterruptedException e) {
+            _failure = new IOException("PipelinedOutputStream Interrupted");
+          }
+        }
+      });
+      _thread.setName("CrawlLog Uploader - Stream");
+      _thread.setDaemon(true);
+      _thread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (_blockSize == _block.length)
+        handOff();
+      _block[_blockSize++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b,int off,int len) throws IOException {
+      while (len != 0) {
+        if (_blockSize == _block.length)
+          handOff();
+        int bytesToCopy = Math.min(len,_block.length - _blockSize);
+        System.arraycopy(b,off,_block,_blockSize,bytesToCopy);
+        _blockSize += bytesToCopy;
+        off += bytesToCopy;
+        len -= bytesToCopy;
+      }
+    }
+
+    private void handOff() throws IOException {
+      checkFailure();
+      byte[] block = _block;
+      if (_blockSize != block.length) {
+        block = new byte[_blockSize];
+        System.arraycopy(_block,0,block,0,_blockSize);
+      }
+      else {
+        _block = new byte[STREAM_BLOCK_SIZE];
+      }
+      _blockSize = 0;
+      try {
+        while (!_blocks.offer(block,1000,TimeUnit.MILLISECONDS)) {
+          checkFailure();
+        }
+      }
+      catch (InterruptedException e) {
+        throw new IOException("PipelinedOutputStream Interrupted");
+      }
+    }
+
+    private void checkFailure() throws IOException {
+      if (_failure != null)
+        throw _failure;
+    }
+
+    /** flush is a no-op, data is written as blocks fill up and on close **/
+    @Override
+    public void flush() throws IOException {
+      checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (_closed)
+        return;
+      _closed = true;
+      if (_blockSize != 0)
+        handOff();
+      try {
+        _blocks.put(EOF);
+        _thread.join();
+      }
+      catch (InterruptedException e) {
+        throw new IOException("PipelinedOutputStream Interrupted");
+      }
+      checkFailure();
+      _out.close();
+    }
+
+    void abort() {
+      _closed = true;
+      _thread.interrupt();
+      try {
+        _out.close();
+      }
+      catch (IOException e) {
+      }
+    }
+  }
+}
@@ -0,0 +1,655 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.protocol.CrawlURL;
+import org.commoncrawl.util.shared.CCStringUtils;
+
+/**
+ * Continuous group commit writer for the crawl log and the crawl segment logs.
+ *
+ * Completed log items are appended to a bounded ring buffer, which a dedicated
+ * thread drains into the active crawl log / segment log files. Writes are made
+ * durable (headers updated and files fsync'd) in groups, once SYNC_BYTES have
+ * been written or the oldest unsynced item has waited SYNC_INTERVAL ms. When
+ * the ring fills past its high watermark the listener is asked to apply back
+ * pressure (pause the fetcher), which is released once the writer has drained
+ * the ring back below the low watermark. The ring never grows: if it fills up
+ * anyway (e.g. while the writer is suspended by a checkpoint barrier), appends
+ * made off the event loop stall until the writer frees up space, while appends
+ * made in the event loop thread (which must never block) are rejected and
+ * counted. A rejected item is never recorded as complete, so it is fetched
+ * again once its segment is reloaded. A few slots are held back for barriers.
+ *
+ * Barriers let the event loop wait for everything appended before them to be
+ * durable (flush), and optionally suspend the writer with all files closed
+ * (checkpoint), until resume is called.
+ *
+ * @author rana
+ *
+ */
+final class CrawlLogWriter implements Runnable {
+
+  private static final Log LOG = LogFactory.getLog(CrawlLogWriter.class);
+
+  /** ring capacity (in log items) **/
+  static final int  DEFAULT_CAPACITY = 1 << 16;
+  /** sync once this many bytes are pending **/
+  static final long SYNC_BYTES = 8L * 1024 * 1024;
+  /** or once the oldest pending item has waited this long (ms) **/
+  static final long SYNC_INTERVAL = 200;
+  /** latency / throughput stats are reported over windows of this length (ms) **/
+  static final long STATS_WINDOW = 10000;
+
+  /** slots only barriers may use, so that a full ring can still be flushed / checkpointed **/
+  static final int  BARRIER_RESERVE = 16;
+
+  private static final int DRAIN_BATCH_SIZE = 1024;
+  private static final int MAX_LATENCY_BUCKET = 10000;
+
+  static interface Listener {
+    /** called in the writer thread for each item written to the crawl log **/
+    void itemWritten(CrawlURL url,int recordSize);
+    /** called in the writer thread once the crawl log is durable up to the given size / item count **/
+    void logCommitted(long fileSize,long itemCount);
+    /** called in the event loop thread when back pressure should be applied or released **/
+    void backPressureChanged(boolean applyBackPressure);
+    /** called in the event loop thread if the writer fails - the writer thread exits, and the listener must not return **/
+    void writerFailed(IOException e);
+  }
+
+  /** a barrier entry in the ring **/
+  private static final class Barrier {
+    Runnable _callback;
+    boolean  _suspend;
+  }
+
+  /** an open segment log file **/
+  private static final class SegmentLogFile {
+    FileChannel      _channel;
+    DataOutputStream _stream;
+    int              _recordCount;
+    boolean          _dirty;
+  }
+
+  /** per window commit latency histogram (1ms buckets) **/
+  private static final class LatencyWindow {
+    int  _buckets[] = new int[MAX_LATENCY_BUCKET + 1];
+    long _itemCount;
+    long _bytes;
+    long _startTime;
+
+    void reset(long startTime) {
+      for (int i=0;i<_buckets.length;++i)
+        _buckets[i] = 0;
+      _itemCount = 0;
+      _bytes = 0;
+      _startTime = startTime;
+    }
+
+    long percentile(double percentile) {
+      if (_itemCount == 0)
+        return 0;
+      long target = (long)Math.ceil(percentile * _itemCount);
+      long count = 0;
+      for (int i=0;i<_buckets.length;++i) {
+        count += _buckets[i];
+        if (count >= target)
+          return i;
+      }
+      return MAX_LATENCY_BUCKET;
+    }
+  }
+
+  private EventLoop    _eventLoop;
+  private File         _rootDirectory;
+  private Listener     _listener;
+
+  /** the ring **/
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _notEmpty = _lock.newCondition();
+  private final Condition _notFull = _lock.newCondition();
+  private final Condition _resumed = _lock.newCondition();
+  private Object  _entries[];
+  private int     _listIds[];
+  private int     _segmentIds[];
+  private long    _enqueueTimes[];
+  private int     _head = 0;
+  private int     _count = 0;
+  private int     _itemCapacity;
+  private int     _highWatermark;
+  private int     _lowWatermark;
+  private boolean _backPressure = false;
+  private boolean _suspended = false;
+  private boolean _failed = false;
+
+  /** open files (writer thread only) **/
+  private File             _crawlLogPath;
+  private FileChannel      _crawlLogChannel;
+  private DataOutputStream _crawlLogStream;
+  private CrawlLog.LogFileHeader _crawlLogHeader;
+  private Map<Long,SegmentLogFile> _segmentLogs = new HashMap<Long,SegmentLogFile>();
+
+  /** record serialization (writer thread only) **/
+  private CustomByteArrayOutputStream _recordBuffer = new CustomByteArrayOutputStream(1 << 17);
+  private DataOutputStream _recordStream = new DataOutputStream(_recordBuffer);
+  private CRC32 _crc = new CRC32();
+
+  /** unsynced state (writer thread only) **/
+  private long   _unsyncedBytes = 0;
+  private int    _unsyncedCount = 0;
+  private long   _unsyncedEnqueueTimes[] = new long[DRAIN_BATCH_SIZE];
+
+  /** stats **/
+  private final Object _statsLock = new Object();
+  private LatencyWindow _currentWindow = new LatencyWindow();
+  private LatencyWindow _lastWindow = null;
+  private long _syncCount = 0;
+  private long _syncedItemCount = 0;
+  private long _totalBytesWritten = 0;
+  /** back pressure / rejection counts (guarded by _lock, as they are updated on append) **/
+  private long _backPressureCount = 0;
+  private long _rejectedAppendCount = 0;
+
+  private Thread _thread;
+
+  CrawlLogWriter(EventLoop eventLoop,File rootDirectory,Listener listener) {
+    this(eventLoop,rootDirectory,listener,DEFAULT_CAPACITY);
+  }
+
+  CrawlLogWriter(EventLoop eventLoop,File rootDirectory,Listener listener,int capacity) {
+    _eventLoop = eventLoop;
+    _rootDirectory = rootDirectory;
+    _listener = listener;
+    _entries = new Object[capacity];
+    _listIds = new int[capacity];
+    _segmentIds = new int[capacity];
+    _enqueueTimes = new long[capacity];
+    _itemCapacity = capacity - BARRIER_RESERVE;
+    _highWatermark = (_itemCapacity * 3) / 4;
+    _lowWatermark = _itemCapacity / 4;
+    _currentWindow.reset(System.currentTimeMillis());
+  }
+
+  void start() {
+    _thread = new Thread(this);
+    _thread.setName("CrawlLog Writer");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+   * append a completed log item. back pressure is requested well before the
+   * ring fills. if it fills anyway, callers off the event loop wait for space,
+   * and the event loop thread (which must not block) has the item rejected.
+   *
+   * @return false if the item was rejected because the ring was full
+   */
+  boolean append(int listId,int segmentId,CrawlSegmentLog.LogItem item) {
+    boolean applyBackPressure = false;
+    _lock.lock();
+    try {
+      if (_count >= _itemCapacity && Thread.currentThread() != _eventLoop.getEventThread()) {
+        while (!_failed && _count >= _itemCapacity)
+          _notFull.awaitUninterruptibly();
+      }
+      if (_failed)
+        throw new RuntimeException("CrawlLog Writer Failed - Rejecting Log Item");
+      if (_count >= _itemCapacity) {
+        if (_rejectedAppendCount++ == 0 || _rejectedAppendCount % 1000 == 0)
+          LOG.error("CrawlLog Writer Queue Full - Rejected Log Item. Total Rejected:" + _rejectedAppendCount);
+        return false;
+      }
+      int slot = (_head + _count) % _entries.length;
+      _entries[slot] = item;
+      _listIds[slot] = listId;
+      _segmentIds[slot] = segmentId;
+      _enqueueTimes[slot] = System.currentTimeMillis();
+      _count++;
+      if (!_backPressure && _count >= _highWatermark) {
+        _backPressure = true;
+        _backPressureCount++;
+        applyBackPressure = true;
+      }
+      _notEmpty.signal();
+    }
+    finally {
+      _lock.unlock();
+    }
+    if (applyBackPressure) {
+      LOG.warn("CrawlLog Writer Queue above High Watermark - Applying Back Pressure");
+      postBackPressureChange(true);
+    }
+    return true;
+  }
+
+  /**
+   * queue a barrier. once everything appended before it is durable, the callback
+   * is run in the event loop thread. if suspend is true, the writer also closes
+   * its files and waits (buffering newly appended items) until resume is called.
+   */
+  void barrier(Runnable callback,boolean suspend) {
+    Barrier barrier = new Barrier();
+    barrier._callback = callback;
+    barrier._suspend = suspend;
+    _lock.lock();
+    try {
+      // barriers never wait for space - they may dip into the reserve, which can
+      // only run out if BARRIER_RESERVE barriers are queued behind a full ring
+      if (_count == _entries.length)
+        throw new RuntimeException("CrawlLog Writer Barrier Reserve Exhausted");
+      int slot = (_head + _count) % _entries.length;
+      _entries[slot] = barrier;
+      _enqueueTimes[slot] = System.currentTimeMillis();
+      _count++;
+      _notEmpty.signal();
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  /** resume a writer suspended by a barrier **/
+  void resume() {
+    _lock.lock();
+    try {
+      _suspended = false;
+      _resumed.signal();
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  int getQueuedCount() {
+    _lock.lock();
+    try {
+      return _count;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  /** commit (append to durable) latency percentile in ms over the last stats window **/
+  long getCommitLatencyPercentile(double percentile) {
+    synchronized (_statsLock) {
+      return (_lastWindow != null) ? _lastWindow.percentile(percentile) : _currentWindow.percentile(percentile);
+    }
+  }
+
+  /** bytes committed per second over the last stats window **/
+  long getBytesPerSecond() {
+    synchronized (_statsLock) {
+      if (_lastWindow != null)
+        return _lastWindow._bytes * 1000 / STATS_WINDOW;
+      long elapsed = Math.max(1,System.currentTimeMillis() - _currentWindow._startTime);
+      return _currentWindow._bytes * 1000 / elapsed;
+    }
+  }
+
+  long getSyncCount() { synchronized (_statsLock) { return _syncCount; } }
+  long getTotalBytesWritten() { synchronized (_statsLock) { return _totalBytesWritten; } }
+  long getBackPressureCount() {
+    _lock.lock();
+    try {
+      return _backPressureCount;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  long getRejectedAppendCount() {
+    _lock.lock();
+    try {
+      return _rejectedAppendCount;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  double getAverageItemsPerSync() {
+    synchronized (_statsLock) {
+      return (_syncCount == 0) ? 0.0 : (double)_syncedItemCount / (double)_syncCount;
+    }
+  }
+
+  public void run() {
+
+    Object entries[] = new Object[DRAIN_BATCH_SIZE];
+    int listIds[] = new int[DRAIN_BATCH_SIZE];
+    int segmentIds[] = new int[DRAIN_BATCH_SIZE];
+    long enqueueTimes[] = new long[DRAIN_BATCH_SIZE];
+
+    try {
+      for (;;) {
+
+        int drainCount = 0;
+        boolean releaseBackPressure = false;
+
+        _lock.lock();
+        try {
+          if (_count == 0) {
+            if (_unsyncedCount != 0) {
+              long waitTime = _unsyncedEnqueueTimes[0] + SYNC_INTERVAL - System.currentTimeMillis();
+              if (waitTime > 0)
+                _notEmpty.await(waitTime,TimeUnit.MILLISECONDS);
+            }
+            else {
+              _notEmpty.await(STATS_WINDOW,TimeUnit.MILLISECONDS);
+            }
+          }
+          drainCount = Math.min(_count,DRAIN_BATCH_SIZE);
+          for (int i=0;i<drainCount;++i) {
+            entries[i] = _entries[_head];
+            listIds[i] = _listIds[_head];
+            segmentIds[i] = _segmentIds[_head];
+            enqueueTimes[i] = _enqueueTimes[_head];
+            _entries[_head] = null;
+            _head = (_head + 1) % _entries.length;
+          }
+          _count -= drainCount;
+          if (drainCount != 0)
+            _notFull.signalAll();
+          if (_backPressure && _count <= _lowWatermark) {
+            _backPressure = false;
+            releaseBackPressure = true;
+          }
+        }
+        finally {
+          _lock.unlock();
+        }
+
+        if (releaseBackPressure) {
+          LOG.info("CrawlLog Writer Queue below Low Watermark - Releasing Back Pressure");
+          postBackPressureChange(false);
+        }
+
+        for (int i=0;i<drainCount;++i) {
+          if (entries[i] instanceof Barrier) {
+            processBarrier((Barrier)entries[i]);
+          }
+          else {
+            writeItem(listIds[i],segmentIds[i],(CrawlSegmentLog.LogItem)entries[i],enqueueTimes[i]);
+          }
+          entries[i] = null;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        if (_unsyncedCount != 0 && (_unsyncedBytes >= SYNC_BYTES || currentTime - _unsyncedEnqueueTimes[0] >= SYNC_INTERVAL)) {
+          sync();
+        }
+        rotateStatsWindow(currentTime);
+      }
+    }
+    catch (final IOException e) {
+      LOG.fatal("CrawlLog Writer Failed with Exception:" + CCStringUtils.stringifyException(e));
+      _lock.lock();
+      try {
+        _failed = true;
+        // wake up any producers stalled on a full ring
+        _notFull.signalAll();
+      }
+      finally {
+        _lock.unlock();
+      }
+      _eventLoop.queueRunnable(new Runnable() {
+        public void run() {
+          _listener.writerFailed(e);
+        }
+      });
+    }
+    catch (InterruptedException e) {
+      LOG.error("CrawlLog Writer Interrupted");
+    }
+  }
+
+  private void postBackPressureChange(final boolean applyBackPressure) {
+    _eventLoop.queueRunnable(new Runnable() {
+      public void run() {
+        _listener.backPressureChanged(applyBackPressure);
+      }
+    });
+  }
+
+  private void processBarrier(final Barrier barrier) throws IOException {
+    sync();
+    if (barrier._suspend) {
+      // the caller is going to move the active logs around
+      closeFiles();
+      _lock.lock();
+      try {
+        _suspended = true;
+      }
+      finally {
+        _lock.unlock();
+      }
+    }
+    _eventLoop.queueRunnable(barrier._callback);
+    if (barrier._suspend) {
+      _lock.lock();
+      try {
+        while (_suspended)
+          _resumed.awaitUninterruptibly();
+      }
+      finally {
+        _lock.unlock();
+      }
+    }
+  }
+
+  private void writeItem(int listId,int segmentId,CrawlSegmentLog.LogItem item,long enqueueTime) throws IOException {
+
+    CrawlURL url = item._urlData;
+
+    if (item._writeToCrawLog) {
+      ensureCrawlLogOpen();
+
+      _recordBuffer.reset();
+      url.write(_recordStream);
+      int recordSize = _recordBuffer.size();
+
+      _crc.reset();
+      _crc.update(_recordBuffer.getBuffer(),0,recordSize);
+
+      // length, crc (as a long) and then the data
+      _crawlLogStream.writeInt(recordSize);
+      _crawlLogStream.writeLong(_crc.getValue());
+      _crawlLogStream.write(_recordBuffer.getBuffer(),0,recordSize);
+
+      _crawlLogHeader._itemCount++;
+      _unsyncedBytes += 12 + recordSize;
+
+      _listener.itemWritten(url,recordSize);
+    }
+
+    if ((url.getFlags() & CrawlURL.Flags.InParseQueue) == 0 && listId != -1 && segmentId != -1) {
+      SegmentLogFile segmentLog = getSegmentLog(listId,segmentId);
+      segmentLog._stream.writeLong(item._hostFP);
+      segmentLog._stream.writeLong(item._itemFP);
+      // position hint
+      segmentLog._stream.writeInt(segmentLog._recordCount);
+      segmentLog._recordCount++;
+      segmentLog._dirty = true;
+      _unsyncedBytes += CrawlSegmentLog.LogItem.ItemSize_Bytes;
+    }
+
+    if (_unsyncedCount == _unsyncedEnqueueTimes.length) {
+      long newTimes[] = new long[_unsyncedEnqueueTimes.length << 1];
+      System.arraycopy(_unsyncedEnqueueTimes,0,newTimes,0,_unsyncedCount);
+      _unsyncedEnqueueTimes = newTimes;
+    }
+    _unsyncedEnqueueTimes[_unsyncedCount++] = enqueueTime;
+  }
+
+  /** make everything written so far durable **/
+  private void sync() throws IOException {
+
+    if (_unsyncedCount == 0)
+      return;
+
+    long fileSize = 0;
+    long itemCount = 0;
+
+    // flush and force the record data first, so that a header can never
+    // describe records that have not yet reached the disk
+    if (_crawlLogStream != null) {
+      _crawlLogStream.flush();
+      _crawlLogChannel.force(false);
+    }
+    for (SegmentLogFile segmentLog : _segmentLogs.values()) {
+      if (segmentLog._dirty) {
+        segmentLog._stream.flush();
+        segmentLog._channel.force(false);
+      }
+    }
+
+    // then update the headers ...
+    if (_crawlLogStream != null) {
+      fileSize = _crawlLogChannel.size();
+      _crawlLogHeader._fileSize = fileSize;
+      itemCount = _crawlLogHeader._itemCount;
+      ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(32);
+      _crawlLogHeader.writeHeader(new DataOutputStream(headerBytes));
+      writeFully(_crawlLogChannel,ByteBuffer.wrap(headerBytes.toByteArray()),0);
+    }
+
+    for (SegmentLogFile segmentLog : _segmentLogs.values()) {
+      if (segmentLog._dirty) {
+        ByteBuffer header = ByteBuffer.allocate(CrawlSegmentLog.getHeaderSize());
+        header.putInt(CrawlSegmentLog.LogFileHeaderBytes);
+        header.putInt(segmentLog._recordCount);
+        header.flip();
+        writeFully(segmentLog._channel,header,0);
+      }
+    }
+
+    // ... and force them to disk before publishing the commit
+    if (_crawlLogChannel != null)
+      _crawlLogChannel.force(false);
+    for (SegmentLogFile segmentLog : _segmentLogs.values()) {
+      if (segmentLog._dirty) {
+        segmentLog._channel.force(false);
+        segmentLog._dirty = false;
+      }
+    }
+
+    if (_crawlLogStream != null)
+      _listener.logCommitted(fileSize,itemCount);
+
+    long currentTime = System.currentTimeMillis();
+
+    synchronized (_statsLock) {
+      for (int i=0;i<_unsyncedCount;++i) {
+        long latency = Math.max(0,Math.min(MAX_LATENCY_BUCKET,currentTime - _unsyncedEnqueueTimes[i]));
+        _currentWindow._buckets[(int)latency]++;
+      }
+      _currentWindow._itemCount += _unsyncedCount;
+      _currentWindow._bytes += _unsyncedBytes;
+      _syncCount++;
+      _syncedItemCount += _unsyncedCount;
+      _totalBytesWritten += _unsyncedBytes;
+    }
+
+    _unsyncedCount = 0;
+    _unsyncedBytes = 0;
+  }
+
+  private void rotateStatsWindow(long currentTime) {
+    synchronized (_statsLock) {
+      if (currentTime - _currentWindow._startTime >= STATS_WINDOW) {
+        LatencyWindow recycled = (_lastWindow != null) ? _lastWindow : new LatencyWindow();
+        _lastWindow = _currentWindow;
+        _currentWindow = recycled;
+        _currentWindow.reset(currentTime);
+      }
+    }
+  }
+
+  private void ensureCrawlLogOpen() throws IOException {
+    if (_crawlLogStream == null) {
+      _crawlLogPath = CrawlLog.getActivePath(_rootDirectory);
+      _crawlLogHeader = CrawlLog.readLogFileHeader(_crawlLogPath);
+      _crawlLogChannel = new RandomAccessFile(_crawlLogPath,"rw").getChannel();
+      _crawlLogChannel.position(_crawlLogChannel.size());
+      _crawlLogStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(_crawlLogChannel),1 << 16));
+    }
+  }
+
+  private SegmentLogFile getSegmentLog(int listId,int segmentId) throws IOException {
+    long packedId = CrawlLog.makeSegmentLogId(listId,segmentId);
+    SegmentLogFile segmentLog = _segmentLogs.get(packedId);
+    if (segmentLog == null) {
+      File path = CrawlSegmentLog.buildActivePath(_rootDirectory,listId,segmentId);
+      CrawlSegmentLog.initializeLogFile(path);
+      segmentLog = new SegmentLogFile();
+      segmentLog._recordCount = CrawlSegmentLog.readerHeader(path);
+      segmentLog._channel = new RandomAccessFile(path,"rw").getChannel();
+      segmentLog._channel.position(segmentLog._channel.size());
+      segmentLog._stream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(segmentLog._channel),1 << 12));
+      _segmentLogs.put(packedId,segmentLog);
+    }
+    return segmentLog;
+  }
+
+  private void closeFiles() throws IOException {
+    if (_crawlLogStream != null) {
+      _crawlLogStream.close();
+      _crawlLogStream = null;
+      _crawlLogChannel = null;
+      _crawlLogHeader = null;
+    }
+    for (SegmentLogFile segmentLog : _segmentLogs.values()) {
+      segmentLog._stream.close();
+    }
+    _segmentLogs.clear();
+  }
+
+  private static void writeFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer,position);
+    }
+  }
+
+  private static final class CustomByteArrayOutputStream extends ByteArrayOutputStream {
+    public CustomByteArrayOutputStream(int initialSize) {
+      super(initialSize);
+    }
+    public byte[] getBuffer() { return buf; }
+  }
+}
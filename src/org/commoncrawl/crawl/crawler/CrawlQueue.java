@@ -20,16 +20,14 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.TreeMap;
 
 import javax.servlet.jsp.JspWriter;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.EventLoop;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.common.Environment;
 import org.commoncrawl.crawl.statscollector.CrawlerStats;
@@ -52,10 +50,7 @@ import com.google.common.collect.ImmutableSet;
 public final class CrawlQueue {
 
     /** constants **/
-    private static final int SCHEDULER_QUEUE_INITIAL_SIZE = 10000;
-    
-    private static final int SCHEDULER_SCAN_INTERVAL = 1000;
-    
+    private static final int HOST_MAP_INITIAL_SIZE = 10000;
     
     private static final int IDLE_SCAN_INTERVAL = 30000;
        
@@ -73,29 +68,58 @@ public final class CrawlQueue {
     private Fetcher   _fetcher;
     private boolean _active = false;
     private Timer     _scheulderTimer = null;
-    private long      _lastIdleCheckTime = -1;
     private long      _purgedHostCount = 0;
 
     /** active host map **/
-    private TreeMap<Integer,CrawlQueueHost> _activeHosts    = new TreeMap<Integer,CrawlQueueHost>();
+    private IntObjectMap<CrawlQueueHost> _activeHosts    = new IntObjectMap<CrawlQueueHost>(HOST_MAP_INITIAL_SIZE);
     /** idle host map **/
-    private TreeMap<Integer,CrawlQueueHost> _idleHosts    = new TreeMap<Integer,CrawlQueueHost>();
+    private IntObjectMap<CrawlQueueHost> _idleHosts    = new IntObjectMap<CrawlQueueHost>(HOST_MAP_INITIAL_SIZE);
     
-    /** scheduled host priority queue **/
-    private PriorityQueue<CrawlQueueHost> _schedulerQueue = new PriorityQueue<CrawlQueueHost>(SCHEDULER_QUEUE_INITIAL_SIZE, 
-        
-        new Comparator<CrawlQueueHost>() {
+    /** per host wakeup timers, keyed by host ip **/
+    private IntObjectMap<HostWakeup> _hostWakeups = new IntObjectMap<HostWakeup>(HOST_MAP_INITIAL_SIZE);
+    /** number of hosts in a wait state **/
+    private int       _scheduledHostCount = 0;
+    /** true while wakeup timers are being armed (between startCrawl and stopCrawl) **/
+    private boolean   _schedulerRunning = false;
+    
+    /** 
+     * a host's wakeup timer. armed (at millisecond resolution) on the event loop 
+     * whenever the host enters a wait state, and clears the host's wait state when it fires 
+     **/
+    private final class HostWakeup implements Timer.Callback { 
+      
+      CrawlQueueHost _host;
+      Timer          _timer;
+      boolean        _waiting = false;
+      
+      HostWakeup(CrawlQueueHost host) { 
+        _host = host;
+        _timer = new Timer(0,false,this);
+      }
+      
+      /** arm the timer for the host's current wait time **/
+      void arm(EventLoop eventLoop,long currentTime) { 
+        if (_timer.isArmed()) { 
+          eventLoop.cancelTimer(_timer);
+        }
+        _timer.setDelay(Math.max(0,_host.getWaitTime() - currentTime));
+        eventLoop.setTimer(_timer);
+      }
+      
+      void disarm(EventLoop eventLoop) { 
+        if (_timer.isArmed()) { 
+          eventLoop.cancelTimer(_timer);
+        }
+      }
 
-          public int compare(CrawlQueueHost host1, CrawlQueueHost host2) {
-            if (host1.getWaitTime() < host2.getWaitTime()) { 
-              return -1;
-            }
-            else if (host1.getWaitTime() > host2.getWaitTime()) { 
-              return 1;
-            }
-            return 0;
-          } 
-        });
+      public void timerFired(Timer timer) {
+        if (_waiting) { 
+          _waiting = false;
+          _scheduledHostCount--;
+          _host.clearWaitState();
+        }
+      }
+    }
 
     public CrawlQueue(Protocol protocol,Fetcher fetcher) { 
       
@@ -105,49 +129,26 @@ public final class CrawlQueue {
 
     private void setScheduleTimer() { 
       
-      _scheulderTimer = new Timer(SCHEDULER_SCAN_INTERVAL,true,new Timer.Callback() {
+      EventLoop eventLoop = getEngine().getServer().getEventLoop();
+      
+      _schedulerRunning = true;
+      
+      // arm wakeups for hosts that entered a wait state while the scheduler was stopped ...
+      long currentTime = System.currentTimeMillis();
+      for (HostWakeup wakeup : _hostWakeups.values()) { 
+        if (wakeup._waiting) { 
+          wakeup.arm(eventLoop,currentTime);
+        }
+      }
+      
+      _scheulderTimer = new Timer(IDLE_SCAN_INTERVAL,true,new Timer.Callback() {
 
         public void timerFired(Timer timer) {
-          
-          // list of hosts that have cleared the wait state ... 
-          LinkedList<CrawlQueueHost> readyList = new LinkedList<CrawlQueueHost>();
-          
-          CrawlQueueHost  item = null;
-          
-          Long currentTime = System.currentTimeMillis();
-          
-          while ( (item = _schedulerQueue.peek()) != null) { 
-            
-            // check to see if this host's timer has expired ... 
-            if (currentTime >= item.getWaitTime()) {
-              
-              // remove from queue ... 
-              _schedulerQueue.remove();
-
-              // add to ready list ... 
-              readyList.add(item);
-            }
-            else { 
-              // break out of loop
-              break;
-            }
-          }
-          
-          // now walk ready list and clear the host's wait state 
-          for (CrawlQueueHost readyHost : readyList) { 
-            readyHost.clearWaitState();
-          }
-          
-          if (_lastIdleCheckTime == -1 || System.currentTimeMillis() - _lastIdleCheckTime >= IDLE_SCAN_INTERVAL) { 
-            
-            _lastIdleCheckTime = System.currentTimeMillis();
-            
-            // do idle scan ... 
-            purgeIdleHosts();
-          }
+          // do idle scan ... 
+          purgeIdleHosts();
         }
       });
-      getEngine().getServer().getEventLoop().setTimer(_scheulderTimer);
+      eventLoop.setTimer(_scheulderTimer);
       
     }
 
@@ -196,6 +197,13 @@ public final class CrawlQueue {
         host.purgeReferences();
         // and remove it from the map ... 
         _idleHosts.remove(host.getIPAddress());
+        // drop the host's wakeup, disarming it and releasing its scheduled slot ...
+        HostWakeup wakeup = _hostWakeups.get(host.getIPAddress());
+        if (wakeup != null && wakeup._host == host) {
+          killTimer(host);
+          wakeup.disarm(getEngine().getServer().getEventLoop());
+          _hostWakeups.remove(host.getIPAddress());
+        }
         // increment stats ... 
         ++_purgedHostCount;
       }
@@ -205,10 +213,16 @@ public final class CrawlQueue {
       
     }
     private void stopScheduleTimer() { 
+      EventLoop eventLoop = getEngine().getServer().getEventLoop();
       if (_scheulderTimer != null) { 
-        getEngine().getServer().getEventLoop().cancelTimer(_scheulderTimer);
+        eventLoop.cancelTimer(_scheulderTimer);
       }
       _scheulderTimer = null;
+      _schedulerRunning = false;
+      // hosts stay in their wait state, and are re-armed when the crawl is restarted 
+      for (HostWakeup wakeup : _hostWakeups.values()) { 
+        wakeup.disarm(eventLoop);
+      }
     }
     
     /** get access to the engine object **/
@@ -255,8 +269,9 @@ public final class CrawlQueue {
       
       if (!isRestart) { 
         // reschedule hosts ... 
-        for (CrawlQueueHost host: _activeHosts.values()) { 
-          if (!host.isIdled()) { 
+        for (int hostIP : _activeHosts.keys()) {
+          CrawlQueueHost host = _activeHosts.get(hostIP);
+          if (host != null && !host.isIdled()) { 
             host.feedQueue();
           }
         }
@@ -421,11 +436,30 @@ public final class CrawlQueue {
     }
     
     void setTimer(CrawlQueueHost host,long timeoutTime) { 
-      _schedulerQueue.add(host);
+      HostWakeup wakeup = _hostWakeups.get(host.getIPAddress());
+      if (wakeup == null || wakeup._host != host) {
+        if (wakeup != null) { 
+          killTimer(wakeup._host);
+        }
+        wakeup = new HostWakeup(host);
+        _hostWakeups.put(host.getIPAddress(),wakeup);
+      }
+      if (!wakeup._waiting) { 
+        wakeup._waiting = true;
+        _scheduledHostCount++;
+      }
+      if (_schedulerRunning) { 
+        wakeup.arm(getEngine().getServer().getEventLoop(),System.currentTimeMillis());
+      }
     }
     
     void killTimer(CrawlQueueHost host) { 
-      _schedulerQueue.remove(host);
+      HostWakeup wakeup = _hostWakeups.get(host.getIPAddress());
+      if (wakeup != null && wakeup._host == host && wakeup._waiting) { 
+        wakeup._waiting = false;
+        _scheduledHostCount--;
+        wakeup.disarm(getEngine().getServer().getEventLoop());
+      }
     }
 
     /** clear / reset queue **/
@@ -444,7 +478,12 @@ public final class CrawlQueue {
       getEngine().incDecActiveHostCount(-_activeHosts.size());
       
       _activeHosts.clear();
-      _schedulerQueue.clear();
+      
+      for (HostWakeup wakeup : _hostWakeups.values()) { 
+        wakeup.disarm(getEngine().getServer().getEventLoop());
+      }
+      _hostWakeups.clear();
+      _scheduledHostCount = 0;
     }
     
     void shutdown() { 
@@ -469,13 +508,13 @@ public final class CrawlQueue {
     void collectStats(CrawlerStats crawlerStats,RuntimeStatsCollector stats) { 
     
       stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ActiveHostsCount, _activeHosts.size());
-      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ScheduledHostsCount, _schedulerQueue.size());
+      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ScheduledHostsCount, _scheduledHostCount);
       stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_IdledHostsCount,_idleHosts.size());
       stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_PurgedHostsCount,_purgedHostCount);
 
       synchronized(crawlerStats) { 
         crawlerStats.setActiveHosts(_activeHosts.size());
-        crawlerStats.setScheduledHosts(_schedulerQueue.size());
+        crawlerStats.setScheduledHosts(_scheduledHostCount);
         crawlerStats.setIdledHosts(_idleHosts.size());
       }
         
@@ -611,6 +650,10 @@ public final class CrawlQueue {
     }
     
     public Set<Integer> getActiveHostIPs() {
-    	return ImmutableSet.copyOf(_activeHosts.keySet()); 
+    	ImmutableSet.Builder<Integer> builder = ImmutableSet.builder();
+    	for (int hostIP : _activeHosts.keys()) { 
+    	  builder.add(hostIP);
+    	}
+    	return builder.build(); 
     }
 }
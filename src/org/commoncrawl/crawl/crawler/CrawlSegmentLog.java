@@ -18,14 +18,14 @@ package org.commoncrawl.crawl.crawler;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,10 +33,13 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.record.Buffer;
 import org.commoncrawl.common.Environment;
 import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
+import org.commoncrawl.crawl.crawler.historyV2.BulkQueryCodec;
+import org.commoncrawl.crawl.crawler.historyV2.BulkQueryCodec.FingerprintList;
 import org.commoncrawl.protocol.BulkItemHistoryQuery;
 import org.commoncrawl.protocol.BulkItemHistoryQueryResponse;
 import org.commoncrawl.protocol.CrawlSegmentURLFP;
@@ -45,9 +48,9 @@ import org.commoncrawl.protocol.URLFPV2;
 import org.commoncrawl.rpc.base.internal.AsyncRequest;
 import org.commoncrawl.rpc.base.internal.AsyncRequest.Callback;
 import org.commoncrawl.rpc.base.internal.AsyncRequest.Status;
-import org.commoncrawl.util.internal.URLFPBloomFilter;
+import org.commoncrawl.rpc.base.shared.RPCException;
 import org.commoncrawl.util.internal.URLUtils;
-import org.commoncrawl.util.shared.BloomCalculations;
+import org.commoncrawl.util.shared.CCStringUtils;
 import org.commoncrawl.util.shared.ImmutableBuffer;
 import org.commoncrawl.util.shared.BitUtils.BitStream;
 import org.commoncrawl.util.shared.BitUtils.BitStreamReader;
@@ -65,46 +68,56 @@ public final class CrawlSegmentLog {
   public static final Log LOG = LogFactory.getLog(CrawlSegmentLog.class);
   
   
+  /** 
+   * the segment's fingerprints as an exact sorted set, with a crawled bit per item. item positions 
+   * (sort order) are what the history server query / response bitmap are aligned on. 
+   **/
   public static class CrawlSegmentFPMap { 
     public int _urlCount =0;
     public int _urlsComplete = 0;
-    private byte[] _urlfpBuffer = null;
-    private int    _urlfpBufferSize = 0;
-    private URLFPBloomFilter _validFingerprintsBloomFilter = null;
-    private URLFPBloomFilter _crawledItemsBloomFilter = null;
+    private SortedFingerprintSet _fingerprints = null;
     
     
     public void setURLFPBuffer(int segmentURLCount,byte[] data,int length)throws IOException {
-      _urlCount = segmentURLCount;
-      _urlfpBuffer = data;
-      _urlfpBufferSize = length;
-      // initialize the bloom filters 
-      _validFingerprintsBloomFilter = new URLFPBloomFilter(segmentURLCount*2, BloomCalculations.computeBestK(11), 11);
-      _crawledItemsBloomFilter      = new URLFPBloomFilter(segmentURLCount*2, BloomCalculations.computeBestK(11), 11);
-      // populate valid items filter ... 
-      DataInputBuffer inputBuffer = getURLFPAsStream();
-      URLFPV2 urlfp = new URLFPV2();
-      while (inputBuffer.available() != 0) { 
-        urlfp.setDomainHash(WritableUtils.readVLong(inputBuffer));
-        urlfp.setUrlHash(WritableUtils.readVLong(inputBuffer));
-        _validFingerprintsBloomFilter.add(urlfp);
+      FingerprintList list = BulkQueryCodec.decodeVLongPairs(data,0,length,segmentURLCount);
+      // sorts the list in place ... 
+      _fingerprints = SortedFingerprintSet.build(list.domainHashes,list.urlHashes,list.count);
+      _urlCount = _fingerprints.size();
+      if (_urlCount != segmentURLCount) { 
+        LOG.warn("### SYNC: Segment URLCount:" + segmentURLCount + " Distinct Fingerprints:" + _urlCount);
       }
     }
     
+    /** the fingerprint list as VLong (domainHash,urlHash) pairs, in sort order **/
     public DataInputBuffer getURLFPAsStream()throws IOException { 
-      if (_urlfpBuffer != null && _urlfpBufferSize != 0) { 
-        DataInputBuffer dataInputBuffer = new DataInputBuffer();
-        dataInputBuffer.reset(_urlfpBuffer, _urlfpBufferSize);
-        return dataInputBuffer;
-      }
-      else { 
-        throw new IOException("URLFPBuffer Not Initialized!");
-      }
+      Buffer buffer = getURLFPAsBuffer();
+      DataInputBuffer dataInputBuffer = new DataInputBuffer();
+      dataInputBuffer.reset(buffer.get(), buffer.getCount());
+      return dataInputBuffer;
     }
 
     public Buffer getURLFPAsBuffer()throws IOException { 
-      if (_urlfpBuffer != null && _urlfpBufferSize != 0) { 
-        return new Buffer(_urlfpBuffer,0, _urlfpBufferSize);
+      FingerprintList list = getURLFPList();
+      DataOutputBuffer outputBuffer = new DataOutputBuffer(list.count * 18);
+      for (int i=0;i<list.count;++i) { 
+        WritableUtils.writeVLong(outputBuffer,list.domainHashes[i]);
+        WritableUtils.writeVLong(outputBuffer,list.urlHashes[i]);
+      }
+      return new Buffer(outputBuffer.getData(),0,outputBuffer.getLength());
+    }
+
+    /** the fingerprint list in the (more compact, faster to decode) columnar query encoding **/
+    public Buffer getURLFPAsColumnarBuffer()throws IOException { 
+      return BulkQueryCodec.encodeColumnar(getURLFPList());
+    }
+
+    /** the decoded fingerprint list, in sort order (list index == item position) **/
+    public FingerprintList getURLFPList()throws IOException { 
+      if (_fingerprints != null && _fingerprints.size() != 0) { 
+        long domainHashes[] = new long[_fingerprints.size()];
+        long urlHashes[] = new long[_fingerprints.size()];
+        _fingerprints.copyTo(domainHashes,urlHashes);
+        return new FingerprintList(domainHashes,urlHashes,domainHashes.length);
       }
       else { 
         throw new IOException("URLFPBuffer Not Initialized!");
@@ -112,15 +125,33 @@ public final class CrawlSegmentLog {
     }
 
     public boolean wasCrawled(URLFPV2 urlfp) { 
-      return _crawledItemsBloomFilter.isPresent(urlfp);
+      int index = indexOf(urlfp);
+      return index != -1 && _fingerprints.isCrawled(index);
     }
     
     public void setCrawled(URLFPV2 urlfp) { 
-      _crawledItemsBloomFilter.add(urlfp);
+      int index = indexOf(urlfp);
+      if (index != -1) { 
+        _fingerprints.setCrawled(index);
+      }
     }
     
     public boolean isValidSegmentURL(URLFPV2 urlfp) { 
-      return _validFingerprintsBloomFilter.isPresent(urlfp);
+      return indexOf(urlfp) != -1;
+    }
+    
+    /** position of the fingerprint within the segment, or -1 if not part of the segment **/
+    int indexOf(URLFPV2 urlfp) { 
+      return (_fingerprints != null) ? _fingerprints.indexOf(urlfp.getDomainHash(),urlfp.getUrlHash()) : -1;
+    }
+    
+    SortedFingerprintSet getFingerprintSet() { 
+      return _fingerprints;
+    }
+    
+    /** approximate heap footprint of the fingerprint set **/
+    public long getSizeInBytes() { 
+      return (_fingerprints != null) ? _fingerprints.getSizeInBytes() : 0;
     }
   }
   
@@ -134,8 +165,7 @@ public final class CrawlSegmentLog {
   String           _nodeName;
   boolean          _segmentComplete;
   boolean          _urlCountValid;
-  
-  LinkedList<LogItemBuffer> _buffers = new LinkedList<LogItemBuffer>();
+  CrawlLogWriter   _logWriter;
   
   public CrawlSegmentLog(File rootDataDirectory,int listId,int segmentId,String nodeName) { 
     
@@ -208,61 +238,82 @@ public final class CrawlSegmentLog {
    return high;
   }
   
-  private static void updateFPMapFromBulkQueryResponse(CrawlSegmentFPMap segmentDetail,BulkItemHistoryQueryResponse queryResponse) throws IOException { 
+  /** number of fingerprints sent to the history server per bulk query **/
+  public static final int HISTORY_QUERY_CHUNK_SIZE = 1 << 18;
+  /** max bulk queries outstanding per segment **/
+  public static final int MAX_HISTORY_QUERIES_PER_SEGMENT = 4;
+  
+  /** apply a history server response to the items [offset,offset+count) of the segment's fingerprint list **/ 
+  private static void updateFPMapFromBulkQueryResponse(CrawlSegmentFPMap segmentDetail,FingerprintList fingerprints,int offset,int count,ImmutableBuffer responseList) throws IOException { 
     
-    BitStream bitStream = new BitStream(queryResponse.getResponseList().getReadOnlyBytes(),queryResponse.getResponseList().getCount()*8);
+    BitStream bitStream = new BitStream(responseList.getReadOnlyBytes(),responseList.getCount()*8);
     BitStreamReader reader = new BitStreamReader(bitStream);
     
     int updatedItemCount = 0;
-    int processedItemCount = 0;
-    
-    // ok walk entire urlfp stream (prepopulated from crawl segment)
-    DataInputBuffer inputBuffer = segmentDetail.getURLFPAsStream();
-    URLFPV2 urlfp = new URLFPV2();
-    
-    while (inputBuffer.available() != 0) {
-      
-      urlfp.setDomainHash(WritableUtils.readVLong(inputBuffer));
-      urlfp.setUrlHash(WritableUtils.readVLong(inputBuffer));
-      
-      processedItemCount++;
-    
-      // check to see what history server says about the item ... 
-      if (reader.getbit() == 1) {
-        // if it indicates this item was crawled, update the bloom filter ... 
-        segmentDetail.setCrawled(urlfp);
-        updatedItemCount++;
-        // and update urls complete ... 
-        segmentDetail._urlsComplete++;
-      }
-      else {
-        // otherwise, tricky, but check local bloom filter to see if it was crawled prior to checkpoint with history server 
-        if (segmentDetail.wasCrawled(urlfp)) { 
-          // if so, update urls complete 
+    SortedFingerprintSet fingerprintSet = segmentDetail.getFingerprintSet();
+    
+    // chunks are applied concurrently, the crawled bits and counts are shared
+    synchronized (segmentDetail) { 
+      // the query was built from the list in sort order, so list index == item position
+      for (int i=offset;i<offset + count;++i) { 
+        // check to see what history server says about the item ... 
+        if (reader.getbit() == 1) {
+          // if it indicates this item was crawled, mark it ... 
+          if (fingerprintSet.setCrawled(i)) { 
+            updatedItemCount++;
+          }
+          // and update urls complete ... 
           segmentDetail._urlsComplete++;
         }
+        else {
+          // otherwise, check to see if it was crawled locally prior to checkpoint with history server 
+          if (fingerprintSet.isCrawled(i)) { 
+            // if so, update urls complete 
+            segmentDetail._urlsComplete++;
+          }
+        }
       }
     }
     
-    // if (Environment.detailLogEnabled())
-      LOG.info("###SYNC: Reconciled FPMap with Query Response. " 
-          + " URLCount:" + segmentDetail._urlCount  
-          + " Complete:" + segmentDetail._urlsComplete
+    if (Environment.detailLogEnabled())
+      LOG.info("###SYNC: Reconciled FPMap Chunk with Query Response. " 
+          + " Offset:" + offset
+          + " Count:" + count  
           + " Items Changed:" + updatedItemCount);
   }
+  
+  /** sync the incoming segment against the local crawl log and then send it up to the history server (blocking) **/
+  public int syncToLog(CrawlSegmentFPMap segmentDetail) throws IOException { 
     
-  private static BulkItemHistoryQuery buildHistoryQueryBufferFromMap(CrawlSegmentFPMap segmentDetail) throws IOException { 
-    // create a bulk item query message ... 
-    BulkItemHistoryQuery query = new BulkItemHistoryQuery();
-    // get the entire urlfp stream from segmentFPMap and set it in the message 
-    query.setFingerprintList(segmentDetail.getURLFPAsBuffer());
+    int itemsProcessed = reconcileLocalLog(segmentDetail);
+    
+    if (itemsProcessed != -1 && segmentDetail != null) { 
+      final Semaphore semaphore = new Semaphore(0);
+      queryHistoryServer(segmentDetail, new Executor() {
+        public void execute(Runnable command) {
+          command.run();
+        } 
+      }, 
+      new HistorySyncCallback() {
+        public void syncComplete(CrawlSegmentLog log,CrawlSegmentFPMap segmentDetail) {
+          semaphore.release();
+        } 
+      });
+      LOG.info("###SYNC: Loader thread blocked waiting for bulk query response");
+      semaphore.acquireUninterruptibly();
+      LOG.info("###SYNC: Loader thread received response from history server");
+    }
+    finishSync(segmentDetail);
     
-    return query;
+    return itemsProcessed;
   }
-    
   
-  /** sync the incoming segment against the local crawl log and then send it up to the history server **/
-  public int syncToLog(CrawlSegmentFPMap segmentDetail) throws IOException { 
+  /** 
+   * first stage of a sync: reconcile the incoming segment against the local crawl log and check for
+   * a completion log in hdfs. returns the number of local log items processed, or -1 if the segment
+   * is already complete (in which case the history server need not be queried).  
+   */
+  public int reconcileLocalLog(CrawlSegmentFPMap segmentDetail) throws IOException { 
     if (Environment.detailLogEnabled())
       LOG.info("### SYNC: List:"+ _listId + " Segment:" + _segmentId +" Syncing Progress Log");
     
@@ -311,102 +362,116 @@ public final class CrawlSegmentLog {
       // remove all hosts from segment
       segmentDetail._urlsComplete = segmentDetail._urlCount;
     }
-    else {
+    return itemsProcessed;
+  }
+  
+  /** callback invoked once all history server responses for a segment have been applied **/
+  public interface HistorySyncCallback { 
+    public void syncComplete(CrawlSegmentLog log,CrawlSegmentFPMap segmentDetail);
+  }
+  
+  /**
+   * second stage of a sync: query the history server for the segment's fingerprints. The list is split 
+   * into HISTORY_QUERY_CHUNK_SIZE chunks, up to MAX_HISTORY_QUERIES_PER_SEGMENT of which are in flight at 
+   * once. Responses are applied to the map on applyExecutor (not on the rpc thread), and the callback fires 
+   * from there once the last chunk is in. A failed chunk is logged and leaves its items unchanged.
+   */
+  public void queryHistoryServer(final CrawlSegmentFPMap segmentDetail,final Executor applyExecutor,final HistorySyncCallback callback) throws IOException { 
+    
+    final FingerprintList fingerprints = (segmentDetail._urlCount != 0) ? segmentDetail.getURLFPList() : null;
+    
+    if (fingerprints == null || fingerprints.count == 0) { 
+      if (Environment.detailLogEnabled())
+        LOG.warn("### SYNC: No fingerprints found when processing segment detail for List:"+ _listId + " Segment:" + _segmentId);
+      segmentDetail._urlsComplete = segmentDetail._urlCount;
+      callback.syncComplete(this,segmentDetail);
+      return;
+    }
+    
+    final int chunkCount = (fingerprints.count + HISTORY_QUERY_CHUNK_SIZE - 1) / HISTORY_QUERY_CHUNK_SIZE;
+    final AtomicInteger nextChunk = new AtomicInteger(0);
+    final AtomicInteger pendingChunks = new AtomicInteger(chunkCount);
+    
+    if (Environment.detailLogEnabled())
+      LOG.info("### SYNC: Dispatching " + chunkCount + " BulkItem History Queries for List:"+ _listId + " Segment:" + _segmentId);
+    
+    final Runnable dispatcher = new Runnable() {
       
-      if (segmentDetail != null) { 
-        if (Environment.detailLogEnabled())
-          LOG.info("### SYNC: Building BulkItem History Query for List:"+ _listId + " Segment:" + _segmentId);
-        BulkItemHistoryQuery query = buildHistoryQueryBufferFromMap(segmentDetail);
+      public void run() {
+        final int chunk = nextChunk.getAndIncrement();
+        if (chunk >= chunkCount) 
+          return;
+        
+        final int offset = chunk * HISTORY_QUERY_CHUNK_SIZE;
+        final int count  = Math.min(HISTORY_QUERY_CHUNK_SIZE,fingerprints.count - offset);
+        final Runnable dispatchNext = this;
+        
+        BulkItemHistoryQuery query = new BulkItemHistoryQuery();
         
-        if (query != null) {
-          // create blocking semaphore ... 
-          final Semaphore semaphore = new Semaphore(1);
-          semaphore.acquireUninterruptibly();
-          if (Environment.detailLogEnabled())
-            LOG.info("### SYNC: Dispatching query to history server");
-          //create an outer response object we can pass aysnc response to ... 
-          final BulkItemHistoryQueryResponse outerResponse = new BulkItemHistoryQueryResponse();
+        try { 
+          // only send the columnar encoding if the history server is known to understand it 
+          if (CrawlerServer.getServer().useColumnarHistoryQueries()) { 
+            query.setFingerprintList(BulkQueryCodec.encodeColumnar(fingerprints,offset,count));
+            query.setEncoding(BulkItemHistoryQuery.Encoding.Columnar);
+          }
+          else { 
+            query.setFingerprintList(BulkQueryCodec.encodeVLongPairs(fingerprints,offset,count));
+            query.setEncoding(BulkItemHistoryQuery.Encoding.VLongPairs);
+          }
           
           CrawlerServer.getServer().getHistoryServiceStub().bulkItemQuery(query, new Callback<BulkItemHistoryQuery, BulkItemHistoryQueryResponse>() {
-
+  
             @Override
             public void requestComplete(final AsyncRequest<BulkItemHistoryQuery, BulkItemHistoryQueryResponse> request) {
-              // response returns in async thread context ... 
-              if (request.getStatus() == Status.Success) {
-                if (Environment.detailLogEnabled())
-                  LOG.info("###SYNC: bulk Query to history server succeeded. setting out resposne");
-                ImmutableBuffer buffer = request.getOutput().getResponseList();
-                outerResponse.setResponseList(new Buffer(buffer.getReadOnlyBytes(),0,buffer.getCount()));
-              }
-              else { 
-                LOG.error("###SYNC: bulk Query to history server failed.");
+              // response returns in async thread context ... move the work off of it  
+              final ImmutableBuffer responseList = (request.getStatus() == Status.Success) ? request.getOutput().getResponseList() : null;
+              
+              applyExecutor.execute(new Runnable() {
                 
-              }
-              // release semaphore
-              semaphore.release();
+                public void run() {
+                  try { 
+                    if (responseList == null || responseList.getCount() == 0) { 
+                      LOG.error("###SYNC: History Server Bulk Query Failed for List:" +  _listId + " Segment:" + _segmentId + " Chunk:" + chunk);
+                    }
+                    else { 
+                      // ok time to process the response and integrate the results into the fp list 
+                      updateFPMapFromBulkQueryResponse(segmentDetail,fingerprints,offset,count,responseList);
+                    }
+                  }
+                  catch (IOException e) { 
+                    LOG.error("###SYNC: Failed to apply Bulk Query Response for List:" +  _listId + " Segment:" + _segmentId + " Chunk:" + chunk + " Exception:" + CCStringUtils.stringifyException(e));
+                  }
+                  // keep the window full ... 
+                  dispatchNext.run();
+                  
+                  if (pendingChunks.decrementAndGet() == 0) { 
+                    LOG.info("###SYNC: Reconciled FPMap with History Server for List:" +  _listId + " Segment:" + _segmentId  
+                        + " URLCount:" + segmentDetail._urlCount  
+                        + " Complete:" + segmentDetail._urlsComplete);
+                    callback.syncComplete(CrawlSegmentLog.this,segmentDetail);
+                  }
+                } 
+              });
             }
           });
-          LOG.info("###SYNC: Loader thread blocked waiting for bulk query response");
-          semaphore.acquireUninterruptibly();
-          LOG.info("###SYNC: Loader thread received response from history server");
-          
-          if (outerResponse.getResponseList().getCount() == 0) { 
-            LOG.error("###SYNC: History Server Bulk Query Returned NULL!!! for List:" +  _listId + " Segment:" + _segmentId);
-          }
-          else { 
-            // ok time to process the response and integrate the results into the fp list 
-            updateFPMapFromBulkQueryResponse(segmentDetail,outerResponse);
-          }
-        }
-        else { 
-          if (Environment.detailLogEnabled())
-            LOG.warn("### SYNC: No fingerprints found when processing segment detail for List:"+ _listId + " Segment:" + _segmentId);
-          segmentDetail._urlsComplete = segmentDetail._urlCount;          
         }
-      }
-      /*
-      // and now walk hdfs looking for any checkpointed logs ...
-      // scan based on checkpoint filename ... 
-      FileStatus[] remoteCheckpointFiles = hdfs.globStatus(new Path(CrawlEnvironment.getCrawlSegmentDataDirectory() + "/" + getListId() + "/"
-          + getSegmentId() + "/" + CrawlEnvironment.buildCrawlSegmentLogCheckpointWildcardString(getNodeName())));
-      
-      if (remoteCheckpointFiles != null) {
-
-        LOG.info("### SYNC: List:"+ _listId + " Segment:" + _segmentId +" Found Remote Checkpoint Files");
-        
-        // create a temp file to hold the reconciled log ... 
-        File consolidatedLogFile = null;
-        
-        if (remoteCheckpointFiles.length > 1) { 
-          // create temp log file ... 
-          consolidatedLogFile = File.createTempFile("SegmentLog", Long.toString(System.currentTimeMillis()));
-          // write out header ... 
-          CrawlSegmentLog.writeHeader(consolidatedLogFile,0);
-        }
-        // walk the files 
-        for(FileStatus checkpointFilePath : remoteCheckpointFiles) {
-          // and reconcile them against segment ... 
-          itemsProcessed += reconcileLogFile(hdfs,checkpointFilePath.getPath(),getListId(),getSegmentId(),segmentDetail,consolidatedLogFile);
-          LOG.info("### SYNC: List:"+ _listId + " Segment:" + _segmentId +" Processed Checkpoint File:" + checkpointFilePath.getPath() + " Items Processed:" + itemsProcessed);          
-        }
-        
-        // finally ... if consolidatedLogFile is not null 
-        if (consolidatedLogFile != null) { 
-          // build a new hdfs file name ... 
-          Path consolidatedHDFSPath = new Path(CrawlEnvironment.getCrawlSegmentDataDirectory() + "/" + getListId() + "/" + getSegmentId() + "/" + CrawlEnvironment.buildCrawlSegmentLogCheckpointFileName(getNodeName(), System.currentTimeMillis()));
-          LOG.info("### SYNC: List:"+ _listId + " Segment:" + _segmentId +" Writing Consolidated Log File:" + consolidatedHDFSPath + " to HDFS");         
-          // and copy local file to log ... 
-          hdfs.copyFromLocalFile(new Path(consolidatedLogFile.getAbsolutePath()),consolidatedHDFSPath);
-          // and delete all previous log file entries ... 
-          for (FileStatus oldCheckPointFile : remoteCheckpointFiles) { 
-            hdfs.delete(oldCheckPointFile.getPath());
+        catch (RPCException e) { 
+          LOG.error("###SYNC: Failed to dispatch Bulk Query for List:" +  _listId + " Segment:" + _segmentId + " Chunk:" + chunk + " Exception:" + CCStringUtils.stringifyException(e));
+          dispatchNext.run();
+          if (pendingChunks.decrementAndGet() == 0) { 
+            callback.syncComplete(CrawlSegmentLog.this,segmentDetail);
           }
-          consolidatedLogFile.delete();
         }
       }
-      */
-    }
+    };
     
+    for (int i=0;i<Math.min(chunkCount,MAX_HISTORY_QUERIES_PER_SEGMENT);++i) { 
+      dispatcher.run();
+    }
+  }
+  
+  /** final stage of a sync: update remaining / completion state from the reconciled map **/
+  public synchronized void finishSync(CrawlSegmentFPMap segmentDetail) { 
     if (segmentDetail != null) { 
       _remainingURLS += (segmentDetail._urlCount - segmentDetail._urlsComplete);
       // mark url count as valid now ...
@@ -419,8 +484,6 @@ public final class CrawlSegmentLog {
     }
     if (Environment.detailLogEnabled())
       LOG.info("### SYNC: List:"+ _listId + " Segment:" + _segmentId +" Done Syncing Progress Log TotalURLS:" + segmentDetail._urlCount +" RemainingURLS:" + _remainingURLS + " LocalLogItemCount:" + _localLogItemCount);
-    
-    return itemsProcessed;
   }
   
   /** append a CrawlURL item to the log **/
@@ -432,7 +495,11 @@ public final class CrawlSegmentLog {
     item._itemFP = urlItem.getFingerprint();
     item._urlData = urlItem;
     
-    getAvailableBuffer().appendItem(item);
+    if (!_logWriter.append(_listId,_segmentId,item)) { 
+      // the writer's queue is full - the item was not logged, so leave it counted as 
+      // remaining. it will be fetched again when the segment is next loaded ... 
+      return;
+    }
     
     if ((item._urlData.getFlags() & CrawlURL.Flags.IsRobotsURL) == 0) { 
       // now check to see if item was redirected ... 
@@ -454,7 +521,7 @@ public final class CrawlSegmentLog {
             item._urlData = urlItem;
             item._writeToCrawLog = false;
             
-            getAvailableBuffer().appendItem(item);
+            _logWriter.append(_listId,_segmentId,item);
           }
                  
         }
@@ -478,15 +545,23 @@ public final class CrawlSegmentLog {
       checkpointPath.delete();
   }
   
-  /** checkpoint log file **/
+  /** set the writer completed items are appended to **/
+  void setLogWriter(CrawlLogWriter logWriter) { 
+    _logWriter = logWriter;
+  }
+  
+  /** capture the items that will be part of the next checkpoint. called when the 
+   * checkpoint barrier is queued, so all of these items precede it in the log writer **/
+  void prepareCheckpoint() { 
+    _checkpointItemCount = _localLogItemCount;
+  }
+  
+  /** checkpoint log file (the log writer must be suspended) **/
   public void checkpointLocalLog() throws IOException { 
     
     File activePath       = buildActivePath(_rootDataDir,_listId,getSegmentId());
     File checkpointPath   = buildCheckpointPath(_rootDataDir,_listId,getSegmentId());
     
-    // capture local log item count ... 
-    _checkpointItemCount = _localLogItemCount;
-    
     checkpointPath.delete();
     // rename active path to check point path ... 
     activePath.renameTo(checkpointPath);
@@ -590,24 +665,6 @@ public final class CrawlSegmentLog {
     return _segmentId;
   }
   
-  /** flush and add all pending buffers into the passed in list **/ 
-  public void flushLog(LinkedList<LogItemBuffer> collector) { 
-    for (LogItemBuffer buffer : _buffers) {
-      if (buffer.getItemCount() != 0 ) { 
-        collector.addLast(buffer);
-      }
-    }
-    _buffers.clear();
-    _buffers.addFirst(new LogItemBuffer(getListId(),getSegmentId()));
-  }
-  
-  private LogItemBuffer  getAvailableBuffer() { 
-    if (_buffers.isEmpty() || !_buffers.getFirst().spaceAvailable()) { 
-      _buffers.addFirst(new LogItemBuffer(getListId(),getSegmentId()));
-    }
-    return _buffers.getFirst();
-  }
-  
   static class LogItem implements Comparable<LogItem>  {
     
     public static final int ItemSize_Bytes = 20; // hostFP(long) + itemFP(long) + position(int)
@@ -654,67 +711,6 @@ public final class CrawlSegmentLog {
     public LogItem[] getItems() { return _itemsArray; }
     public int getItemCount() { return _itemCount; } 
     
-    public void appendItem(LogItem item) { 
-      if (_itemsArray ==null || _itemCount == _itemsArray.length) { 
-        throw new RuntimeException("Invalid call to append item");
-      }
-      _itemsArray[_itemCount++] = item;
-    }
-    
-    public boolean spaceAvailable() { 
-      return (_itemsArray != null && _itemCount < _itemsArray.length);
-    }
-    
-    public static interface CrawlURLWriter { 
-      
-      void writeItemCount(int entryCount) throws IOException ;
-      void writeItem(CrawlURL url) throws IOException ;
-    }
-    
-    public int flushToDisk(int startingItemPosition,CrawlURLWriter urlWriter,DataOutputStream segmentLogStream,DataOutputStream historyLog) throws IOException { 
-      
-      // write out entry count first ... 
-      urlWriter.writeItemCount(_itemCount);
-      for (int i=0;i<_itemCount;++i) { 
-        if (_itemsArray[i]._writeToCrawLog) { 
-          // write url data ...
-          urlWriter.writeItem(_itemsArray[i]._urlData);
-        }
-        CrawlURL urlObject = _itemsArray[i]._urlData; 
-        // if now crawl directives ... 
-        if ((urlObject.getFlags() & CrawlURL.Flags.InParseQueue) == 0) { 
-          if (segmentLogStream != null) { 
-            // and write out segment log info ...
-            segmentLogStream.writeLong(_itemsArray[i]._hostFP);
-            segmentLogStream.writeLong(_itemsArray[i]._itemFP);
-            segmentLogStream.writeInt(startingItemPosition + i);
-          }
-          if (historyLog != null) { 
-            URLFPV2 fp = URLUtils.getURLFPV2FromURL(urlObject.getUrl());
-            if (fp != null) { 
-              // write original url to history log ... 
-              fp.write(historyLog);
-            }
-            // if redirected ... 
-            if ((_itemsArray[i]._urlData.getFlags() & CrawlURL.Flags.IsRedirected) != 0) { 
-              // calc fingerprint for url ... 
-              fp = URLUtils.getURLFPV2FromURL(urlObject.getRedirectURL());
-              if (fp != null) { 
-                // write redirect fingerprint to history log ... 
-                fp.write(historyLog);
-              }
-            }
-          }
-        }
-        
-        _itemsArray[i]._urlData.clear();
-        _itemsArray[i]._urlData = null;
-        _itemsArray[i] = null;
-      }
-      
-      return _itemCount;
-    }
-    
     public void loadFromStream(byte[] readBuffer, int itemCount) { 
       _itemCount = itemCount;
       if (_itemsArray == null || _itemsArray.length < itemCount) { 
@@ -943,23 +939,33 @@ public final class CrawlSegmentLog {
     }
   }  
   
+  /** merge join the (sorted) log items against the segment's sorted fingerprint set **/
   public static int reconcileItemList(LogItemBuffer itemList,CrawlSegmentFPMap segment) { 
    
     int processedItemCount = 0;
-
-    URLFPV2 urlfp = new URLFPV2();
     
-    // and now walk segment and list consolidating segment as we go along ... 
-    for (int i=0;i<itemList.getItemCount();++i) {
-      
+    SortedFingerprintSet fingerprintSet = segment.getFingerprintSet();
+    if (fingerprintSet == null || fingerprintSet.size() == 0) { 
+      return 0;
+    }
+    
+    int itemCount = itemList.getItemCount();
+    long domainHashes[] = new long[itemCount];
+    long urlHashes[] = new long[itemCount];
+    for (int i=0;i<itemCount;++i) {
       LogItem item  = itemList.getItems()[i];
-      
-      urlfp.setDomainHash(item._hostFP);
-      urlfp.setUrlHash(item._itemFP);
-      
-      if (segment.isValidSegmentURL(urlfp)) { 
-        //update local bloom filter ... 
-        segment.setCrawled(urlfp); 
+      domainHashes[i] = item._hostFP;
+      urlHashes[i] = item._itemFP;
+    }
+    SortedFingerprintSet.sort(domainHashes,urlHashes,0,itemCount);
+    
+    // and now walk segment and list consolidating segment as we go along ... 
+    SortedFingerprintSet.Cursor cursor = fingerprintSet.cursor();
+    for (int i=0;i<itemCount;++i) {
+      int index = cursor.seek(domainHashes[i],urlHashes[i]);
+      if (index != -1) { 
+        // mark the item crawled ... 
+        fingerprintSet.setCrawled(index); 
         // increment processed item count 
         processedItemCount++;
       }
@@ -178,6 +178,39 @@ public final class CrawlTarget extends
     _sourceList = sourceList;
   }
 
+  /** reconstitute a target from its compact (CompactTargetQueue) encoding **/
+  CrawlTarget(CrawlList sourceList, int segmentId, long urlFP, String url,
+      long hostFP, int hostIPAddress, long hostIPTTL, byte retryCount,
+      byte redirectCount, byte flags, long lastModifiedTime, String etag,
+      String crawlDirectiveJSON) {
+    _sourceList = sourceList;
+    _segmentId = segmentId;
+    _urlFP = urlFP;
+    _url = url;
+    _hostFP = hostFP;
+    _hostIPAddress = hostIPAddress;
+    _hostIPTTL = hostIPTTL;
+    _retryCount = retryCount;
+    _redirectCount = redirectCount;
+    _flags = flags;
+    _lastModifiedTime = lastModifiedTime;
+    _etag = etag;
+    _crawlDirectiveJSON = crawlDirectiveJSON;
+  }
+
+  /**
+   * can this target be held in compact form while queued, i.e. does it carry
+   * nothing beyond what the compact encoding captures (no completion callback,
+   * redirect, request state or assigned crawl interface)
+   */
+  boolean isCompactable() {
+    return _callback == null && _redirectURL == null
+        && (_flags & CrawlURL.Flags.IsRedirected) == 0
+        && _originalRequestData == null && _activeRequestHeaders == null
+        && _activeRequestResultCode == 0 && _crawlInterface == -1
+        && _url != null;
+  }
+
   public static CrawlTarget createTestCrawlTarget(CrawlList domain, String url) {
     CrawlTarget target = new CrawlTarget(domain);
 
@@ -265,6 +298,10 @@ public final class CrawlTarget extends
 
   /** get cookie store associated with this target **/
   public CookieStore getCookieStore() {
+    // targets fetched outside of a list (e.g. by benchmarks) have no host
+    if (_sourceList == null) {
+      return null;
+    }
     CrawlListHost host = getCrawlHost();
     if (host != null) {
       return host.getCookieStore();
@@ -317,6 +354,11 @@ public final class CrawlTarget extends
     return _etag;
   }
 
+  /** get the crawl directive (json) for this url (if set) **/
+  String getCrawlDirectiveJSON() {
+    return _crawlDirectiveJSON;
+  }
+
   /**
    * get the url fingerprint for this crawl target
    * 
@@ -33,10 +33,10 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
-import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -56,8 +56,8 @@ import org.apache.log4j.Layout;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.nutch.util.SuffixStringMatcher;
 import org.commoncrawl.async.Callback;
-import org.commoncrawl.async.ConcurrentTask;
 import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.async.EventLoopGroup;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.async.ConcurrentTask.CompletionCallback;
 import org.commoncrawl.common.Environment;
@@ -81,7 +81,6 @@ import org.commoncrawl.io.internal.NIODNSResolver;
 import org.commoncrawl.io.internal.NIOHttpConnection;
 import org.commoncrawl.io.shared.NIOHttpHeaders;
 import org.commoncrawl.protocol.CrawlSegment;
-import org.commoncrawl.protocol.CrawlSegmentDetail;
 import org.commoncrawl.protocol.CrawlSegmentHost;
 import org.commoncrawl.protocol.CrawlSegmentStatus;
 import org.commoncrawl.protocol.CrawlSegmentURL;
@@ -188,7 +187,7 @@ public final class CrawlerEngine  {
   long  _totalProcessedURLCount = 0;
   long  _failedURLCount = 0;
   long  _successURLCount = 0;
-  long  _loadCount = 0;
+  AtomicLong  _loadCount = new AtomicLong();
 
   /** queue stats **/
   int  _pendingCount = 0;
@@ -201,6 +200,27 @@ public final class CrawlerEngine  {
   int   _activeLoadCount = 0;
   int   _segmentScanPending = 0;
 
+  /** 
+   * segment load pipeline: fp load -> local log reconcile -> history server sync -> host distribution.
+   * several segments are in flight at once, each stage with its own bounded concurrency. 
+   **/
+  static final int MAX_CONCURRENT_SEGMENT_LOADS = 4;
+  static final int SEGMENT_FP_LOAD_THREADS = 2;
+  static final int SEGMENT_RECONCILE_THREADS = 2;
+  static final int MAX_SEGMENT_HISTORY_SYNCS = 2;
+  static final int SEGMENT_DISTRIBUTION_THREADS = 2;
+  /** stage thread pools **/
+  Executor _segmentFPLoadPool = null;
+  Executor _segmentReconcilePool = null;
+  Executor _segmentDistributionPool = null;
+  /** segments waiting on the history sync stage (event loop thread only) **/
+  LinkedList<Runnable> _pendingHistorySyncs = new LinkedList<Runnable>();
+  int   _activeHistorySyncs = 0;
+  
+  /** loader stalls when the disk queue exceeds the stall threshold, until it drains to the resume threshold **/
+  static final int LOADER_DISK_QUEUE_STALL_THRESHOLD = 10000;
+  static final int LOADER_DISK_QUEUE_RESUME_THRESHOLD = 1000;
+
   /** crawl active flag **/
   boolean _crawlActive = false;
   /** crawl was stopped **/
@@ -211,6 +231,10 @@ public final class CrawlerEngine  {
 
   /** local crawl history bloom filter **/
   URLFPBloomFilter _localBloomFilter;
+  
+  /** fetch event loops (if fetch i/o is partitioned across multiple loops) **/
+  EventLoopGroup _fetchLoopGroup = null;
+  private static final int FETCH_LOOP_RESOLVER_THREADS = 4;
 
   ReentrantLock _loaderStalledLock = new ReentrantLock();
   Condition        _loaderStalledCondition = _loaderStalledLock.newCondition();
@@ -249,15 +273,11 @@ public final class CrawlerEngine  {
 
 
 
-  /** DNS Resolver Thread Pool **/
-  private int             _hostQueuedForResolution = 0;
+  /** host resolution stage **/
+  private DNSResolutionQueue _dnsQueue;
   private int             _urlsPendingResolution  = 0;
   private int             _dnsHighWaterMark;
-  private int             _dnsLowWaterMark;
-  private boolean         _highWaterMarkHit = false;
   private long            _cycleTime = -1;
-  private LinkedList<CrawlSegmentDetail> _dnsDeferedSegments = new LinkedList<CrawlSegmentDetail>();
-  private LinkedList<CrawlSegmentHost>  _dnsDeferedHosts  = new LinkedList<CrawlSegmentHost>();
 
   /** Various Lists **/
   private static SuffixStringMatcher _blackListedHostsMatcher;
@@ -273,8 +293,9 @@ public final class CrawlerEngine  {
   public CrawlerEngine(CrawlerServer server,int maxSockets,int dnsHighWaterMark,int dnsLowWaterMark,long cycleTime, int activeListId) { 
     _maxTCPSockets = maxSockets;
     _server = server;
+    // the high water mark bounds the number of resolutions in flight (the resolution queue needs no low water mark) 
     _dnsHighWaterMark = dnsHighWaterMark;
-    _dnsLowWaterMark = dnsLowWaterMark;
+    _dnsQueue = new DNSResolutionQueue(this,_dnsHighWaterMark);
     _cycleTime = cycleTime;
     _activeListId = activeListId;
   }
@@ -384,7 +405,16 @@ public final class CrawlerEngine  {
       LOG.info("Starting CrawlDomain Disk Queueing Thread");
       CrawlList.startDiskQueueingThread(this.getEventLoop(),getServer().getDomainQueueDir());
       LOG.info("Initialize HTTP Crawl Queue");
-      HttpFetcher fetcher = new HttpFetcher(_maxTCPSockets,crawlInterfaceList,getServer().getHostName());
+      Fetcher fetcher = null;
+      if (getServer().getFetchLoopCount() > 1) { 
+        LOG.info("Starting Fetch EventLoopGroup with:" + getServer().getFetchLoopCount() + " loops");
+        _fetchLoopGroup = new EventLoopGroup(getServer().getFetchLoopCount(),FETCH_LOOP_RESOLVER_THREADS);
+        _fetchLoopGroup.start();
+        fetcher = new PartitionedHttpFetcher(_maxTCPSockets,crawlInterfaceList,getServer().getHostName(),_fetchLoopGroup,getEventLoop());
+      }
+      else { 
+        fetcher = new HttpFetcher(_maxTCPSockets,crawlInterfaceList,getServer().getHostName());
+      }
       _httpCrawlQueue = new CrawlQueue(CrawlQueue.Protocol.HTTP,fetcher);
 
       //if we are running in unit test mode ... 
@@ -543,6 +573,11 @@ public final class CrawlerEngine  {
     // clear crawl queue 
     _httpCrawlQueue.shutdown();
     _httpCrawlQueue = null;
+    
+    if (_fetchLoopGroup != null) { 
+      _fetchLoopGroup.stop();
+      _fetchLoopGroup = null;
+    }
 
     System.gc();
 
@@ -566,8 +601,8 @@ public final class CrawlerEngine  {
       }
     }
     LOG.info("load count / resolution count went to zero!");
-    _dnsDeferedSegments.clear();
-    _dnsDeferedHosts.clear();
+    _dnsQueue.shutdown();
+    _dnsQueue = new DNSResolutionQueue(this,_dnsHighWaterMark);
 
     // null out crawl log 
     _crawlLog = null;
@@ -641,7 +676,7 @@ public final class CrawlerEngine  {
         synchronized(_stats) {
 
           //async stats ... 
-          //getServer().getEventLoop().collectStats(_stats);
+          getServer().getEventLoop().collectStats(_stats);
 
           // engine stats ...
           synchronized(this) { 
@@ -669,6 +704,13 @@ public final class CrawlerEngine  {
             _stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_DeferredLoadCount,_segmentLoadQueue.size());
             _stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_PendingCount,_pendingCount);
             _stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlerEngine_QueuedCount,_queuedCount);
+            // disk queue stats ...
+            CrawlList.collectDiskQueueStats(_stats);
+            // robots cache stats ...
+            RobotRulesCache.getSingleton().collectStats(_stats);
+            // dns cache / resolution queue stats ...
+            DNSResultCache.getSingleton().collectStats(_stats);
+            _dnsQueue.collectStats(_stats);
 
 
             // resolver stats ... 
@@ -699,8 +741,8 @@ public final class CrawlerEngine  {
             synchronized(_crawlerStats) { 
               _crawlerStats.setUrlsInFetcherQueue(_pendingCount);
               _crawlerStats.setUrlsInLoaderQueue(_queuedCount);
-              _crawlerStats.setActiveDNSRequests(_hostQueuedForResolution);
-              _crawlerStats.setQueuedDNSRequests(_dnsDeferedHosts.size());
+              _crawlerStats.setActiveDNSRequests(_dnsQueue.getInFlightCount());
+              _crawlerStats.setQueuedDNSRequests(_dnsQueue.getQueuedCount());
               _crawlerStats.setCrawlerMemoryUsedRatio(JVMStats.getHeapUtilizationRatio());
             }
 
@@ -887,7 +929,7 @@ public final class CrawlerEngine  {
         if (_loaderStalledEvent != null) { 
           // trigger event ... thus releasing loader thread (to continue loading the active segment)...
           LOG.info("### LOADER Event Thread Signalling Stall Event (activeHosts < MaxActiveThreshold)");
-          _loaderStalledEvent.signal();
+          _loaderStalledEvent.signalAll();
           // clear the event ... 
           _loaderStalledEvent = null;
         }
@@ -933,14 +975,14 @@ public final class CrawlerEngine  {
         if (activeCount >= getMaxActiveThreshold()) { 
           LOG.info("### LOADER Loader Event Set but will not trigger because Active URL Count: " + activeCount + " >= " + getMaxActiveThreshold());
         }
-        else if (_activeLoadCount != 1) { 
-          LOG.info("### LOADER Event Set but will not trigger because Load Count: " + _activeLoadCount + " != 1");
+        else if (_activeLoadCount == 0) { 
+          LOG.info("### LOADER Event Set but will not trigger because Load Count: " + _activeLoadCount + " == 0");
         }
       }
     }
 
     // if the loader is waiting on the queue and active url count is less than threshold ...
-    if (_activeLoadCount == 1 && loaderStalled && activeCount < getMaxActiveThreshold()) {
+    if (_activeLoadCount != 0 && loaderStalled && activeCount < getMaxActiveThreshold()) {
       LOG.info("### LOADER Event Thread Acquiring Lock to Loader");
       // grab loader lock 
       _loaderStalledLock.lock();
@@ -951,7 +993,7 @@ public final class CrawlerEngine  {
       if (_loaderStalledEvent != null) { 
         // trigger event ... thus releasing loader thread (to continue loading the active segment)...
         LOG.info("### LOADER Event Thread Signalling Stall Event (activeCount < MaxActiveThreshold)");
-        _loaderStalledEvent.signal();
+        _loaderStalledEvent.signalAll();
         // clear the event ... 
         _loaderStalledEvent = null;
       }
@@ -1153,10 +1195,18 @@ public final class CrawlerEngine  {
           return true;
         }
 
+        // warm the dns cache while this host waits out any loader stall below 
+        if (!host.isFieldDirty(CrawlSegmentHost.Field_IPADDRESS) && originalURLCount != completedURLCount) { 
+          String hostName = extractHostNameFromCrawlSegmentHost(host);
+          if (hostName != null) { 
+            _dnsQueue.prefetch(hostName);
+          }
+        }
+
         final int availableCount = originalURLCount - completedURLCount;
 
         // increment a separate load count (how many urls have been loaded to date)
-        _loadCount += availableCount;
+        _loadCount.addAndGet(availableCount);
 
         // check memory utilization ... if it has reached target threshold..
         if (!_shutdownFlag && JVMStats.getHeapUtilizationRatio() >= DEFAULT_LOADER_STALL_MEMORY_UTILIZATION_RATIO || (getPendingURLCount() + availableCount) > MAX_PENDING_URLS) {
@@ -1189,17 +1239,10 @@ public final class CrawlerEngine  {
 
         int pendingDiskOperationCount = CrawlList.getPendingDiskOperationCount();
 
-        if (!_shutdownFlag && pendingDiskOperationCount > 10000) { 
-          do {
-            LOG.info("### LOADER Disk Queue: Waiting for pendingDiskOperationCount to drop below threshold - " + pendingDiskOperationCount);
-            try {
-              Thread.sleep(1);
-            } catch (InterruptedException e) {
-              e.printStackTrace();
-            }
-            pendingDiskOperationCount = CrawlList.getPendingDiskOperationCount();
-          }
-          while (pendingDiskOperationCount != 0 && !_shutdownFlag);
+        if (!_shutdownFlag && pendingDiskOperationCount > LOADER_DISK_QUEUE_STALL_THRESHOLD) { 
+          LOG.info("### LOADER Disk Queue: Waiting for pendingDiskOperationCount to drop below threshold - " + pendingDiskOperationCount);
+          // woken by the disk threads as the queue drains (no polling) 
+          while (!_shutdownFlag && !CrawlList.waitForPendingDiskOperations(LOADER_DISK_QUEUE_RESUME_THRESHOLD, 5000));
 
           LOG.info("### LOADER Disk Queue: pendingDiskOperationCount drop below threshold .. continuing load ... ");
         }
@@ -1222,9 +1265,10 @@ public final class CrawlerEngine  {
 
               LOG.info("## LOADER Stalling on MaxURLS. Waiting on Event...");
 
-              // and release lock and wait for the condition to be set ... 
+              // and release lock and wait for the condition to be set (or re-check periodically, 
+              // another loader thread may have consumed the event) ... 
               try {
-                while (!_shutdownFlag && _loaderStalledEvent.await(5000, TimeUnit.MILLISECONDS) == false);
+                _loaderStalledCondition.await(5000, TimeUnit.MILLISECONDS);
               } catch (InterruptedException e) {
 
               } 
@@ -1249,18 +1293,20 @@ public final class CrawlerEngine  {
 
           try { 
 
-            // set the stall event ... 
-            _loaderStalledEvent = _loaderStalledCondition;
-            _loaderStallReason  = LoaderStallReason.ActiveHostCount;
-
-            LOG.info("## LOADER Stalling on MaxActiveHosts. Waiting on Event...");
-
-            // and release lock and wait for the condition to be set ... 
-            try {
-              while (!_shutdownFlag && _loaderStalledEvent.await(5000, TimeUnit.MILLISECONDS) == false);
-            } catch (InterruptedException e) {
-
-            } 
+            while (!_shutdownFlag && getActiveHosts() >=  getMaxActiveHostsThreshold()) { 
+              // set the stall event ... 
+              _loaderStalledEvent = _loaderStalledCondition;
+              _loaderStallReason  = LoaderStallReason.ActiveHostCount;
+  
+              LOG.info("## LOADER Stalling on MaxActiveHosts. Waiting on Event...");
+  
+              // and release lock and wait for the condition to be set (or re-check periodically) ... 
+              try {
+                _loaderStalledCondition.await(5000, TimeUnit.MILLISECONDS);
+              } catch (InterruptedException e) {
+  
+              } 
+            }
             LOG.info("## LOADER Woke Up from Sleep - Continuing Load ...");
           }
           finally {
@@ -1411,17 +1457,20 @@ public final class CrawlerEngine  {
       }
 
 
-      getServer().getDefaultThreadPool().execute(new ConcurrentTask<CrawlSegmentStatus>(getServer().getEventLoop(), 
+      final CompletionCallback<CrawlSegmentStatus> completionCallback = createCompletionCallback(crawlSegment,status);
 
-          new Callable<CrawlSegmentStatus>(){
+      if (_segmentFPLoadPool == null) { 
+        _segmentFPLoadPool = getServer().registerThreadPool("segmentFPLoad", SEGMENT_FP_LOAD_THREADS);
+        _segmentReconcilePool = getServer().registerThreadPool("segmentReconcile", SEGMENT_RECONCILE_THREADS);
+        _segmentDistributionPool = getServer().registerThreadPool("segmentDistribution", SEGMENT_DISTRIBUTION_THREADS);
+      }
 
-        public CrawlSegmentStatus call() throws Exception {
+      // stage 1: load work unit fingerprint detail ... 
+      _segmentFPLoadPool.execute(new Runnable() {
 
+        public void run() {
           try { 
-
-
             LOG.info("### SYNC:Loading SegmentFPInfo for List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId());
-            // load work unit fingerprint detail  ...
             final CrawlSegmentFPMap urlFPMap = SegmentLoader.loadCrawlSegmentFPInfo(crawlSegment.getListId(),crawlSegment.getSegmentId(),CrawlerEngine.this.getServer().getHostName(),
                 new SegmentLoader.CancelOperationCallback() {
 
@@ -1433,110 +1482,189 @@ public final class CrawlerEngine  {
 
             if (_shutdownFlag) { 
               LOG.info("### SYNC:EXITING LOAD OF List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId());
-              return new CrawlSegmentStatus();
+              completeSegmentLoad(completionCallback,status,null);
+              return;
             }
+            // on to the reconcile stage ... 
+            _segmentReconcilePool.execute(new Runnable() {
+              public void run() {
+                reconcileSegment(crawlSegment,status,segmentLogObj,urlFPMap,completionCallback);
+              } 
+            });
+          }
+          catch (Exception e) { 
+            LOG.error(StringUtils.stringifyException(e));
+            completeSegmentLoad(completionCallback,status,e);
+          }
+        } 
+      });
+    }
+    else { 
+      getServer().loadExternalCrawlSegment(crawlSegment,createLoadProgressCallback(status),createCompletionCallback(crawlSegment, status),status);
+    }
+    return status;
+  }	
 
-            if (getServer().enableCrawlLog()) { 
-              LOG.info("### SYNC: Syncing Log to SegmentFPInfo for List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId());
-              // re-sync log to segment ... 
-              segmentLogObj.syncToLog(urlFPMap);
-            }
-
-            LOG.info("### SYNC: Sync for List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId() + " Returned:" + urlFPMap._urlCount + " Total URLS and " + urlFPMap._urlsComplete + " CompleteURLS");
-
-            if (!_shutdownFlag) { 
-              // now activate the segment log ... 
-              final Semaphore segActiveSemaphore = new Semaphore(0);
-
+  /** run the given runnable in the context of the event loop thread **/
+  private void runOnEventLoop(final Runnable runnable) { 
+    _server.getEventLoop().setTimer(new Timer(0,false,new Timer.Callback() {
 
-              // check for completion here ... 
-              if (urlFPMap._urlCount == urlFPMap._urlsComplete && !_shutdownFlag) { 
-                LOG.info("### SYNC: For List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId() +" indicates Completed Segment.");
+      public void timerFired(Timer timer) {
+        runnable.run();
+      } 
+    }));
+  }
 
-                _server.getEventLoop().setTimer(new Timer(1,false,new Timer.Callback() {
+  /** complete (or fail) a segment load, in the context of the event loop thread **/
+  private void completeSegmentLoad(final CompletionCallback<CrawlSegmentStatus> completionCallback,final CrawlSegmentStatus status,final Exception e) { 
+    runOnEventLoop(new Runnable() {
+      public void run() {
+        if (e == null)
+          completionCallback.taskComplete(status);
+        else 
+          completionCallback.taskFailed(e);
+      } 
+    });
+  }
 
-                  public void timerFired(Timer timer) {
-                    LOG.info("### SYNC: For List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId() +" setting Status to CompletedCompleted Segment.");
+  /** stage 2: reconcile the segment against the local crawl log (reconcile thread) **/
+  private void reconcileSegment(final CrawlSegment crawlSegment,final CrawlSegmentStatus status,final CrawlSegmentLog segmentLogObj,final CrawlSegmentFPMap urlFPMap,final CompletionCallback<CrawlSegmentStatus> completionCallback) { 
+    try { 
+      if (!getServer().enableCrawlLog() || _shutdownFlag) { 
+        activateLoadedSegment(crawlSegment, status, segmentLogObj, urlFPMap, completionCallback);
+        return;
+      }
+      
+      LOG.info("### SYNC: Syncing Log to SegmentFPInfo for List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId());
+      if (segmentLogObj.reconcileLocalLog(urlFPMap) == -1) { 
+        // segment already complete, no need to consult the history server 
+        segmentLogObj.finishSync(urlFPMap);
+        activateLoadedSegment(crawlSegment, status, segmentLogObj, urlFPMap, completionCallback);
+        return;
+      }
+      
+      // stage 3: sync against the history server (bounded number of segments in this stage at once)
+      final Runnable historySync = new Runnable() {
 
-                    if (!_shutdownFlag) { 
-                      // update segment status ... 
-                      status.setUrlCount(urlFPMap._urlCount);
-                      status.setUrlsComplete(urlFPMap._urlCount);
-                      // update crawl status  
-                      status.setCrawlStatus(CrawlSegmentStatus.CrawlStatus.CRAWL_COMPLETE);
-                      status.setIsComplete(true);
-                      // set dirty flag for segment 
-                      status.setIsDirty(true);
-                    }                      
-                    // and release semaphore ... 
-                    segActiveSemaphore.release();
+        public void run() {
+          try { 
+            segmentLogObj.queryHistoryServer(urlFPMap, _segmentReconcilePool,
+                new CrawlSegmentLog.HistorySyncCallback() {
 
+                  public void syncComplete(CrawlSegmentLog log,CrawlSegmentFPMap segmentDetail) {
+                    segmentLogObj.finishSync(urlFPMap);
+                    historySyncComplete();
+                    activateLoadedSegment(crawlSegment, status, segmentLogObj, urlFPMap, completionCallback);
                   } 
+            });
+          }
+          catch (Exception e) {
+            LOG.error(StringUtils.stringifyException(e));
+            historySyncComplete();
+            completeSegmentLoad(completionCallback,status,e);
+          }
+        } 
+      };
+      
+      runOnEventLoop(new Runnable() {
+        public void run() {
+          _pendingHistorySyncs.add(historySync);
+          startHistorySyncs();
+        } 
+      });
+    }
+    catch (Exception e) { 
+      LOG.error(StringUtils.stringifyException(e));
+      completeSegmentLoad(completionCallback,status,e);
+    }
+  }
 
-                }));
-              }
-              else { 
-
-                _server.getEventLoop().setTimer(new Timer(1,false,new Timer.Callback() {
-
-                  public void timerFired(Timer timer) {
-                    if (!_shutdownFlag) { 
-                      if (getServer().enableCrawlLog()) { 
-                        //back in primary thread context, so go ahead and SAFELY re-activate the segment log ... 
-                        activateSegmentLog(segmentLogObj);
-                      }
-                    }
-                    // and release semaphore ... 
-                    segActiveSemaphore.release();
-                  } 
+  /** start queued history syncs, up to MAX_SEGMENT_HISTORY_SYNCS (event loop thread) **/
+  private void startHistorySyncs() { 
+    while (_activeHistorySyncs < MAX_SEGMENT_HISTORY_SYNCS && _pendingHistorySyncs.size() != 0) { 
+      _activeHistorySyncs++;
+      _segmentReconcilePool.execute(_pendingHistorySyncs.removeFirst());
+    }
+  }
 
-                }));
-              }
-              // wait for segment activation ... 
-              segActiveSemaphore.acquireUninterruptibly();  
-            }
+  /** release a history sync slot (any thread) **/
+  private void historySyncComplete() { 
+    runOnEventLoop(new Runnable() {
+      public void run() {
+        _activeHistorySyncs--;
+        startHistorySyncs();
+      } 
+    });
+  }
 
-            // now if complete return immediately 
-            if (urlFPMap._urlCount != urlFPMap._urlsComplete && !_shutdownFlag) {
+  /** stage 4: activate the segment log and stream the segment's hosts out for distribution **/
+  private void activateLoadedSegment(final CrawlSegment crawlSegment,final CrawlSegmentStatus status,final CrawlSegmentLog segmentLogObj,final CrawlSegmentFPMap urlFPMap,final CompletionCallback<CrawlSegmentStatus> completionCallback) { 
 
+    LOG.info("### SYNC: Sync for List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId() + " Returned:" + urlFPMap._urlCount + " Total URLS and " + urlFPMap._urlsComplete + " CompleteURLS");
 
-              LOG.info("### LOADER Loading CrawlSegment Detail for Segment:" + crawlSegment.getSegmentId());
+    runOnEventLoop(new Runnable() {
 
-              SegmentLoader.loadCrawlSegment(
-                  crawlSegment.getListId(),
-                  crawlSegment.getSegmentId(),
-                  CrawlerEngine.this.getServer().getHostName(),
-                  urlFPMap,
-                  null,
-                  createLoadProgressCallback(status),
-                  new SegmentLoader.CancelOperationCallback() {
+      public void run() {
+        if (_shutdownFlag) { 
+          completionCallback.taskComplete(status);
+          return;
+        }
 
-                    @Override
-                    public boolean cancelOperation() {
-                      return _shutdownFlag;
-                    }
-                  }
-                  );
-            }
+        // check for completion here ... 
+        if (urlFPMap._urlCount == urlFPMap._urlsComplete) { 
+          LOG.info("### SYNC: For List:" + crawlSegment.getListId() + " Segment:" + crawlSegment.getSegmentId() +" indicates Completed Segment.");
+          // update segment status ... 
+          status.setUrlCount(urlFPMap._urlCount);
+          status.setUrlsComplete(urlFPMap._urlCount);
+          // update crawl status  
+          status.setCrawlStatus(CrawlSegmentStatus.CrawlStatus.CRAWL_COMPLETE);
+          status.setIsComplete(true);
+          // set dirty flag for segment 
+          status.setIsDirty(true);
 
-          }
-          catch (Exception e) { 
-            LOG.error(StringUtils.stringifyException(e));
-            throw e;
+          completionCallback.taskComplete(status);
+        }
+        else { 
+          if (getServer().enableCrawlLog()) { 
+            //back in primary thread context, so go ahead and SAFELY re-activate the segment log ... 
+            activateSegmentLog(segmentLogObj);
           }
 
-          return status;
-        } 
-      },
-      createCompletionCallback(crawlSegment,status)          
-          ) 
-          );
-    }
-    else { 
-      getServer().loadExternalCrawlSegment(crawlSegment,createLoadProgressCallback(status),createCompletionCallback(crawlSegment, status),status);
-    }
-    return status;
-  }	
+          _segmentDistributionPool.execute(new Runnable() {
+
+            public void run() {
+              try { 
+                if (!_shutdownFlag) { 
+                  LOG.info("### LOADER Loading CrawlSegment Detail for Segment:" + crawlSegment.getSegmentId());
+
+                  SegmentLoader.loadCrawlSegment(
+                      crawlSegment.getListId(),
+                      crawlSegment.getSegmentId(),
+                      CrawlerEngine.this.getServer().getHostName(),
+                      urlFPMap,
+                      null,
+                      createLoadProgressCallback(status),
+                      new SegmentLoader.CancelOperationCallback() {
+
+                        @Override
+                        public boolean cancelOperation() {
+                          return _shutdownFlag;
+                        }
+                      }
+                  );
+                }
+                completeSegmentLoad(completionCallback,status,null);
+              }
+              catch (Exception e) { 
+                LOG.error(StringUtils.stringifyException(e));
+                completeSegmentLoad(completionCallback,status,e);
+              }
+            } 
+          });
+        }
+      } 
+    });
+  }
 
   /** active the specified segment log **/
   private void activateSegmentLog(CrawlSegmentLog log) {
@@ -1597,136 +1725,31 @@ public final class CrawlerEngine  {
     // otherwise queue up for result ... 
     else {
 
-      if ((_highWaterMarkHit && _hostQueuedForResolution <= _dnsHighWaterMark) || (!_highWaterMarkHit && _hostQueuedForResolution < _dnsHighWaterMark)) {
+      if (Environment.detailLogEnabled())
+        LOG.info("Scheduling Resolution for Host:" + hostName);
 
-        // increment pending resolution count ... 
-        _hostQueuedForResolution++;
-        // and increment urls pending resolution
+      // queue for resolution (answered immediately on a cache hit) ... 
+      _dnsQueue.resolve(hostName, new DNSResolutionQueue.ResolutionCallback() {
 
-        if (_hostQueuedForResolution == _dnsHighWaterMark) {
-          if (!_highWaterMarkHit) { 
-            if (CrawlEnvironment.detailLoggingEnabled)
-              LOG.info("### DNS High Water Mark Hit. PendingResolutions:" + _hostQueuedForResolution);
-            _highWaterMarkHit = true;
+        public void resolved(String hostName, int ipAddress, long ttl) {
+          if (!_shutdownFlag) { 
+            // update segment host's ip info ... 
+            host.setIpAddress(ipAddress);
+            host.setTtl(ttl);
+            // now react to the result ... 
+            processHostIPResolutionResult(host,false,null);
           }
         }
 
-        if (Environment.detailLogEnabled())
-          LOG.info("Scheduling Resolution for Host:" + hostName);
-
-        // schedule resolution ... 
-        NIODNSQueryClient queryClient = new NIODNSQueryClient() {
-
-          @Override
-          public void AddressResolutionFailure(NIODNSResolver source,String hostName, Status status, String errorDesc) {
-            // LOG.info("Got AddressResolutionFailure for host:" + hostName);
-            // decrement pending resolution count ... 
-            _hostQueuedForResolution--;
-
-            if (_hostQueuedForResolution <= _dnsLowWaterMark && _highWaterMarkHit) {
-              if (!_shutdownFlag) { 
-                feedDNSQueue();
-              }
-            }
-
-            logDNSFailure(host.getHostName(), errorDesc);
-
-            LOG.error("Host IP Resolution for Host:"+host.getHostName() + " FAILED with Status:" + status.toString() + " ErrorDesc:" + errorDesc);
+        public void failed(String hostName, String errorDesc) {
+          LOG.error("Host IP Resolution for Host:"+host.getHostName() + " FAILED with " + errorDesc);
 
-            if (!_shutdownFlag) { 
-              // now react to the result ... 
-              processHostIPResolutionResult(host,true,null);
-            }
-          }
-
-          @Override
-          public void AddressResolutionSuccess(NIODNSResolver source,String hostName, String name, InetAddress address, long addressTTL) {
-            //LOG.info("Got AddressResolutionSuccess for host:" + hostName);
-            // decrement pending resolution count ... 
-            _hostQueuedForResolution--;
-
-            logDNSQuery(hostName, address, addressTTL, null);
-
-            if (_hostQueuedForResolution <= _dnsLowWaterMark && _highWaterMarkHit) {
-              if (!_shutdownFlag) { 
-                feedDNSQueue();
-              }
-            }
-
-            int hostAddress = 0;
-
-            if (address != null && address.getAddress() != null) {
-
-              byte[] addr = address.getAddress();
-
-              if (addr.length == 4) {
-                hostAddress  = IPAddressUtils.IPV4AddressToInteger(addr);
-              }
-            }
-
-            if (hostAddress != 0) { 
-              // and update segment host's ip info ... 
-              host.setIpAddress(hostAddress);
-              host.setTtl(Math.max(addressTTL,System.currentTimeMillis() + CrawlEnvironment.MIN_DNS_CACHE_TIME));
-
-              // log it 
-              //  LOG.info(host.getHostName() + " " +IPAddressUtils.IntegerToIPAddressString(hostAddress) + " " + result.getTTL());
-
-              if (!_shutdownFlag) { 
-                // now react to the result ... 
-                processHostIPResolutionResult(host,false,null);
-              }
-            }
-            else { 
-
-              //if (Environment.detailLogEnabled())
-              LOG.error("Host IP Resolution for Host:"+host.getHostName() + " FAILED with Zero IP");
-
-              if (!_shutdownFlag) { 
-                // now react to the result ... 
-                processHostIPResolutionResult(host,true,null);
-              }
-            }
-          }
-
-          @Override
-          public void DNSResultsAvailable() {}
-
-          @Override
-          public void done(NIODNSResolver source,FutureTask<DNSQueryResult> task) {
-          }
-
-        };
-        try {
-          getServer().getDNSServiceResolver().resolve(queryClient, hostName,false, false,DEFAULT_DNS_TIMEOUT);
-        } catch (IOException e) {
-          LOG.error(CCStringUtils.stringifyException(e));
-
-          // decrement pending resolution count ... 
-          _hostQueuedForResolution--;
-
-          if (_hostQueuedForResolution <= _dnsLowWaterMark && _highWaterMarkHit) {
-            if (!_shutdownFlag) { 
-              feedDNSQueue();
-            }
-          }
-
-          LOG.error("Host IP Resolution for Host:"+host.getHostName() + " FAILED with Exception:" + CCStringUtils.stringifyException(e));
-          // now react to the result ...
           if (!_shutdownFlag) { 
+            // now react to the result ... 
             processHostIPResolutionResult(host,true,null);
           }
-        }
-
-      }
-      //otherwise if we need to defer this item ... 
-      else {
-
-        if (Environment.detailLogEnabled())
-          LOG.info("Deferring DNS Lookup for Host:" + host.getHostName());
-
-        _dnsDeferedHosts.add(host);
-      }
+        } 
+      });
     }
   }
 
@@ -1770,29 +1793,6 @@ public final class CrawlerEngine  {
     return mapOfHostsByName.values();
   }
 
-  void feedDNSQueue() { 
-
-    if (Environment.detailLogEnabled())
-      LOG.info("### DNS Feeding DNS Queue. PendingResolutions:" + _hostQueuedForResolution);
-
-    _highWaterMarkHit = false;
-
-    while(!_highWaterMarkHit && _hostQueuedForResolution < _dnsHighWaterMark) {
-      if (_dnsDeferedHosts.size() != 0) {
-        distributeSegmentHost(_dnsDeferedHosts.removeFirst());
-        /*
-        CrawlSegmentHost masterHost = ;
-        for (CrawlSegmentHost host : breakoutHostsBySubDomain(masterHost)) { 
-          ;
-        }
-         */
-      }
-      else { 
-        break;
-      }
-    }
-  }
-
   /** process host ip resolution results **/
   public void processHostIPResolutionResult(CrawlSegmentHost host,boolean failed,CrawlItemStatusCallback callback) {
 
@@ -1938,8 +1938,8 @@ public final class CrawlerEngine  {
 
     if (_segmentScanPending == 0) {
 
-      // if active url count is less than max threshold .. 
-      if (_activeLoadCount == 0 && _segmentLoadQueue.size()  != 0 && getActiveURLCount() < getMaxActiveThreshold()) { 
+      // if active url count is less than max threshold .. keep up to MAX_CONCURRENT_SEGMENT_LOADS segments in the pipeline
+      while (_activeLoadCount < MAX_CONCURRENT_SEGMENT_LOADS && _segmentLoadQueue.size()  != 0 && getActiveURLCount() < getMaxActiveThreshold()) { 
 
         CrawlSegmentStatus  loadTarget = _segmentLoadQueue.remove();
 
@@ -43,6 +43,13 @@ public final class CrawlerEngineStats extends RuntimeStatsCollector.Namespace {
     CrawlerEngine_QueuedCount,
     CrawlerEngine_UpTime,
     CrawlerEngine_BuildTime,
+    CrawlerEngine_DiskQueue_PendingOperations,
+    CrawlerEngine_DiskQueue_SpillSegments,
+    CrawlerEngine_DiskQueue_SpillBytes,
+    CrawlerEngine_DiskQueue_SpillLiveBytes,
+    CrawlerEngine_DiskQueue_GroupCommits,
+    CrawlerEngine_DiskQueue_AvgAppendsPerCommit,
+    CrawlerEngine_DiskQueue_CompactedBytes,
     
     
     
@@ -84,7 +91,51 @@ public final class CrawlerEngineStats extends RuntimeStatsCollector.Namespace {
     // Flusher Stats ... 
     CrawlLog_FlushTimeAVG,
     CrawlLog_FlushTimeSmoothed,
-    CrawlLog_FlushTimeLast
+    CrawlLog_FlushTimeLast,
+    
+    // Log Writer Stats ... 
+    CrawlLog_CommitLatencyP50,
+    CrawlLog_CommitLatencyP99,
+    CrawlLog_BytesPerSec,
+    CrawlLog_SyncCount,
+    CrawlLog_ItemsPerSync,
+    CrawlLog_WriterQueueSize,
+    CrawlLog_BackPressureCount,
+    CrawlLog_RejectedAppendCount,
+    
+    // Robots Cache Stats ... 
+    RobotsCache_EntryCount,
+    RobotsCache_SizeInBytes,
+    RobotsCache_Hits,
+    RobotsCache_Misses,
+    RobotsCache_HitRatio,
+    RobotsCache_Evictions,
+    RobotsCache_BytesSaved,
+    
+    // DNS Cache Stats ... 
+    DNSCache_EntryCount,
+    DNSCache_Hits,
+    DNSCache_NegativeHits,
+    DNSCache_Misses,
+    DNSCache_HitRatio,
+    DNSCache_Expired,
+    DNSCache_Evictions,
+    
+    // DNS Resolution Queue Stats ... 
+    DNSQueue_InFlight,
+    DNSQueue_Queued,
+    DNSQueue_ActiveDomains,
+    DNSQueue_PrefetchQueued,
+    DNSQueue_PrefetchQueries,
+    DNSQueue_PrefetchDropped,
+    DNSQueue_Queries,
+    DNSQueue_Failures,
+    DNSQueue_Coalesced,
+    DNSQueue_LatencyP50,
+    DNSQueue_LatencyP90,
+    DNSQueue_LatencyP99,
+    DNSQueue_LatencyHistogram,
+    DNSQueue_FailureLatencyHistogram
     
   }
   public static CrawlerEngineStats ID = new CrawlerEngineStats();
@@ -107,6 +107,8 @@ public class CrawlerServer extends CommonCrawlServer
 	
 	private 	InetSocketAddress 	_masterAddress = null;
 	private int                   _maxSockets = -1;
+	private int                   _fetchLoopCount = 1;
+	private boolean               _columnarHistoryQueries = false;
 	private static 	CrawlerEngine	_engine;
 	private static  CrawlerServer _server;
 	private CrawlerStatus         _crawlerStatus;
@@ -383,6 +385,14 @@ public class CrawlerServer extends CommonCrawlServer
             _maxSockets = Integer.parseInt(argv[++i]);
           }
         }
+	      else if (argv[i].equalsIgnoreCase("--fetchLoops")) { 
+          if (i+1 < argv.length) { 
+            _fetchLoopCount = Math.max(1,Integer.parseInt(argv[++i]));
+          }
+        }
+	      else if (argv[i].equalsIgnoreCase("--columnarHistoryQueries")) { 
+	        _columnarHistoryQueries = true;
+	      }
 	      else if (argv[i].equalsIgnoreCase("--unitTest")) { 
 	        CrawlEnvironment.setUnitTestMode(true);
 	        _unitTestName = argv[++i];
@@ -463,6 +473,8 @@ public class CrawlerServer extends CommonCrawlServer
 	      + " --directoryserver [directory service address ] "
 	      + " --statscollector [stats collector service address ] "
 	      + " --historyserver [crawlhistory service address ] "
+	      + " --fetchLoops [number of fetcher event loops (default 1)] "
+	      + " --columnarHistoryQueries (history server supports columnar bulk queries) "
 	      );
   }
 
@@ -899,6 +911,20 @@ public class CrawlerServer extends CommonCrawlServer
     return -1;
   }
   
+  /** get the number of event loops (selector threads) used by the http fetcher 
+   *  (1 means fetch i/o shares the server's main event loop) 
+   **/
+  public int getFetchLoopCount() { 
+    return _fetchLoopCount;
+  }
+  
+  /** true if bulk history queries should be sent in the columnar encoding. 
+   *  off by default, since older history servers only understand VLong pairs 
+   **/
+  public boolean useColumnarHistoryQueries() { 
+    return _columnarHistoryQueries;
+  }
+  
   /** get the host idle flush threshold 
    * 
    *  the number of milliseconds a host needs to be idle  for it   
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.Timer;
+import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
+import org.commoncrawl.io.internal.DNSQueryResult;
+import org.commoncrawl.io.internal.NIODNSQueryClient;
+import org.commoncrawl.io.internal.NIODNSResolver;
+import org.commoncrawl.util.internal.RuntimeStatsCollector;
+import org.commoncrawl.util.internal.URLUtils;
+import org.commoncrawl.util.shared.CCStringUtils;
+import org.commoncrawl.util.shared.IPAddressUtils;
+
+/**
+ * The crawler's host resolution stage.
+ *
+ * Requests are answered from the shared DNSResultCache where possible
+ * (including negative entries). Misses are queued per root domain - hosts
+ * under one registered domain share authoritative name servers - and
+ * dispatched round robin across domains, with at most MAX_IN_FLIGHT_PER_DOMAIN
+ * queries outstanding per domain and maxInFlight overall. A domain whose name
+ * servers are slow or dead thus only ties up its own slots, while the rest of
+ * the queue keeps moving. Requests for a host that is already queued or in
+ * flight join the outstanding query.
+ *
+ * Completions and new requests schedule a single dispatch pass on the event
+ * loop (rather than dispatching one query per event), so a burst of results
+ * refills the window in one batch.
+ *
+ * The segment loader threads prefetch host names as segments are read; those
+ * are resolved into the cache with spare capacity only (at most half the
+ * window, never ahead of queued demand).
+ *
+ * All state other than the prefetch queue is confined to the event loop
+ * thread.
+ *
+ * @author rana
+ *
+ */
+final class DNSResolutionQueue {
+
+  public static final Log LOG = LogFactory.getLog(DNSResolutionQueue.class);
+
+  static final int MAX_IN_FLIGHT_PER_DOMAIN = 4;
+  static final int MAX_PREFETCH_QUEUE_SIZE = 50000;
+
+  /** result callback (invoked on the event loop thread) **/
+  static interface ResolutionCallback {
+    void resolved(String hostName,int ipAddress,long ttl);
+    void failed(String hostName,String errorDesc);
+  }
+
+  /** a query (queued or in flight) and the requests waiting on it **/
+  private static final class PendingQuery {
+    String        _hostName;
+    DomainQueue   _domain;
+    long          _startTime;
+    ArrayList<ResolutionCallback> _callbacks = new ArrayList<ResolutionCallback>(1);
+  }
+
+  private static final class DomainQueue {
+    String  _domainName;
+    int     _inFlight = 0;
+    boolean _scheduled = false;
+    LinkedList<PendingQuery> _queued = new LinkedList<PendingQuery>();
+  }
+
+  /** log2 latency buckets (ms), last bucket is open ended **/
+  static final class LatencyHistogram {
+    static final int BUCKET_COUNT = 18;
+    long _buckets[] = new long[BUCKET_COUNT];
+    long _count = 0;
+
+    void addSample(long latencyMS) {
+      int bucket = (latencyMS <= 0) ? 0 : Math.min(BUCKET_COUNT - 1,64 - Long.numberOfLeadingZeros(latencyMS));
+      _buckets[bucket]++;
+      _count++;
+    }
+
+    /** upper bound (ms) of the bucket containing the given percentile **/
+    long percentile(double percentile) {
+      if (_count == 0)
+        return 0;
+      long target = (long)Math.ceil(percentile * _count);
+      long count = 0;
+      for (int i=0;i<BUCKET_COUNT;++i) {
+        count += _buckets[i];
+        if (count >= target)
+          return 1L << i;
+      }
+      return 1L << (BUCKET_COUNT - 1);
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (int i=0;i<BUCKET_COUNT;++i) {
+        if (_buckets[i] != 0) {
+          if (i == BUCKET_COUNT - 1)
+            sb.append(">=").append(1L << (i - 1));
+          else
+            sb.append("<").append(1L << i);
+          sb.append("ms:").append(_buckets[i]).append(' ');
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  private CrawlerEngine _engine;
+  private int           _maxInFlight;
+  private int           _inFlight = 0;
+  private int           _prefetchInFlight = 0;
+  private int           _queuedCount = 0;
+  private boolean       _shutdown = false;
+
+  private HashMap<String,PendingQuery> _pending = new HashMap<String,PendingQuery>();
+  private HashMap<String,DomainQueue>  _domains = new HashMap<String,DomainQueue>();
+  /** domains with queued queries and free per domain slots, in round robin order **/
+  private LinkedList<DomainQueue>      _readyDomains = new LinkedList<DomainQueue>();
+
+  /** fed by the loader threads **/
+  private LinkedList<String>           _prefetchQueue = new LinkedList<String>();
+  private AtomicBoolean                _dispatchScheduled = new AtomicBoolean(false);
+
+  private LatencyHistogram _successLatency = new LatencyHistogram();
+  private LatencyHistogram _failureLatency = new LatencyHistogram();
+  private long _queryCount = 0;
+  private long _failureCount = 0;
+  private long _coalescedCount = 0;
+  private long _prefetchQueryCount = 0;
+  private long _prefetchDroppedCount = 0;
+
+  DNSResolutionQueue(CrawlerEngine engine,int maxInFlight) {
+    _engine = engine;
+    _maxInFlight = Math.max(1,maxInFlight);
+  }
+
+  /** resolve a host name, the callback may be invoked immediately (from cache) **/
+  void resolve(String hostName,ResolutionCallback callback) {
+
+    DNSResultCache.Entry entry = DNSResultCache.getSingleton().lookup(hostName,System.currentTimeMillis());
+    if (entry != null) {
+      if (entry.isNegative())
+        callback.failed(hostName,"Negative Cache Hit");
+      else
+        callback.resolved(hostName,entry.getIPAddress(),entry.getExpireTime());
+      return;
+    }
+
+    PendingQuery query = _pending.get(hostName);
+    if (query != null) {
+      _coalescedCount++;
+      query._callbacks.add(callback);
+      return;
+    }
+
+    query = new PendingQuery();
+    query._hostName = hostName;
+    query._callbacks.add(callback);
+    query._domain = getDomainQueue(hostName);
+    _pending.put(hostName,query);
+
+    query._domain._queued.add(query);
+    _queuedCount++;
+    scheduleDomain(query._domain);
+    scheduleDispatch();
+  }
+
+  /** hint that a host will be resolved soon (callable from any thread) **/
+  void prefetch(String hostName) {
+    synchronized (_prefetchQueue) {
+      if (_prefetchQueue.size() >= MAX_PREFETCH_QUEUE_SIZE) {
+        _prefetchDroppedCount++;
+        return;
+      }
+      _prefetchQueue.add(hostName);
+    }
+    scheduleDispatch();
+  }
+
+  /** drop all queued work, in flight queries complete but their results are discarded **/
+  void shutdown() {
+    _shutdown = true;
+    _pending.clear();
+    _domains.clear();
+    _readyDomains.clear();
+    _queuedCount = 0;
+    synchronized (_prefetchQueue) {
+      _prefetchQueue.clear();
+    }
+  }
+
+  int getInFlightCount() { return _inFlight; }
+  int getQueuedCount() { return _queuedCount; }
+
+  private DomainQueue getDomainQueue(String hostName) {
+    String domainName = URLUtils.extractRootDomainName(hostName);
+    if (domainName == null)
+      domainName = hostName;
+    DomainQueue domain = _domains.get(domainName);
+    if (domain == null) {
+      domain = new DomainQueue();
+      domain._domainName = domainName;
+      _domains.put(domainName,domain);
+    }
+    return domain;
+  }
+
+  private void scheduleDomain(DomainQueue domain) {
+    if (!domain._scheduled && domain._queued.size() != 0 && domain._inFlight < MAX_IN_FLIGHT_PER_DOMAIN) {
+      domain._scheduled = true;
+      _readyDomains.add(domain);
+    }
+  }
+
+  private void releaseDomain(DomainQueue domain) {
+    domain._inFlight--;
+    if (domain._inFlight == 0 && domain._queued.size() == 0 && !domain._scheduled) {
+      _domains.remove(domain._domainName);
+    }
+    else {
+      scheduleDomain(domain);
+    }
+  }
+
+  private void scheduleDispatch() {
+    if (_dispatchScheduled.compareAndSet(false,true)) {
+      _engine.getEventLoop().setTimer(new Timer(0,false,new Timer.Callback() {
+
+        public void timerFired(Timer timer) {
+          _dispatchScheduled.set(false);
+          if (!_shutdown) {
+            dispatch();
+          }
+        }
+      }));
+    }
+  }
+
+  /** fill the window: queued demand first (round robin by domain), then prefetches **/
+  private void dispatch() {
+    while (_inFlight < _maxInFlight && _readyDomains.size() != 0) {
+      DomainQueue domain = _readyDomains.removeFirst();
+      domain._scheduled = false;
+      PendingQuery query = domain._queued.removeFirst();
+      _queuedCount--;
+      domain._inFlight++;
+      // back of the line for this domain's next query
+      scheduleDomain(domain);
+      issueQuery(query);
+    }
+
+    int prefetchCandidates;
+    synchronized (_prefetchQueue) {
+      prefetchCandidates = _prefetchQueue.size();
+    }
+    // one pass over the prefetch queue at most
+    while (prefetchCandidates-- > 0 && _inFlight < _maxInFlight && _prefetchInFlight < _maxInFlight / 2) {
+      String hostName;
+      synchronized (_prefetchQueue) {
+        if (_prefetchQueue.size() == 0)
+          break;
+        hostName = _prefetchQueue.removeFirst();
+      }
+      if (_pending.containsKey(hostName) || DNSResultCache.getSingleton().isCached(hostName,System.currentTimeMillis())) {
+        continue;
+      }
+      DomainQueue domain = getDomainQueue(hostName);
+      if (domain._inFlight >= MAX_IN_FLIGHT_PER_DOMAIN) {
+        // busy domain, try again on a later pass
+        synchronized (_prefetchQueue) {
+          _prefetchQueue.add(hostName);
+        }
+        continue;
+      }
+      PendingQuery query = new PendingQuery();
+      query._hostName = hostName;
+      query._domain = domain;
+      _pending.put(hostName,query);
+      domain._inFlight++;
+      _prefetchInFlight++;
+      _prefetchQueryCount++;
+      issueQuery(query);
+    }
+  }
+
+  private void issueQuery(final PendingQuery query) {
+    final boolean isPrefetch = query._callbacks.size() == 0;
+
+    _inFlight++;
+    _queryCount++;
+    query._startTime = System.currentTimeMillis();
+
+    NIODNSQueryClient queryClient = new NIODNSQueryClient() {
+
+      @Override
+      public void AddressResolutionFailure(NIODNSResolver source,String hostName, Status status, String errorDesc) {
+        _engine.logDNSFailure(query._hostName,errorDesc);
+        queryComplete(query,isPrefetch,0,0,"Status:" + status + " ErrorDesc:" + errorDesc,true);
+      }
+
+      @Override
+      public void AddressResolutionSuccess(NIODNSResolver source,String hostName, String name, InetAddress address, long addressTTL) {
+        _engine.logDNSQuery(hostName,address,addressTTL,null);
+
+        int hostAddress = 0;
+        if (address != null && address.getAddress() != null) {
+          byte[] addr = address.getAddress();
+          if (addr.length == 4) {
+            hostAddress  = IPAddressUtils.IPV4AddressToInteger(addr);
+          }
+        }
+        queryComplete(query,isPrefetch,hostAddress,Math.max(addressTTL,System.currentTimeMillis() + CrawlEnvironment.MIN_DNS_CACHE_TIME),"Zero IP",true);
+      }
+
+      @Override
+      public void DNSResultsAvailable() {}
+
+      @Override
+      public void done(NIODNSResolver source,FutureTask<DNSQueryResult> task) {
+      }
+    };
+
+    try {
+      _engine.getServer().getDNSServiceResolver().resolve(queryClient,query._hostName,false,false,CrawlerEngine.DEFAULT_DNS_TIMEOUT);
+    }
+    catch (IOException e) {
+      LOG.error("Failed to dispatch DNS Query for Host:" + query._hostName + " Exception:" + CCStringUtils.stringifyException(e));
+      // a local failure says nothing about the host, so don't cache it
+      queryComplete(query,isPrefetch,0,0,CCStringUtils.stringifyException(e),false);
+    }
+  }
+
+  private void queryComplete(PendingQuery query,boolean isPrefetch,int ipAddress,long ttl,String errorDesc,boolean cacheResult) {
+    long currentTime = System.currentTimeMillis();
+
+    _inFlight--;
+    if (isPrefetch)
+      _prefetchInFlight--;
+
+    if (ipAddress != 0) {
+      _successLatency.addSample(currentTime - query._startTime);
+      DNSResultCache.getSingleton().cachePositive(query._hostName,ipAddress,ttl);
+    }
+    else {
+      _failureCount++;
+      _failureLatency.addSample(currentTime - query._startTime);
+      if (cacheResult) { 
+        DNSResultCache.getSingleton().cacheNegative(query._hostName,currentTime + DNSResultCache.DEFAULT_NEGATIVE_TTL);
+      }
+    }
+
+    if (_shutdown)
+      return;
+
+    _pending.remove(query._hostName);
+    releaseDomain(query._domain);
+
+    for (ResolutionCallback callback : query._callbacks) {
+      if (ipAddress != 0)
+        callback.resolved(query._hostName,ipAddress,ttl);
+      else
+        callback.failed(query._hostName,errorDesc);
+    }
+    scheduleDispatch();
+  }
+
+  void collectStats(RuntimeStatsCollector stats) {
+    int prefetchQueueSize;
+    synchronized (_prefetchQueue) {
+      prefetchQueueSize = _prefetchQueue.size();
+    }
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_InFlight,_inFlight);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_Queued,_queuedCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_ActiveDomains,_domains.size());
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_PrefetchQueued,prefetchQueueSize);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_PrefetchQueries,_prefetchQueryCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_PrefetchDropped,_prefetchDroppedCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_Queries,_queryCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_Failures,_failureCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_Coalesced,_coalescedCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_LatencyP50,_successLatency.percentile(.50));
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_LatencyP90,_successLatency.percentile(.90));
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_LatencyP99,_successLatency.percentile(.99));
+    stats.setStringValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_LatencyHistogram,_successLatency.toString());
+    stats.setStringValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSQueue_FailureLatencyHistogram,_failureLatency.toString());
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.commoncrawl.util.internal.RuntimeStatsCollector;
+
+/**
+ * Process wide host name to ip address cache, holding both positive entries
+ * (expiring at the resolved address's ttl) and negative entries (failed
+ * resolutions, expiring after a fixed negative ttl). Populated by the
+ * DNSResolutionQueue and by the crawl lists as fetches report the address a
+ * host was actually reached at, and consulted before a host is queued for
+ * resolution. Entries are evicted in LRU order past the max entry count.
+ *
+ * Accessed from the event loop and the fetcher threads, hence synchronized.
+ *
+ * @author rana
+ *
+ */
+public final class DNSResultCache {
+
+  public static final int  DEFAULT_MAX_ENTRIES = 500000;
+  /** how long a failed resolution is remembered **/
+  public static final long DEFAULT_NEGATIVE_TTL = 10 * 60 * 1000;
+
+  private static final DNSResultCache _singleton = new DNSResultCache(DEFAULT_MAX_ENTRIES);
+
+  public static DNSResultCache getSingleton() {
+    return _singleton;
+  }
+
+  /** immutable cache entry. an ip address of zero marks a negative entry **/
+  public static final class Entry {
+    private final int  _ipAddress;
+    private final long _expireTime;
+
+    Entry(int ipAddress,long expireTime) {
+      _ipAddress = ipAddress;
+      _expireTime = expireTime;
+    }
+
+    public int  getIPAddress() { return _ipAddress; }
+    public long getExpireTime() { return _expireTime; }
+    public boolean isNegative() { return _ipAddress == 0; }
+  }
+
+  private int  _maxEntries;
+  private long _hitCount = 0;
+  private long _negativeHitCount = 0;
+  private long _missCount = 0;
+  private long _expiredCount = 0;
+  private long _evictionCount = 0;
+
+  private LinkedHashMap<String,Entry> _entries = new LinkedHashMap<String,Entry>(4096,0.75f,true);
+
+  DNSResultCache(int maxEntries) {
+    _maxEntries = maxEntries;
+  }
+
+  /** lookup a host, returns null on a miss (or an expired entry) **/
+  public synchronized Entry lookup(String hostName,long currentTime) {
+    Entry entry = _entries.get(hostName);
+    if (entry != null && entry._expireTime < currentTime) {
+      _entries.remove(hostName);
+      _expiredCount++;
+      entry = null;
+    }
+    if (entry == null) {
+      _missCount++;
+    }
+    else if (entry.isNegative()) {
+      _negativeHitCount++;
+    }
+    else {
+      _hitCount++;
+    }
+    return entry;
+  }
+
+  /** check for a live entry (positive or negative) without counting a hit / miss **/
+  public synchronized boolean isCached(String hostName,long currentTime) {
+    Entry entry = _entries.get(hostName);
+    return entry != null && entry._expireTime >= currentTime;
+  }
+
+  /** cache a resolved address. expireTime is absolute (ms) **/
+  public synchronized void cachePositive(String hostName,int ipAddress,long expireTime) {
+    if (ipAddress != 0) {
+      put(hostName,new Entry(ipAddress,expireTime));
+    }
+  }
+
+  /** remember a failed resolution until the given (absolute) time **/
+  public synchronized void cacheNegative(String hostName,long expireTime) {
+    Entry existing = _entries.get(hostName);
+    // a failure does not override a still valid address learned elsewhere
+    if (existing == null || existing.isNegative() || existing._expireTime < System.currentTimeMillis()) {
+      put(hostName,new Entry(0,expireTime));
+    }
+  }
+
+  private void put(String hostName,Entry entry) {
+    _entries.put(hostName,entry);
+    if (_entries.size() > _maxEntries) {
+      Iterator<Map.Entry<String,Entry>> iterator = _entries.entrySet().iterator();
+      while (_entries.size() > _maxEntries && iterator.hasNext()) {
+        iterator.next();
+        iterator.remove();
+        _evictionCount++;
+      }
+    }
+  }
+
+  public synchronized int getEntryCount() { return _entries.size(); }
+
+  public synchronized double getHitRatio() {
+    long lookups = _hitCount + _negativeHitCount + _missCount;
+    return (lookups == 0) ? 0.0 : (double)(_hitCount + _negativeHitCount) / (double)lookups;
+  }
+
+  synchronized void collectStats(RuntimeStatsCollector stats) {
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_EntryCount,_entries.size());
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_Hits,_hitCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_NegativeHits,_negativeHitCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_Misses,_missCount);
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_HitRatio,getHitRatio());
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_Expired,_expiredCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.DNSCache_Evictions,_evictionCount);
+  }
+}
@@ -29,6 +29,7 @@ import java.util.SimpleTimeZone;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.EventLoop;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.common.Environment;
 import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
@@ -58,6 +59,16 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   /** constants **/
   private static long TIMEOUT_TIMER_INTERVAL = 1000; // every 1 second ... 
 
+  /** 
+   * resolve, connect and send timeouts are the connection's own (it reports them via hasTimedOut), 
+   * so each active slot is rechecked every TIMEOUT_RECHECK_INTERVAL to reap those promptly. on top of 
+   * that the fetcher bounds the receive phase: a connection that receives no data for 
+   * RECEIVE_IDLE_TIMEOUT, or is still receiving MAX_RECEIVE_TIME after it started, is timed out.
+   */
+  private static final long TIMEOUT_RECHECK_INTERVAL = 1000;
+  private static final long RECEIVE_IDLE_TIMEOUT = 30000;
+  private static final long MAX_RECEIVE_TIME = 180000;
+
   private static int   DOWNLOAD_LIMIT = CrawlEnvironment.CONTENT_SIZE_LIMIT;
 
   private static final int MAX_REDIRECTS = 6;
@@ -71,6 +82,10 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   private boolean              _paused = false;
   /** max open sockets variable **/
   private int								   _maxSockets;
+  /** the loop that services this fetcher's sockets **/
+  EventLoop           _fetchLoop;
+  /** the loop that owns the crawl targets (CrawlQueue / CrawlList) **/
+  EventLoop           _ownerLoop;
   /** selector reference **/
   NIOSocketSelector 	_selector;
   /** resolver reference **/
@@ -140,13 +155,61 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   private short _activeVersions[] = null;
   /** trailing connection versions **/
   private short _trailingVersions[] = null;
+  /** active slots ordered by their next timeout check **/
+  private SlotDeadlineQueue _deadlines = null;
+  /** receive progress of each slot's connection - last seen download length, when it last changed, and when receiving started **/
+  private long _lastDownloadLength[] = null;
+  private long _lastReceiveProgressTime[] = null;
+  private long _receiveStartTime[] = null;
+  /** stack of empty slots **/
+  private int     _freeSlots[] = null;
+  private boolean _inFreeSlotStack[] = null;
+  private int     _freeSlotCount = 0;
   /** pending URLs **/
   private LinkedList<CrawlTarget> _pending 	= new LinkedList<CrawlTarget>();
 
+  /** 
+   * receives fetch events for crawl targets (in the owner loop). the default listener hands them 
+   * to the target itself, which reports them to its source list and the engine.
+   */
+  static interface TargetListener { 
+    void fetchStarting(CrawlTarget target,NIOHttpConnection connection);
+    void fetchStarted(CrawlTarget target);
+    void fetchSucceeded(CrawlTarget target,NIOHttpConnection connection);
+    void fetchFailed(CrawlTarget target,int failureReason,String description);
+  }
+  
+  private static final TargetListener DEFAULT_TARGET_LISTENER = new TargetListener() {
+    public void fetchStarting(CrawlTarget target,NIOHttpConnection connection) { 
+      target.fetchStarting(connection);
+    }
+    public void fetchStarted(CrawlTarget target) { 
+      target.fetchStarted();
+    }
+    public void fetchSucceeded(CrawlTarget target,NIOHttpConnection connection) { 
+      target.fetchSucceeded(connection,connection.getResponseHeaders(),connection.getContentBuffer());
+    }
+    public void fetchFailed(CrawlTarget target,int failureReason,String description) { 
+      target.fetchFailed(failureReason,description);
+    }
+  };
+  
+  private TargetListener _targetListener = DEFAULT_TARGET_LISTENER;
+
   /** pause support **/
   public boolean isPaused() { return _paused; }
-  public void pause() { _paused = true; }
+  public void pause() { 
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { pause(); } });
+      return;
+    }
+    _paused = true; 
+  }
   public void resume() { 
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { resume(); } });
+      return;
+    }
     if (_paused) { 
       _paused = false;
       if (_running)
@@ -159,13 +222,33 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
 
   public HttpFetcher(int maxOpenSockets,InetSocketAddress[] crawlInterfaceList,String crawlerName) { 
+    this(maxOpenSockets,crawlInterfaceList,crawlerName,CrawlerServer.getServer().getEventLoop(),CrawlerServer.getServer().getEventLoop());
+  }
+  
+  /** 
+   * construct a fetcher whose sockets are serviced by fetchLoop, while the crawl targets it 
+   * services are owned by ownerLoop. if the two differ, all crawl target callbacks are 
+   * handed off to the owner loop, and the Fetcher interface methods are safe to call from 
+   * the owner loop.  
+   */
+  public HttpFetcher(int maxOpenSockets,InetSocketAddress[] crawlInterfaceList,String crawlerName,EventLoop fetchLoop,EventLoop ownerLoop) { 
     _maxSockets = maxOpenSockets;
     _active 			= new NIOHttpConnection[_maxSockets];
     _activeVersions = new short[_maxSockets];
     _trailingVersions = new short[_maxSockets];
-
-    _selector			= CrawlerServer.getServer().getEventLoop().getSelector();
-    _resolver			= CrawlerServer.getServer().getDNSServiceResolver();
+    _deadlines = new SlotDeadlineQueue(_maxSockets);
+    _lastDownloadLength = new long[_maxSockets];
+    _lastReceiveProgressTime = new long[_maxSockets];
+    _receiveStartTime = new long[_maxSockets];
+    _freeSlots = new int[_maxSockets];
+    _inFreeSlotStack = new boolean[_maxSockets];
+    resetFreeSlots();
+
+    _fetchLoop    = fetchLoop;
+    _ownerLoop    = ownerLoop;
+    _selector			= _fetchLoop.getSelector();
+    // the dns service resolver is bound to the owner loop, so partitioned fetchers use their loop's resolver
+    _resolver			= (isPartitioned()) ? _fetchLoop.getResolver() : CrawlerServer.getServer().getDNSServiceResolver();
 
     _urlsPerSecMovingAverage = new MovingAverage(200);
     _kbPerSecMovingAverage = new MovingAverage(200);
@@ -183,11 +266,103 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   }
 
 
+  /** route target events somewhere other than the targets themselves (e.g. when running without an engine). call before start **/
+  void setTargetListener(TargetListener listener) { 
+    _targetListener = listener;
+  }
+  
+  /** true if sockets are serviced by a different loop than the one that owns the crawl targets **/
+  boolean isPartitioned() { 
+    return _fetchLoop != _ownerLoop;
+  }
+  
+  /** true if it is safe to touch fetcher state from the current thread **/
+  private boolean inFetchLoop() { 
+    return !isPartitioned() || Thread.currentThread() == _fetchLoop.getEventThread();
+  }
+  
+  /** run the runnable in the loop that owns the crawl targets **/
+  private void runInOwnerLoop(Runnable runnable) { 
+    if (!isPartitioned()) {
+      runnable.run();
+    }
+    else { 
+      _ownerLoop.queueRunnable(runnable);
+    }
+  }
+  
+  private void notifyFetchFailed(final CrawlTarget target,final int failureReason,final String description) { 
+    if (!isPartitioned()) { 
+      _targetListener.fetchFailed(target,failureReason,description);
+      return;
+    }
+    _ownerLoop.queueRunnable(new Runnable() {
+      public void run() {
+        _targetListener.fetchFailed(target,failureReason,description);
+      } 
+    });
+  }
+  
+  private void notifyFetchStarting(final CrawlTarget target,final NIOHttpConnection connection) { 
+    if (!isPartitioned()) { 
+      _targetListener.fetchStarting(target,connection);
+      return;
+    }
+    _ownerLoop.queueRunnable(new Runnable() {
+      public void run() {
+        _targetListener.fetchStarting(target,connection);
+      } 
+    });
+  }
+
+  private void notifyFetchStarted(final CrawlTarget target) { 
+    if (!isPartitioned()) { 
+      _targetListener.fetchStarted(target);
+      return;
+    }
+    _ownerLoop.queueRunnable(new Runnable() {
+      public void run() {
+        _targetListener.fetchStarted(target);
+      } 
+    });
+  }
+
+  /** 
+   * partitioned fetchers hand the completed connection over to the owner loop still open. the owner 
+   * consumes the response and then has the fetch loop close the connection.
+   */
+  private void notifyFetchSucceeded(final CrawlTarget target,final NIOHttpConnection connection) { 
+    if (!isPartitioned()) { 
+      _targetListener.fetchSucceeded(target,connection);
+      return;
+    }
+    _ownerLoop.queueRunnable(new Runnable() {
+      public void run() {
+        try { 
+          _targetListener.fetchSucceeded(target,connection);
+        }
+        finally { 
+          _fetchLoop.queueRunnable(new Runnable() {
+            public void run() {
+              connection.close();
+            } 
+          });
+        }
+      } 
+    });
+  }
+  
   public void clearQueues() {
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { clearQueues(); } });
+      return;
+    }
     if (!_running) { 
       for (int i=0;i<_active.length;++i) { 
         _active[i] = null;
       }
+      _deadlines.clear();
+      resetFreeSlots();
       _pending.clear();
     }
     else {
@@ -200,7 +375,11 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   }
 
 
-  public void queueURLs(LinkedList<CrawlTarget> urlList) {
+  public void queueURLs(final LinkedList<CrawlTarget> urlList) {
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { queueURLs(urlList); } });
+      return;
+    }
     for (CrawlTarget url : urlList) {
       //LOG.debug("Adding URL:"+url.getURL() + " to Fetcher Queue");
       _pending.add(url);
@@ -209,13 +388,22 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   }
 
 
-  public void queueURL(CrawlTarget target) {
+  public void queueURL(final CrawlTarget target) {
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { queueURL(target); } });
+      return;
+    }
     _pending.add(target);
     //fillQueue(false);
   }	
 
   public void start() {
 
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { start(); } });
+      return;
+    }
+
     // reset stats ... 
     finishCount = 0;
     successCount = 0;
@@ -235,16 +423,20 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
     });
 
     // register timeout timer ... 
-    CrawlerServer.getServer().getEventLoop().setTimer(_timeoutTimer);
+    _fetchLoop.setTimer(_timeoutTimer);
   }
 
   public void stop() {
+    if (!inFetchLoop()) { 
+      _fetchLoop.queueRunnable(new Runnable() { public void run() { stop(); } });
+      return;
+    }
     // flip running bit ..
     _running = false;
 
     // first step .. cancel timer ... 
     if (_timeoutTimer != null) { 
-      CrawlerServer.getServer().getEventLoop().cancelTimer(_timeoutTimer);
+      _fetchLoop.cancelTimer(_timeoutTimer);
       _timeoutTimer = null;
     }
     // next cancel all active connections ... 
@@ -258,7 +450,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
         // close the connection 
         _active[i].close();
         // null out the slot ... 
-        _active[i] = null;
+        releaseSlot(i);
         // and add the connection back to the pending queue ... 
         // add the item back to pending list ... 
         _pending.addFirst(context.getURL());
@@ -300,6 +492,14 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
    * @return index number of the interface to use
    */
   private int getCrawlInterfaceForCrawlTarget(CrawlTarget target) { 
+    return selectCrawlInterface(target,_crawlInterfaces.length);
+  }
+  
+  /** assign a crawl interface to the target (touches the source list, so call from the owner loop)
+   * 
+   * @return index number of the interface to use
+   */
+  static int selectCrawlInterface(CrawlTarget target,int crawlInterfaceCount) { 
 
     if (target.getCrawlInterface() != -1) { 
       return target.getCrawlInterface();
@@ -309,7 +509,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
       // save current interface 
       int nextCrawlInterface = target.getSourceList().getNextCrawlInterface();
       // set next interface 
-      target.getSourceList().setNextCrawlInterface((nextCrawlInterface+1) % _crawlInterfaces.length);
+      target.getSourceList().setNextCrawlInterface((nextCrawlInterface+1) % crawlInterfaceCount);
       // set affinity in target 
       target.setCrawlInterface(nextCrawlInterface);
 
@@ -351,7 +551,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
           //TODO: MAJOR HACK
           // disable proxy requests for robots
           if ((crawlTarget.getFlags() & CrawlURL.Flags.IsRobotsURL) == 0) {
-            if (CrawlerServer.getServer().getProxyAddress() != null) {
+            if (CrawlerServer.getServer() != null && CrawlerServer.getServer().getProxyAddress() != null) {
               // check to see if we should be using a proxy server 
               _active[index].setProxyServer(CrawlerServer.getServer().getProxyAddress());
             }
@@ -381,7 +581,8 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
           if (crawlTarget.getRedirectCount() != 0) {
             String newHost = fetchURL.getHost();
             String originalHost = originalURL.getHost();
-            if (newHost != null && originalHost != null && newHost.equalsIgnoreCase(originalHost)) { 
+            // partitioned fetchers populate redirect ip addresses in the owner loop (see refillSlotForRedirect)
+            if (!isPartitioned() && newHost != null && originalHost != null && newHost.equalsIgnoreCase(originalHost)) { 
               crawlTarget.getSourceList().populateIPAddressForTarget(fetchURL.getHost(),crawlTarget);
             }
           }
@@ -406,6 +607,8 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
           _active[index].setListener(this);
           _active[index].setContext(new CrawlContext(crawlTarget,index));
           _active[index].setDownloadMax(DOWNLOAD_LIMIT);
+          // first timeout check (re-armed as the connection changes state)
+          _deadlines.schedule(index,currentTime + TIMEOUT_RECHECK_INTERVAL);
 
           if (!_failConnections) { 
             _active[index].open();
@@ -421,7 +624,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             LOG.info("Filled SLOT:"+index + " With URL:" + crawlTarget.getActiveURL());
 
           // inform the target of the status change 
-          crawlTarget.fetchStarting(_active[index]);
+          notifyFetchStarting(crawlTarget,_active[index]);
           // LOG.info("### FETCHER called fetchStarting for:" + fetchURL + " slot:" + index);
 
           // log it ... 
@@ -435,10 +638,10 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             _active[index].setContext(null);
             _active[index].close();
           }
-          _active[index] = null;
+          releaseSlot(index);
           if (Environment.detailLogEnabled())
             LOG.error("Maformed URL Exception Processing URL:" + crawlTarget.getActiveURL());
-          crawlTarget.fetchFailed(CrawlURL.FailureReason.MalformedURL,e.toString());
+          notifyFetchFailed(crawlTarget,CrawlURL.FailureReason.MalformedURL,e.toString());
 
           failureCount++;
         }
@@ -449,10 +652,10 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             _active[index].setContext(null);
             _active[index].close();
           }
-          _active[index] = null;
+          releaseSlot(index);
           if (Environment.detailLogEnabled())
             LOG.error("Maformed URL Exception Processing URL:" + crawlTarget.getActiveURL());
-          crawlTarget.fetchFailed(CrawlURL.FailureReason.MalformedURL,e.toString());
+          notifyFetchFailed(crawlTarget,CrawlURL.FailureReason.MalformedURL,e.toString());
 
           failureCount++;
         }
@@ -465,12 +668,12 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             _active[index].setContext(null);
             _active[index].close();
           }
-          _active[index] = null;
+          releaseSlot(index);
 
           // LOG.debug("Fetch FAILED URL:"+ context.getURL().getURL() + " Code:"+ failureCode);
           // notify url of failure ... 
           //TODO: Investigate if it is SANE!!! to call back into fillSlot from fetchFailed !!!
-          crawlTarget.fetchFailed(CrawlURL.FailureReason.IOException,e2.getMessage());
+          notifyFetchFailed(crawlTarget,CrawlURL.FailureReason.IOException,e2.getMessage());
 
           failureCount++;
         }
@@ -483,12 +686,12 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             _active[index].setContext(null);
             _active[index].close();
           }
-          _active[index] = null;
+          releaseSlot(index);
 
           // LOG.debug("Fetch FAILED URL:"+ context.getURL().getURL() + " Code:"+ failureCode);
           // notify url of failure ... 
           //TODO: Investigate if it is SANE!!! to call back into fillSlot from fetchFailed !!!
-          crawlTarget.fetchFailed(CrawlURL.FailureReason.RuntimeError,e.getMessage());
+          notifyFetchFailed(crawlTarget,CrawlURL.FailureReason.RuntimeError,e.getMessage());
 
           failureCount++;
 
@@ -498,84 +701,190 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
     return _active[index] != null;	
   }
 
+  /** 
+   * re-issue a redirected request. single loop fetchers reuse the slot directly. partitioned 
+   * fetchers first hop to the owner loop to pick up the list's cached ip for the redirect host, 
+   * and then put the target at the head of the pending queue.
+   */
+  private void refillSlotForRedirect(int index,final CrawlTarget target) { 
+    if (!isPartitioned()) { 
+      fillSlot(index,target);
+    }
+    else { 
+      runInOwnerLoop(new Runnable() {
+
+        public void run() {
+          try { 
+            String newHost = new URL(target.getActiveURL()).getHost();
+            String originalHost = new URL(target.getOriginalURL()).getHost();
+            if (newHost != null && originalHost != null && newHost.equalsIgnoreCase(originalHost)) { 
+              target.getSourceList().populateIPAddressForTarget(newHost,target);
+            }
+          }
+          catch (MalformedURLException e) { 
+            // fillSlot will fail the target
+          }
+          _fetchLoop.queueRunnable(new Runnable() {
+
+            public void run() {
+              _pending.addFirst(target);
+              if (_running) { 
+                fillQueue(false);
+              }
+            } 
+          });
+        } 
+      });
+    }
+  }
+
   private void fillQueue(boolean checkForTimeout) { 
 
     // LOG.debug("fillQueue BEGIN- activeCount:"+connectionCount + " pendingCount:" + _pending.size());
 
-    for (int index=0;index<_active.length;++index) { 
+    if (checkForTimeout) { 
 
-      if (_active[index] != null && checkForTimeout) { 
+      long currentTime = System.currentTimeMillis();
+      int index;
 
-        if (_active[index].hasTimedOut()) { 
+      // only visit slots whose recheck time has passed ... 
+      while ((index = _deadlines.pollExpired(currentTime)) != -1) { 
 
-          CrawlContext context = (CrawlContext)_active[index].getContext();
+        if (_active[index] == null) 
+          continue;
 
-          NIOHttpConnection theTimedOutConnection = _active[index];
+        NIOHttpConnection theTimedOutConnection = _active[index];
 
-          if (context != null) {
-            if (Environment.detailLogEnabled())
-              LOG.error("Fetch TimedOut for Original URL:"+context.getURL().getOriginalURL() + " ActiveURL:" + context.getURL().getActiveURL());
+        State timeoutState;
 
-            switch (theTimedOutConnection.getTimeoutState()) { 
+        // the connection enforces its own (configured) timeouts ... 
+        if (theTimedOutConnection.hasTimedOut()) { 
+          timeoutState = theTimedOutConnection.getTimeoutState();
+        }
+        // and the fetcher bounds the receive phase 
+        else if (theTimedOutConnection.getState() == State.RECEIVING_HEADERS && receiveTimedOut(index,theTimedOutConnection,currentTime)) { 
+          timeoutState = State.RECEIVING_HEADERS;
+        }
+        else { 
+          _deadlines.schedule(index,currentTime + TIMEOUT_RECHECK_INTERVAL);
+          continue;
+        }
 
-              case AWAITING_RESOLUTION: 
-                // reduce resolving count if necessary ... 
-                resolvingCount--;
-                break;
+        CrawlContext context = (CrawlContext)_active[index].getContext();
 
-              case AWAITING_CONNECT:  
-                connectingCount--;
-                break;
+        if (context != null) {
+          if (Environment.detailLogEnabled())
+            LOG.error("Fetch TimedOut for Original URL:"+context.getURL().getOriginalURL() + " ActiveURL:" + context.getURL().getActiveURL());
 
-              case SENDING_REQUEST: 
-                sendingCount--;
-                break;
+          switch (timeoutState) { 
 
-              case RECEIVING_HEADERS: 
-                receivingCount--;
-                break;
+            case AWAITING_RESOLUTION: 
+              // reduce resolving count if necessary ... 
+              resolvingCount--;
+              break;
 
-            }
+            case AWAITING_CONNECT:  
+              connectingCount--;
+              break;
 
-            //TODO: DO ALL SLOT OPERATIONS BEFORE CALLING fetchFailed since it is calling back into fillQueue!!! BAD!!!
-            _active[index].setContext(null);
-            _active[index].close();
-            _active[index] = null;
-            connectionCount--;
-            failureCount++;
+            case SENDING_REQUEST: 
+              sendingCount--;
+              break;
+
+            case RECEIVING_HEADERS: 
+              receivingCount--;
+              break;
 
-            if (theTimedOutConnection.getTimeoutState() == NIOHttpConnection.State.AWAITING_CONNECT) { 
-              context.getURL().fetchFailed(CrawlURL.FailureReason.ConnectTimeout, "TimedOut in Fill Queue AWAITING_CONNECT");
-            }
-            else if (theTimedOutConnection.getTimeoutState() == NIOHttpConnection.State.AWAITING_RESOLUTION){
-              context.getURL().fetchFailed(CrawlURL.FailureReason.DNSFailure, "TimedOut in Fill Queue AWAITING_RESOLUTION");
-            }
-            else { 
-              context.getURL().fetchFailed(CrawlURL.FailureReason.Timeout, "TimedOut in Fill Queue RECEIVING_DATA");
-            }
+          }
+
+          //TODO: DO ALL SLOT OPERATIONS BEFORE CALLING fetchFailed since it is calling back into fillQueue!!! BAD!!!
+          _active[index].setContext(null);
+          _active[index].close();
+          releaseSlot(index);
+          connectionCount--;
+          failureCount++;
+
+          if (timeoutState == NIOHttpConnection.State.AWAITING_CONNECT) { 
+            notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.ConnectTimeout, "TimedOut in Fill Queue AWAITING_CONNECT");
+          }
+          else if (timeoutState == NIOHttpConnection.State.AWAITING_RESOLUTION){
+            notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.DNSFailure, "TimedOut in Fill Queue AWAITING_RESOLUTION");
           }
           else { 
-            LOG.error("Context NULL in fillQueue call");
-            throw new RuntimeException("Context Should NOT be NULL");
+            notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.Timeout, "TimedOut in Fill Queue RECEIVING_DATA");
           }
         }
+        else { 
+          LOG.error("Context NULL in fillQueue call");
+          throw new RuntimeException("Context Should NOT be NULL");
+        }
       }
+    }
 
-      // if the current slot is empty .... 
-      if (_active[index] == null) {
+    // fill empty slots (off of the free slot stack) while there is pending work ...  
+    while (_freeSlotCount != 0 && _pending.size() != 0 && !isPaused()) { 
 
-        // try to fill the slot ... 
-        if (!fillSlot(index,null)) { 
-          // if failed to fill slot, either break out or continue (if checking for timeouts)
-          if (!checkForTimeout)
-            break;
-        }
+      int index = popFreeSlot();
+
+      if (index != -1) {
+        fillSlot(index,null);
       }
     }
 
     // LOG.debug("fillQueue END- activeCount:"+connectionCount + " pendingCount:" + _pending.size());
   }
 
+  /** 
+   * has a receiving connection been idle for RECEIVE_IDLE_TIMEOUT, or receiving for MAX_RECEIVE_TIME 
+   * overall (so a server trickling data can't hold the slot forever)
+   */
+  private boolean receiveTimedOut(int index,NIOHttpConnection connection,long currentTime) { 
+    long downloadLength = connection.getDownloadLength();
+    if (downloadLength != _lastDownloadLength[index]) { 
+      _lastDownloadLength[index] = downloadLength;
+      _lastReceiveProgressTime[index] = currentTime;
+    }
+    return currentTime - _lastReceiveProgressTime[index] >= RECEIVE_IDLE_TIMEOUT
+        || currentTime - _receiveStartTime[index] >= MAX_RECEIVE_TIME;
+  }
+
+  /** null out a slot, drop its timeout check, and make it available for refill **/
+  private void releaseSlot(int index) { 
+    _active[index] = null;
+    _deadlines.remove(index);
+    if (!_inFreeSlotStack[index]) { 
+      _inFreeSlotStack[index] = true;
+      _freeSlots[_freeSlotCount++] = index;
+    }
+  }
+
+  /** 
+   * pop an empty slot off of the free slot stack. slots can be refilled directly (on 
+   * completion or redirect) while still on the stack, so those are skipped here.
+   * 
+   * @return slot index or -1 if the stack is exhausted
+   */
+  private int popFreeSlot() { 
+    while (_freeSlotCount != 0) { 
+      int index = _freeSlots[--_freeSlotCount];
+      _inFreeSlotStack[index] = false;
+      if (_active[index] == null) { 
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  private void resetFreeSlots() { 
+    _freeSlotCount = 0;
+    // push in reverse so that slots are handed out in ascending order
+    for (int i=_maxSockets-1;i>=0;--i) { 
+      _inFreeSlotStack[i] = (_active[i] == null);
+      if (_inFreeSlotStack[i])
+        _freeSlots[_freeSlotCount++] = i;
+    }
+  }
+
 
   /** NIOHttpConnection.Listener overloads **/
   // @Override
@@ -621,9 +930,14 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             LOG.info("Releasing SLOT:" + context.getIndex() + " URL:" + _active[context.getIndex()].getURL());
           // either way, this connection is now dead ... 
           _active[context.getIndex()].setContext(null);
-          _active[context.getIndex()].close();
+          // except that partitioned fetchers hand a successful response to the owner loop with the connection still open 
+          boolean deferClose = (state == State.DONE && isPartitioned());
+          boolean handedOff = false;
+          if (!deferClose) { 
+            _active[context.getIndex()].close();
+          }
 
-          _active[context.getIndex()] = null;
+          releaseSlot(context.getIndex());
           // decrement active count 
           connectionCount--;
 
@@ -635,8 +949,9 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
                 (context.getURL().getRedirectCount() == 0) ? 
                     context.getURL().getOriginalURL()
                     : context.getURL().getRedirectURL(), false);
-            // update local history bloom filer
-            CrawlerServer.getEngine().getLocalBloomFilter().add(urlFingerprint);
+            // update local history bloom filer (if running inside an engine)
+            if (CrawlerServer.getEngine() != null) 
+              CrawlerServer.getEngine().getLocalBloomFilter().add(urlFingerprint);
             
             try { 
               // increment success count and process results ... 
@@ -666,7 +981,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
                   else 
                     errorDescription = "Location not found in Redirect Headers";
                   // fail the url ... 
-                  context.getURL().fetchFailed(CrawlURL.FailureReason.RedirectFailed, errorDescription);
+                  notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.RedirectFailed, errorDescription);
                 }
                 // otherwise, silently re-queue process the redirect ... 
                 else { 
@@ -689,10 +1004,10 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
                             if (redirectFingerprint != null) { 
                               // validate the url against the bloom filter to see that we have not visited it before ...  
-                              if (CrawlerServer.getEngine().getLocalBloomFilter().isPresent(redirectFingerprint)) { 
+                              if (CrawlerServer.getEngine() != null && CrawlerServer.getEngine().getLocalBloomFilter().isPresent(redirectFingerprint)) { 
                                 // yes we have ... fail the url ... 
                                 LOG.info("!!!!Rejecting redirect. from:" + originalURL + " to:" + redirectURL +". Already Visited Target URL");
-                                context.getURL().fetchFailed(CrawlURL.FailureReason.RedirectFailed, "Alread Visited Redirect Location:" + theConnection.getRedirectLocation());
+                                notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.RedirectFailed, "Alread Visited Redirect Location:" + theConnection.getRedirectLocation());
                                 processRedirect = false;
                               }
                             }
@@ -709,7 +1024,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
                           context.getURL().setFlags(context.getURL().getFlags() | CrawlURL.Flags.IsRedirected);
                           context.getURL().setRedirectURL(redirectURLStr);
                           // refill slot ... 
-                          fillSlot(context.getIndex(), context.getURL());
+                          refillSlotForRedirect(context.getIndex(), context.getURL());
                         }
                         //}
                         //else { 
@@ -719,7 +1034,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
                   }
                   catch (MalformedURLException e) { 
                     // invalid url fail case ... 
-                    context.getURL().fetchFailed(CrawlURL.FailureReason.RedirectFailed, "Malformed URL:" + theConnection.getRedirectLocation());
+                    notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.RedirectFailed, "Malformed URL:" + theConnection.getRedirectLocation());
                   }
                 }
               }
@@ -730,7 +1045,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
                   if (fingerprint == null) { 
                     LOG.error("####!!!! getURLFPFromURL Returned NULL FOR URL" + context.getURL().getActiveURL());
                   }
-                  else { 
+                  else if (CrawlerServer.getEngine() != null) { 
                     CrawlerServer.getEngine().getLocalBloomFilter().add(fingerprint);
                   }
 
@@ -738,12 +1053,17 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
                 _avgDownloadSize.addSample((double)theConnection.getContentBuffer().available());
                 // process this as a successful get
-                context.getURL().fetchSucceeded(theConnection,theConnection.getResponseHeaders(),theConnection.getContentBuffer());
+                notifyFetchSucceeded(context.getURL(),theConnection);
+                handedOff = true;
               }
             }
             catch (Exception e) { 
               LOG.error("Exception processing HttpConnectionStateChange-DONE:" + CCStringUtils.stringifyException(e));
-              context.getURL().fetchFailed(CrawlURL.FailureReason.RuntimeError, "Exception:" + CCStringUtils.stringifyException(e));
+              notifyFetchFailed(context.getURL(),CrawlURL.FailureReason.RuntimeError, "Exception:" + CCStringUtils.stringifyException(e));
+            }
+            // redirects and failures don't hand the connection off 
+            if (deferClose && !handedOff) { 
+              theConnection.close();
             }
 
           }
@@ -763,7 +1083,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
             // LOG.debug("Fetch FAILED URL:"+ context.getURL().getURL() + " Code:"+ failureCode);
             // notify url of failure ... 
-            context.getURL().fetchFailed(failureCode,(theConnection.getErrorDesc() != null) ? theConnection.getErrorDesc() : "ERROR During Connection State Change");
+            notifyFetchFailed(context.getURL(),failureCode,(theConnection.getErrorDesc() != null) ? theConnection.getErrorDesc() : "ERROR During Connection State Change");
           }
 
           // repopulate slot (if possible)
@@ -772,7 +1092,21 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
           }
         }
       }
-      else if (state == State.AWAITING_RESOLUTION) { 
+      else { 
+        CrawlContext context = (CrawlContext)theConnection.getContext();
+        // recheck the slot's timeouts shortly, and start the receive clocks when receiving begins 
+        if (context != null && _active[context.getIndex()] == theConnection) { 
+          long currentTime = System.currentTimeMillis();
+          if (state == State.RECEIVING_HEADERS) { 
+            _lastDownloadLength[context.getIndex()] = theConnection.getDownloadLength();
+            _lastReceiveProgressTime[context.getIndex()] = currentTime;
+            _receiveStartTime[context.getIndex()] = currentTime;
+          }
+          _deadlines.schedule(context.getIndex(),currentTime + TIMEOUT_RECHECK_INTERVAL);
+        }
+      }
+
+      if (state == State.AWAITING_RESOLUTION) { 
         resolvingCount++;
       }
       else if (state == State.AWAITING_CONNECT) { 
@@ -784,7 +1118,7 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
         // if context is valid ... send the crawl target a fetchStarted event ... 
         if (context != null) { 
-          context.getURL().fetchStarted();
+          notifyFetchStarted(context.getURL());
         }
         else { 
           LOG.error("SENDING_REQUEST STATE TRIGERRED W/ NULL CONTEXT URL:" + theConnection.getURL());
@@ -804,6 +1138,17 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
 
 
+  /** counters used to aggregate stats across partitioned fetchers (racy reads, stats only) **/
+  int getSlotCount() { return _maxSockets; } 
+  int getActiveConnectionCount() { return connectionCount; }
+  int getPendingCount() { return _pending.size(); }
+  int getSuccessCount() { return successCount; }
+  int getFailureCount() { return failureCount; }
+  int getResolvingCount() { return resolvingCount; }
+  int getConnectingCount() { return connectingCount; }
+  int getSendingCount() { return sendingCount; }
+  int getReceivingCount() { return receivingCount; }
+  
   public void collectStats(CrawlerStats crawlerStats,RuntimeStatsCollector stats) { 
 
     _snapshotNumber++;
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * An open addressing (linear probing) hash map from primitive int keys
+ * (ip addresses etc.) to objects, avoiding the Integer boxing and per entry
+ * node allocations of a TreeMap / HashMap. Null values are not allowed.
+ * Iteration order is undefined, and iterators fail fast if the map is
+ * modified during iteration. Not thread safe.
+ *
+ * @author rana
+ *
+ */
+final class IntObjectMap<V> {
+
+  private static final int   MIN_CAPACITY = 16;
+  private static final float LOAD_FACTOR = .5f;
+
+  private int      _keys[];
+  private Object   _values[];
+  private int      _size = 0;
+  private int      _mask;
+  private int      _resizeThreshold;
+  private int      _modCount = 0;
+
+  IntObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  IntObjectMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * LOAD_FACTOR < expectedSize)
+      capacity <<= 1;
+    allocate(capacity);
+  }
+
+  int size() {
+    return _size;
+  }
+
+  boolean isEmpty() {
+    return _size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(int key) {
+    int slot = slotFor(key);
+    while (_values[slot] != null) {
+      if (_keys[slot] == key)
+        return (V) _values[slot];
+      slot = (slot + 1) & _mask;
+    }
+    return null;
+  }
+
+  boolean containsKey(int key) {
+    return get(key) != null;
+  }
+
+  /** @return the previous value for the key (or null) **/
+  @SuppressWarnings("unchecked")
+  V put(int key,V value) {
+    if (value == null)
+      throw new NullPointerException("null values not supported");
+    int slot = slotFor(key);
+    while (_values[slot] != null) {
+      if (_keys[slot] == key) {
+        V oldValue = (V) _values[slot];
+        _values[slot] = value;
+        return oldValue;
+      }
+      slot = (slot + 1) & _mask;
+    }
+    _keys[slot] = key;
+    _values[slot] = value;
+    _modCount++;
+    if (++_size > _resizeThreshold)
+      resize(_values.length << 1);
+    return null;
+  }
+
+  /** @return the removed value (or null) **/
+  @SuppressWarnings("unchecked")
+  V remove(int key) {
+    int slot = slotFor(key);
+    while (_values[slot] != null) {
+      if (_keys[slot] == key) {
+        V oldValue = (V) _values[slot];
+        removeSlot(slot);
+        return oldValue;
+      }
+      slot = (slot + 1) & _mask;
+    }
+    return null;
+  }
+
+  void clear() {
+    for (int i=0;i<_values.length;++i)
+      _values[i] = null;
+    _size = 0;
+    _modCount++;
+  }
+
+  /** a copy of the keys currently in the map **/
+  int[] keys() {
+    int keysOut[] = new int[_size];
+    int index = 0;
+    for (int i=0;i<_values.length;++i) {
+      if (_values[i] != null)
+        keysOut[index++] = _keys[i];
+    }
+    return keysOut;
+  }
+
+  /** iterate the values in the map (remove is not supported) **/
+  Iterable<V> values() {
+    return new Iterable<V>() {
+
+      public Iterator<V> iterator() {
+        return new Iterator<V>() {
+
+          int _nextSlot = advance(0);
+          int _expectedModCount = _modCount;
+
+          private int advance(int slot) {
+            while (slot < _values.length && _values[slot] == null)
+              ++slot;
+            return slot;
+          }
+
+          public boolean hasNext() {
+            return _nextSlot < _values.length;
+          }
+
+          @SuppressWarnings("unchecked")
+          public V next() {
+            if (_expectedModCount != _modCount)
+              throw new ConcurrentModificationException();
+            if (_nextSlot >= _values.length)
+              throw new NoSuchElementException();
+            V value = (V) _values[_nextSlot];
+            _nextSlot = advance(_nextSlot + 1);
+            return value;
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  private int slotFor(int key) {
+    int hash = key * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & _mask;
+  }
+
+  /** delete the entry at slot, shifting back any displaced entries in the probe run **/
+  private void removeSlot(int slot) {
+    _values[slot] = null;
+    _size--;
+    _modCount++;
+    int gap = slot;
+    int next = (slot + 1) & _mask;
+    while (_values[next] != null) {
+      int home = slotFor(_keys[next]);
+      // move the entry into the gap if its home slot does not lie in (gap,next]
+      if (((next - home) & _mask) >= ((next - gap) & _mask)) {
+        _keys[gap] = _keys[next];
+        _values[gap] = _values[next];
+        _values[next] = null;
+        gap = next;
+      }
+      next = (next + 1) & _mask;
+    }
+  }
+
+  private void allocate(int capacity) {
+    _keys = new int[capacity];
+    _values = new Object[capacity];
+    _mask = capacity - 1;
+    _resizeThreshold = (int)(capacity * LOAD_FACTOR);
+  }
+
+  private void resize(int newCapacity) {
+    int oldKeys[] = _keys;
+    Object oldValues[] = _values;
+    allocate(newCapacity);
+    for (int i=0;i<oldValues.length;++i) {
+      if (oldValues[i] != null) {
+        int slot = slotFor(oldKeys[i]);
+        while (_values[slot] != null)
+          slot = (slot + 1) & _mask;
+        _keys[slot] = oldKeys[i];
+        _values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  @Test
+  public void testAgainstHashMap() throws Exception {
+    IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+    HashMap<Integer,Integer> expected = new HashMap<Integer,Integer>();
+
+    // a small key range keeps probe runs long and exercises backward shift deletion
+    Random random = new Random(1);
+    for (int op=0;op<200000;++op) {
+      int key = random.nextInt(2048) * 1024;
+      if (random.nextInt(3) != 0) {
+        Integer value = random.nextInt();
+        assertEquals(expected.put(key,value),map.put(key,value));
+      }
+      else {
+        assertEquals(expected.remove(key),map.remove(key));
+      }
+      assertEquals(expected.size(),map.size());
+    }
+    for (int key=0;key<2048 * 1024;key+=1024) {
+      assertEquals(expected.get(key),map.get(key));
+      assertEquals(expected.containsKey(key),map.containsKey(key));
+    }
+
+    int keys[] = map.keys();
+    assertEquals(expected.size(),keys.length);
+    for (int key : keys)
+      assertTrue(expected.containsKey(key));
+
+    long valueSum = 0;
+    int valueCount = 0;
+    for (Integer value : map.values()) {
+      valueSum += value;
+      valueCount++;
+    }
+    long expectedSum = 0;
+    for (Integer value : expected.values())
+      expectedSum += value;
+    assertEquals(expected.size(),valueCount);
+    assertEquals(expectedSum,valueSum);
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertEquals(0,map.keys().length);
+    for (int key : keys)
+      assertNull(map.get(key));
+  }
+
+  @Test
+  public void testIteratorFailsFast() throws Exception {
+    IntObjectMap<String> map = new IntObjectMap<String>();
+    map.put(1,"a");
+    map.put(2,"b");
+    map.put(3,"c");
+
+    Iterator<String> iterator = map.values().iterator();
+    iterator.next();
+    // replacing a value is not a structural modification
+    map.put(1,"d");
+    iterator.next();
+    map.put(4,"e");
+    try {
+      iterator.next();
+      fail();
+    }
+    catch (ConcurrentModificationException e) {
+    }
+
+    try {
+      map.put(5,null);
+      fail();
+    }
+    catch (NullPointerException e) {
+    }
+
+    int keys[] = map.keys();
+    Arrays.sort(keys);
+    assertTrue(Arrays.equals(new int[] { 1,2,3,4 },keys));
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.async.EventLoopGroup;
+import org.commoncrawl.io.internal.NIOHttpConnection;
+import org.commoncrawl.util.shared.IPAddressUtils;
+
+/**
+ * Measures PartitionedHttpFetcher throughput against a local stub http server
+ * as the number of fetch loops grows. An owner loop plays the part of the
+ * CrawlQueue: it keeps the fetcher's pending queues topped up, queueing a new
+ * target each time one completes. Targets carry a cached server ip (so there
+ * is no dns lookup) and are spread across the loops by crawl interface, each
+ * loop getting its own (loopback) interface.
+ *
+ * usage: MultiLoopFetchBenchmark [maxLoops] [totalSlots] [secondsPerRun] [responseSize]
+ *
+ * @author rana
+ *
+ */
+public class MultiLoopFetchBenchmark {
+
+  /** a trivial blocking http server that returns a fixed size document **/
+  static class StubHttpServer implements Runnable {
+
+    ServerSocket _socket;
+    ExecutorService _workers = Executors.newCachedThreadPool();
+    byte _response[];
+
+    StubHttpServer(int responseSize) throws IOException {
+      _socket = new ServerSocket(0,4096,InetAddress.getByName("127.0.0.1"));
+      String headers = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + responseSize + "\r\nConnection: close\r\n\r\n";
+      byte headerBytes[] = headers.getBytes("ASCII");
+      _response = new byte[headerBytes.length + responseSize];
+      System.arraycopy(headerBytes,0,_response,0,headerBytes.length);
+      for (int i=headerBytes.length;i<_response.length;++i)
+        _response[i] = 'x';
+    }
+
+    int getPort() {
+      return _socket.getLocalPort();
+    }
+
+    public void run() {
+      while (!_socket.isClosed()) {
+        try {
+          final Socket client = _socket.accept();
+          _workers.execute(new Runnable() {
+
+            public void run() {
+              try {
+                InputStream in = client.getInputStream();
+                byte buffer[] = new byte[4096];
+                int matched = 0;
+                // read until end of request headers
+                while (matched < 4) {
+                  int bytesRead = in.read(buffer);
+                  if (bytesRead == -1)
+                    break;
+                  for (int i=0;i<bytesRead && matched < 4;++i) {
+                    byte expected = (byte) ((matched % 2 == 0) ? '\r' : '\n');
+                    matched = (buffer[i] == expected) ? matched + 1 : ((buffer[i] == '\r') ? 1 : 0);
+                  }
+                }
+                OutputStream out = client.getOutputStream();
+                out.write(_response);
+                out.flush();
+              }
+              catch (IOException e) {
+              }
+              finally {
+                try { client.close(); } catch (IOException e) { }
+              }
+            }
+          });
+        }
+        catch (IOException e) {
+          // socket closed
+        }
+      }
+    }
+
+    void shutdown() throws IOException {
+      _socket.close();
+      _workers.shutdownNow();
+    }
+  }
+
+  /** feeds the fetcher from the owner loop, standing in for the CrawlQueue / CrawlList **/
+  static class FetchDriver implements HttpFetcher.TargetListener {
+
+    PartitionedHttpFetcher _fetcher;
+    String _url;
+    int    _serverIP;
+    int    _interfaceCount;
+    int    _nextInterface = 0;
+    long   _nextFingerprint = 0;
+    boolean _running = true;
+    volatile long _completed = 0;
+    volatile long _failed = 0;
+
+    FetchDriver(PartitionedHttpFetcher fetcher,String url,int serverIP,int interfaceCount) {
+      _fetcher = fetcher;
+      _url = url;
+      _serverIP = serverIP;
+      _interfaceCount = interfaceCount;
+    }
+
+    /** call from the owner loop **/
+    void queueTargets(int count) {
+      for (int i=0;i<count;++i)
+        queueTarget();
+    }
+
+    /** call from the owner loop **/
+    void stop() {
+      _running = false;
+      _fetcher.stop();
+    }
+
+    private void queueTarget() {
+      if (!_running)
+        return;
+      CrawlTarget target = new CrawlTarget(1,null,_url,_nextFingerprint++,null);
+      target.setServerIP(_serverIP);
+      target.setServerIPTTL(Long.MAX_VALUE);
+      target.setCrawlInterface(_nextInterface);
+      _nextInterface = (_nextInterface + 1) % _interfaceCount;
+      _fetcher.queueURL(target);
+    }
+
+    public void fetchStarting(CrawlTarget target,NIOHttpConnection connection) {
+      // NOOP
+    }
+
+    public void fetchStarted(CrawlTarget target) {
+      // NOOP
+    }
+
+    public void fetchSucceeded(CrawlTarget target,NIOHttpConnection connection) {
+      _completed++;
+      queueTarget();
+    }
+
+    public void fetchFailed(CrawlTarget target,int failureReason,String description) {
+      _failed++;
+      queueTarget();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    int maxLoops = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int totalSlots = (args.length > 1) ? Integer.parseInt(args[1]) : 512;
+    int secondsPerRun = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+    int responseSize = (args.length > 3) ? Integer.parseInt(args[3]) : 16384;
+
+    StubHttpServer server = new StubHttpServer(responseSize);
+    Thread serverThread = new Thread(server);
+    serverThread.setDaemon(true);
+    serverThread.start();
+
+    String url = "http://127.0.0.1:" + server.getPort() + "/";
+    int serverIP = IPAddressUtils.IPV4AddressToInteger(InetAddress.getByName("127.0.0.1").getAddress());
+
+    System.out.println("Stub Server at:" + url + " Slots:" + totalSlots + " ResponseSize:" + responseSize);
+
+    double baseline = 0;
+
+    for (int loopCount=1;loopCount<=maxLoops;loopCount *= 2) {
+
+      EventLoop ownerLoop = new EventLoop();
+      ownerLoop.start();
+      EventLoopGroup group = new EventLoopGroup(loopCount,1);
+      group.start();
+
+      // one interface per loop, so that targets partition evenly by interface
+      InetSocketAddress crawlInterfaces[] = new InetSocketAddress[loopCount];
+      for (int i=0;i<loopCount;++i)
+        crawlInterfaces[i] = new InetSocketAddress("127.0.0.1",0);
+
+      PartitionedHttpFetcher fetcher = new PartitionedHttpFetcher(totalSlots,crawlInterfaces,"MultiLoopFetchBenchmark",group,ownerLoop);
+      final FetchDriver driver = new FetchDriver(fetcher,url,serverIP,loopCount);
+      fetcher.setTargetListener(driver);
+      fetcher.start();
+
+      // keep twice the slot count queued, so that no slot waits on the owner loop
+      final int initialTargets = totalSlots * 2;
+      ownerLoop.queueRunnable(new Runnable() {
+        public void run() {
+          driver.queueTargets(initialTargets);
+        }
+      });
+
+      // warmup
+      Thread.sleep(2000);
+
+      long completedStart = driver._completed;
+      long failedStart = driver._failed;
+      long timeStart = System.currentTimeMillis();
+
+      Thread.sleep(secondsPerRun * 1000L);
+
+      long completedEnd = driver._completed;
+      long failedEnd = driver._failed;
+      long timeEnd = System.currentTimeMillis();
+
+      ownerLoop.queueRunnable(new Runnable() {
+        public void run() {
+          driver.stop();
+        }
+      });
+      Thread.sleep(500);
+      fetcher.shutdown();
+      group.stop();
+      ownerLoop.stop();
+
+      double fetchesPerSec = (double)(completedEnd - completedStart) / ((double)(timeEnd - timeStart) / 1000.0);
+      if (loopCount == 1)
+        baseline = fetchesPerSec;
+
+      System.out.println(String.format("Loops:%1$3d Fetches/Sec:%2$10.1f Scaling:%3$6.2fx Failures:%4$d",
+          loopCount,fetchesPerSec,fetchesPerSec / baseline,failedEnd - failedStart));
+    }
+
+    server.shutdown();
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.async.EventLoopGroup;
+import org.commoncrawl.crawl.statscollector.CrawlerStats;
+import org.commoncrawl.io.internal.NIOHttpConnection;
+import org.commoncrawl.util.internal.RuntimeStatsCollector;
+import org.commoncrawl.util.shared.MovingAverage;
+import org.commoncrawl.util.shared.SmoothedAverage;
+
+/**
+ * A Fetcher that spreads its socket slots across the loops of an EventLoopGroup.
+ *
+ * Each loop runs its own HttpFetcher over a share of the slots. Targets are bound
+ * to a loop by crawl interface (when there are at least as many interfaces as loops)
+ * or by server ip, so all requests to a given host / interface pair run on the same
+ * thread. The Fetcher methods are called from the owner (CrawlQueue) loop and are
+ * handed off to the fetch loops, and fetch results are handed back to the owner loop
+ * by the partitioned HttpFetchers.
+ *
+ * @author rana
+ *
+ */
+public final class PartitionedHttpFetcher implements Fetcher {
+
+  /** logging **/
+  private static final Log LOG = LogFactory.getLog(PartitionedHttpFetcher.class);
+
+  private EventLoopGroup      _loopGroup;
+  private HttpFetcher         _fetchers[];
+  private InetSocketAddress   _crawlInterfaces[];
+  private boolean             _partitionByInterface;
+
+  /** stats **/
+  private long           _snapshotTime = -1;
+  private long           _snapshotSuccessCount = 0;
+  private long           _snapshotDownloadAmt = 0;
+  private MovingAverage   _urlsPerSecMovingAverage = new MovingAverage(200);
+  private MovingAverage   _kbPerSecMovingAverage = new MovingAverage(200);
+  private SmoothedAverage _urlsPerSecSmoothed = new SmoothedAverage(.25);
+  private SmoothedAverage _kbPerSecSmoothed = new SmoothedAverage(.25);
+
+  public PartitionedHttpFetcher(int maxOpenSockets,InetSocketAddress[] crawlInterfaceList,String crawlerName,EventLoopGroup loopGroup,EventLoop ownerLoop) {
+    _loopGroup = loopGroup;
+    _crawlInterfaces = crawlInterfaceList;
+    _partitionByInterface = (_crawlInterfaces != null && _crawlInterfaces.length >= _loopGroup.getLoopCount());
+    _fetchers = new HttpFetcher[_loopGroup.getLoopCount()];
+
+    int slotsPerLoop = Math.max(1,maxOpenSockets / _fetchers.length);
+
+    for (int i=0;i<_fetchers.length;++i) {
+      _fetchers[i] = new HttpFetcher(slotsPerLoop,crawlInterfaceList,crawlerName,_loopGroup.getLoop(i),ownerLoop);
+    }
+    LOG.info("Partitioned Fetcher using:" + _fetchers.length + " loops with:" + slotsPerLoop
+        + " slots per loop. Partitioning By:" + ((_partitionByInterface) ? "Interface":"Server IP"));
+  }
+
+  /** pick the fetcher that owns the target (call from the owner loop) **/
+  private HttpFetcher getFetcherForTarget(CrawlTarget target) {
+    int key;
+    if (_partitionByInterface) {
+      key = HttpFetcher.selectCrawlInterface(target,_crawlInterfaces.length);
+      return _fetchers[key % _fetchers.length];
+    }
+    else {
+      if (_crawlInterfaces != null) {
+        // assign the interface here, since it touches the source list
+        HttpFetcher.selectCrawlInterface(target,_crawlInterfaces.length);
+      }
+      key = target.getServerIP();
+      if (key == 0 && target.getSourceList() != null) {
+        key = target.getSourceList().getListName().hashCode();
+      }
+      return _fetchers[_loopGroup.getLoopIndexForKey(key)];
+    }
+  }
+
+  /** route target events for all loops to the given listener (see HttpFetcher.setTargetListener) **/
+  void setTargetListener(HttpFetcher.TargetListener listener) {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.setTargetListener(listener);
+  }
+
+  public void start() {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.start();
+  }
+
+  public void stop() {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.stop();
+  }
+
+  public void pause() {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.pause();
+  }
+
+  public void resume() {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.resume();
+  }
+
+  public void clearQueues() {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.clearQueues();
+  }
+
+  public void shutdown() {
+    for (HttpFetcher fetcher : _fetchers)
+      fetcher.shutdown();
+  }
+
+  public void queueURLs(LinkedList<CrawlTarget> urlList) {
+    for (CrawlTarget target : urlList) {
+      queueURL(target);
+    }
+  }
+
+  public void queueURL(CrawlTarget target) {
+    getFetcherForTarget(target).queueURL(target);
+  }
+
+  public void collectStats(CrawlerStats crawlerStats,RuntimeStatsCollector stats) {
+
+    int activeCount = 0;
+    int pendingCount = 0;
+    long successCount = 0;
+    long failureCount = 0;
+    int resolvingCount = 0;
+    int connectingCount = 0;
+    int sendingCount = 0;
+    int receivingCount = 0;
+
+    StringBuffer sb = new StringBuffer();
+
+    for (int i=0;i<_fetchers.length;++i) {
+      HttpFetcher fetcher = _fetchers[i];
+
+      activeCount += fetcher.getActiveConnectionCount();
+      pendingCount += fetcher.getPendingCount();
+      successCount += fetcher.getSuccessCount();
+      failureCount += fetcher.getFailureCount();
+      resolvingCount += fetcher.getResolvingCount();
+      connectingCount += fetcher.getConnectingCount();
+      sendingCount += fetcher.getSendingCount();
+      receivingCount += fetcher.getReceivingCount();
+
+      sb.append("[Loop:" + i + " Active:" + fetcher.getActiveConnectionCount() + "/" + fetcher.getSlotCount()
+          + " Pending:" + fetcher.getPendingCount() + " RunQueue:" + _loopGroup.getLoop(i).getRunQueueDepth() + "]\n");
+    }
+
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ActiveConnections,activeCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_FetcherQueueSize,pendingCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_TotalSuccessfulConnects,(int)successCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_TotalFailedConnects,(int)failureCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionsInResolvingState,resolvingCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionsInConnectingState,connectingCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionsInSendingState,sendingCount);
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionsInRecevingState,receivingCount);
+
+    long curTime = System.currentTimeMillis();
+    double urlsPerSecond = 0;
+    double bytesPerSec = 0;
+    long bytesSnapShot = 0;
+
+    if (_snapshotTime != -1) {
+      double secondsElapsed = (double)(curTime - _snapshotTime) / 1000.00;
+
+      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_TimeDeltaBetweenSnapshots, (int)(curTime - _snapshotTime));
+
+      bytesSnapShot = NIOHttpConnection.getCumilativeBytesRead() - _snapshotDownloadAmt;
+
+      urlsPerSecond = (double)(successCount - _snapshotSuccessCount) / secondsElapsed;
+      bytesPerSec = (double)bytesSnapShot / secondsElapsed;
+
+      _urlsPerSecMovingAverage.addSample(urlsPerSecond);
+      _urlsPerSecSmoothed.addSample(urlsPerSecond);
+      _kbPerSecMovingAverage.addSample(bytesPerSec / 1000.00);
+      _kbPerSecSmoothed.addSample(bytesPerSec / 1000.00);
+    }
+    _snapshotTime = curTime;
+    _snapshotSuccessCount = successCount;
+    _snapshotDownloadAmt = NIOHttpConnection.getCumilativeBytesRead();
+
+    synchronized(crawlerStats) {
+      crawlerStats.setUrlsPerSecond((float)_urlsPerSecMovingAverage.getAverage());
+      crawlerStats.setMbytesDownPerSecond((float)(_kbPerSecMovingAverage .getAverage() / 1000.00 ));
+      crawlerStats.setBytesDownloaded(crawlerStats.getBytesDownloaded() + bytesSnapShot);
+    }
+
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_SnapshotURLSPerSecond,urlsPerSecond);
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_MovingAverageURLSPerSecond,_urlsPerSecMovingAverage.getAverage());
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_SmoothedURLSPerSecond,_urlsPerSecSmoothed.getAverage());
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_SnapshotKBPerSec,bytesPerSec/1000.00);
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_MovingAverageKBPerSec,_kbPerSecMovingAverage .getAverage());
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_SmoothedKBPerSec,_kbPerSecSmoothed.getAverage());
+    stats.setStringValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionMap,sb.toString());
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_CumilativeKBytesIN, NIOHttpConnection.getCumilativeBytesRead() / 1000);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_CumilativeKBytesOUT, NIOHttpConnection.getCumilativeBytesWritten() / 1000);
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+import org.commoncrawl.crawl.crawler.RobotRulesParser.RobotRuleSet;
+
+/**
+ * Times RobotRuleSet.isAllowed against the original approach (URLDecoder on
+ * every check, then a linear startsWith scan over the rules) for a large
+ * robots file, and reports bytes allocated per check. With no robots file
+ * given, a synthetic one is generated in the shape of big real world files
+ * (thousands of Disallow lines for catalog / search / session urls, a share
+ * of them using '*' and '$').
+ *
+ * usage: RobotRulesBenchmark [ruleCount|robotsFile] [pathCount] [iterations]
+ *
+ * @author rana
+ *
+ */
+public class RobotRulesBenchmark {
+
+  static final String SECTIONS[] = { "catalog","search","product","user","cgi-bin","tag","archive","print","cart","api" };
+
+  static String generateRobots(int ruleCount,Random random) {
+    StringBuilder robots = new StringBuilder();
+    robots.append("# generated\nUser-agent: *\nCrawl-delay: 1\n");
+    for (int i=0;i<ruleCount;++i) {
+      String section = SECTIONS[random.nextInt(SECTIONS.length)];
+      switch (random.nextInt(10)) {
+        case 0:  robots.append("Disallow: /*?sessionid=" + i + "\n"); break;
+        case 1:  robots.append("Disallow: /" + section + "/*/print" + i + "$\n"); break;
+        case 2:  robots.append("Allow: /" + section + "/public" + i + "/\n"); break;
+        case 3:  robots.append("Disallow: /" + section + "/%E4%B8%AD" + i + "/\n"); break;
+        default: robots.append("Disallow: /" + section + "/" + Integer.toHexString(random.nextInt()) + "/" + i + "\n"); break;
+      }
+    }
+    return robots.toString();
+  }
+
+  static String[] generatePaths(int count,Random random) {
+    String paths[] = new String[count];
+    for (int i=0;i<count;++i) {
+      String section = SECTIONS[random.nextInt(SECTIONS.length)];
+      switch (random.nextInt(4)) {
+        case 0:  paths[i] = "/" + section + "/item" + random.nextInt(100000) + ".html?sessionid=" + random.nextInt(5000); break;
+        case 1:  paths[i] = "/" + section + "/%E4%B8%AD" + random.nextInt(5000) + "/index.html"; break;
+        case 2:  paths[i] = "/" + section + "/page/print" + random.nextInt(5000); break;
+        default: paths[i] = "/" + section + "/" + Integer.toHexString(random.nextInt()) + "/" + random.nextInt(100); break;
+      }
+    }
+    return paths;
+  }
+
+  /** the pre-compiled matcher: decode every path, then a linear prefix scan (no wildcard support) **/
+  static final class LinearRules {
+    ArrayList<String>  prefixes = new ArrayList<String>();
+    ArrayList<Boolean> allowed = new ArrayList<Boolean>();
+
+    LinearRules(String robots) {
+      StringTokenizer lines = new StringTokenizer(robots,"\n\r");
+      while (lines.hasMoreTokens()) {
+        String line = lines.nextToken().trim();
+        boolean allow = line.regionMatches(true,0,"Allow:",0,6);
+        if (allow || line.regionMatches(true,0,"Disallow:",0,9)) {
+          String path = line.substring(line.indexOf(':') + 1).trim();
+          try {
+            path = URLDecoder.decode(path,"UTF-8");
+          }
+          catch (Exception e) {
+          }
+          if (path.length() != 0) {
+            prefixes.add(path);
+            allowed.add(allow);
+          }
+        }
+      }
+    }
+
+    boolean isAllowed(String path) {
+      try {
+        path = URLDecoder.decode(path,"UTF-8");
+      }
+      catch (Exception e) {
+      }
+      for (int i=0;i<prefixes.size();++i) {
+        if (path.startsWith(prefixes.get(i)))
+          return allowed.get(i);
+      }
+      return true;
+    }
+  }
+
+  static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String source  = (args.length > 0) ? args[0] : "5000";
+    int pathCount  = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+    int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+
+    Random random = new Random(1);
+    String robots;
+    if (source.matches("[0-9]+")) {
+      robots = generateRobots(Integer.parseInt(source),random);
+    }
+    else {
+      InputStream in = new FileInputStream(source);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte buffer[] = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1)
+        out.write(buffer,0,read);
+      in.close();
+      robots = out.toString("UTF-8");
+    }
+    String paths[] = generatePaths(pathCount,random);
+
+    long startTime = System.nanoTime();
+    RobotRulesParser parser = new RobotRulesParser(new String[] { "ccbot" });
+    byte robotsBytes[] = robots.getBytes("UTF-8");
+    RobotRuleSet ruleSet = parser.parseRules(robotsBytes,0,robotsBytes.length);
+    System.out.println("Robots:" + robotsBytes.length + " bytes Parse+Compile:" + (System.nanoTime() - startTime) / 1000 + "us EstimatedSize:" + ruleSet.getEstimatedSize()
+        + " Paths:" + pathCount + " Iterations:" + iterations);
+
+    LinearRules linear = new LinearRules(robots);
+
+    for (int pass=0;pass<3;++pass) {
+      long sink = 0;
+
+      long allocStart = allocatedBytes();
+      startTime = System.nanoTime();
+      for (int i=0;i<iterations;++i) {
+        for (String path : paths) {
+          if (linear.isAllowed(path))
+            sink++;
+        }
+      }
+      long linearTime = System.nanoTime() - startTime;
+      long linearAlloc = allocatedBytes() - allocStart;
+
+      allocStart = allocatedBytes();
+      startTime = System.nanoTime();
+      for (int i=0;i<iterations;++i) {
+        for (String path : paths) {
+          if (ruleSet.isAllowed(path))
+            sink++;
+        }
+      }
+      long compiledTime = System.nanoTime() - startTime;
+      long compiledAlloc = allocatedBytes() - allocStart;
+
+      long checks = (long)iterations * pathCount;
+      System.out.println(String.format("Pass %d Linear: %8.1f ns/check %8.1f bytes/check  Compiled: %8.1f ns/check %8.1f bytes/check  (%d)",
+          pass,(double)linearTime / checks,(double)linearAlloc / checks,(double)compiledTime / checks,(double)compiledAlloc / checks,sink));
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.commoncrawl.crawl.crawler.RobotRulesParser.RobotRuleSet;
+import org.commoncrawl.util.internal.RuntimeStatsCollector;
+
+/**
+ * Process wide cache of compiled robots rule sets, keyed by the 64 bit
+ * fingerprint (FPGenerator.std64) and length of the robots.txt content, which
+ * keeps the odds of two distinct files sharing an entry negligible at the
+ * cache's entry count. Shared hosting and CDN ips tend to serve byte identical
+ * robots files, so hosts resolve to one immutable RobotRuleSet rather than each
+ * parsing and holding a copy. Entries are evicted in LRU order once the
+ * estimated size (or entry count) of the cache exceeds its budget.
+ *
+ * Accessed from the event loop (lookups) and the robots parser pool (parse
+ * de-duplication), hence synchronized.
+ *
+ * @author rana
+ *
+ */
+public final class RobotRulesCache {
+
+  /** default budget **/
+  public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+  public static final int  DEFAULT_MAX_ENTRIES = 100000;
+
+  private static final RobotRulesCache _singleton = new RobotRulesCache(DEFAULT_MAX_BYTES,DEFAULT_MAX_ENTRIES);
+
+  public static RobotRulesCache getSingleton() {
+    return _singleton;
+  }
+
+  /** content fingerprint + length **/
+  private static final class CacheKey {
+    long _fp;
+    int  _length;
+
+    CacheKey(long fp,int length) {
+      _fp = fp;
+      _length = length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof CacheKey))
+        return false;
+      CacheKey otherKey = (CacheKey)other;
+      return _fp == otherKey._fp && _length == otherKey._length;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int)(_fp ^ (_fp >>> 32)) * 31 + _length;
+    }
+  }
+
+  private static final class CacheEntry {
+    RobotRuleSet _ruleSet;
+    int          _size;
+  }
+
+  private long _maxBytes;
+  private int  _maxEntries;
+  private long _totalBytes = 0;
+
+  private long _hitCount = 0;
+  private long _missCount = 0;
+  private long _evictionCount = 0;
+  /** bytes of rule sets that did not have to be parsed and held again thanks to a hit **/
+  private long _bytesSaved = 0;
+
+  private LinkedHashMap<CacheKey,CacheEntry> _entries = new LinkedHashMap<CacheKey,CacheEntry>(1024,0.75f,true);
+
+  RobotRulesCache(long maxBytes,int maxEntries) {
+    _maxBytes = maxBytes;
+    _maxEntries = maxEntries;
+  }
+
+  public synchronized void setLimits(long maxBytes,int maxEntries) {
+    _maxBytes = maxBytes;
+    _maxEntries = maxEntries;
+    evict();
+  }
+
+  /** lookup a rule set by robots content fingerprint and length, returns null on a miss **/
+  public synchronized RobotRuleSet get(long robotsFP,int robotsLength) {
+    CacheEntry entry = _entries.get(new CacheKey(robotsFP,robotsLength));
+    if (entry == null) {
+      _missCount++;
+      return null;
+    }
+    _hitCount++;
+    _bytesSaved += entry._size;
+    return entry._ruleSet;
+  }
+
+  /**
+   * cache a (compiled) rule set. if a rule set with the same fingerprint and
+   * length is already present the cached instance is returned and should be
+   * used in place of the passed in one.
+   */
+  public synchronized RobotRuleSet put(long robotsFP,int robotsLength,RobotRuleSet ruleSet) {
+    CacheKey key = new CacheKey(robotsFP,robotsLength);
+    CacheEntry entry = _entries.get(key);
+    if (entry != null) {
+      return entry._ruleSet;
+    }
+    entry = new CacheEntry();
+    entry._ruleSet = ruleSet;
+    // entry + key + map node
+    entry._size = ruleSet.getEstimatedSize() + 24 + 24 + 40;
+    _entries.put(key,entry);
+    _totalBytes += entry._size;
+    evict();
+    return ruleSet;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<CacheKey,CacheEntry>> iterator = _entries.entrySet().iterator();
+    while ((_totalBytes > _maxBytes || _entries.size() > _maxEntries) && iterator.hasNext()) {
+      CacheEntry oldest = iterator.next().getValue();
+      iterator.remove();
+      _totalBytes -= oldest._size;
+      _evictionCount++;
+    }
+  }
+
+  public synchronized int getEntryCount() { return _entries.size(); }
+  public synchronized long getSizeInBytes() { return _totalBytes; }
+  public synchronized long getHitCount() { return _hitCount; }
+  public synchronized long getMissCount() { return _missCount; }
+  public synchronized long getEvictionCount() { return _evictionCount; }
+  public synchronized long getBytesSaved() { return _bytesSaved; }
+
+  public synchronized double getHitRatio() {
+    long lookups = _hitCount + _missCount;
+    return (lookups == 0) ? 0.0 : (double)_hitCount / (double)lookups;
+  }
+
+  synchronized void collectStats(RuntimeStatsCollector stats) {
+    stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_EntryCount,_entries.size());
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_SizeInBytes,_totalBytes);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_Hits,_hitCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_Misses,_missCount);
+    stats.setDoubleValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_HitRatio,getHitRatio());
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_Evictions,_evictionCount);
+    stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.RobotsCache_BytesSaved,_bytesSaved);
+  }
+}
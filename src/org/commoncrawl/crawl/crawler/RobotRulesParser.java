@@ -39,8 +39,8 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.LineNumberReader;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 
@@ -66,10 +66,9 @@ public final class RobotRulesParser implements Configurable {
 
   private boolean allowForbidden = false;
 
-  private static final String CHARACTER_ENCODING= "UTF-8";
   private static final int NO_PRECEDENCE= Integer.MAX_VALUE;
     
-  private static final RobotRuleSet EMPTY_RULES= new RobotRuleSet();
+  private static final RobotRuleSet EMPTY_RULES= buildEmptyRules();
 
   private static RobotRuleSet FORBID_ALL_RULES = getForbidAllRules();
 
@@ -86,6 +85,11 @@ public final class RobotRulesParser implements Configurable {
     long expireTime;
     long crawlDelay = -1;
     public boolean explicitMention = false;
+    /** compiled form of entries, built by compile() (volatile, as it may be built lazily - see ensureCompiled) **/
+    volatile PrefixNode root = null;
+    /** match states by id, if the rules contain wildcards (null otherwise) **/
+    PrefixNode[] states = null;
+    int estimatedSize = 0;
 
     /**
      */
@@ -99,9 +103,358 @@ public final class RobotRulesParser implements Configurable {
       }
     }
 
+    /**
+     * A trie over the decoded (utf-8, percent escapes resolved) bytes of the
+     * rules, with '*' as an extra edge (star) whose target continues the
+     * pattern after the wildcard. Single child chains are collapsed into the
+     * segment of bytes a node must match after its label. Per node:
+     * rule is the earliest rule ending at the node (a prefix match),
+     * exactRule the earliest '$' anchored rule ending at the node (applies
+     * only at the end of the path), and minRule the earliest rule anywhere in
+     * the subtree, used to prune the search. A path matches the earliest rule
+     * it reaches - the same answer as the first match of a linear scan.
+     *
+     * Tries with wildcards are matched as an NFA: a match state is a node plus
+     * the number of its segment bytes matched so far, or a node's star loop
+     * (the wildcard absorbing bytes). Each node owns the state ids from
+     * stateBase on, so the active state set is bounded by the size of the
+     * trie and a check costs O(path length * trie size), however many
+     * wildcards the rules contain.
+     */
+    static final class PrefixNode {
+      static final byte[] NO_BYTES = new byte[0];
+      static final PrefixNode[] NO_CHILDREN = new PrefixNode[0];
+      static final int NO_RULE = Integer.MAX_VALUE;
+
+      byte[]       segment = NO_BYTES;
+      byte[]       labels = NO_BYTES;
+      PrefixNode[] children = NO_CHILDREN;
+      PrefixNode   star = null;
+      int          rule = NO_RULE;
+      int          exactRule = NO_RULE;
+      int          minRule = NO_RULE;
+      int          stateBase = 0;
+
+      PrefixNode child(int b) {
+        int low = 0;
+        int high = labels.length - 1;
+        while (low <= high) {
+          int mid = (low + high) >>> 1;
+          int label = labels[mid] & 0xFF;
+          if (label < b)
+            low = mid + 1;
+          else if (label > b)
+            high = mid - 1;
+          else
+            return children[mid];
+        }
+        return null;
+      }
+
+      PrefixNode addChild(int b) {
+        int pos = 0;
+        while (pos < labels.length && (labels[pos] & 0xFF) < b)
+          pos++;
+        if (pos < labels.length && (labels[pos] & 0xFF) == b)
+          return children[pos];
+
+        byte newLabels[] = new byte[labels.length + 1];
+        PrefixNode newChildren[] = new PrefixNode[children.length + 1];
+        System.arraycopy(labels,0,newLabels,0,pos);
+        System.arraycopy(children,0,newChildren,0,pos);
+        System.arraycopy(labels,pos,newLabels,pos + 1,labels.length - pos);
+        System.arraycopy(children,pos,newChildren,pos + 1,children.length - pos);
+        PrefixNode node = new PrefixNode();
+        newLabels[pos] = (byte)b;
+        newChildren[pos] = node;
+        labels = newLabels;
+        children = newChildren;
+        return node;
+      }
+
+      PrefixNode addStar() {
+        if (star == null)
+          star = new PrefixNode();
+        return star;
+      }
+
+      /**
+       * collapse single child chains and compute minRule, bottom up.
+       * returns the estimated bytes of the subtree
+       */
+      int finish() {
+        int size = 52 + (16 + segment.length) + (16 + labels.length) + (16 + children.length * 4);
+        minRule = Math.min(rule,exactRule);
+        for (int i=0;i<children.length;++i) {
+          PrefixNode child = children[i];
+          while (child.labels.length == 1 && child.star == null && child.rule == NO_RULE && child.exactRule == NO_RULE) {
+            PrefixNode next = child.children[0];
+            byte merged[] = new byte[child.segment.length + 1 + next.segment.length];
+            System.arraycopy(child.segment,0,merged,0,child.segment.length);
+            merged[child.segment.length] = child.labels[0];
+            System.arraycopy(next.segment,0,merged,child.segment.length + 1,next.segment.length);
+            next.segment = merged;
+            child = next;
+          }
+          children[i] = child;
+          size += child.finish();
+          minRule = Math.min(minRule,child.minRule);
+        }
+        if (star != null) {
+          size += star.finish();
+          minRule = Math.min(minRule,star.minRule);
+        }
+        return size;
+      }
+
+      /** true if the subtree contains a wildcard **/
+      boolean hasStar() {
+        if (star != null)
+          return true;
+        for (PrefixNode child : children) {
+          if (child.hasStar())
+            return true;
+        }
+        return false;
+      }
+
+      /** number the match states of the subtree from nextState on, returns the next free id **/
+      int assignStates(int nextState,ArrayList<PrefixNode> states) {
+        stateBase = nextState;
+        int count = segment.length + 1 + ((star != null) ? 1 : 0);
+        for (int i=0;i<count;++i)
+          states.add(this);
+        nextState += count;
+        for (PrefixNode child : children)
+          nextState = child.assignStates(nextState,states);
+        if (star != null)
+          nextState = star.assignStates(nextState,states);
+        return nextState;
+      }
+
+      /**
+       * the earliest rule matched by the path, for tries without wildcards
+       * (a single walk down the trie)
+       */
+      int match(String path) {
+        int best = NO_RULE;
+        int cursor = 0;
+        PrefixNode node = this;
+        while (node.minRule < best) {
+          byte segment[] = node.segment;
+          for (int i=0;i<segment.length;++i) {
+            if (PathCursor.atEnd(path,cursor) || PathCursor.byteAt(path,cursor) != (segment[i] & 0xFF))
+              return best;
+            cursor = PathCursor.advance(path,cursor);
+          }
+          boolean atEnd = PathCursor.atEnd(path,cursor);
+          if (node.rule < best)
+            best = node.rule;
+          if (atEnd && node.exactRule < best)
+            best = node.exactRule;
+          if (atEnd)
+            break;
+          node = node.child(PathCursor.byteAt(path,cursor));
+          if (node == null)
+            break;
+          cursor = PathCursor.advance(path,cursor);
+        }
+        return best;
+      }
+    }
+
+    /** per thread state sets for wildcard matching (rule sets are shared across threads) **/
+    static final class MatchScratch {
+      int current[] = new int[64];
+      int next[] = new int[64];
+      int marks[] = new int[64];
+      int generation = 0;
+      int nextCount;
+
+      void reset(int stateCount) {
+        if (marks.length < stateCount) {
+          current = new int[stateCount];
+          next = new int[stateCount];
+          marks = new int[stateCount];
+          generation = 0;
+        }
+      }
+
+      /** start a new (empty) next set **/
+      void startSet() {
+        if (++generation == Integer.MAX_VALUE) {
+          Arrays.fill(marks,0);
+          generation = 1;
+        }
+        nextCount = 0;
+      }
+
+      /** add a state (and the states reachable from it without consuming a byte) to the next set **/
+      void add(PrefixNode node,int offset) {
+        int state = node.stateBase + offset;
+        if (marks[state] == generation)
+          return;
+        marks[state] = generation;
+        next[nextCount++] = state;
+        if (offset == node.segment.length && node.star != null) {
+          // entering the star loop 
+          add(node,offset + 1);
+        }
+        else if (offset > node.segment.length) {
+          // the wildcard can stop absorbing bytes at any point 
+          add(node.star,0);
+        }
+      }
+
+      void swap() {
+        int swap[] = current;
+        current = next;
+        next = swap;
+      }
+    }
+
+    private static final ThreadLocal<MatchScratch> matchScratch = new ThreadLocal<MatchScratch>() {
+      @Override
+      protected MatchScratch initialValue() {
+        return new MatchScratch();
+      }
+    };
+
+    /** the earliest rule matched by the path, for tries with wildcards (see PrefixNode) **/
+    private int matchStates(String path) {
+      MatchScratch scratch = matchScratch.get();
+      scratch.reset(states.length);
+      scratch.startSet();
+      scratch.add(root,0);
+      scratch.swap();
+      int count = scratch.nextCount;
+
+      int best = PrefixNode.NO_RULE;
+      int cursor = 0;
+      while (count != 0) {
+        boolean atEnd = PathCursor.atEnd(path,cursor);
+        int current[] = scratch.current;
+        // states at the end of their node's segment match the node's rules
+        for (int i=0;i<count;++i) {
+          PrefixNode node = states[current[i]];
+          if (current[i] - node.stateBase == node.segment.length) {
+            if (node.rule < best)
+              best = node.rule;
+            if (atEnd && node.exactRule < best)
+              best = node.exactRule;
+          }
+        }
+        if (atEnd)
+          break;
+
+        int b = PathCursor.byteAt(path,cursor);
+        scratch.startSet();
+        for (int i=0;i<count;++i) {
+          int state = current[i];
+          PrefixNode node = states[state];
+          int offset = state - node.stateBase;
+          if (offset > node.segment.length) {
+            // star loop - absorbs the byte
+            if (node.star.minRule < best)
+              scratch.add(node,offset);
+          }
+          else if (node.minRule < best) {
+            if (offset < node.segment.length) {
+              if ((node.segment[offset] & 0xFF) == b)
+                scratch.add(node,offset + 1);
+            }
+            else {
+              PrefixNode child = node.child(b);
+              if (child != null && child.minRule < best)
+                scratch.add(child,0);
+            }
+          }
+        }
+        scratch.swap();
+        count = scratch.nextCount;
+        cursor = PathCursor.advance(path,cursor);
+      }
+      return best;
+    }
+
+    /**
+     * Walks a path String as the utf-8 bytes of its percent decoded form,
+     * decoding as it goes. A cursor is an int: (char index << 2) | byte index
+     * within the current (multi-byte) character. '%' not followed by two hex
+     * digits is taken literally.
+     */
+    static final class PathCursor {
+
+      static boolean atEnd(String path,int cursor) {
+        return (cursor >>> 2) >= path.length();
+      }
+
+      /** the (unsigned) byte at the cursor **/
+      static int byteAt(String path,int cursor) {
+        int i = cursor >>> 2;
+        char c = path.charAt(i);
+        if (c < 0x80) {
+          if (c == '%' && i + 2 < path.length()) {
+            int hi = Character.digit(path.charAt(i + 1),16);
+            int lo = Character.digit(path.charAt(i + 2),16);
+            if (hi != -1 && lo != -1)
+              return (hi << 4) | lo;
+          }
+          return c;
+        }
+        int sub = cursor & 3;
+        if (c < 0x800) {
+          return (sub == 0) ? 0xC0 | (c >> 6) : 0x80 | (c & 0x3F);
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < path.length() && Character.isLowSurrogate(path.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c,path.charAt(i + 1));
+          switch (sub) {
+            case 0:  return 0xF0 | (cp >> 18);
+            case 1:  return 0x80 | ((cp >> 12) & 0x3F);
+            case 2:  return 0x80 | ((cp >> 6) & 0x3F);
+            default: return 0x80 | (cp & 0x3F);
+          }
+        }
+        if (Character.isSurrogate(c)) {
+          // unpaired surrogate, encoded as '?' (as String.getBytes would)
+          return '?';
+        }
+        switch (sub) {
+          case 0:  return 0xE0 | (c >> 12);
+          case 1:  return 0x80 | ((c >> 6) & 0x3F);
+          default: return 0x80 | (c & 0x3F);
+        }
+      }
+
+      /** the cursor of the next byte **/
+      static int advance(String path,int cursor) {
+        int i = cursor >>> 2;
+        char c = path.charAt(i);
+        if (c < 0x80) {
+          if (c == '%' && i + 2 < path.length()
+              && Character.digit(path.charAt(i + 1),16) != -1 && Character.digit(path.charAt(i + 2),16) != -1) {
+            return (i + 3) << 2;
+          }
+          return (i + 1) << 2;
+        }
+        int sub = cursor & 3;
+        if (c < 0x800) {
+          return (sub == 1) ? (i + 1) << 2 : cursor + 1;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < path.length() && Character.isLowSurrogate(path.charAt(i + 1))) {
+          return (sub == 3) ? (i + 2) << 2 : cursor + 1;
+        }
+        if (Character.isSurrogate(c)) {
+          return (i + 1) << 2;
+        }
+        return (sub == 2) ? (i + 1) << 2 : cursor + 1;
+      }
+    }
+
     /**
      */
     private void addPrefix(String prefix, boolean allow) {
+      root = null;
       if (tmpEntries == null) {
         tmpEntries= new ArrayList();
         if (entries != null) {
@@ -117,6 +470,7 @@ public final class RobotRulesParser implements Configurable {
     /**
      */
     private void clearPrefixes() {
+      root = null;
       if (tmpEntries == null) {
         tmpEntries= new ArrayList();
         entries= null;
@@ -159,9 +513,9 @@ public final class RobotRulesParser implements Configurable {
      *  <code>true</code> otherwise.
      */
     public boolean isAllowed(URL url) {
-      String path = url.getPath();                  // check rules
-      if ((path == null) || "".equals(path)) {
-        path= "/";
+      String path = url.getFile();                  // check rules (path + query)
+      if ((path == null) || "".equals(path) || path.charAt(0) != '/') {
+        path= "/" + ((path == null) ? "" : path);
       }
       return isAllowed(path);
     }
@@ -169,16 +523,27 @@ public final class RobotRulesParser implements Configurable {
     /** 
      *  Returns <code>false</code> if the <code>robots.txt</code> file
      *  prohibits us from accessing the given <code>path</code>, or
-     *  <code>true</code> otherwise.
+     *  <code>true</code> otherwise. Percent escapes in the path are
+     *  decoded as it is matched, and nothing is allocated per check.
      */ 
     public boolean isAllowed(String path) {
-      try {
-        path= URLDecoder.decode(path, CHARACTER_ENCODING);
-      } catch (Exception e) {
-        // just ignore it- we can still try to match 
-        // path prefixes
+      PrefixNode node = root;
+      if (node == null) {
+        ensureCompiled();
+        node = root;
       }
-      
+      int rule = (states != null) ? matchStates(path) : node.match(path);
+      return (rule == PrefixNode.NO_RULE) ? true : entries[rule].allowed;
+    }
+
+    /**
+     * Freeze the rule list and build the prefix trie. '*' matches any
+     * sequence, a trailing '$' anchors a rule to the end of the path and
+     * trailing '*'s are dropped. Rule sets are compiled before they are
+     * handed out, after which they are immutable and can be shared across
+     * hosts (see RobotRulesCache).
+     */
+    void compile() {
       if (entries == null) {
         entries= new RobotsEntry[tmpEntries.size()];
         entries= (RobotsEntry[]) 
@@ -186,21 +551,82 @@ public final class RobotRulesParser implements Configurable {
         tmpEntries= null;
       }
 
-      int pos= 0;
-      int end= entries.length;
-      while (pos < end) {
-        if (path.startsWith(entries[pos].prefix))
-          return entries[pos].allowed;
-        pos++;
+      PrefixNode newRoot = new PrefixNode();
+      int size = 64 + 16 + entries.length * 4;
+      for (int i= 0; i < entries.length; i++) {
+        String prefix = entries[i].prefix;
+        size += 24 + 40 + prefix.length() * 2;
+
+        int end = prefix.length();
+        boolean anchored = false;
+        if (end != 0 && prefix.charAt(end - 1) == '$') {
+          anchored = true;
+          end--;
+        }
+        while (end != 0 && prefix.charAt(end - 1) == '*') {
+          anchored = false;
+          end--;
+        }
+
+        // decode the rule the same way paths are decoded
+        PrefixNode node = newRoot;
+        boolean lastWasStar = false;
+        for (int cursor = 0; (cursor >>> 2) < end; cursor = PathCursor.advance(prefix,cursor)) {
+          if ((cursor & 3) == 0 && prefix.charAt(cursor >>> 2) == '*') {
+            if (!lastWasStar)
+              node = node.addStar();
+            lastWasStar = true;
+          }
+          else {
+            node = node.addChild(PathCursor.byteAt(prefix,cursor));
+            lastWasStar = false;
+          }
+        }
+        // first rule wins
+        if (anchored) {
+          if (node.exactRule == PrefixNode.NO_RULE)
+            node.exactRule = i;
+        }
+        else if (node.rule == PrefixNode.NO_RULE) {
+          node.rule = i;
+        }
+      }
+      size += newRoot.finish();
+
+      PrefixNode newStates[] = null;
+      if (newRoot.hasStar()) {
+        ArrayList<PrefixNode> stateList = new ArrayList<PrefixNode>();
+        newRoot.assignStates(0,stateList);
+        newStates = stateList.toArray(new PrefixNode[stateList.size()]);
+        size += 16 + newStates.length * 4;
       }
 
-      return true;
+      estimatedSize = size;
+      states = newStates;
+      root = newRoot;
+    }
+
+    /** 
+     * compile a rule set used before it was compiled. rule sets handed out by the parser 
+     * are already compiled, this only guards against threads racing through compile().
+     */
+    private synchronized void ensureCompiled() {
+      if (root == null)
+        compile();
+    }
+
+    /** estimated heap footprint of the rule set in bytes **/
+    public int getEstimatedSize() {
+      if (root == null)
+        ensureCompiled();
+      return estimatedSize;
     }
 
     /**
      */
     public String toString() {
-      isAllowed("x");  // force String[] representation
+      if (root == null)
+        ensureCompiled();  // force String[] representation
       StringBuffer buf= new StringBuffer();
       for (int i= 0; i < entries.length; i++) 
         if (entries[i].allowed)
@@ -370,13 +796,7 @@ public final class RobotRulesParser implements Configurable {
         doneAgents= true;
         String path= line.substring(line.indexOf(":") + 1);
         path= path.trim();
-        try {
-          path= URLDecoder.decode(path, CHARACTER_ENCODING);
-        } catch (Exception e) {
-          if (LOG.isWarnEnabled()) {
-            LOG.warn("error parsing robots rules- can't decode path: " + path);
-          }
-        }
+        // percent escapes are decoded when the rule set is compiled
 
         if (path.length() == 0) { // "empty rule"
           if (addRules)
@@ -426,6 +846,7 @@ public final class RobotRulesParser implements Configurable {
 
     if (bestPrecedenceSoFar == NO_PRECEDENCE) 
       return EMPTY_RULES;
+    bestRulesSoFar.compile();
     return bestRulesSoFar;
   }
 
@@ -438,6 +859,13 @@ public final class RobotRulesParser implements Configurable {
     return EMPTY_RULES;
   }
 
+  /** build the shared (compiled) empty rule set **/
+  private static RobotRuleSet buildEmptyRules() {
+    RobotRuleSet rules= new RobotRuleSet();
+    rules.compile();
+    return rules;
+  }
+
   /**
    *  Returns a <code>RobotRuleSet</code> object appropriate for use
    *  when the <code>robots.txt</code> file is not fetched due to a
@@ -447,6 +875,7 @@ public final class RobotRulesParser implements Configurable {
   static RobotRuleSet getForbidAllRules() {
     RobotRuleSet rules= new RobotRuleSet();
     rules.addPrefix("", false);
+    rules.compile();
     return rules;
   }
   
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * An indexed binary min-heap of slot numbers (0..slotCount-1) ordered by deadline.
+ * Each slot is in the queue at most once, and can be added, re-scheduled or removed
+ * in O(log n). Used by the fetcher to find expired connections without walking
+ * every slot.
+ *
+ * @author rana
+ *
+ */
+final class SlotDeadlineQueue {
+
+  private int  _heap[];
+  private int  _heapPos[];
+  private long _deadline[];
+  private int  _size = 0;
+
+  SlotDeadlineQueue(int slotCount) {
+    _heap = new int[slotCount];
+    _heapPos = new int[slotCount];
+    _deadline = new long[slotCount];
+    for (int i=0;i<slotCount;++i)
+      _heapPos[i] = -1;
+  }
+
+  int size() {
+    return _size;
+  }
+
+  boolean contains(int slot) {
+    return _heapPos[slot] != -1;
+  }
+
+  /** add the slot, or move it if already scheduled **/
+  void schedule(int slot,long deadline) {
+    int pos = _heapPos[slot];
+    if (pos == -1) {
+      pos = _size++;
+      _heap[pos] = slot;
+      _heapPos[slot] = pos;
+      _deadline[slot] = deadline;
+      siftUp(pos);
+    }
+    else {
+      long oldDeadline = _deadline[slot];
+      _deadline[slot] = deadline;
+      if (deadline < oldDeadline)
+        siftUp(pos);
+      else
+        siftDown(pos);
+    }
+  }
+
+  void remove(int slot) {
+    int pos = _heapPos[slot];
+    if (pos == -1)
+      return;
+    _heapPos[slot] = -1;
+    int last = _heap[--_size];
+    if (pos != _size) {
+      _heap[pos] = last;
+      _heapPos[last] = pos;
+      siftDown(pos);
+      siftUp(_heapPos[last]);
+    }
+  }
+
+  /** remove and return the earliest slot if its deadline is <= time, otherwise -1 **/
+  int pollExpired(long time) {
+    if (_size == 0 || _deadline[_heap[0]] > time)
+      return -1;
+    int slot = _heap[0];
+    remove(slot);
+    return slot;
+  }
+
+  void clear() {
+    for (int i=0;i<_size;++i)
+      _heapPos[_heap[i]] = -1;
+    _size = 0;
+  }
+
+  private void siftUp(int pos) {
+    int slot = _heap[pos];
+    long deadline = _deadline[slot];
+    while (pos > 0) {
+      int parentPos = (pos - 1) >>> 1;
+      int parent = _heap[parentPos];
+      if (_deadline[parent] <= deadline)
+        break;
+      _heap[pos] = parent;
+      _heapPos[parent] = pos;
+      pos = parentPos;
+    }
+    _heap[pos] = slot;
+    _heapPos[slot] = pos;
+  }
+
+  private void siftDown(int pos) {
+    int slot = _heap[pos];
+    long deadline = _deadline[slot];
+    int half = _size >>> 1;
+    while (pos < half) {
+      int childPos = (pos << 1) + 1;
+      int child = _heap[childPos];
+      int rightPos = childPos + 1;
+      if (rightPos < _size && _deadline[_heap[rightPos]] < _deadline[child]) {
+        childPos = rightPos;
+        child = _heap[childPos];
+      }
+      if (deadline <= _deadline[child])
+        break;
+      _heap[pos] = child;
+      _heapPos[child] = pos;
+      pos = childPos;
+    }
+    _heap[pos] = slot;
+    _heapPos[slot] = pos;
+  }
+
+  @Test
+  public void testDeadlineOrder() throws Exception {
+    final int slotCount = 64;
+    SlotDeadlineQueue queue = new SlotDeadlineQueue(slotCount);
+    // reference deadlines, -1 == not scheduled
+    long expected[] = new long[slotCount];
+    for (int i=0;i<slotCount;++i)
+      expected[i] = -1;
+
+    Random random = new Random(1);
+    long time = 0;
+    for (int op=0;op<100000;++op) {
+      int slot = random.nextInt(slotCount);
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1: {
+          long deadline = time + random.nextInt(1000);
+          queue.schedule(slot,deadline);
+          expected[slot] = deadline;
+        }
+        break;
+        case 2: {
+          queue.remove(slot);
+          expected[slot] = -1;
+        }
+        break;
+        case 3: {
+          time += random.nextInt(100);
+          // expired slots must come out earliest deadline first
+          long lastDeadline = Long.MIN_VALUE;
+          int expiredSlot;
+          while ((expiredSlot = queue.pollExpired(time)) != -1) {
+            assertTrue(expected[expiredSlot] != -1);
+            assertTrue(expected[expiredSlot] <= time);
+            assertTrue(expected[expiredSlot] >= lastDeadline);
+            lastDeadline = expected[expiredSlot];
+            expected[expiredSlot] = -1;
+          }
+          for (int i=0;i<slotCount;++i)
+            assertTrue(expected[i] == -1 || expected[i] > time);
+        }
+        break;
+      }
+      int scheduled = 0;
+      for (int i=0;i<slotCount;++i) {
+        assertEquals(expected[i] != -1,queue.contains(i));
+        if (expected[i] != -1)
+          scheduled++;
+      }
+      assertEquals(scheduled,queue.size());
+    }
+
+    queue.clear();
+    assertEquals(0,queue.size());
+    for (int i=0;i<slotCount;++i)
+      assertTrue(!queue.contains(i));
+    assertEquals(-1,queue.pollExpired(Long.MAX_VALUE));
+  }
+}
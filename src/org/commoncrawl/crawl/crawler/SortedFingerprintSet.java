@@ -0,0 +1,510 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * An immutable, exact set of (domainHash,urlHash) fingerprints, sorted by
+ * domain hash then url hash (signed order), plus a mutable "crawled" bit per
+ * member addressed by the member's position in sort order.
+ *
+ * Members are stored in blocks of BLOCK_SIZE entries. The first entry of each
+ * block is held uncompressed in the block index (used for binary search), the
+ * rest are delta encoded against their predecessor, one header byte each:
+ *
+ *   bit 7    - domain hash changed, a domain delta follows
+ *   bits 4-6 - byte length of the domain delta - 1
+ *   bits 0-3 - byte length of the url value (0-8)
+ *
+ * followed by the domain delta (big endian, only the significant bytes) and
+ * the url value, which is the url hash delta when the domain is unchanged and
+ * the url hash itself otherwise. Lookups binary search the block index and
+ * then decode at most one block. A Cursor supports merge joins against a
+ * sorted probe list, skipping whole blocks via the index.
+ *
+ * Crawled bits may be updated by multiple threads only under external
+ * synchronization.
+ *
+ * @author rana
+ *
+ */
+final class SortedFingerprintSet {
+
+  static final int BLOCK_SIZE = 64;
+
+  private static final int HEADER_NEW_DOMAIN = 0x80;
+
+  private int     _count;
+  private long    _blockDomainHashes[];
+  private long    _blockUrlHashes[];
+  /** offset in _data of each block's second entry **/
+  private int     _blockOffsets[];
+  private byte    _data[];
+  private long    _crawled[];
+  private int     _crawledCount = 0;
+
+  private SortedFingerprintSet() {
+  }
+
+  /**
+   * build a set from parallel fingerprint arrays. the arrays are sorted in
+   * place, duplicates are dropped (see size()).
+   */
+  static SortedFingerprintSet build(long domainHashes[],long urlHashes[],int count) {
+    if (!isSorted(domainHashes,urlHashes,count)) {
+      sort(domainHashes,urlHashes,0,count);
+    }
+
+    SortedFingerprintSet set = new SortedFingerprintSet();
+
+    int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    set._blockDomainHashes = new long[blockCount];
+    set._blockUrlHashes = new long[blockCount];
+    set._blockOffsets = new int[blockCount];
+    // worst case is header + 8 + 8 per entry. sized down once built.
+    byte data[] = new byte[Math.max(16,count * 17)];
+    int pos = 0;
+    int distinct = 0;
+    long lastDomainHash = 0;
+    long lastUrlHash = 0;
+
+    for (int i=0;i<count;++i) {
+      long domainHash = domainHashes[i];
+      long urlHash = urlHashes[i];
+      if (distinct != 0 && domainHash == lastDomainHash && urlHash == lastUrlHash) {
+        continue;
+      }
+      if (distinct % BLOCK_SIZE == 0) {
+        int block = distinct / BLOCK_SIZE;
+        set._blockDomainHashes[block] = domainHash;
+        set._blockUrlHashes[block] = urlHash;
+        set._blockOffsets[block] = pos;
+      }
+      else {
+        int headerPos = pos++;
+        int header;
+        long urlValue;
+        if (domainHash != lastDomainHash) {
+          long domainDelta = domainHash - lastDomainHash;
+          int domainBytes = Math.max(1,significantBytes(domainDelta));
+          header = HEADER_NEW_DOMAIN | ((domainBytes - 1) << 4);
+          pos = writeBytes(data,pos,domainDelta,domainBytes);
+          urlValue = urlHash;
+        }
+        else {
+          header = 0;
+          urlValue = urlHash - lastUrlHash;
+        }
+        int urlBytes = significantBytes(urlValue);
+        data[headerPos] = (byte)(header | urlBytes);
+        pos = writeBytes(data,pos,urlValue,urlBytes);
+      }
+      lastDomainHash = domainHash;
+      lastUrlHash = urlHash;
+      distinct++;
+    }
+
+    set._count = distinct;
+    if (distinct != count) {
+      // duplicates shrank the block count
+      blockCount = (distinct + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      long newDomainHashes[] = new long[blockCount];
+      long newUrlHashes[] = new long[blockCount];
+      int newOffsets[] = new int[blockCount];
+      System.arraycopy(set._blockDomainHashes,0,newDomainHashes,0,blockCount);
+      System.arraycopy(set._blockUrlHashes,0,newUrlHashes,0,blockCount);
+      System.arraycopy(set._blockOffsets,0,newOffsets,0,blockCount);
+      set._blockDomainHashes = newDomainHashes;
+      set._blockUrlHashes = newUrlHashes;
+      set._blockOffsets = newOffsets;
+    }
+    set._data = new byte[pos];
+    System.arraycopy(data,0,set._data,0,pos);
+    set._crawled = new long[(distinct + 63) >>> 6];
+    return set;
+  }
+
+  /** number of distinct fingerprints in the set **/
+  int size() {
+    return _count;
+  }
+
+  /** approximate heap footprint **/
+  long getSizeInBytes() {
+    return _data.length + _blockDomainHashes.length * 20L + _crawled.length * 8L + 96;
+  }
+
+  /** position of the fingerprint in sort order, or -1 if it is not a member **/
+  int indexOf(long domainHash,long urlHash) {
+    int block = findBlock(0,domainHash,urlHash);
+    if (block == -1) {
+      return -1;
+    }
+    Cursor cursor = new Cursor();
+    cursor.positionAt(block);
+    return cursor.scan(domainHash,urlHash);
+  }
+
+  boolean contains(long domainHash,long urlHash) {
+    return indexOf(domainHash,urlHash) != -1;
+  }
+
+  boolean isCrawled(int index) {
+    return (_crawled[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /** returns true if the bit was not previously set **/
+  boolean setCrawled(int index) {
+    long mask = 1L << index;
+    if ((_crawled[index >>> 6] & mask) == 0) {
+      _crawled[index >>> 6] |= mask;
+      _crawledCount++;
+      return true;
+    }
+    return false;
+  }
+
+  int getCrawledCount() {
+    return _crawledCount;
+  }
+
+  /** decode all members, in sort order, into the passed in arrays (each at least size() long) **/
+  void copyTo(long domainHashes[],long urlHashes[]) {
+    if (_count == 0)
+      return;
+    Cursor cursor = new Cursor();
+    cursor.positionAt(0);
+    for (int i=0;i<_count;++i) {
+      domainHashes[i] = cursor._domainHash;
+      urlHashes[i] = cursor._urlHash;
+      if (i + 1 < _count && !cursor.next()) {
+        cursor.positionAt(cursor._block + 1);
+      }
+    }
+  }
+
+  Cursor cursor() {
+    Cursor cursor = new Cursor();
+    if (_count != 0)
+      cursor.positionAt(0);
+    return cursor;
+  }
+
+  /**
+   * forward only cursor for merge joins. successive seek targets must be
+   * non-decreasing (in the set's sort order).
+   */
+  final class Cursor {
+    int  _block;
+    int  _index = -1;
+    int  _offset;
+    long _domainHash;
+    long _urlHash;
+
+    void positionAt(int block) {
+      _block = block;
+      _index = block * BLOCK_SIZE;
+      _offset = _blockOffsets[block];
+      _domainHash = _blockDomainHashes[block];
+      _urlHash = _blockUrlHashes[block];
+    }
+
+    /** decode the next entry in the current block, false at the end of the block **/
+    boolean next() {
+      if (_index + 1 >= Math.min(_count,(_block + 1) * BLOCK_SIZE)) {
+        return false;
+      }
+      int header = _data[_offset++] & 0xFF;
+      if ((header & HEADER_NEW_DOMAIN) != 0) {
+        int domainBytes = ((header >> 4) & 0x7) + 1;
+        _domainHash += readBytes(_offset,domainBytes);
+        _offset += domainBytes;
+        _urlHash = 0;
+      }
+      int urlBytes = header & 0xF;
+      _urlHash += readBytes(_offset,urlBytes);
+      _offset += urlBytes;
+      _index++;
+      return true;
+    }
+
+    /** returns the position of the target, or -1 if it is not a member **/
+    int seek(long domainHash,long urlHash) {
+      if (_index == -1) {
+        return -1;
+      }
+      int nextBlock = _block + 1;
+      if (nextBlock < _blockDomainHashes.length && compare(_blockDomainHashes[nextBlock],_blockUrlHashes[nextBlock],domainHash,urlHash) <= 0) {
+        positionAt(findBlock(nextBlock,domainHash,urlHash));
+      }
+      return scan(domainHash,urlHash);
+    }
+
+    /** scan forward within the current block **/
+    int scan(long domainHash,long urlHash) {
+      while (true) {
+        int result = compare(_domainHash,_urlHash,domainHash,urlHash);
+        if (result == 0) {
+          return _index;
+        }
+        else if (result > 0 || !next()) {
+          return -1;
+        }
+      }
+    }
+
+    private long readBytes(int offset,int length) {
+      long value = 0;
+      for (int i=0;i<length;++i) {
+        value = (value << 8) | (_data[offset + i] & 0xFF);
+      }
+      return value;
+    }
+  }
+
+  /** last block at or after fromBlock whose first entry is <= the target, -1 if none **/
+  private int findBlock(int fromBlock,long domainHash,long urlHash) {
+    int low = fromBlock;
+    int high = _blockDomainHashes.length - 1;
+    int result = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (compare(_blockDomainHashes[mid],_blockUrlHashes[mid],domainHash,urlHash) <= 0) {
+        result = mid;
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    return result;
+  }
+
+  static int compare(long domainHash1,long urlHash1,long domainHash2,long urlHash2) {
+    if (domainHash1 != domainHash2)
+      return (domainHash1 < domainHash2) ? -1 : 1;
+    if (urlHash1 != urlHash2)
+      return (urlHash1 < urlHash2) ? -1 : 1;
+    return 0;
+  }
+
+  private static int significantBytes(long value) {
+    return (64 - Long.numberOfLeadingZeros(value) + 7) >>> 3;
+  }
+
+  private static int writeBytes(byte data[],int pos,long value,int length) {
+    for (int i=length - 1;i>=0;--i) {
+      data[pos++] = (byte)(value >>> (i * 8));
+    }
+    return pos;
+  }
+
+  static boolean isSorted(long domainHashes[],long urlHashes[],int count) {
+    for (int i=1;i<count;++i) {
+      if (compare(domainHashes[i-1],urlHashes[i-1],domainHashes[i],urlHashes[i]) > 0)
+        return false;
+    }
+    return true;
+  }
+
+  /** sort the range [from,to) of the parallel arrays (quicksort, insertion sort for small ranges) **/
+  static void sort(long domainHashes[],long urlHashes[],int from,int to) {
+    while (to - from > 16) {
+      // median of three pivot
+      int mid = (from + to) >>> 1;
+      int last = to - 1;
+      if (compare(domainHashes[mid],urlHashes[mid],domainHashes[from],urlHashes[from]) < 0)
+        swap(domainHashes,urlHashes,mid,from);
+      if (compare(domainHashes[last],urlHashes[last],domainHashes[from],urlHashes[from]) < 0)
+        swap(domainHashes,urlHashes,last,from);
+      if (compare(domainHashes[last],urlHashes[last],domainHashes[mid],urlHashes[mid]) < 0)
+        swap(domainHashes,urlHashes,last,mid);
+      long pivotDomainHash = domainHashes[mid];
+      long pivotUrlHash = urlHashes[mid];
+
+      int i = from;
+      int j = last;
+      while (i <= j) {
+        while (compare(domainHashes[i],urlHashes[i],pivotDomainHash,pivotUrlHash) < 0)
+          i++;
+        while (compare(domainHashes[j],urlHashes[j],pivotDomainHash,pivotUrlHash) > 0)
+          j--;
+        if (i <= j) {
+          swap(domainHashes,urlHashes,i++,j--);
+        }
+      }
+      // recurse into the smaller half, loop on the larger
+      if (j - from < to - i) {
+        sort(domainHashes,urlHashes,from,j + 1);
+        from = i;
+      }
+      else {
+        sort(domainHashes,urlHashes,i,to);
+        to = j + 1;
+      }
+    }
+    for (int i=from + 1;i<to;++i) {
+      long domainHash = domainHashes[i];
+      long urlHash = urlHashes[i];
+      int j = i - 1;
+      while (j >= from && compare(domainHashes[j],urlHashes[j],domainHash,urlHash) > 0) {
+        domainHashes[j+1] = domainHashes[j];
+        urlHashes[j+1] = urlHashes[j];
+        j--;
+      }
+      domainHashes[j+1] = domainHash;
+      urlHashes[j+1] = urlHash;
+    }
+  }
+
+  private static void swap(long domainHashes[],long urlHashes[],int a,int b) {
+    long domainHash = domainHashes[a];
+    domainHashes[a] = domainHashes[b];
+    domainHashes[b] = domainHash;
+    long urlHash = urlHashes[a];
+    urlHashes[a] = urlHashes[b];
+    urlHashes[b] = urlHash;
+  }
+
+  /** random fingerprints, clustered into a few domains, with duplicates and extreme values **/
+  private static void testFingerprints(Random random,long domainHashes[],long urlHashes[]) {
+    long domains[] = { Long.MIN_VALUE,-1,0,1,Long.MAX_VALUE,random.nextLong(),random.nextLong(),random.nextLong() };
+    for (int i=0;i<domainHashes.length;++i) {
+      if (i != 0 && random.nextInt(20) == 0) {
+        domainHashes[i] = domainHashes[i - 1];
+        urlHashes[i] = urlHashes[i - 1];
+      }
+      else {
+        domainHashes[i] = (random.nextInt(4) == 0) ? random.nextLong() : domains[random.nextInt(domains.length)];
+        urlHashes[i] = (random.nextInt(10) == 0) ? domains[random.nextInt(domains.length)] : random.nextLong();
+      }
+    }
+  }
+
+  /** orders [domainHash,urlHash] pairs like the set **/
+  private static final Comparator<long[]> PAIR_ORDER = new Comparator<long[]>() {
+    public int compare(long[] a,long[] b) {
+      return SortedFingerprintSet.compare(a[0],a[1],b[0],b[1]);
+    }
+  };
+
+  /** distinct fingerprints in sort order, as [domainHash,urlHash] pairs **/
+  private static long[][] sortedDistinct(long domainHashes[],long urlHashes[]) {
+    TreeSet<long[]> sorted = new TreeSet<long[]>(PAIR_ORDER);
+    for (int i=0;i<domainHashes.length;++i)
+      sorted.add(new long[] { domainHashes[i],urlHashes[i] });
+    return sorted.toArray(new long[sorted.size()][]);
+  }
+
+  @Test
+  public void testBuildAndLookup() throws Exception {
+
+    Random random = new Random(1);
+
+    for (int count : new int[] { 0,1,BLOCK_SIZE - 1,BLOCK_SIZE,BLOCK_SIZE + 1,5000 }) {
+      long domainHashes[] = new long[count];
+      long urlHashes[] = new long[count];
+      testFingerprints(random,domainHashes,urlHashes);
+      long expected[][] = sortedDistinct(domainHashes,urlHashes);
+
+      SortedFingerprintSet set = build(domainHashes.clone(),urlHashes.clone(),count);
+      assertEquals(expected.length,set.size());
+
+      long decodedDomainHashes[] = new long[set.size()];
+      long decodedUrlHashes[] = new long[set.size()];
+      set.copyTo(decodedDomainHashes,decodedUrlHashes);
+      for (int i=0;i<expected.length;++i) {
+        assertEquals(expected[i][0],decodedDomainHashes[i]);
+        assertEquals(expected[i][1],decodedUrlHashes[i]);
+        assertEquals(i,set.indexOf(expected[i][0],expected[i][1]));
+      }
+      for (int i=0;i<1000;++i) {
+        long domainHash = random.nextLong();
+        long urlHash = random.nextLong();
+        int position = Arrays.binarySearch(expected,new long[] { domainHash,urlHash },PAIR_ORDER);
+        assertEquals(position >= 0,set.contains(domainHash,urlHash));
+      }
+
+      // already sorted input takes the no sort path
+      long sortedDomainHashes[] = new long[expected.length];
+      long sortedUrlHashes[] = new long[expected.length];
+      for (int i=0;i<expected.length;++i) {
+        sortedDomainHashes[i] = expected[i][0];
+        sortedUrlHashes[i] = expected[i][1];
+      }
+      SortedFingerprintSet sortedSet = build(sortedDomainHashes,sortedUrlHashes,expected.length);
+      assertTrue(Arrays.equals(set._data,sortedSet._data));
+    }
+  }
+
+  @Test
+  public void testCursorAndCrawledBits() throws Exception {
+
+    Random random = new Random(2);
+    long domainHashes[] = new long[10000];
+    long urlHashes[] = new long[10000];
+    testFingerprints(random,domainHashes,urlHashes);
+    SortedFingerprintSet set = build(domainHashes,urlHashes,domainHashes.length);
+
+    // merge join a sorted probe list of every other member plus non members
+    long probeDomainHashes[] = new long[set.size()];
+    long probeUrlHashes[] = new long[set.size()];
+    set.copyTo(probeDomainHashes,probeUrlHashes);
+    int probeCount = 0;
+    for (int i=0;i<set.size();++i) {
+      if (i % 2 == 0) {
+        probeDomainHashes[probeCount] = probeDomainHashes[i];
+        probeUrlHashes[probeCount++] = probeUrlHashes[i];
+      }
+      else if (random.nextBoolean()) {
+        probeDomainHashes[probeCount] = probeDomainHashes[i];
+        probeUrlHashes[probeCount++] = probeUrlHashes[i] ^ 0x5555555555555555L;
+      }
+    }
+    sort(probeDomainHashes,probeUrlHashes,0,probeCount);
+
+    Cursor cursor = set.cursor();
+    int matches = 0;
+    for (int i=0;i<probeCount;++i) {
+      int index = cursor.seek(probeDomainHashes[i],probeUrlHashes[i]);
+      assertEquals(set.indexOf(probeDomainHashes[i],probeUrlHashes[i]),index);
+      if (index != -1) {
+        matches++;
+        assertTrue(set.setCrawled(index));
+        assertTrue(!set.setCrawled(index));
+      }
+    }
+    assertEquals((set.size() + 1) / 2,matches);
+    assertEquals(matches,set.getCrawledCount());
+    for (int i=0;i<set.size();++i)
+      assertEquals(i % 2 == 0,set.isCrawled(i));
+
+    // cursors over an empty set never match
+    SortedFingerprintSet empty = build(new long[0],new long[0],0);
+    assertEquals(-1,empty.cursor().seek(0,0));
+    assertEquals(-1,empty.indexOf(0,0));
+  }
+}
@@ -21,6 +21,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -37,6 +39,8 @@ import org.apache.hadoop.record.Buffer;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
 import org.commoncrawl.crawl.crawler.CrawlSegmentLog;
+import org.commoncrawl.crawl.crawler.util.BlockedURLFPBloomFilter;
+import org.commoncrawl.crawl.crawler.historyV2.BulkQueryCodec;
 import org.commoncrawl.db.RecordStore;
 import org.commoncrawl.db.RecordStore.RecordStoreException;
 import org.commoncrawl.protocol.BulkItemHistoryQuery;
@@ -71,7 +75,9 @@ public class CrawlHistoryServer extends CommonCrawlServer
   private int _numElements = -1;
   private int _numHashFunctions = -1;
   private int _bitsPerElement = -1;
-  private URLFPBloomFilter _bloomFilter = null;
+  private BlockedURLFPBloomFilter _bloomFilter = null;
+  /** read only filter migrated from a version 0 data file - dropped on the next reset **/
+  private URLFPBloomFilter _legacyBloomFilter = null;
   /** primary crawler database **/
   RecordStore   _recordStore = new RecordStore();
   /** server state record key **/
@@ -142,7 +148,10 @@ public class CrawlHistoryServer extends CommonCrawlServer
       startCheckpointThread(CrawlEnvironment.getDefaultFileSystem());
       
     } catch (IOException e) {
+      // e.g. an unreadable bloom filter data file - refuse to start rather than 
+      // serving queries from an empty filter 
       LOG.error(CCStringUtils.stringifyException(e));
+      return false;
     }
     return true;
   }
@@ -270,18 +279,17 @@ public class CrawlHistoryServer extends CommonCrawlServer
           throw new IOException("BloomFilter Not Initilized. Invalid Server State!");
         }
         
-        DataInputStream inputStream = new DataInputStream(
-                                        new ByteArrayInputStream(inputBuffer.getReadOnlyBytes(),0,inputBuffer.getCount()));
+        BulkQueryCodec.FingerprintList fingerprints = BulkQueryCodec.decode(rpcContext.getInput());
   
         BitStream bitStreamOut = new BitStream();
         
         URLFPV2 fingerprint = new URLFPV2();
         
         int itemsPresent = 0;
-        while (inputStream.available() != 0) { 
-          fingerprint.setDomainHash(WritableUtils.readVLong(inputStream));
-          fingerprint.setUrlHash(WritableUtils.readVLong(inputStream)); 
-          if (_bloomFilter.isPresent(fingerprint)) { 
+        for (int i=0;i<fingerprints.count;++i) { 
+          fingerprint.setDomainHash(fingerprints.domainHashes[i]);
+          fingerprint.setUrlHash(fingerprints.urlHashes[i]); 
+          if (isPresent(fingerprint)) { 
             bitStreamOut.addbit(1);
             ++itemsPresent;
           }
@@ -310,7 +318,7 @@ public class CrawlHistoryServer extends CommonCrawlServer
       if (_bloomFilter == null) { 
         throw new IOException("BloomFilter Not Initilized. Invalid Server State!");
       }
-      rpcContext.getOutput().setWasCrawled(_bloomFilter.isPresent(rpcContext.getInput()));
+      rpcContext.getOutput().setWasCrawled(isPresent(rpcContext.getInput()));
     }
     catch (IOException e) { 
       LOG.error(CCStringUtils.stringifyException(e));
@@ -349,6 +357,20 @@ public class CrawlHistoryServer extends CommonCrawlServer
     return new Path(CrawlEnvironment.HDFS_HistoryServerBase,getHostName()+".checkpoint");
   }
 
+  private final Path getDataFileDeltaPath(long deltaId) { 
+    return new Path(CrawlEnvironment.HDFS_HistoryServerBase,getHostName()+DELTA_SUFFIX+deltaId);
+  }
+
+  private final Path getLegacyDataFilePath() { 
+    return new Path(CrawlEnvironment.HDFS_HistoryServerBase,getHostName()+".legacy");
+  }
+  
+  /** check both the active filter and the (optional) migrated version 0 filter **/
+  private boolean isPresent(URLFPV2 fingerprint) { 
+    return _bloomFilter.isPresent(fingerprint) 
+        || (_legacyBloomFilter != null && _legacyBloomFilter.isPresent(fingerprint));
+  }
+
   private void reloadLaggingHistory(int previousCrawlNumber)throws IOException {
     FileSystem fs = CrawlEnvironment.getDefaultFileSystem();
     
@@ -491,11 +513,14 @@ public class CrawlHistoryServer extends CommonCrawlServer
                 FileSystem fs = CrawlEnvironment.getDefaultFileSystem();
                 fs.delete(getDataFileCheckpointPath());
                 fs.delete(getDataFileFinalPath());
+                fs.delete(getLegacyDataFilePath());
+                deleteDeltaCheckpoints(fs);
                 
                 LOG.info("Reseting BloomFilter");
                 // safely reset bloom filter 
                 _bloomFilter = null;
-                _bloomFilter = new URLFPBloomFilter(_numElements,_numHashFunctions,_bitsPerElement);
+                _legacyBloomFilter = null;
+                _bloomFilter = new BlockedURLFPBloomFilter(_numElements,_numHashFunctions,_bitsPerElement);
                 
                 // ok reload any lagging history ...
                 LOG.info("Reloading Lagging History");
@@ -507,6 +532,7 @@ public class CrawlHistoryServer extends CommonCrawlServer
                 LOG.info("Writing BloomFilter Data");
                 // serialize the filter ... 
                 serializeBloomFilter(finalPath);
+                _forceFullSnapshot = false;
 
                 LOG.info("Update Disk State");
                 _state.setCurrentCrawlNumber(rpcContext.getInput().getActiveCrawlNumber());
@@ -555,9 +581,13 @@ public class CrawlHistoryServer extends CommonCrawlServer
     try { 
       DataOutputStream dataOut = new DataOutputStream(outputStream);
       
-      dataOut.writeInt(0); // version 
+      dataOut.writeInt(DATA_FILE_VERSION); // version 
       dataOut.writeInt(_state.getCurrentCrawlNumber()); // crawl number ... 
       
+      // the snapshot covers everything dirty so far. if it fails, the next 
+      // checkpoint must be a full one since these blocks are no longer tracked 
+      _forceFullSnapshot = true;
+      _bloomFilter.clearDirtyBlocks();
       // serialize bloom filter contents ... 
       _bloomFilter.serialize(outputStream);
     }
@@ -578,12 +608,26 @@ public class CrawlHistoryServer extends CommonCrawlServer
       try { 
         stream = fs.open(dataFilePath);
         DataInputStream dataInput = new DataInputStream(stream);
-        // skip version
-        dataInput.readInt();
+        // read version
+        int dataFileVersion = dataInput.readInt();
         // read crawl version ... 
         int serializedCrawlVersion = dataInput.readInt();
+        
+        if (dataFileVersion == 0) {
+          // a pre blocked filter data file. its bits can't be rehashed into the blocked layout, 
+          // so move it aside and keep consulting it (read only) until the next reset ... 
+          stream.close();
+          stream = null;
+          LOG.info("Migrating Version 0 BloomFilter Data File:" + dataFilePath + " to:" + getLegacyDataFilePath());
+          if (!fs.rename(dataFilePath,getLegacyDataFilePath())) { 
+            throw new IOException("Failed to rename:" + dataFilePath + " to:" + getLegacyDataFilePath());
+          }
+        }
+        else if (dataFileVersion != DATA_FILE_VERSION) { 
+          throw new IOException("Unsupported BloomFilter Data File Version:" + dataFileVersion + " in:" + dataFilePath);
+        }
         // now check crawl version against state ... 
-        if (!_state.isFieldDirty(HistoryServerState.Field_CURRENTCRAWLNUMBER)
+        else if (!_state.isFieldDirty(HistoryServerState.Field_CURRENTCRAWLNUMBER)
              || serializedCrawlVersion >= _state.getCurrentCrawlNumber()) {
           
           if (serializedCrawlVersion != _state.getCurrentCrawlNumber()) { 
@@ -592,16 +636,18 @@ public class CrawlHistoryServer extends CommonCrawlServer
             updateState();
           }
           // ok load bloom filter .. 
-          _bloomFilter = URLFPBloomFilter.load(dataInput);
+          _bloomFilter = BlockedURLFPBloomFilter.load(dataInput);
           if (_bloomFilter != null) { 
             if (_bloomFilter.getNumElements() != _numElements ||
                 _bloomFilter.getHashCount() != _numHashFunctions || 
-                _bloomFilter.getBucketsPerElement() != _bitsPerElement) { 
+                _bloomFilter.getBitsPerElement() != _bitsPerElement) { 
               LOG.error("Serialized stream BloomFilter parameters do not match!");
               _bloomFilter = null;
             }
             else { 
               LOG.info("BloomFilter initialized from disk for crawl version:" + serializedCrawlVersion);
+              // replay incremental checkpoints written since the snapshot ... 
+              loadDeltaCheckpoints(fs,serializedCrawlVersion);
               _state.setCurrentCrawlNumber(serializedCrawlVersion);
               updateState();
             }
@@ -614,11 +660,149 @@ public class CrawlHistoryServer extends CommonCrawlServer
        }
       }
     }
-    else { 
-    	_bloomFilter = new URLFPBloomFilter(_numElements,_numHashFunctions,_bitsPerElement);
+    
+    if (fs.exists(getLegacyDataFilePath())) { 
+      loadLegacyBloomFilter(fs);
+      // a migrated filter starts out with an empty blocked filter. the first checkpoint 
+      // writes a full snapshot, since there is no data file yet 
+      if (_legacyBloomFilter != null && !fs.exists(dataFilePath)) { 
+        _bloomFilter = new BlockedURLFPBloomFilter(_numElements,_numHashFunctions,_bitsPerElement);
+        deleteDeltaCheckpoints(fs);
+      }
+    }
+    else if (!fs.exists(dataFilePath)) { 
+    	_bloomFilter = new BlockedURLFPBloomFilter(_numElements,_numHashFunctions,_bitsPerElement);
+    	// deltas without a snapshot are useless 
+    	deleteDeltaCheckpoints(fs);
+    }
+  }
+  
+  /** load the version 0 filter moved aside by loadBloomFilter, if it is still current **/
+  private void loadLegacyBloomFilter(FileSystem fs) throws IOException { 
+    Path legacyPath = getLegacyDataFilePath();
+    FSDataInputStream stream = fs.open(legacyPath);
+    try { 
+      DataInputStream dataInput = new DataInputStream(stream);
+      // skip version
+      dataInput.readInt();
+      // read crawl version ... 
+      int serializedCrawlVersion = dataInput.readInt();
+      
+      if (!_state.isFieldDirty(HistoryServerState.Field_CURRENTCRAWLNUMBER)
+          || serializedCrawlVersion >= _state.getCurrentCrawlNumber()) {
+        
+        if (serializedCrawlVersion != _state.getCurrentCrawlNumber()) { 
+          LOG.warn("serializedCrawlNumber > current Crawl Number");
+          _state.setCurrentCrawlNumber(serializedCrawlVersion);
+          updateState();
+        }
+        _legacyBloomFilter = URLFPBloomFilter.load(dataInput);
+        if (_legacyBloomFilter != null) { 
+          if (_legacyBloomFilter.getNumElements() != _numElements ||
+              _legacyBloomFilter.getHashCount() != _numHashFunctions || 
+              _legacyBloomFilter.getBucketsPerElement() != _bitsPerElement) { 
+            LOG.error("Serialized stream Legacy BloomFilter parameters do not match!");
+            _legacyBloomFilter = null;
+          }
+          else { 
+            LOG.info("Legacy BloomFilter initialized from disk for crawl version:" + serializedCrawlVersion);
+          }
+        }
+      }
+      else { 
+        LOG.info("Legacy BloomFilter is for previous crawl version:" + serializedCrawlVersion + ". Ignoring");
+      }
+    }
+    finally { 
+      stream.close();
+    }
+  }
+  
+  /** write the filter blocks changed since the last checkpoint to the given path **/
+  private long serializeDeltaCheckpoint(Path checkpointPath) throws IOException { 
+
+    FileSystem fs = CrawlEnvironment.getDefaultFileSystem();
+    
+    // delete existing ... 
+    fs.delete(checkpointPath);
+    
+    FSDataOutputStream outputStream = fs.create(checkpointPath);
+    
+    try { 
+      DataOutputStream dataOut = new DataOutputStream(outputStream);
+      
+      dataOut.writeInt(DATA_FILE_VERSION); // version 
+      dataOut.writeInt(_state.getCurrentCrawlNumber()); // crawl number ... 
+      
+      // writing the delta clears the dirty blocks it covers, so a failure 
+      // from here on means the next checkpoint has to be a full one 
+      _forceFullSnapshot = true;
+      long blockCount = _bloomFilter.writeDirtyBlocks(outputStream);
+      LOG.info("Wrote " + blockCount + " dirty BloomFilter blocks to:" + checkpointPath);
+      
+      return outputStream.getPos();
+    }
+    finally { 
+      if (outputStream != null) { 
+        outputStream.flush();
+        outputStream.close();
+      }
     }
   }
   
+  /** list delta checkpoint files, ordered by delta id **/
+  private TreeMap<Long,Path> getDeltaCheckpoints(FileSystem fs) throws IOException { 
+    TreeMap<Long,Path> deltas = new TreeMap<Long,Path>();
+    FileStatus candidates[] = fs.globStatus(new Path(CrawlEnvironment.HDFS_HistoryServerBase,getHostName()+DELTA_SUFFIX+"*"));
+    if (candidates != null) { 
+      for (FileStatus candidate : candidates) { 
+        try { 
+          deltas.put(Long.parseLong(candidate.getPath().getName().substring(getHostName().length() + DELTA_SUFFIX.length())),candidate.getPath());
+        }
+        catch (NumberFormatException e) { 
+          LOG.error("Skipping Invalid Delta Checkpoint File:" + candidate.getPath());
+        }
+      }
+    }
+    return deltas;
+  }
+  
+  /** replay delta checkpoints on top of the loaded snapshot **/
+  private void loadDeltaCheckpoints(FileSystem fs,int crawlNumber) throws IOException { 
+    _deltaCheckpointCount = 0;
+    _deltaBytesSinceSnapshot = 0;
+    _nextDeltaId = 0;
+    
+    for (Map.Entry<Long,Path> delta : getDeltaCheckpoints(fs).entrySet()) { 
+      _nextDeltaId = delta.getKey() + 1;
+      FSDataInputStream stream = fs.open(delta.getValue());
+      try { 
+        DataInputStream dataInput = new DataInputStream(stream);
+        int version = dataInput.readInt();
+        int deltaCrawlNumber = dataInput.readInt();
+        if (version != DATA_FILE_VERSION || deltaCrawlNumber != crawlNumber) { 
+          LOG.error("Skipping Delta Checkpoint:" + delta.getValue() + " Version:" + version + " CrawlNumber:" + deltaCrawlNumber);
+          continue;
+        }
+        long blockCount = _bloomFilter.readDirtyBlocks(dataInput);
+        LOG.info("Replayed " + blockCount + " BloomFilter blocks from:" + delta.getValue());
+        _deltaCheckpointCount++;
+        _deltaBytesSinceSnapshot += fs.getFileStatus(delta.getValue()).getLen();
+      }
+      finally { 
+        stream.close();
+      }
+    }
+  }
+  
+  private void deleteDeltaCheckpoints(FileSystem fs) throws IOException { 
+    for (Path deltaPath : getDeltaCheckpoints(fs).values()) { 
+      fs.delete(deltaPath);
+    }
+    _deltaCheckpointCount = 0;
+    _deltaBytesSinceSnapshot = 0;
+  }
+  
   private Thread _checkpointThread = null;
   private Semaphore _checkpointThreadSemaphore = new Semaphore(1);
   private boolean _shutdownFlag = false;
@@ -633,6 +817,20 @@ public class CrawlHistoryServer extends CommonCrawlServer
   private static final int CHECKPOINT_SCAN_INTERVAL = 60000; // every minute 
   /** checkpoint flush interval **/
   private static final int CHECKPOINT_FLUSH_INTERVAL = 15 * 60 * 1000; // 15 minutes 
+  /** data file (snapshot / delta) version **/
+  private static final int DATA_FILE_VERSION = 1;
+  private static final String DELTA_SUFFIX = ".delta-";
+  /** 
+   * checkpoints normally write only the filter blocks changed since the last one. a full 
+   * snapshot is taken once this many deltas (or delta bytes, as a percentage of the 
+   * filter size) accumulate, which bounds the replay work at restart.
+   **/
+  private static final int MAX_DELTA_CHECKPOINTS = 16;
+  private static final int MAX_DELTA_SIZE_PERCENT = 25;
+  private int     _deltaCheckpointCount = 0;
+  private long    _deltaBytesSinceSnapshot = 0;
+  private long    _nextDeltaId = 0;
+  private boolean _forceFullSnapshot = false;
   
   
   
@@ -706,22 +904,42 @@ public class CrawlHistoryServer extends CommonCrawlServer
                   LOG.info("Checkpoint Thread Starting Checkpoint");
                   
                   int approximateItemsToFlush = _urlsProcessedSinceCheckpoint.get();
+                  long dirtyBytes = (_bloomFilter != null) ? _bloomFilter.getDirtyBlockCount() * _bloomFilter.getBlockSize() : 0;
                   // ok at this point we are read to initialize a checkpoint 
-                  if (approximateItemsToFlush != 0) { 
+                  if (_bloomFilter != null && (approximateItemsToFlush != 0 || dirtyBytes != 0)) { 
                       // get the checkpoint path ... 
                       Path checkpointPath = getDataFileCheckpointPath();
                       Path finalPath      = getDataFileFinalPath();
                       
-                      LOG.info("Checkpoint Thread Writing BloomFilter Data");
-                      // serialize the filter ... 
-                      serializeBloomFilter(checkpointPath);
-                      
-                      LOG.info("Checkpoint Thread Deleting Old Checkpoint Data");
-                      // ok now everything seems to have gone fine ... delete existing data file 
-                      fs.delete(finalPath);
-                      LOG.info("Checkpoint Thread ReWriting New Checkpoint Data");
-                      // rename checkpoint to final ... 
-                      fs.rename(checkpointPath, finalPath);
+                      if (_forceFullSnapshot 
+                          || !fs.exists(finalPath)
+                          || _deltaCheckpointCount >= MAX_DELTA_CHECKPOINTS 
+                          || _deltaBytesSinceSnapshot + dirtyBytes > _bloomFilter.getSizeInBytes() * MAX_DELTA_SIZE_PERCENT / 100) { 
+                        LOG.info("Checkpoint Thread Writing BloomFilter Data");
+                        // serialize the filter ... 
+                        serializeBloomFilter(checkpointPath);
+                        
+                        LOG.info("Checkpoint Thread Deleting Old Checkpoint Data");
+                        // ok now everything seems to have gone fine ... delete existing data file 
+                        fs.delete(finalPath);
+                        LOG.info("Checkpoint Thread ReWriting New Checkpoint Data");
+                        // rename checkpoint to final ... 
+                        fs.rename(checkpointPath, finalPath);
+                        // the snapshot supersedes all deltas 
+                        deleteDeltaCheckpoints(fs);
+                      }
+                      else { 
+                        Path deltaPath = getDataFileDeltaPath(_nextDeltaId);
+                        LOG.info("Checkpoint Thread Writing BloomFilter Delta:" + deltaPath + " DirtyBytes:" + dirtyBytes);
+                        long deltaSize = serializeDeltaCheckpoint(checkpointPath);
+                        if (!fs.rename(checkpointPath,deltaPath)) { 
+                          throw new IOException("Failed to rename:" + checkpointPath + " to:" + deltaPath);
+                        }
+                        _nextDeltaId++;
+                        _deltaCheckpointCount++;
+                        _deltaBytesSinceSnapshot += deltaSize;
+                      }
+                      _forceFullSnapshot = false;
                       
                       if (_state.getCurrentCheckpointState() != CrawlHistoryStatus.CheckpointState.TRANSITIONING) { 
                         LOG.info("Checkpoint Thread Deleting Processed Files");
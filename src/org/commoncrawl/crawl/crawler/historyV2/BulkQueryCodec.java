@@ -0,0 +1,256 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.historyV2;
+
+import java.io.IOException;
+
+import org.apache.hadoop.record.Buffer;
+import org.commoncrawl.protocol.BulkItemHistoryQuery;
+
+/**
+ * Encodes / decodes the fingerprint list carried by a BulkItemHistoryQuery.
+ *
+ * Two encodings are supported:
+ *
+ * VLongPairs - (domainHash,urlHash) pairs written via WritableUtils.writeVLong
+ * (the original format).
+ *
+ * Columnar - int count, then count zig-zag varint domain hash deltas (small
+ * when the list is sorted by domain, which segment lists are), then count
+ * 8 byte big endian url hashes.
+ *
+ * Both are decoded straight out of the byte array into parallel long arrays
+ * (no DataInputStream), preserving request order, so the response bitmap
+ * lines up with the list as sent.
+ *
+ * @author rana
+ *
+ */
+public final class BulkQueryCodec {
+
+  /** decoded fingerprint list **/
+  public static final class FingerprintList {
+    public int    count;
+    public long[] domainHashes;
+    public long[] urlHashes;
+
+    FingerprintList(int capacity) {
+      domainHashes = new long[capacity];
+      urlHashes = new long[capacity];
+    }
+
+    /** wrap existing arrays **/
+    public FingerprintList(long domainHashes[],long urlHashes[],int count) {
+      this.domainHashes = domainHashes;
+      this.urlHashes = urlHashes;
+      this.count = count;
+    }
+
+    void add(long domainHash,long urlHash) {
+      if (count == domainHashes.length) {
+        int newCapacity = Math.max(16,count * 2);
+        long newDomainHashes[] = new long[newCapacity];
+        long newUrlHashes[] = new long[newCapacity];
+        System.arraycopy(domainHashes,0,newDomainHashes,0,count);
+        System.arraycopy(urlHashes,0,newUrlHashes,0,count);
+        domainHashes = newDomainHashes;
+        urlHashes = newUrlHashes;
+      }
+      domainHashes[count] = domainHash;
+      urlHashes[count] = urlHash;
+      count++;
+    }
+  }
+
+  /** decode a query's fingerprint list, whatever its encoding **/
+  public static FingerprintList decode(BulkItemHistoryQuery query) throws IOException {
+    byte data[] = query.getFingerprintList().getReadOnlyBytes();
+    int length = query.getFingerprintList().getCount();
+
+    if (query.getEncoding() == BulkItemHistoryQuery.Encoding.Columnar) {
+      return decodeColumnar(data,0,length);
+    }
+    return decodeVLongPairs(data,0,length,0);
+  }
+
+  /** encode the items [offset,offset+count) of a fingerprint list as VLong pairs **/
+  public static Buffer encodeVLongPairs(FingerprintList list,int offset,int count) {
+    // worst case a VLong is 9 bytes
+    byte out[] = new byte[count * 18];
+    int pos = 0;
+    int end = offset + count;
+    for (int i=offset;i<end;++i) {
+      pos = writeVLong(out,pos,list.domainHashes[i]);
+      pos = writeVLong(out,pos,list.urlHashes[i]);
+    }
+    return new Buffer(out,0,pos);
+  }
+
+  /** WritableUtils.writeVLong into a byte array. returns the new position **/
+  private static int writeVLong(byte out[],int pos,long value) {
+    if (value >= -112 && value <= 127) {
+      out[pos++] = (byte)value;
+      return pos;
+    }
+    int len = -112;
+    if (value < 0) {
+      value ^= -1L;
+      len = -120;
+    }
+    long tmp = value;
+    while (tmp != 0) {
+      tmp >>= 8;
+      len--;
+    }
+    out[pos++] = (byte)len;
+    len = (len < -120) ? -(len + 120) : -(len + 112);
+    for (int idx = len; idx != 0; idx--) {
+      int shiftBits = (idx - 1) * 8;
+      out[pos++] = (byte)((value & (0xFFL << shiftBits)) >> shiftBits);
+    }
+    return pos;
+  }
+
+  /** encode a fingerprint list in columnar form **/
+  public static Buffer encodeColumnar(FingerprintList list) {
+    return encodeColumnar(list,0,list.count);
+  }
+
+  /** encode the items [offset,offset+count) of a fingerprint list in columnar form **/
+  public static Buffer encodeColumnar(FingerprintList list,int offset,int count) {
+    // worst case a varint delta is 10 bytes
+    byte out[] = new byte[4 + count * (10 + 8)];
+    int pos = 0;
+    out[pos++] = (byte)(count >>> 24);
+    out[pos++] = (byte)(count >>> 16);
+    out[pos++] = (byte)(count >>> 8);
+    out[pos++] = (byte)(count);
+
+    int end = offset + count;
+    long lastDomainHash = 0;
+    for (int i=offset;i<end;++i) {
+      long delta = list.domainHashes[i] - lastDomainHash;
+      lastDomainHash = list.domainHashes[i];
+      // zig-zag so negative deltas stay short
+      long value = (delta << 1) ^ (delta >> 63);
+      while ((value & ~0x7FL) != 0) {
+        out[pos++] = (byte)((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out[pos++] = (byte)value;
+    }
+    for (int i=offset;i<end;++i) {
+      long urlHash = list.urlHashes[i];
+      out[pos++] = (byte)(urlHash >>> 56);
+      out[pos++] = (byte)(urlHash >>> 48);
+      out[pos++] = (byte)(urlHash >>> 40);
+      out[pos++] = (byte)(urlHash >>> 32);
+      out[pos++] = (byte)(urlHash >>> 24);
+      out[pos++] = (byte)(urlHash >>> 16);
+      out[pos++] = (byte)(urlHash >>> 8);
+      out[pos++] = (byte)(urlHash);
+    }
+    return new Buffer(out,0,pos);
+  }
+
+  public static FingerprintList decodeColumnar(byte data[],int offset,int length) throws IOException {
+    int end = offset + length;
+    if (length < 4) {
+      throw new IOException("Truncated Columnar FingerprintList. Length:" + length);
+    }
+    int pos = offset;
+    int count = ((data[pos] & 0xFF) << 24) | ((data[pos+1] & 0xFF) << 16) | ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+    pos += 4;
+    // each item takes at least 9 bytes
+    if (count < 0 || (long)count * 9 > end - pos) {
+      throw new IOException("Invalid Columnar FingerprintList Count:" + count + " Length:" + length);
+    }
+
+    FingerprintList list = new FingerprintList(count);
+    long domainHash = 0;
+    for (int i=0;i<count;++i) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        if (pos == end || shift > 63) {
+          throw new IOException("Corrupt Columnar FingerprintList at Item:" + i);
+        }
+        b = data[pos++];
+        value |= (long)(b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      domainHash += (value >>> 1) ^ -(value & 1);
+      list.domainHashes[i] = domainHash;
+    }
+    if (end - pos != count * 8) {
+      throw new IOException("Columnar FingerprintList UrlHash Column Size Mismatch. Expected:" + (count * 8) + " Actual:" + (end - pos));
+    }
+    for (int i=0;i<count;++i) {
+      list.urlHashes[i] =
+          ((long)(data[pos]   & 0xFF) << 56) | ((long)(data[pos+1] & 0xFF) << 48)
+        | ((long)(data[pos+2] & 0xFF) << 40) | ((long)(data[pos+3] & 0xFF) << 32)
+        | ((long)(data[pos+4] & 0xFF) << 24) | ((long)(data[pos+5] & 0xFF) << 16)
+        | ((long)(data[pos+6] & 0xFF) << 8)  | ((long)(data[pos+7] & 0xFF));
+      pos += 8;
+    }
+    list.count = count;
+    return list;
+  }
+
+  /** decode a VLong pair stream. countHint is used to presize the list (0 if unknown) **/
+  public static FingerprintList decodeVLongPairs(byte data[],int offset,int length,int countHint) throws IOException {
+    FingerprintList list = new FingerprintList(countHint > 0 ? countHint : Math.max(16,length / 10));
+    int end = offset + length;
+    int pos = offset;
+    while (pos < end) {
+      long domainHash = 0;
+      long urlHash = 0;
+      for (int field=0;field<2;++field) {
+        // WritableUtils.readVLong
+        byte firstByte = data[pos++];
+        long value;
+        if (firstByte >= -112) {
+          value = firstByte;
+        }
+        else {
+          int len = (firstByte < -120) ? -119 - firstByte : -111 - firstByte;
+          if (pos + len - 1 > end) {
+            throw new IOException("Truncated VLong FingerprintList at Offset:" + (pos - 1 - offset));
+          }
+          value = 0;
+          for (int i=0;i<len-1;++i) {
+            value = (value << 8) | (data[pos++] & 0xFF);
+          }
+          if (firstByte < -120) {
+            value ^= -1L;
+          }
+        }
+        if (field == 0)
+          domainHash = value;
+        else
+          urlHash = value;
+
+        if (field == 0 && pos == end) {
+          throw new IOException("Truncated VLong FingerprintList at Offset:" + (pos - offset));
+        }
+      }
+      list.add(domainHash,urlHash);
+    }
+    return list;
+  }
+}
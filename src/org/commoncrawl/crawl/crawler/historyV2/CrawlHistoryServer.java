@@ -21,7 +21,11 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -184,6 +188,7 @@ public class CrawlHistoryServer extends CommonCrawlServer
         LOG.error("Exception while waiting for Checkpoint Thread shutdown:" + CCStringUtils.stringifyException(e));
       }
     }
+    _queryPool.shutdown();
     // ok safe to call super now ... 
     super.stop();
   }
@@ -215,53 +220,179 @@ public class CrawlHistoryServer extends CommonCrawlServer
   }
 
   @Override
-  public void bulkItemQuery(AsyncContext<BulkItemHistoryQuery, BulkItemHistoryQueryResponse> rpcContext)throws RPCException {
+  public void bulkItemQuery(final AsyncContext<BulkItemHistoryQuery, BulkItemHistoryQueryResponse> rpcContext)throws RPCException {
     LOG.info("Received BulkItemQueryRequest");
-    ImmutableBuffer inputBuffer = rpcContext.getInput().getFingerprintList();
     
-    if (inputBuffer.getCount() != 0) {  
-      try { 
-        
-        if (_bloomFilters == null) { 
-          throw new IOException("BloomFilter Not Initilized. Invalid Server State!");
+    if (rpcContext.getInput().getFingerprintList().getCount() == 0) { 
+      rpcContext.completeRequest();
+      return;
+    }
+    // decode and evaluate the query on the query pool, not the event loop thread ... 
+    _queryPool.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try { 
+          if (_bloomFilters == null) { 
+            throw new IOException("BloomFilter Not Initilized. Invalid Server State!");
+          }
+          new BulkQuery(rpcContext,BulkQueryCodec.decode(rpcContext.getInput())).dispatch();
         }
-        
-        DataInputStream inputStream = new DataInputStream(
-                                        new ByteArrayInputStream(inputBuffer.getReadOnlyBytes(),0,inputBuffer.getCount()));
+        catch (IOException e) { 
+          completeBulkQuery(rpcContext,null,e);
+        }
+        catch (Exception e) { 
+          // a malformed request must still complete the rpc (and not kill a pool thread) 
+          completeBulkQuery(rpcContext,null,new IOException(CCStringUtils.stringifyException(e)));
+        }
+      } 
+    });
+  }
+  
+  /** query pool sizing **/
+  private static final int QUERY_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+  /** max fingerprints evaluated by a single query task **/
+  private static final int QUERY_CHUNK_SIZE = 1 << 16;
   
+  private ExecutorService _queryPool = Executors.newFixedThreadPool(QUERY_POOL_SIZE);
+  
+  /** 
+   * a bulk query in flight. items are bucketed by partition and each 
+   * partition is evaluated in chunks on the query pool, so the chunks for 
+   * different partitions (and thus filters) run in parallel. the last chunk 
+   * to finish builds the (request ordered) response bitmap. 
+   **/
+  private class BulkQuery { 
+    
+    AsyncContext<BulkItemHistoryQuery, BulkItemHistoryQueryResponse> _rpcContext;
+    BulkQueryCodec.FingerprintList _fingerprints;
+    /** item indexes ordered by partition **/
+    int           _itemsByPartition[];
+    /** per item result **/
+    byte          _results[];
+    AtomicInteger _pendingChunks = new AtomicInteger();
+    AtomicReference<IOException> _failure = new AtomicReference<IOException>();
+    
+    BulkQuery(AsyncContext<BulkItemHistoryQuery, BulkItemHistoryQueryResponse> rpcContext,BulkQueryCodec.FingerprintList fingerprints) { 
+      _rpcContext = rpcContext;
+      _fingerprints = fingerprints;
+      _results = new byte[fingerprints.count];
+    }
+    
+    void dispatch() throws IOException {
+      int count = _fingerprints.count;
+      // compute partitions and bucket items by partition (counting sort) 
+      int partitions[] = new int[count];
+      int partitionStart[] = new int[CrawlEnvironment.NUM_DB_SHARDS + 1];
+      URLFPV2 fingerprint = new URLFPV2();
+      for (int i=0;i<count;++i) { 
+        fingerprint.setDomainHash(_fingerprints.domainHashes[i]);
+        fingerprint.setUrlHash(_fingerprints.urlHashes[i]);
+        partitions[i] = URLFPUtils.getPartitionGivenFP(fingerprint);
+        if (_bloomFilters[partitions[i]] == null) { 
+          throw new IOException("BloomFilter for Part:" + partitions[i] + " Not Loaded!");
+        }
+        partitionStart[partitions[i] + 1]++;
+      }
+      for (int i=0;i<CrawlEnvironment.NUM_DB_SHARDS;++i) { 
+        partitionStart[i+1] += partitionStart[i];
+      }
+      _itemsByPartition = new int[count];
+      int insertPos[] = partitionStart.clone();
+      for (int i=0;i<count;++i) { 
+        _itemsByPartition[insertPos[partitions[i]]++] = i;
+      }
+      
+      // count chunks before submitting any, so the pending count can't hit zero early
+      int chunkCount = 0;
+      for (int i=0;i<CrawlEnvironment.NUM_DB_SHARDS;++i) { 
+        chunkCount += (partitionStart[i+1] - partitionStart[i] + QUERY_CHUNK_SIZE - 1) / QUERY_CHUNK_SIZE;
+      }
+      if (chunkCount == 0) { 
+        complete();
+        return;
+      }
+      _pendingChunks.set(chunkCount);
+      
+      for (int i=0;i<CrawlEnvironment.NUM_DB_SHARDS;++i) { 
+        for (int start = partitionStart[i];start < partitionStart[i+1];start += QUERY_CHUNK_SIZE) { 
+          final int partition = i;
+          final int chunkStart = start;
+          final int chunkEnd = Math.min(start + QUERY_CHUNK_SIZE,partitionStart[i+1]);
+          _queryPool.execute(new Runnable() {
+
+            @Override
+            public void run() {
+              try { 
+                if (_failure.get() == null) { 
+                  evaluate(partition,chunkStart,chunkEnd);
+                }
+              }
+              catch (Exception e) { 
+                _failure.compareAndSet(null,new IOException(CCStringUtils.stringifyException(e)));
+              }
+              finally { 
+                if (_pendingChunks.decrementAndGet() == 0) { 
+                  complete();
+                }
+              }
+            } 
+          });
+        }
+      }
+    }
+    
+    void evaluate(int partition,int chunkStart,int chunkEnd) { 
+      URLFPBloomFilter filter = _bloomFilters[partition];
+      URLFPV2 fingerprint = new URLFPV2();
+      for (int i=chunkStart;i<chunkEnd;++i) { 
+        int item = _itemsByPartition[i];
+        fingerprint.setDomainHash(_fingerprints.domainHashes[item]);
+        fingerprint.setUrlHash(_fingerprints.urlHashes[item]);
+        if (filter.isPresent(fingerprint)) { 
+          _results[item] = 1;
+        }
+      }
+    }
+    
+    void complete() { 
+      if (_failure.get() != null) { 
+        completeBulkQuery(_rpcContext,null,_failure.get());
+      }
+      else { 
         BitStream bitStreamOut = new BitStream();
-        
-        URLFPV2 fingerprint = new URLFPV2();
-        
         int itemsPresent = 0;
-        while (inputStream.available() != 0) { 
-          fingerprint.setDomainHash(WritableUtils.readVLong(inputStream));
-          fingerprint.setUrlHash(WritableUtils.readVLong(inputStream));
-          
-          int partition = URLFPUtils.getPartitionGivenFP(fingerprint);
-          
-          if (_bloomFilters[partition] == null) { 
-            throw new IOException("BloomFilter not Loaded");
-          }
-          if (_bloomFilters[partition].isPresent(fingerprint)) { 
-            bitStreamOut.addbit(1);
-            ++itemsPresent;
-          }
-          else { 
-            bitStreamOut.addbit(0);
-          }
+        for (int i=0;i<_results.length;++i) { 
+          bitStreamOut.addbit(_results[i]);
+          itemsPresent += _results[i];
         }
         LOG.info("Received BulkItemQueryRequest Completed with " + itemsPresent + " items found");
-        rpcContext.getOutput().setResponseList(new Buffer(bitStreamOut.bits,0,(bitStreamOut.nbits + 7) / 8));
+        completeBulkQuery(_rpcContext,new Buffer(bitStreamOut.bits,0,(bitStreamOut.nbits + 7) / 8),null);
       }
-      catch (IOException e) { 
-        LOG.error(CCStringUtils.stringifyException(e));
-        rpcContext.setStatus(Status.Error_RequestFailed);
-        rpcContext.setErrorDesc(CCStringUtils.stringifyException(e));
-      }
-      rpcContext.completeRequest();
     }
+  }
+  
+  /** complete a bulk query in the event loop's thread context **/
+  private void completeBulkQuery(final AsyncContext<BulkItemHistoryQuery, BulkItemHistoryQueryResponse> rpcContext,final Buffer responseList,final IOException failure) { 
+    getEventLoop().queueRunnable(new Runnable() {
       
+      @Override
+      public void run() {
+        if (failure != null) { 
+          LOG.error(CCStringUtils.stringifyException(failure));
+          rpcContext.setStatus(Status.Error_RequestFailed);
+          rpcContext.setErrorDesc(CCStringUtils.stringifyException(failure));
+        }
+        else { 
+          rpcContext.getOutput().setResponseList(responseList);
+        }
+        try {
+          rpcContext.completeRequest();
+        } catch (RPCException e) {
+          LOG.error(CCStringUtils.stringifyException(e));
+        }
+      }
+    });
   }
   
   @Override
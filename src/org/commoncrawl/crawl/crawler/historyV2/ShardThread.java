@@ -18,12 +18,15 @@ package org.commoncrawl.crawl.crawler.historyV2;
 
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.concurrent.LinkedBlockingDeque;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
@@ -43,7 +46,8 @@ public class ShardThread implements Runnable {
 
   private static final Log LOG = LogFactory.getLog(ShardThread.class);
   
-  private static final int FSYNC_INTERVAL = 100;
+  /** max requests committed per log sync **/
+  private static final int MAX_BATCH_SIZE = 4096;
   private static final int ROLL_INTERVAL = 1000000;
   CrawlHistoryServer _server;
   int                _shardId;
@@ -55,6 +59,14 @@ public class ShardThread implements Runnable {
   int                 _logEntries;
   Path                _tlogBasePath;
   URLFPBloomFilter    _filter;  
+  /** single fp updates pending in the current batch **/
+  DataOutputBuffer    _singleUpdateBuffer = new DataOutputBuffer();
+  int                 _singleUpdateCount;
+  /** fingerprints appended since the last sync **/
+  int                 _pendingSyncEntries;
+  long                _syncCount;
+  LongWritable        _logKey = new LongWritable();
+  BytesWritable       _logValue = new BytesWritable();
   final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance();
   
 
@@ -95,81 +107,102 @@ public class ShardThread implements Runnable {
     _tlogBasePath = tlogBasePath;
   }
   
+  /** queue a request for the shard thread **/
+  public void queueRequest(Request request) { 
+    _requestQueue.add(request);
+  }
+  
   @Override
   public void run() {
     LOG.info(getLogPrefix()+"Thread Started");
+    ArrayList<Request> batch = new ArrayList<Request>(MAX_BATCH_SIZE);
     outer:
     while (true) { 
       try { 
-        Request request = _requestQueue.take();
+        // block for the first request, then drain whatever else is pending 
+        batch.add(_requestQueue.take());
+        _requestQueue.drainTo(batch,MAX_BATCH_SIZE - 1);
+        
+        int batchStart = 0;
         try { 
-          switch (request._type) { 
-            case ROLL_LOG: { 
-              try { 
-                LOG.info(getLogPrefix()+"GOT ROLL_LOG CMD");
-                rollTransactionLog();
-                request._complete = true;
-                LOG.info(getLogPrefix()+"FINISHED ROLL_LOG CMD");
-              }
-              catch (IOException e) { 
-                LOG.error(getLogPrefix()+"Failed to RollLog with Exception:" + CCStringUtils.stringifyException(e));
-              }
-            }
-            break;
-            
-            case SINGLE_FP_UPDATE: { 
-              try {
+          for (int i=0;i<batch.size();++i) { 
+            Request request = batch.get(i);
+            switch (request._type) { 
+              case SINGLE_FP_UPDATE: { 
                 _filter.add(request._singleRequestFP);
-                appendLogFileRecord(request._singleRequestFP,request._requestTime);
-                request._complete = true;
-              }
-              catch (IOException e) { 
-                LOG.error(getLogPrefix()+ "SINGLE FP REQUEST FAILED with Exception:" + CCStringUtils.stringifyException(e));
-                request._lastError = e;
+                _singleUpdateBuffer.writeLong(request._singleRequestFP.getRootDomainHash());
+                _singleUpdateBuffer.writeLong(request._singleRequestFP.getDomainHash());
+                _singleUpdateBuffer.writeLong(request._singleRequestFP.getUrlHash());
+                _singleUpdateCount++;
               }
-            }
-            break;
-            
-            case MULTIPLE_FP_UPDATE: { 
-              try { 
+              break;
+              
+              case MULTIPLE_FP_UPDATE: { 
                 if (request._multiReqBuffer != null) { 
-                  DataInputBuffer inputBuffer = new DataInputBuffer();
-                  inputBuffer.reset(
-                      request._multiReqBuffer.getData(),
-                      0,
-                      request._multiReqBuffer.getLength());
-                  
-                  int items = inputBuffer.readInt();
-                  
-                  URLFPV2 fp = new URLFPV2();
-                  
-                  for (int i=0;i<items;++i) { 
-
-                    
+                  try { 
+                    applyBlock(request._multiReqBuffer.getData(),request._multiReqBuffer.getLength());
+                    // log the block as is ... 
+                    appendLogBlock(request._multiReqBuffer.getData(),request._multiReqBuffer.getLength(),request._requestTime);
+                  }
+                  catch (IOException e) { 
+                    LOG.error(getLogPrefix()+ "MULTIPLE FP REQUEST FAILED with Exception:" + CCStringUtils.stringifyException(e));
+                    request._lastError = e;
                   }
                 }
               }
-              catch (IOException e) { 
-                
-              }
-            }
-            break;
-            
-            case SHUTDOWN: { 
-              try { 
-                LOG.info(getLogPrefix()+"GOT SHUTDOWN ROLLING LOG");
-                rollTransactionLog();
-                LOG.info(getLogPrefix()+"GOT SHUTDOWN ROLLED LOG");
+              break;
+              
+              case ROLL_LOG: { 
+                // commit everything queued ahead of the roll first ...
+                commitBatch(batch,batchStart,i);
+                batchStart = i + 1;
+                try { 
+                  LOG.info(getLogPrefix()+"GOT ROLL_LOG CMD");
+                  rollTransactionLog();
+                  request._complete = true;
+                  LOG.info(getLogPrefix()+"FINISHED ROLL_LOG CMD");
+                }
+                catch (IOException e) { 
+                  LOG.error(getLogPrefix()+"Failed to RollLog with Exception:" + CCStringUtils.stringifyException(e));
+                }
+                request._completionCallback.execute(request);
               }
-              catch (IOException e){
-                LOG.error(getLogPrefix()+"Failed to RollLog with Exception:" + CCStringUtils.stringifyException(e));
+              break;
+              
+              case SHUTDOWN: { 
+                commitBatch(batch,batchStart,i);
+                batchStart = i + 1;
+                try { 
+                  LOG.info(getLogPrefix()+"GOT SHUTDOWN ROLLING LOG");
+                  rollTransactionLog();
+                  LOG.info(getLogPrefix()+"GOT SHUTDOWN ROLLED LOG");
+                }
+                catch (IOException e){
+                  LOG.error(getLogPrefix()+"Failed to RollLog with Exception:" + CCStringUtils.stringifyException(e));
+                }
+                request._completionCallback.execute(request);
+                // fail anything queued behind the shutdown 
+                for (int j=i+1;j<batch.size();++j) { 
+                  batch.get(j)._lastError = new IOException("Shard Shutdown");
+                  batch.get(j)._completionCallback.execute(batch.get(j));
+                }
+                batch.clear();
+                break outer;
               }
-              break outer;
             }
           }
+          commitBatch(batch,batchStart,batch.size());
+        }
+        catch (RuntimeException e) { 
+          // fail whatever was not committed before reporting the exception  
+          for (int i=batchStart;i<batch.size();++i) { 
+            batch.get(i)._lastError = new IOException(e);
+            batch.get(i)._completionCallback.execute(batch.get(i));
+          }
+          throw e;
         }
         finally { 
-          request._completionCallback.execute(request);
+          batch.clear();
         }
       }
       catch (Exception e) { 
@@ -183,98 +216,97 @@ public class ShardThread implements Runnable {
     LOG.info(getLogPrefix()+"THREAD EXITING");
   }
   
-  void appendLogFileRecords(DataInputBuffer stream,long timestamp) throws IOException {
-    URLFPV2 fp = new URLFPV2();
-    int recordCount = stream.readInt();
-    
-    { 
-      for (int i=0;i<recordCount;++i) {
-        
-        fp.setRootDomainHash(stream.readLong());
-        fp.setDomainHash(stream.readLong());
-        fp.setUrlHash(stream.readLong());
-        
-        try {
-          
-          SequenceFile.Writer writer = ensureWriter();
-          
-          if (writer != null) { 
-            writer.append(fp, timestamp);
-            _logEntries++;
-            if (_logEntries >= ROLL_INTERVAL) { 
-              rollTransactionLog();
-            }
-            else if (_logEntries % FSYNC_INTERVAL == 0) { 
-              try { 
-                writer.syncFs();
-              }
-              catch (IOException e) { 
-                LOG.error(getLogPrefix() + "Failed to FSYNC File:" + _logFileId  + " with Exception:"
-                    + CCStringUtils.stringifyException(e));
-                // force roll the log 
-                rollTransactionLog();
-              }
-            }
-          }
-          else { 
-            
-          }
-        }
-        catch (IOException e) { 
-          LOG.error(getLogPrefix()+"APPEND FAILURE " 
-                + " RH: " + fp.getRootDomainHash() 
-                + " DH:" + fp.getDomainHash()
-                + " UH:" + fp.getUrlHash());
-          LOG.error(getLogPrefix()+"APPEND Exception: " + CCStringUtils.stringifyException(e));
-          
-          rollTransactionLog();
-          
-        }
+  /** 
+   * write out pending single fp updates as one block, sync the log once, and 
+   * complete the update requests in batch[start,end) together. 
+   **/
+  void commitBatch(ArrayList<Request> batch,int start,int end) { 
+    IOException error = null;
+    try { 
+      if (_singleUpdateCount != 0) { 
+        DataOutputBuffer block = new DataOutputBuffer(4 + _singleUpdateBuffer.getLength());
+        block.writeInt(_singleUpdateCount);
+        block.write(_singleUpdateBuffer.getData(),0,_singleUpdateBuffer.getLength());
+        appendLogBlock(block.getData(),block.getLength(),System.currentTimeMillis());
       }
-    }
-  }
-  
-  void appendLogFileRecord(URLFPV2 fp,long timestamp) throws IOException { 
-    SequenceFile.Writer writer = ensureWriter();
-    if (writer != null) { 
-      try { 
-        writer.append(fp, timestamp);
-        _logEntries++;
+      if (_pendingSyncEntries != 0) { 
+        _logWriter.syncFs();
+        _syncCount++;
+        _pendingSyncEntries = 0;
         if (_logEntries >= ROLL_INTERVAL) { 
           rollTransactionLog();
         }
-        else if (_logEntries % FSYNC_INTERVAL == 0) { 
-          try { 
-            writer.syncFs();
-          }
-          catch (IOException e) { 
-            LOG.error(getLogPrefix() + "Failed to FSYNC File:" + _logFileId  + " with Exception:"
-                + CCStringUtils.stringifyException(e));
-            // force roll the log 
-            rollTransactionLog();
-            
-            throw e;
-          }
-        }
       }
-      catch (IOException e) { 
-        LOG.error(getLogPrefix()+"APPEND FAILURE " 
-              + " RH: " + fp.getRootDomainHash() 
-              + " DH:" + fp.getDomainHash()
-              + " UH:" + fp.getUrlHash());
-        LOG.error(getLogPrefix()+"APPEND Exception: " + CCStringUtils.stringifyException(e));
-        
+    }
+    catch (IOException e) { 
+      LOG.error(getLogPrefix() + "Failed to Commit Batch of:" + (end - start) + " Requests to File:" + _logFileId  + " with Exception:"
+          + CCStringUtils.stringifyException(e));
+      error = e;
+      // force roll the log 
+      try {
         rollTransactionLog();
-        
-        throw e;
+      } catch (IOException e1) {
       }
     }
+    finally { 
+      _singleUpdateBuffer.reset();
+      _singleUpdateCount = 0;
+      _pendingSyncEntries = 0;
+    }
+    
+    for (int i=start;i<end;++i) { 
+      Request request = batch.get(i);
+      if (error != null) { 
+        request._lastError = error;
+      }
+      else if (request._lastError == null) { 
+        request._complete = true;
+      }
+      request._completionCallback.execute(request);
+    }
+  }
+  
+  /** apply a block of (rootDomainHash,domainHash,urlHash) records to the filter **/
+  void applyBlock(byte data[],int length) throws IOException { 
+    DataInputBuffer inputBuffer = new DataInputBuffer();
+    inputBuffer.reset(data,0,length);
+    
+    int recordCount = inputBuffer.readInt();
+    if (recordCount < 0 || 4 + recordCount * 24L != length) { 
+      throw new IOException("Invalid Update Block. Records:" + recordCount + " Length:" + length);
+    }
+    URLFPV2 fp = new URLFPV2();
+    for (int i=0;i<recordCount;++i) {
+      fp.setRootDomainHash(inputBuffer.readLong());
+      fp.setDomainHash(inputBuffer.readLong());
+      fp.setUrlHash(inputBuffer.readLong());
+      _filter.add(fp);
+    }
+  }
+  
+  /** 
+   * append a block of (rootDomainHash,domainHash,urlHash) records to the 
+   * transaction log as a single record. the log is synced by commitBatch. 
+   **/
+  void appendLogBlock(byte data[],int length,long timestamp) throws IOException { 
+    SequenceFile.Writer writer = ensureWriter();
+    _logKey.set(timestamp);
+    _logValue.set(data,0,length);
+    writer.append(_logKey,_logValue);
+    int recordCount = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    _logEntries += recordCount;
+    _pendingSyncEntries += recordCount;
+  }
+  
+  /** number of log syncs so far **/
+  public long getSyncCount() { 
+    return _syncCount;
   }
   
   SequenceFile.Writer ensureWriter()throws IOException { 
     if (_logWriter == null) { 
       long fileId = System.currentTimeMillis();
-      _logWriter = new SequenceFile.Writer(_fs,_conf,getTLogFilePathGivenId(fileId),URLFPV2.class,LongWritable.class);
+      _logWriter = new SequenceFile.Writer(_fs,_conf,getTLogFilePathGivenId(fileId),LongWritable.class,BytesWritable.class);
       _logFileId = fileId;
       _logEntries = 0;
     }
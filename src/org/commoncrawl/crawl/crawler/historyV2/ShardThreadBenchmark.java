@@ -0,0 +1,163 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.historyV2;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.commoncrawl.async.CallbackWithResult;
+import org.commoncrawl.protocol.URLFPV2;
+import org.commoncrawl.util.internal.URLFPBloomFilter;
+
+/**
+ * Measures ShardThread update throughput (updates/sec for a single shard)
+ * against the local file system, for single fingerprint updates issued by a
+ * number of concurrent clients and for bulk (block) updates.
+ *
+ * usage: ShardThreadBenchmark [clients] [updatesPerClient] [bulkBlockSize] [directory]
+ *
+ * @author rana
+ *
+ */
+public class ShardThreadBenchmark {
+
+  /** max outstanding requests per client **/
+  static final int CLIENT_WINDOW = 256;
+
+  static ShardThread startShard(FileSystem fs,Configuration conf,Path tlogPath,int shardId) throws Exception {
+    ShardThread shard = new ShardThread(null,fs,conf,tlogPath,shardId,new URLFPBloomFilter(10000000,10,11));
+    Thread thread = new Thread(shard);
+    thread.setDaemon(true);
+    thread.start();
+    return shard;
+  }
+
+  static void shutdown(ShardThread shard) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    shard.queueRequest(new ShardThread.Request(ShardThread.Request.RequestType.SHUTDOWN,System.currentTimeMillis(),new CallbackWithResult<ShardThread.Request>() {
+      public void execute(ShardThread.Request result) {
+        latch.countDown();
+      }
+    }));
+    latch.await();
+  }
+
+  /** returns updates / second **/
+  static double runSingleUpdates(final ShardThread shard,int clientCount,final int updatesPerClient) throws InterruptedException {
+    final CountDownLatch doneLatch = new CountDownLatch(clientCount);
+    final AtomicLong failures = new AtomicLong();
+
+    long startTime = System.nanoTime();
+    for (int c=0;c<clientCount;++c) {
+      final int clientId = c;
+      new Thread(new Runnable() {
+
+        public void run() {
+          final Semaphore window = new Semaphore(CLIENT_WINDOW);
+          CallbackWithResult<ShardThread.Request> callback = new CallbackWithResult<ShardThread.Request>() {
+            public void execute(ShardThread.Request result) {
+              if (!result._complete)
+                failures.incrementAndGet();
+              window.release();
+            }
+          };
+          Random random = new Random(clientId);
+          for (int i=0;i<updatesPerClient;++i) {
+            window.acquireUninterruptibly();
+            ShardThread.Request request = new ShardThread.Request(ShardThread.Request.RequestType.SINGLE_FP_UPDATE,System.currentTimeMillis(),callback);
+            request._singleRequestFP = new URLFPV2();
+            request._singleRequestFP.setRootDomainHash(random.nextLong());
+            request._singleRequestFP.setDomainHash(random.nextLong());
+            request._singleRequestFP.setUrlHash(random.nextLong());
+            shard.queueRequest(request);
+          }
+          window.acquireUninterruptibly(CLIENT_WINDOW);
+          doneLatch.countDown();
+        }
+      }).start();
+    }
+    doneLatch.await();
+    long elapsed = Math.max(1,System.nanoTime() - startTime);
+    if (failures.get() != 0)
+      System.out.println("Failed Updates:" + failures.get());
+    return (double)clientCount * updatesPerClient * 1000000000.0 / elapsed;
+  }
+
+  /** returns updates / second **/
+  static double runBulkUpdates(ShardThread shard,int totalUpdates,int blockSize) throws Exception {
+    final Semaphore window = new Semaphore(CLIENT_WINDOW);
+    CallbackWithResult<ShardThread.Request> callback = new CallbackWithResult<ShardThread.Request>() {
+      public void execute(ShardThread.Request result) {
+        window.release();
+      }
+    };
+    Random random = new Random(0);
+    long startTime = System.nanoTime();
+    for (int sent = 0;sent < totalUpdates;sent += blockSize) {
+      int count = Math.min(blockSize,totalUpdates - sent);
+      DataOutputBuffer block = new DataOutputBuffer(4 + count * 24);
+      block.writeInt(count);
+      for (int i=0;i<count;++i) {
+        block.writeLong(random.nextLong());
+        block.writeLong(random.nextLong());
+        block.writeLong(random.nextLong());
+      }
+      window.acquireUninterruptibly();
+      ShardThread.Request request = new ShardThread.Request(ShardThread.Request.RequestType.MULTIPLE_FP_UPDATE,System.currentTimeMillis(),callback);
+      request._multiReqBuffer = block;
+      shard.queueRequest(request);
+    }
+    window.acquireUninterruptibly(CLIENT_WINDOW);
+    long elapsed = Math.max(1,System.nanoTime() - startTime);
+    return (double)totalUpdates * 1000000000.0 / elapsed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int clientCount      = (args.length > 0) ? Integer.parseInt(args[0]) : 46;
+    int updatesPerClient = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+    int bulkBlockSize    = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+    File directory       = (args.length > 3) ? new File(args[3]) : new File(System.getProperty("java.io.tmpdir"),"shardThreadBenchmark");
+
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path tlogPath = new Path(directory.getAbsolutePath());
+    fs.delete(tlogPath,true);
+    fs.mkdirs(tlogPath);
+
+    System.out.println("Clients:" + clientCount + " UpdatesPerClient:" + updatesPerClient + " BulkBlockSize:" + bulkBlockSize + " Dir:" + directory);
+
+    ShardThread shard = startShard(fs,conf,tlogPath,0);
+    double singleRate = runSingleUpdates(shard,clientCount,updatesPerClient);
+    long singleSyncs = shard.getSyncCount();
+    System.out.println(String.format("Single Updates: %.0f updates/sec Syncs:%d (%.1f updates/sync)",
+        singleRate,singleSyncs,(double)clientCount * updatesPerClient / Math.max(1,singleSyncs)));
+
+    double bulkRate = runBulkUpdates(shard,clientCount * updatesPerClient,bulkBlockSize);
+    long bulkSyncs = shard.getSyncCount() - singleSyncs;
+    System.out.println(String.format("Bulk Updates:   %.0f updates/sec Syncs:%d",bulkRate,bulkSyncs));
+
+    shutdown(shard);
+    fs.delete(tlogPath,true);
+  }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.commoncrawl.util.shared.IntrusiveList;
+import org.commoncrawl.util.shared.IntrusiveList.IntrusiveListElement;
+
+/**
+ * Process wide, size bounded, off heap cache of proxy cache blocks, shared by
+ * all HDFSFileIndex instances: decoded index blocks (so a lookup doesn't
+ * re-read and rice decode the local index file) and raw data file records (so
+ * hot urls don't cost an HDFS open / seek / read).
+ *
+ * Memory is carved out of 1MB direct buffer slabs, allocated on demand up to
+ * the capacity. Each slab is dedicated to one size class (chunk sizes growing
+ * by CHUNK_GROWTH_FACTOR) and each size class evicts in LRU order. Once every
+ * slab is handed out, a size class grows by evicting its own entries. A size
+ * class with nothing to evict (no slabs yet, or everything pinned) takes over
+ * an unpinned slab from the size class holding the most slabs, so a shift in
+ * block sizes can't starve a class for good.
+ *
+ * Readers pin an entry while they access its memory; pinned entries are never
+ * evicted, so a chunk is only reused once nobody is looking at it.
+ *
+ * @author rana
+ *
+ */
+public final class BlockCache {
+
+  public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+  static final int   SLAB_SIZE = 1 << 20;
+  static final int   MIN_CHUNK_SIZE = 128;
+  static final float CHUNK_GROWTH_FACTOR = 1.25f;
+  /** blocks larger than this are not cached **/
+  public static final int MAX_BLOCK_SIZE = SLAB_SIZE;
+
+  public enum BlockType {
+    IndexBlock,
+    DataBlock
+  }
+
+  private static final BlockCache _singleton = new BlockCache(DEFAULT_CAPACITY);
+
+  public static BlockCache getSingleton() {
+    return _singleton;
+  }
+
+  private static final AtomicLong _nextFileId = new AtomicLong();
+
+  /** allocate a cache id for a file. ids are never reused, so blocks of deleted files simply age out **/
+  static long allocateFileId() {
+    return _nextFileId.incrementAndGet();
+  }
+
+  private static final class BlockKey {
+    long _fileId;
+    long _offset;
+
+    BlockKey(long fileId,long offset) {
+      _fileId = fileId;
+      _offset = offset;
+    }
+
+    @Override
+    public int hashCode() {
+      long h = _fileId * 0x9E3779B97F4A7C15L + _offset;
+      return (int)(h ^ (h >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof BlockKey) {
+        BlockKey other = (BlockKey)obj;
+        return other._fileId == _fileId && other._offset == _offset;
+      }
+      return false;
+    }
+  }
+
+  /** a cached block. the data view must only be accessed while the entry is pinned **/
+  public static final class Entry extends IntrusiveListElement<Entry> {
+    BlockKey   _key;
+    SizeClass  _sizeClass;
+    long       _chunk;
+    int        _length;
+    int        _pinCount = 0;
+    ByteBuffer _view;
+
+    /** read only view of the block. use absolute gets, or a duplicate for relative access **/
+    public ByteBuffer getData() { return _view; }
+    public int getLength() { return _length; }
+  }
+
+  private static final class SizeClass {
+    int  _chunkSize;
+    /** free chunks as slab index << 32 | offset **/
+    long _freeChunks[] = new long[16];
+    int  _freeCount = 0;
+    IntrusiveList<Entry> _lru = new IntrusiveList<Entry>();
+    int  _slabCount = 0;
+    long _rejected = 0;
+
+    SizeClass(int chunkSize) {
+      _chunkSize = chunkSize;
+    }
+
+    void pushFree(long chunk) {
+      if (_freeCount == _freeChunks.length) {
+        long newArray[] = new long[_freeChunks.length * 2];
+        System.arraycopy(_freeChunks,0,newArray,0,_freeCount);
+        _freeChunks = newArray;
+      }
+      _freeChunks[_freeCount++] = chunk;
+    }
+
+    /** drop the free chunks that live in the given slab **/
+    void removeFree(int slabIndex) {
+      int count = 0;
+      for (int i=0;i<_freeCount;++i) {
+        if ((int)(_freeChunks[i] >>> 32) != slabIndex) {
+          _freeChunks[count++] = _freeChunks[i];
+        }
+      }
+      _freeCount = count;
+    }
+  }
+
+  private long _capacity;
+  private SizeClass _sizeClasses[];
+  private ArrayList<ByteBuffer> _slabs = new ArrayList<ByteBuffer>();
+  /** per slab owning size class, and number of chunks reserved by puts still copying their data in **/
+  private ArrayList<SizeClass> _slabOwners = new ArrayList<SizeClass>();
+  private int _slabReservations[] = new int[16];
+  private HashMap<BlockKey,Entry> _entries = new HashMap<BlockKey,Entry>();
+  private long _bytesCached = 0;
+
+  private long _hits[] = new long[BlockType.values().length];
+  private long _misses[] = new long[BlockType.values().length];
+  private long _inserts = 0;
+  private long _evictions = 0;
+  private long _rejected = 0;
+  private long _slabMoves = 0;
+
+  BlockCache(long capacity) {
+    _capacity = capacity;
+    ArrayList<SizeClass> sizeClasses = new ArrayList<SizeClass>();
+    for (int chunkSize = MIN_CHUNK_SIZE;;) {
+      sizeClasses.add(new SizeClass(chunkSize));
+      if (chunkSize == SLAB_SIZE)
+        break;
+      // keep chunk sizes 8 byte aligned
+      chunkSize = Math.min(SLAB_SIZE,(((int)(chunkSize * CHUNK_GROWTH_FACTOR)) + 7) & ~7);
+    }
+    _sizeClasses = sizeClasses.toArray(new SizeClass[0]);
+  }
+
+  /**
+   * lookup and pin a block. the caller must unpin the returned entry once done with its data
+   *
+   * @return the pinned entry or null on a miss
+   */
+  public synchronized Entry pin(long fileId,long offset,BlockType type) {
+    Entry entry = _entries.get(new BlockKey(fileId,offset));
+    if (entry == null) {
+      _misses[type.ordinal()]++;
+      return null;
+    }
+    _hits[type.ordinal()]++;
+    entry._pinCount++;
+    // most recently used entries live at the tail
+    entry._sizeClass._lru.removeElement(entry);
+    entry._sizeClass._lru.addTail(entry);
+    return entry;
+  }
+
+  public synchronized void unpin(Entry entry) {
+    entry._pinCount--;
+  }
+
+  /**
+   * cache a block (a no-op if the block is already cached)
+   *
+   * @return false if the block could not be cached (too large, or everything in its size class is pinned)
+   */
+  public boolean put(long fileId,long offset,byte data[],int dataOffset,int length) {
+    BlockKey key = new BlockKey(fileId,offset);
+    Entry entry = null;
+    ByteBuffer slab = null;
+
+    synchronized (this) {
+      if (_entries.containsKey(key)) {
+        return true;
+      }
+      SizeClass sizeClass = getSizeClass(length);
+      long chunk = (sizeClass != null) ? allocateChunk(sizeClass) : -1;
+      if (chunk == -1) {
+        _rejected++;
+        if (sizeClass != null)
+          sizeClass._rejected++;
+        return false;
+      }
+      entry = new Entry();
+      entry._key = key;
+      entry._sizeClass = sizeClass;
+      entry._chunk = chunk;
+      entry._length = length;
+      // the slab can't be moved to another size class while the chunk is reserved
+      int slabIndex = (int)(chunk >>> 32);
+      _slabReservations[slabIndex]++;
+      slab = _slabs.get(slabIndex).duplicate();
+    }
+
+    // the chunk is reserved, so the copy can happen outside the lock
+    slab.position((int)entry._chunk);
+    slab.limit((int)entry._chunk + length);
+    ByteBuffer view = slab.slice();
+    view.put(data,dataOffset,length);
+    view.clear();
+    entry._view = view.asReadOnlyBuffer();
+
+    synchronized (this) {
+      _slabReservations[(int)(entry._chunk >>> 32)]--;
+      if (_entries.containsKey(key)) {
+        // lost a race with another loader of the same block
+        entry._sizeClass.pushFree(entry._chunk);
+        return true;
+      }
+      _entries.put(key,entry);
+      entry._sizeClass._lru.addTail(entry);
+      _bytesCached += length;
+      _inserts++;
+    }
+    return true;
+  }
+
+  private SizeClass getSizeClass(int length) {
+    for (SizeClass sizeClass : _sizeClasses) {
+      if (sizeClass._chunkSize >= length) {
+        return sizeClass;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * grab a free chunk, carve up a new slab, evict the least recently used unpinned entry of the
+   * class, or take over a slab from another class
+   **/
+  private long allocateChunk(SizeClass sizeClass) {
+    if (sizeClass._freeCount == 0 && (long)(_slabs.size() + 1) * SLAB_SIZE <= _capacity) {
+      int slabIndex = _slabs.size();
+      _slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+      _slabOwners.add(null);
+      if (slabIndex == _slabReservations.length) {
+        int newArray[] = new int[_slabReservations.length * 2];
+        System.arraycopy(_slabReservations,0,newArray,0,slabIndex);
+        _slabReservations = newArray;
+      }
+      assignSlab(slabIndex,sizeClass);
+    }
+    if (sizeClass._freeCount == 0) {
+      Entry candidate = sizeClass._lru.getHead();
+      while (candidate != null && candidate._pinCount != 0) {
+        candidate = candidate.getNext();
+      }
+      if (candidate == null) {
+        if (!moveSlab(sizeClass)) {
+          return -1;
+        }
+      }
+      else {
+        _entries.remove(candidate._key);
+        sizeClass._lru.removeElement(candidate);
+        _bytesCached -= candidate._length;
+        _evictions++;
+        return candidate._chunk;
+      }
+    }
+    return sizeClass._freeChunks[--sizeClass._freeCount];
+  }
+
+  /** carve a slab up into chunks of the given class **/
+  private void assignSlab(int slabIndex,SizeClass sizeClass) {
+    _slabOwners.set(slabIndex,sizeClass);
+    sizeClass._slabCount++;
+    for (int offset = 0;offset + sizeClass._chunkSize <= SLAB_SIZE;offset += sizeClass._chunkSize) {
+      sizeClass.pushFree(((long)slabIndex << 32) | offset);
+    }
+  }
+
+  /**
+   * take an unpinned slab away from the class holding the most slabs (evicting its entries in
+   * the slab) and give it to the given class.
+   *
+   * @return false if no slab could be moved
+   */
+  private boolean moveSlab(SizeClass sizeClass) {
+    SizeClass donor = null;
+    for (SizeClass candidate : _sizeClasses) {
+      if (candidate != sizeClass && candidate._slabCount > sizeClass._slabCount + 1
+          && (donor == null || candidate._slabCount > donor._slabCount)) {
+        donor = candidate;
+      }
+    }
+    if (donor == null) {
+      return false;
+    }
+    // slabs of the donor holding pinned entries (or chunks being filled) can't move
+    boolean busy[] = new boolean[_slabs.size()];
+    for (int i=0;i<busy.length;++i) {
+      busy[i] = (_slabOwners.get(i) != donor || _slabReservations[i] != 0);
+    }
+    for (Entry entry = donor._lru.getHead();entry != null;entry = entry.getNext()) {
+      if (entry._pinCount != 0) {
+        busy[(int)(entry._chunk >>> 32)] = true;
+      }
+    }
+    int slabIndex = 0;
+    while (slabIndex < busy.length && busy[slabIndex]) {
+      slabIndex++;
+    }
+    if (slabIndex == busy.length) {
+      return false;
+    }
+    Entry entry = donor._lru.getHead();
+    while (entry != null) {
+      Entry next = entry.getNext();
+      if ((int)(entry._chunk >>> 32) == slabIndex) {
+        _entries.remove(entry._key);
+        donor._lru.removeElement(entry);
+        _bytesCached -= entry._length;
+        _evictions++;
+      }
+      entry = next;
+    }
+    donor.removeFree(slabIndex);
+    donor._slabCount--;
+    assignSlab(slabIndex,sizeClass);
+    _slabMoves++;
+    return true;
+  }
+
+  public synchronized int getEntryCount() { return _entries.size(); }
+  public synchronized long getBytesCached() { return _bytesCached; }
+  public synchronized long getBytesAllocated() { return (long)_slabs.size() * SLAB_SIZE; }
+  public long getCapacity() { return _capacity; }
+  public synchronized long getHits(BlockType type) { return _hits[type.ordinal()]; }
+  public synchronized long getMisses(BlockType type) { return _misses[type.ordinal()]; }
+  public synchronized long getEvictions() { return _evictions; }
+  public synchronized long getRejected() { return _rejected; }
+  public synchronized long getSlabMoves() { return _slabMoves; }
+
+  /** rejected puts for blocks of the given length's size class **/
+  public synchronized long getRejected(int length) {
+    SizeClass sizeClass = getSizeClass(length);
+    return (sizeClass != null) ? sizeClass._rejected : 0;
+  }
+
+  public synchronized double getHitRatio(BlockType type) {
+    long lookups = _hits[type.ordinal()] + _misses[type.ordinal()];
+    return (lookups == 0) ? 0.0 : (double)_hits[type.ordinal()] / (double)lookups;
+  }
+
+  /** one stat per line, for the proxy status pages **/
+  public synchronized void dumpStats(StringBuffer sb) {
+    sb.append("BlockCache.Capacity:" + _capacity + "\n");
+    sb.append("BlockCache.BytesAllocated:" + getBytesAllocated() + "\n");
+    sb.append("BlockCache.BytesCached:" + _bytesCached + "\n");
+    sb.append("BlockCache.Entries:" + _entries.size() + "\n");
+    for (BlockType type : BlockType.values()) {
+      sb.append("BlockCache." + type + ".Hits:" + _hits[type.ordinal()] + "\n");
+      sb.append("BlockCache." + type + ".Misses:" + _misses[type.ordinal()] + "\n");
+      sb.append("BlockCache." + type + ".HitRatio:" + getHitRatio(type) + "\n");
+    }
+    sb.append("BlockCache.Inserts:" + _inserts + "\n");
+    sb.append("BlockCache.Evictions:" + _evictions + "\n");
+    sb.append("BlockCache.Rejected:" + _rejected + "\n");
+    sb.append("BlockCache.SlabMoves:" + _slabMoves + "\n");
+    for (SizeClass sizeClass : _sizeClasses) {
+      if (sizeClass._slabCount != 0 || sizeClass._rejected != 0) {
+        sb.append("BlockCache.SizeClass." + sizeClass._chunkSize + ".Slabs:" + sizeClass._slabCount + "\n");
+        sb.append("BlockCache.SizeClass." + sizeClass._chunkSize + ".Entries:" + sizeClass._lru.size() + "\n");
+        sb.append("BlockCache.SizeClass." + sizeClass._chunkSize + ".Rejected:" + sizeClass._rejected + "\n");
+      }
+    }
+  }
+}
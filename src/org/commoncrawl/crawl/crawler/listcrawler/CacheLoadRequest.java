@@ -39,7 +39,7 @@ class CacheLoadRequest {
     _requestType = RequestType.HDFSCacheLoadRequest;
   }
   
-  public CacheLoadRequest(String url,Long[] locationHints,CacheItemCheckCallback callback) { 
+  public CacheLoadRequest(String url,long[] locationHints,CacheItemCheckCallback callback) { 
     _targetURL = url;
     _loacations = locationHints;
     _callback = callback;
@@ -50,7 +50,7 @@ class CacheLoadRequest {
   
   public RequestType _requestType;
   public String _targetURL;
-  public Long[] _loacations;
+  public long[] _loacations;
   public CacheItemCheckCallback _callback;
   public int _pendingItemCount;
   public long _fingerprint;
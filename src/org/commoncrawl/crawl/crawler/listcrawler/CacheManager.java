@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.nio.ByteBuffer;
@@ -32,16 +33,20 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 
@@ -70,7 +75,6 @@ import org.commoncrawl.util.shared.ArcFileItemUtils;
 import org.commoncrawl.util.shared.CCStringUtils;
 import org.junit.Assert;
 
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 
@@ -82,8 +86,11 @@ import com.google.common.collect.Iterables;
  */
 public class CacheManager {
   
-  private HashMultimap<Long,Long>               _fingerprintToLocalLogPos = HashMultimap.create();
-  private LinkedList<CacheItem>                 _writeQueue = new LinkedList<CacheItem>() ;
+  /** local log positions by fingerprint, guarded by _localLogPosLock **/
+  private LongLongMultimap                      _fingerprintToLocalLogPos = new LongLongMultimap();
+  private ReentrantReadWriteLock                _localLogPosLock = new ReentrantReadWriteLock();
+  /** items queued for (but not yet written to) the local log, by fingerprint **/
+  private ConcurrentHashMap<Long,CacheItem>     _pendingWrites = new ConcurrentHashMap<Long,CacheItem>();
   private LinkedBlockingQueue<CacheWriteRequest> _writeRequestQueue = new LinkedBlockingQueue<CacheWriteRequest>();
   private LinkedBlockingQueue<CacheFlushRequest> _hdfsFlushRequestQueue = new LinkedBlockingQueue<CacheFlushRequest>();
   private Vector<HDFSFileIndex>                  _hdfsIndexList = new Vector<HDFSFileIndex>();
@@ -101,6 +108,12 @@ public class CacheManager {
   static final String PROXY_CACHE_FILE_INDEX_PREFIX = "cacheIndex";
   
   private static final int CACHE_POLL_TIMER_INTERVAL = 10000;
+  // how often to check whether the local log index needs a fresh snapshot 
+  private static final int LOG_INDEX_SNAPSHOT_INTERVAL = 60000;
+  // snapshot once at least this many items were appended since the last snapshot 
+  private static final int LOG_INDEX_SNAPSHOT_MIN_NEW_ITEMS = 1000;
+  // number of hdfs index files copied and loaded concurrently at startup 
+  private static final int HDFS_INDEX_LOADER_THREADS = 8;
   
   public static final Log LOG = LogFactory.getLog(CacheManager.class);
   
@@ -130,14 +143,27 @@ public class CacheManager {
   Thread _hdfsFlusherThread = null;
   /** hdfs flusher active indicator **/
   boolean _hdfsFlusherActive = false;
+  /** hdfs index compactor **/
+  HDFSIndexCompactor _hdfsIndexCompactor = null;
+  /** hdfs index compactor thread **/
+  Thread _hdfsIndexCompactorThread = null;
+  /** local log index snapshot thread **/
+  Thread _logIndexSnapshotThread = null;
+  volatile boolean _logIndexSnapshotShutdown = false;
+  /** guards the snapshot file, the log generation and the last snapshot stats **/
+  Object _logIndexSnapshotLock = new Object();
+  /** bumped whenever a checkpoint rewrites the local log (invalidating snapshots) **/
+  long _logGeneration = 0;
+  long _lastSnapshotGeneration = 0;
+  long _lastSnapshotItemCount = 0;
   /** file system object **/
   FileSystem _remoteFileSystem = null;
   /** local log virtual offset **/
   long _localLogStartOffset = 0;
   /** local log access mutex **/
   Semaphore _localLogAccessSempahore = new Semaphore(LOG_ACCESS_SEMAPHORE_COUNT);
-  /** local log write mutex **/
-  Semaphore _localLogWriteAccessSemaphore = new Semaphore(1);
+  /** local log append (and group commit) path **/
+  LocalLogAppender _logAppender = null;
   /** session id normalizer **/
   SessionIDURLNormalizer _sessionIdNormalizer = new SessionIDURLNormalizer();
   // cache flush timer
@@ -196,6 +222,8 @@ public class CacheManager {
   public static final int INIT_FLAG_SKIP_CACHE_WRITER_INIT = 1;
   public static final int INIT_FLAG_SKIP_HDFS_WRITER_INIT  = 2;
   public static final int INIT_FLAG_SKIP_INDEX_LOAD        = 4;
+  public static final int INIT_FLAG_SKIP_INDEX_COMPACTION  = 8;
+  public static final int INIT_FLAG_SKIP_INDEX_SNAPSHOT    = 16;
   
   /** 
    * set cache flush threshold
@@ -226,6 +254,12 @@ public class CacheManager {
     if ((initFlags & INIT_FLAG_SKIP_HDFS_WRITER_INIT) == 0) {
       startHDFSFlusherThread();
     }
+    if ((initFlags & INIT_FLAG_SKIP_INDEX_COMPACTION) == 0) { 
+      startHDFSIndexCompactorThread();
+    }
+    if ((initFlags & INIT_FLAG_SKIP_INDEX_SNAPSHOT) == 0) { 
+      startLogIndexSnapshotThread();
+    }
     _cacheLoadThreadPool  = Executors.newFixedThreadPool(DEFAULT_DISK_READER_THREADS);
     _hdfsLoaderPool       = Executors.newFixedThreadPool(HDFS_READER_THREADS);
     _cacheFlushTimer = new Timer(CACHE_POLL_TIMER_INTERVAL,true,new Timer.Callback() {
@@ -260,6 +294,16 @@ public class CacheManager {
       _eventLoop.cancelTimer(_cacheFlushTimer);
       _cacheFlushTimer = null;
     }
+    if (_hdfsIndexCompactorThread != null) { 
+      LOG.info("Shuting down index compactor thread");
+      _hdfsIndexCompactor.shutdown();
+      _hdfsIndexCompactorThread.interrupt();
+      try {
+        _hdfsIndexCompactorThread.join();
+      } catch (InterruptedException e) {
+      }
+      _hdfsIndexCompactorThread = null;
+    }
     if (_writerThreads != null) { 
       LOG.info("Shuting down write threads");
       for (int i=0;i<CACHE_WRITER_THREADS;++i)
@@ -297,6 +341,32 @@ public class CacheManager {
       LOG.info("hdfs loads threads terminated");
       _hdfsLoaderPool = null;
     }
+    
+    if (_logIndexSnapshotThread != null) { 
+      LOG.info("Shuting down log index snapshot thread");
+      _logIndexSnapshotShutdown = true;
+      _logIndexSnapshotThread.interrupt();
+      try {
+        _logIndexSnapshotThread.join();
+      } catch (InterruptedException e) {
+      }
+      _logIndexSnapshotThread = null;
+      // writers are gone, so a final snapshot makes the next startup skip the log scan entirely 
+      try {
+        writeLogIndexSnapshot();
+      } catch (IOException e) {
+        LOG.error(CCStringUtils.stringifyException(e));
+      }
+    }
+    
+    if (_logAppender != null) { 
+      try {
+        _logAppender.close();
+      } catch (IOException e) {
+        LOG.error(CCStringUtils.stringifyException(e));
+      }
+      _logAppender = null;
+    }
   }
 
   /********************************************************************************************************/
@@ -381,25 +451,19 @@ public class CacheManager {
    */
   public long checkCacheForFingerprint(long urlFingerprint,boolean returnDate) { 
 
-     
-    synchronized(this) { 
-      for (CacheItem item : _writeQueue) { 
-        if (item.getUrlFingerprint() == urlFingerprint) { 
-          if (returnDate) { 
-            long dateOut = dateFromCacheItem(item);
-            // if no date found, use current date as an approximate...
-            return (dateOut != 0) ? dateOut : System.currentTimeMillis();
-          }
-          else return 1;
-        }
+    CacheItem pendingItem = _pendingWrites.get(urlFingerprint);
+    if (pendingItem != null) { 
+      if (returnDate) { 
+        long dateOut = dateFromCacheItem(pendingItem);
+        // if no date found, use current date as an approximate...
+        return (dateOut != 0) ? dateOut : System.currentTimeMillis();
       }
+      else return 1;
     }
     
-    synchronized (this) { 
-      if (_fingerprintToLocalLogPos.get(urlFingerprint).size() != 0) {
-        // assume recent date as an approximate 
-        return System.currentTimeMillis();
-      }
+    if (isInLocalLog(urlFingerprint)) {
+      // assume recent date as an approximate 
+      return System.currentTimeMillis();
     }
     
     // now check hdfs indexes 
@@ -455,27 +519,15 @@ public class CacheManager {
    */
   public void checkCacheForItem(final String normalizedURL,final long urlFingerprint,final CacheItemCheckCallback callback) {
   
-    // first check local item cache ...
-    CacheItem cachedItemOut = null;
-     
-    synchronized(this) { 
-      for (CacheItem item : _writeQueue) { 
-        if (item.getUrlFingerprint() == urlFingerprint) { 
-          cachedItemOut = item;
-          break;
-        }
-      }
-    }
+    // first check pending writes ...
+    CacheItem cachedItemOut = _pendingWrites.get(urlFingerprint);
     // if found initiate immediate callback 
     if (cachedItemOut != null) { 
       queueCacheItemFoundCallback(callback,cachedItemOut);
     }
     else { 
-      Long[] fpToItemCache = new Long[0];
-      synchronized(this) { 
-        // now check local cache first ... 
-        fpToItemCache = _fingerprintToLocalLogPos.get(urlFingerprint).toArray(fpToItemCache);
-      }
+      // now check local cache first ... 
+      long fpToItemCache[] = getLocalLogPositions(urlFingerprint);
       
       if (fpToItemCache.length != 0) { 
         queueLocalCacheLoadRequest(new CacheLoadRequest(normalizedURL,fpToItemCache,callback));
@@ -496,28 +548,16 @@ public class CacheManager {
    */
   public CacheItem checkCacheForItemInWorkerThread(final String normalizedURL,final long urlFingerprint) {
   
-    // first check local item cache ...
-    CacheItem cachedItemOut = null;
-     
-    synchronized(this) { 
-      for (CacheItem item : _writeQueue) { 
-        if (item.getUrlFingerprint() == urlFingerprint) { 
-          cachedItemOut = item;
-          break;
-        }
-      }
-    }
+    // first check pending writes ...
+    CacheItem cachedItemOut = _pendingWrites.get(urlFingerprint);
     // if found initiate immediate callback 
     if (cachedItemOut != null) { 
       // callback.cacheItemAvailable(cachedItemOut.getUrl(), cachedItemOut);
       return cachedItemOut;
     }
     else { 
-      Long[] fpToItemCache = new Long[0];
-      synchronized(this) { 
-        // now check local cache first ... 
-        fpToItemCache = _fingerprintToLocalLogPos.get(urlFingerprint).toArray(fpToItemCache);
-      }
+      // now check local cache first ... 
+      long fpToItemCache[] = getLocalLogPositions(urlFingerprint);
       
       if (fpToItemCache.length != 0) { 
         return queueLocalCacheLoadRequestInWorkerThread(new CacheLoadRequest(normalizedURL,fpToItemCache,null));
@@ -536,9 +576,38 @@ public class CacheManager {
    * @param optionalSemaphore an optional semaphore that will be passed back in completion callback when io operations complete
    */
   public void cacheItem(CacheItem item,Semaphore optionalSemaphore) {
-    synchronized (this) {
-      _writeQueue.add(item);
-      _writeRequestQueue.add(new CacheWriteRequest(item.getUrlFingerprint(),item,optionalSemaphore));
+    // visible to lookups before the write is queued, the most recent item for a fingerprint wins 
+    _pendingWrites.put(item.getUrlFingerprint(),item);
+    _writeRequestQueue.add(new CacheWriteRequest(item.getUrlFingerprint(),item,optionalSemaphore));
+  }
+  
+  private boolean isInLocalLog(long urlFingerprint) { 
+    _localLogPosLock.readLock().lock();
+    try { 
+      return _fingerprintToLocalLogPos.containsKey(urlFingerprint);
+    }
+    finally { 
+      _localLogPosLock.readLock().unlock();
+    }
+  }
+  
+  private long[] getLocalLogPositions(long urlFingerprint) { 
+    _localLogPosLock.readLock().lock();
+    try { 
+      return _fingerprintToLocalLogPos.get(urlFingerprint);
+    }
+    finally { 
+      _localLogPosLock.readLock().unlock();
+    }
+  }
+  
+  private void addLocalLogPosition(long urlFingerprint,long position) { 
+    _localLogPosLock.writeLock().lock();
+    try { 
+      _fingerprintToLocalLogPos.put(urlFingerprint,position);
+    }
+    finally { 
+      _localLogPosLock.writeLock().unlock();
     }
   }
   
@@ -594,6 +663,145 @@ public class CacheManager {
     _hdfsFlusherThread.start();    
   }
   
+  /** startHDFSIndexCompactorThread
+   * 
+   */
+  private void startHDFSIndexCompactorThread() { 
+    _hdfsIndexCompactor = new HDFSIndexCompactor(this);
+    _hdfsIndexCompactorThread = new Thread(_hdfsIndexCompactor);
+    _hdfsIndexCompactorThread.start();
+  }
+  
+  /** startLogIndexSnapshotThread
+   * 
+   */
+  private void startLogIndexSnapshotThread() { 
+    _logIndexSnapshotThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        while (!_logIndexSnapshotShutdown) { 
+          try {
+            Thread.sleep(LOG_INDEX_SNAPSHOT_INTERVAL);
+          } catch (InterruptedException e) {
+            continue;
+          }
+          try { 
+            if (isLogIndexSnapshotDue()) { 
+              writeLogIndexSnapshot();
+            }
+          }
+          catch (IOException e) { 
+            LOG.error("Log Index Snapshot Failed with Exception:" + CCStringUtils.stringifyException(e));
+          }
+        }
+        LOG.info("Log Index Snapshot Thread Received Shutdown. Exiting!");
+      } 
+    });
+    _logIndexSnapshotThread.start();
+  }
+  
+  /** true if the log was rewritten, or has grown enough, since the last snapshot **/
+  private boolean isLogIndexSnapshotDue() { 
+    long itemCount;
+    synchronized (_header) { 
+      itemCount = _header._itemCount;
+    }
+    synchronized (_logIndexSnapshotLock) { 
+      if (_logGeneration != _lastSnapshotGeneration) { 
+        return itemCount != 0;
+      }
+      return itemCount - _lastSnapshotItemCount >= LOG_INDEX_SNAPSHOT_MIN_NEW_ITEMS;
+    }
+  }
+  
+  /** 
+   * writeLogIndexSnapshot - snapshot the local log index to disk 
+   *    all log access permits are held just long enough to copy the index (at that point every committed 
+   *    record is indexed and no write is in flight), the copy is then written out without holding them ...
+   * @throws IOException
+   */
+  void writeLogIndexSnapshot()throws IOException { 
+    long timeStart = System.currentTimeMillis();
+    long generation;
+    LocalLogIndexSnapshot snapshot;
+    
+    getLocalLogAccessSemaphore().acquireUninterruptibly(LOG_ACCESS_SEMAPHORE_COUNT);
+    try { 
+      synchronized (_logIndexSnapshotLock) { 
+        generation = _logGeneration;
+      }
+      LongLongMultimap index;
+      _localLogPosLock.readLock().lock();
+      try { 
+        index = _fingerprintToLocalLogPos.copy();
+      }
+      finally { 
+        _localLogPosLock.readLock().unlock();
+      }
+      synchronized (_header) { 
+        snapshot = new LocalLogIndexSnapshot(_header._sync,_localLogStartOffset,_header._fileSize,_header._itemCount,index);
+      }
+    }
+    finally { 
+      getLocalLogAccessSemaphore().release(LOG_ACCESS_SEMAPHORE_COUNT);
+    }
+    long copyTime = System.currentTimeMillis() - timeStart;
+    
+    File snapshotPath = getLogIndexSnapshotPath();
+    File tempPath = new File(snapshotPath.getParentFile(),snapshotPath.getName() + ".tmp");
+    try { 
+      snapshot.write(tempPath);
+      synchronized (_logIndexSnapshotLock) { 
+        // a checkpoint rewrote the log while we were writing, so this snapshot is already stale 
+        if (generation != _logGeneration) { 
+          LOG.info("Local Log Checkpointed during Index Snapshot. Discarding Snapshot");
+          return;
+        }
+        if (!tempPath.renameTo(snapshotPath)) { 
+          throw new IOException("Failed to rename:" + tempPath + " to:" + snapshotPath);
+        }
+        _lastSnapshotGeneration = generation;
+        _lastSnapshotItemCount = snapshot._itemCount;
+      }
+    }
+    finally { 
+      tempPath.delete();
+    }
+    LOG.info("Wrote Log Index Snapshot. Items:" + snapshot._itemCount + " FileSize:" + snapshot._fileSize 
+        + " Index Entries:" + snapshot._index.size() + " Copy TOOK:" + copyTime + " Total TOOK:" + (System.currentTimeMillis() - timeStart));
+  }
+  
+  /** the hdfs index compactor (null if compaction is disabled) **/
+  HDFSIndexCompactor getHDFSIndexCompactor() { 
+    return _hdfsIndexCompactor;
+  }
+  
+  /** snapshot of the hdfs index list, oldest generation first **/
+  synchronized ImmutableList<HDFSFileIndex> getHDFSIndexListSnapshot() { 
+    return ImmutableList.copyOf(_hdfsIndexList);
+  }
+  
+  /** 
+   * atomically replace a run of adjacent hdfs indexes with the index they were compacted into 
+   * 
+   * @return false if the indexes are no longer present (adjacent and in order) in the list
+   */
+  synchronized boolean replaceHDFSIndexes(List<HDFSFileIndex> oldIndexes,HDFSFileIndex newIndex) { 
+    int firstIndex = _hdfsIndexList.indexOf(oldIndexes.get(0));
+    if (firstIndex == -1 || firstIndex + oldIndexes.size() > _hdfsIndexList.size()) { 
+      return false;
+    }
+    for (int i=0;i<oldIndexes.size();++i) { 
+      if (_hdfsIndexList.get(firstIndex + i) != oldIndexes.get(i)) { 
+        return false;
+      }
+    }
+    _hdfsIndexList.subList(firstIndex,firstIndex + oldIndexes.size()).clear();
+    _hdfsIndexList.insertElementAt(newIndex,firstIndex);
+    return true;
+  }
+  
   
   /**  load hdfs indexes 
    * 
@@ -601,28 +809,99 @@ public class CacheManager {
   private synchronized void loadHDFSIndexFiles() throws IOException { 
     //scan remote file system for index files ... 
     FileStatus indexFiles[] = getRemoteFileSystem().globStatus(new Path(getRemoteDataDirectory(),PROXY_CACHE_FILE_INDEX_PREFIX+"*"));
-    // iterate files 
-    for (FileStatus indexFile : indexFiles) { 
-      LOG.info("Found Remote Index File:" + indexFile.getPath() + " Scanning for valid local copy");
-      File localPath = new File(getLocalDataDirectory(),indexFile.getPath().getName());
-      if (!localPath.exists() || localPath.length() != indexFile.getLen()) { 
-        LOG.info("Local Index File:" + localPath.getAbsolutePath() + " Not Found. Copying...");
-        getRemoteFileSystem().copyToLocalFile(indexFile.getPath(), new Path(localPath.getAbsolutePath()));
-        LOG.info("Remote Index File:" + indexFile.getPath()  + " copied to:" + localPath.getAbsolutePath());
+    // order generations oldest to newest (lookups walk the list newest first)
+    Arrays.sort(indexFiles,new Comparator<FileStatus>() {
+
+      @Override
+      public int compare(FileStatus o1, FileStatus o2) {
+        long t1 = HDFSFileIndex.parseGenerationTimestamp(o1.getPath().getName(),true);
+        long t2 = HDFSFileIndex.parseGenerationTimestamp(o2.getPath().getName(),true);
+        return (t1 < t2) ? -1 : (t1 > t2) ? 1 : 0;
+      } 
+    });
+    long timeStart = System.currentTimeMillis();
+    // copying (and loading) the indexes dominates startup, so do it in parallel, and then add the results in generation order 
+    ExecutorService indexLoaderPool = Executors.newFixedThreadPool(HDFS_INDEX_LOADER_THREADS);
+    try { 
+      ArrayList<Future<HDFSFileIndex>> pendingLoads = new ArrayList<Future<HDFSFileIndex>>();
+      // iterate files 
+      for (final FileStatus indexFile : indexFiles) { 
+        // skip (and delete) generations already merged into a compacted generation
+        // (left behind if we went down between committing a compaction and deleting its inputs)
+        if (isCoveredByCompactedGeneration(indexFile,indexFiles)) { 
+          String suffix = indexFile.getPath().getName().substring(PROXY_CACHE_FILE_INDEX_PREFIX.length());
+          LOG.info("Remote Index File:" + indexFile.getPath() + " was Compacted. Deleting");
+          getRemoteFileSystem().delete(indexFile.getPath(),false);
+          getRemoteFileSystem().delete(new Path(getRemoteDataDirectory(),PROXY_CACHE_FILE_DATA_PREFIX + suffix),false);
+          new File(getLocalDataDirectory(),indexFile.getPath().getName()).delete();
+          continue;
+        }
+        pendingLoads.add(indexLoaderPool.submit(new Callable<HDFSFileIndex>() {
+
+          @Override
+          public HDFSFileIndex call() throws Exception {
+            return loadHDFSIndexFile(indexFile);
+          } 
+        }));
       }
-      // extract timestamp from index name 
-      long indexTimestamp = Long.parseLong(indexFile.getPath().getName().substring(PROXY_CACHE_FILE_INDEX_PREFIX.length() + 1));
-      // construct data file path 
-      Path remoteDataPath = new Path(getRemoteDataDirectory(),PROXY_CACHE_FILE_DATA_PREFIX +"-"+indexTimestamp);
-      // now load the index ...
-      LOG.info("Loading Index from:" + localPath.getAbsolutePath() + " Data Path:" + remoteDataPath);
-      HDFSFileIndex indexObject = new HDFSFileIndex(getRemoteFileSystem(),localPath,remoteDataPath);
-      LOG.info("Loaded Index from:" + localPath.getAbsolutePath());
-      _hdfsIndexList.add(indexObject);
+      for (Future<HDFSFileIndex> pendingLoad : pendingLoads) { 
+        try { 
+          _hdfsIndexList.add(pendingLoad.get());
+        }
+        catch (InterruptedException e) { 
+          throw new IOException("Interrupted while loading HDFS Indexes");
+        }
+        catch (ExecutionException e) { 
+          if (e.getCause() instanceof IOException) { 
+            throw (IOException)e.getCause();
+          }
+          throw new IOException(CCStringUtils.stringifyException(e.getCause()));
+        }
+      }
+    }
+    finally { 
+      indexLoaderPool.shutdownNow();
     }
+    LOG.info("Loaded " + _hdfsIndexList.size() + " HDFS Indexes. TOOK:" + (System.currentTimeMillis() - timeStart));
+  }
+  
+  /** copy an hdfs index file locally (unless there is a valid local copy) and load it **/
+  private HDFSFileIndex loadHDFSIndexFile(FileStatus indexFile) throws IOException { 
+    LOG.info("Found Remote Index File:" + indexFile.getPath() + " Scanning for valid local copy");
+    File localPath = new File(getLocalDataDirectory(),indexFile.getPath().getName());
+    if (!localPath.exists() || localPath.length() != indexFile.getLen()) { 
+      LOG.info("Local Index File:" + localPath.getAbsolutePath() + " Not Found. Copying...");
+      getRemoteFileSystem().copyToLocalFile(indexFile.getPath(), new Path(localPath.getAbsolutePath()));
+      LOG.info("Remote Index File:" + indexFile.getPath()  + " copied to:" + localPath.getAbsolutePath());
+    }
+    // construct data file path (same generation suffix as the index) 
+    Path remoteDataPath = new Path(getRemoteDataDirectory(),PROXY_CACHE_FILE_DATA_PREFIX + indexFile.getPath().getName().substring(PROXY_CACHE_FILE_INDEX_PREFIX.length()));
+    // now load the index ...
+    LOG.info("Loading Index from:" + localPath.getAbsolutePath() + " Data Path:" + remoteDataPath);
+    HDFSFileIndex indexObject = new HDFSFileIndex(getRemoteFileSystem(),localPath,remoteDataPath);
+    LOG.info("Loaded Index from:" + localPath.getAbsolutePath());
+    return indexObject;
   }
   
   
+  /** true if another (compacted) index file spans the generation range of the given index file **/
+  private static boolean isCoveredByCompactedGeneration(FileStatus indexFile,FileStatus allIndexFiles[]) { 
+    long newest = HDFSFileIndex.parseGenerationTimestamp(indexFile.getPath().getName(),true);
+    long oldest = HDFSFileIndex.parseGenerationTimestamp(indexFile.getPath().getName(),false);
+    
+    for (FileStatus other : allIndexFiles) { 
+      if (other != indexFile) { 
+        long otherNewest = HDFSFileIndex.parseGenerationTimestamp(other.getPath().getName(),true);
+        long otherOldest = HDFSFileIndex.parseGenerationTimestamp(other.getPath().getName(),false);
+        
+        if (otherOldest <= oldest && newest <= otherNewest && (otherOldest != oldest || otherNewest != newest)) { 
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
   // shrink the log file by the desired amount and update the header 
   private final void flushLocalLog(final long bytesToRemove,final int itemsToRemove,final List<FingerprintAndOffsetTuple> flushedTupleList,final ArrayList<IndexDataFileTriple> tempFileTriples) {
     
@@ -643,6 +922,18 @@ public class CacheManager {
     File activeLogFilePath = getActiveLogFilePath();
     File checkpointLogFilePath = getCheckpointLogFilePath();
     try {
+      // unmap the log while we swap files ... 
+      try { 
+        _logAppender.close();
+      }
+      catch (IOException e) { 
+        LOG.error(CCStringUtils.stringifyException(e));
+      }
+      // the checkpoint rewrites the log, so any index snapshot of it is stale from here on ... 
+      synchronized (_logIndexSnapshotLock) { 
+        _logGeneration++;
+        getLogIndexSnapshotPath().delete();
+      }
       // delete checkpoint file if it existed ... 
       checkpointLogFilePath.delete();
       // now rename activelog to checkpoint path 
@@ -719,7 +1010,8 @@ public class CacheManager {
           public void timerFired(Timer timer) {
             LOG.info("Cleaning Map");
             
-            synchronized (CacheManager.this) { 
+            _localLogPosLock.writeLock().lock();
+            try { 
               // walk tuples 
               for (FingerprintAndOffsetTuple tuple : flushedTupleList) {
                 //TODO: HACK!
@@ -727,6 +1019,9 @@ public class CacheManager {
                 _fingerprintToLocalLogPos.removeAll(tuple._fingerprint);
               }
             }
+            finally { 
+              _localLogPosLock.writeLock().unlock();
+            }
             LOG.info("Increment Offset Info");
             // finally increment locallog offset by bytes removed ... 
             _localLogStartOffset += bytesToRemove;
@@ -745,6 +1040,9 @@ public class CacheManager {
       }
       catch (IOException e){ 
         LOG.error("Checkpoint Failed with Exception:" + CCStringUtils.stringifyException(e));
+        // the old log is going back in place, so undo the header fix up ... 
+        _header._fileSize += bytesToRemove;
+        _header._itemCount += itemsToRemove;
         // delete new file ... 
         activeLogFilePath.delete();
         // and rename checkpoint file to active file ... 
@@ -752,6 +1050,13 @@ public class CacheManager {
       }
     }
     finally { 
+      // and map whichever log is now active 
+      try { 
+        _logAppender.open(_header._fileSize);
+      }
+      catch (IOException e) { 
+        LOG.error("Failed to Reopen Local Log:" + CCStringUtils.stringifyException(e));
+      }
       LOG.info("Releasing ALL Log Access Semaphores. HELD FOR:" + (System.currentTimeMillis() - timeStart));
       getLocalLogAccessSemaphore().release(LOG_ACCESS_SEMAPHORE_COUNT);
     }
@@ -804,8 +1109,8 @@ public class CacheManager {
     return _localLogAccessSempahore;
   }
   
-  Semaphore getLocalLogWriteAccessSemaphore() { 
-    return _localLogWriteAccessSemaphore;
+  LocalLogAppender getLocalLogAppender() { 
+    return _logAppender;
   }
   
   FileSystem getRemoteFileSystem() {
@@ -818,10 +1123,8 @@ public class CacheManager {
 
   void writeRequestFailed(final CacheWriteRequest request,final IOException e) {
     LOG.error("Failed to complete write request for Item:+ "+ request._item.getUrl()  + " with Exception:" + CCStringUtils.stringifyException(e));
-    synchronized (CacheManager.this) { 
-      // ok time to find this item in the write queue and move it to the long term position queue ...
-      _writeQueue.remove(request._item);
-    }
+    // drop the item from pending writes (unless it has been superseded by a newer item) 
+    _pendingWrites.remove(request._itemFingerprint,request._item);
     // ok finally, if completion semaphore is set... release it  
     if (request._optionalSemaphore != null) { 
     	request._optionalSemaphore.release();
@@ -829,12 +1132,9 @@ public class CacheManager {
   }
 
   void writeRequestComplete(final CacheWriteRequest request,final long absoluteFilePosition) {
-    synchronized (CacheManager.this) { 
-      // ok time to find this item in the write queue and move it to the long term position queue ...
-      _writeQueue.remove(request._item);
-      // now ...  push it into long term lookup map ... 
-      _fingerprintToLocalLogPos.put(request._itemFingerprint,_localLogStartOffset + absoluteFilePosition);
-    }
+    // push it into long term lookup map before dropping it from pending writes, so lookups always find it in one or the other ... 
+    addLocalLogPosition(request._itemFingerprint,_localLogStartOffset + absoluteFilePosition);
+    _pendingWrites.remove(request._itemFingerprint,request._item);
     // ok finally, if completion semaphore is set... release it  
     if (request._optionalSemaphore != null) { 
     	request._optionalSemaphore.release();
@@ -885,7 +1185,7 @@ public class CacheManager {
    * @return
    * @throws IOException
    */    
-  private CacheItem loadCacheItemFromDisk(FileInputStream file,String optTargetURL,long location) throws IOException {
+  private CacheItem loadCacheItemFromDisk(InputStream file,String optTargetURL,long location) throws IOException {
     
     long timeStart = System.currentTimeMillis();
     
@@ -907,7 +1207,7 @@ public class CacheManager {
       int contentBufferLen = itemStream.readInt();
       if (contentBufferLen != 0) { 
         byte data[] = new byte[contentBufferLen];
-        itemStream.read(data);
+        itemStream.readFully(data);
         item.setContent(new Buffer(data));
       }
       
@@ -1087,7 +1387,7 @@ public class CacheManager {
    */
   private void queueLocalCacheLoadRequest(final CacheLoadRequest loadRequest) { 
     // queue up requests into the thread pool executor (for now)
-    for (final Long location : loadRequest._loacations) { 
+    for (final long location : loadRequest._loacations) { 
       
       _cacheLoadThreadPool.submit(new ConcurrentTask<CacheItem>(_eventLoop, new Callable<CacheItem>() {
 
@@ -1100,7 +1400,7 @@ public class CacheManager {
           
           // now set up and exception handler block to ensure that we release semaphore
           try { 
-            //LOG.info("### Item Loading Item for URL:" + loadRequest._targetURL + " at Pos:" + location.longValue());
+            //LOG.info("### Item Loading Item for URL:" + loadRequest._targetURL + " at Pos:" + location);
             
             // now that we have acquire the semaphore ... validate position against current log file offset ...
             if (location < _localLogStartOffset) {
@@ -1109,21 +1409,13 @@ public class CacheManager {
             else { 
               long timeStart = System.currentTimeMillis();
               
-              // we got a location ... initiate a disk read to fetch the serialized CacheItem
-              FileInputStream file = new FileInputStream(getActiveLogFilePath());
-              
+              // we got a location ... read the serialized CacheItem straight out of the mapped log
               try { 
-                // seek to item location ...
-                file.skip(location.longValue() - _localLogStartOffset);
-                return loadCacheItemFromDisk(file,loadRequest._targetURL,location.longValue());
+                return loadCacheItemFromDisk(_logAppender.openStream(location - _localLogStartOffset),loadRequest._targetURL,location);
               }
               catch (IOException e) { 
                 LOG.error(CCStringUtils.stringifyException(e));
               }
-              finally {
-                // file.getFD().sync();
-                file.close();
-              }
             }
             return null;
           }
@@ -1184,7 +1476,7 @@ public class CacheManager {
       CacheItem loadResult = null;
       
       // queue up requests into the thread pool executor (for now)
-      for (final Long location : loadRequest._loacations) { 
+      for (final long location : loadRequest._loacations) { 
         
           LOG.info("### Local Cache Loader Called. Acquiring Semaphore");
           getLocalLogAccessSemaphore().acquireUninterruptibly();
@@ -1192,7 +1484,7 @@ public class CacheManager {
             
           // now set up and exception handler block to ensure that we release semaphore
           try { 
-            // LOG.info("### Item Loading Item for URL:" + loadRequest._targetURL + " at Pos:" + location.longValue());
+            // LOG.info("### Item Loading Item for URL:" + loadRequest._targetURL + " at Pos:" + location);
             
             // now that we have acquire the semaphore ... validate position against current log file offset ...
             if (location < _localLogStartOffset) {
@@ -1201,13 +1493,9 @@ public class CacheManager {
             else { 
               long timeStart = System.currentTimeMillis();
               
-              // we got a location ... initiate a disk read to fetch the serialized CacheItem
-              FileInputStream file = new FileInputStream(getActiveLogFilePath());
-              
+              // we got a location ... read the serialized CacheItem straight out of the mapped log
               try { 
-                // seek to item location ...
-                file.skip(location.longValue() - _localLogStartOffset);
-                loadResult = loadCacheItemFromDisk(file,loadRequest._targetURL,location.longValue());
+                loadResult = loadCacheItemFromDisk(_logAppender.openStream(location - _localLogStartOffset),loadRequest._targetURL,location);
                 if (loadResult != null) { 
                   break;
                 }
@@ -1215,10 +1503,6 @@ public class CacheManager {
               catch (IOException e) { 
                 LOG.error(CCStringUtils.stringifyException(e));
               }
-              finally {
-                // file.getFD().sync();
-                file.close();
-              }
             }
           }
           finally { 
@@ -1297,32 +1581,38 @@ public class CacheManager {
     return new File(_localDataDirectory,"Checkpoint"); 
   }
   
+  File getLogIndexSnapshotPath() { 
+    return new File(_localDataDirectory,"ActiveLogIndex"); 
+  }
+  
   
   /**
-   * updateLogFileHeader - update the log file header 
-   *    called via the log file writer thread ...
+   * writeLogFileHeader - write a log file header covering the newly added items, 
+   *    without updating the cached header (see logFileHeaderCommitted) ... 
+   *    called via the log appender, once per group commit (which then syncs the file) ...
    * @throws IOException
    */
-  void updateLogFileHeader(File logFileName, long newlyAddedItemsCount, long newItemsFileSize)throws IOException {
-    
-    RandomAccessFile file = new RandomAccessFile(logFileName,"rw");
-    
-    try { 
-      
-      synchronized(_header) { 
-        // update cached header ... 
-        _header._fileSize += newItemsFileSize;
-        _header._itemCount += newlyAddedItemsCount;
-        // set the position at zero .. 
-        file.seek(0);
-        // and write header to disk ... 
-        _header.writeHeader(file);
-      }
-    }
-    finally {
-      // major bottle neck.. 
-      // file.getFD().sync();
-      file.close();
+  void writeLogFileHeader(RandomAccessFile file, long newlyAddedItemsCount, long newItemsFileSize)throws IOException {
+    LocalLogFileHeader newHeader = new LocalLogFileHeader();
+    synchronized(_header) { 
+      newHeader._sync = _header._sync;
+      newHeader._fileSize = _header._fileSize + newItemsFileSize;
+      newHeader._itemCount = _header._itemCount + newlyAddedItemsCount;
+    }
+    // set the position at zero .. 
+    file.seek(0);
+    // and write header to disk ... 
+    newHeader.writeHeader(file);
+  }
+  
+  /**
+   * logFileHeaderCommitted - update the cached header once the header written by 
+   *    writeLogFileHeader is durable ... 
+   */
+  void logFileHeaderCommitted(long newlyAddedItemsCount, long newItemsFileSize) {
+    synchronized(_header) { 
+      _header._fileSize += newItemsFileSize;
+      _header._itemCount += newlyAddedItemsCount;
     }
   }
   
@@ -1405,107 +1695,181 @@ public class CacheManager {
       finally { 
         inputStream.close();
       }
-      
-      if (_header._itemCount != 0) { 
-        loadCache(activeLogPath,_header);
+    }
+    // the file is pre-allocated past the header's file size once mapped, so capture its real length first 
+    long logFileLength = activeLogPath.length();
+    // map the log for appends (and for the load scan) 
+    _logAppender = new LocalLogAppender(this,activeLogPath);
+    _logAppender.open(_header._fileSize);
+    
+    if (_header._itemCount != 0) {
+      long timeStart = System.currentTimeMillis();
+      // seed the index from the last snapshot and replay only the part of the log it does not cover 
+      long scanStartPos = loadLogIndexSnapshot();
+      loadCache(_header,scanStartPos,Math.min(logFileLength,_header._fileSize));
+      LOG.info("Loaded Local Log Index. Entries:" + _fingerprintToLocalLogPos.size() + " Replayed Bytes:" + (_header._fileSize - scanStartPos) 
+          + " TOOK:" + (System.currentTimeMillis() - timeStart));
+    }
+    else { 
+      getLogIndexSnapshotPath().delete();
+    }
+  }
+  
+  /**
+   * loadLogIndexSnapshot - seed the local log index from the last index snapshot (if there is a valid one)
+   * 
+   * @return the log position to start the load scan at
+   */
+  private long loadLogIndexSnapshot() { 
+    File snapshotPath = getLogIndexSnapshotPath();
+    if (snapshotPath.exists()) { 
+      try { 
+        LocalLogIndexSnapshot snapshot = LocalLogIndexSnapshot.load(snapshotPath);
+        if (snapshotMatchesLog(snapshot)) { 
+          LOG.info("Loaded Log Index Snapshot. Items:" + snapshot._itemCount + " FileSize:" + snapshot._fileSize 
+              + " of Log Items:" + _header._itemCount + " FileSize:" + _header._fileSize);
+          _localLogPosLock.writeLock().lock();
+          try { 
+            _fingerprintToLocalLogPos = snapshot._index;
+            _localLogStartOffset = snapshot._logStartOffset;
+          }
+          finally { 
+            _localLogPosLock.writeLock().unlock();
+          }
+          synchronized (_logIndexSnapshotLock) { 
+            _lastSnapshotItemCount = snapshot._itemCount;
+          }
+          return snapshot._fileSize;
+        }
+        LOG.error("Log Index Snapshot does not match Local Log. Ignoring Snapshot");
+      }
+      catch (IOException e) { 
+        LOG.error("Failed to load Log Index Snapshot. Ignoring Snapshot. Exception:" + CCStringUtils.stringifyException(e));
       }
     }
+    return LocalLogFileHeader.SIZE;
+  }
+  
+  /** 
+   * true if the snapshot was taken of the current log: the sync bytes match, it covers a prefix of the log, 
+   * and the last record it covers is where the snapshot says it is 
+   */
+  private boolean snapshotMatchesLog(LocalLogIndexSnapshot snapshot) throws IOException { 
+    if (!Arrays.equals(snapshot._sync,_header._sync) 
+        || snapshot._fileSize < LocalLogFileHeader.SIZE || snapshot._fileSize > _header._fileSize 
+        || snapshot._itemCount > _header._itemCount) { 
+      return false;
+    }
+    if (snapshot._itemCount == 0) { 
+      return snapshot._fileSize == LocalLogFileHeader.SIZE;
+    }
+    // every record ends with its length, so walk back from the end of the covered region to the last record ... 
+    int recordLength = new DataInputStream(_logAppender.openStream(snapshot._fileSize - ITEM_RECORD_TRAILING_BYTES)).readInt();
+    long recordPos = snapshot._fileSize - ITEM_RECORD_TRAILING_BYTES - recordLength;
+    if (recordLength < CacheItemHeader.SIZE || recordPos < LocalLogFileHeader.SIZE) { 
+      return false;
+    }
+    CacheItemHeader itemHeader = new CacheItemHeader();
+    itemHeader.readHeader(new DataInputStream(_logAppender.openStream(recordPos)));
+    if (!Arrays.equals(itemHeader._sync,_header._sync) || CacheItemHeader.SIZE + itemHeader._dataLength != recordLength) { 
+      return false;
+    }
+    // and check that the snapshot indexed it at that position 
+    for (long location : snapshot._index.get(itemHeader._fingerprint)) { 
+      if (location - snapshot._logStartOffset == recordPos) { 
+        return true;
+      }
+    }
+    return false;
   }
   
   /**
    * loadCache - load local cache from disk 
-   * @param activeLogPath
+   *    scans the log records in [startPos,endPos) through the log mapping 
    * @param logFileHeader
+   * @param startPos
+   * @param endPos
    * @throws IOException
    */
-  private synchronized void loadCache(File activeLogPath,LocalLogFileHeader logFileHeader) throws IOException { 
+  private synchronized void loadCache(LocalLogFileHeader logFileHeader,long startPos,long endPos) throws IOException { 
     
-    RandomAccessFile file = new RandomAccessFile(getActiveLogFilePath(),"rw");
+    byte [] syncCheck = new byte[logFileHeader._sync.length];
     
-    byte [] syncCheck = new byte[_header._sync.length];
+    long currentPos   = startPos; 
     
+    CacheItemHeader itemHeader = new CacheItemHeader();
     
-    try {
+    // start read 
+    while (currentPos < endPos) {
 
-      long lastValidPos = LocalLogFileHeader.SIZE; 
-      long currentPos   = lastValidPos; 
-      long endPos     = file.length();
+      if ((endPos - currentPos) < LocalLogFileHeader.SYNC_BYTES_SIZE) 
+        break;
       
+      // position a reader at current position ... 
+      DataInputStream reader = new DataInputStream(_logAppender.openStream(currentPos));
       
-      CacheItemHeader itemHeader = new CacheItemHeader();
+      boolean headerLoadFailed = false;
       
-      // start read 
-      while (currentPos < endPos) {
+      try { 
+        // read the item header ... assuming things are good so far ... 
+        itemHeader.readHeader(reader);
+      }
+      catch (IOException e) { 
+        LOG.error("### Item Header Load Failed With Exception:" + CCStringUtils.stringifyException(e));
+        headerLoadFailed = true;
+      }
+      
+      if (headerLoadFailed) {
+        LOG.error("### Item File Corrupt at position:" + currentPos +" Seeking Next Sync Point");
+        currentPos += LocalLogFileHeader.SYNC_BYTES_SIZE;
+      }
+      
+      // if header sync bytes don't match .. then seek to next sync position ... 
+      if (headerLoadFailed || !Arrays.equals(itemHeader._sync, logFileHeader._sync)) {
 
+        LOG.error("### Item File Corrupt at position:" + currentPos +" Seeking Next Sync Point");
+        
         if ((endPos - currentPos) < LocalLogFileHeader.SYNC_BYTES_SIZE) 
           break;
         
-        // seek to current position ... 
-        file.seek(currentPos);
-        
-        boolean headerLoadFailed = false;
-        
-        try { 
-          // read the item header ... assuming things are good so far ... 
-          itemHeader.readHeader(file);
-        }
-        catch (IOException e) { 
-          LOG.error("### Item Header Load Failed With Exception:" + CCStringUtils.stringifyException(e));
-          headerLoadFailed = true;
-        }
-        
-        if (headerLoadFailed) {
-          LOG.error("### Item File Corrupt at position:" + currentPos +" Seeking Next Sync Point");
-          currentPos += LocalLogFileHeader.SYNC_BYTES_SIZE;
-        }
-        
-        // if header sync bytes don't match .. then seek to next sync position ... 
-        if (headerLoadFailed || !Arrays.equals(itemHeader._sync, _header._sync)) {
-
-          LOG.error("### Item File Corrupt at position:" + currentPos +" Seeking Next Sync Point");
-          
-          // reseek to current pos 
-          file.seek(currentPos);
-          // read in a sync.length buffer amount 
-          file.readFully(syncCheck);
-        
-          int syncLen = _header._sync.length;
-        
-          // start scan for next sync position ...
-          for (int i = 0; file.getFilePointer() < endPos; i++) {
-            int j = 0;
-            for (; j < syncLen; j++) {
-              if (_header._sync[j] != syncCheck[(i+j)%syncLen])
-                break;
-            }
-            if (j == syncLen) {
-              file.seek(file.getFilePointer() - LocalLogFileHeader.SYNC_BYTES_SIZE);     // position before sync
+        // reposition reader at current pos 
+        reader = new DataInputStream(_logAppender.openStream(currentPos));
+        // read in a sync.length buffer amount 
+        reader.readFully(syncCheck);
+        long scanPos = currentPos + syncCheck.length;
+      
+        int syncLen = logFileHeader._sync.length;
+      
+        // start scan for next sync position ...
+        for (int i = 0; scanPos < endPos; i++) {
+          int j = 0;
+          for (; j < syncLen; j++) {
+            if (logFileHeader._sync[j] != syncCheck[(i+j)%syncLen])
               break;
-            }
-            syncCheck[i%syncLen] = file.readByte();
-          }
-          // whatever, happened file pointer is at current pos 
-          currentPos = file.getFilePointer();
-          
-          if (currentPos < endPos) { 
-            LOG.info("### Item Loader Found another sync point at:" + currentPos);
           }
-          else { 
-            LOG.error("### No more sync points found!");
+          if (j == syncLen) {
+            scanPos -= LocalLogFileHeader.SYNC_BYTES_SIZE;     // position before sync
+            break;
           }
+          syncCheck[i%syncLen] = reader.readByte();
+          scanPos++;
+        }
+        // whatever, happened scan pos is at current pos 
+        currentPos = scanPos;
+        
+        if (currentPos < endPos) { 
+          LOG.info("### Item Loader Found another sync point at:" + currentPos);
         }
         else { 
-          // ok figure out next steps based on header ... 
-          // for now, just add item to our list ... 
-          _fingerprintToLocalLogPos.put(itemHeader._fingerprint,_localLogStartOffset + currentPos);
-          // now seek past data
-          currentPos += CacheItemHeader.SIZE + itemHeader._dataLength + ITEM_RECORD_TRAILING_BYTES; 
+          LOG.error("### No more sync points found!");
         }
       }
-    }
-    finally { 
-      if (file != null) { 
-        file.close();
+      else { 
+        // ok figure out next steps based on header ... 
+        // for now, just add item to our list ... 
+        addLocalLogPosition(itemHeader._fingerprint,_localLogStartOffset + currentPos);
+        // now skip past data
+        currentPos += CacheItemHeader.SIZE + itemHeader._dataLength + ITEM_RECORD_TRAILING_BYTES; 
       }
     }
   }
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ * 
+ * CommonCrawl licenses this file to you under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** 
+ * 
+ * Serves up the proxy cache's hdfs index and block cache statistics  
+ * 
+ * @author rana
+ *
+ */
+public class CacheStatsServlet extends HttpServlet {
+
+  public static final String servletPath = "/cacheStats";
+  
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    
+    StringBuffer sb = new StringBuffer();
+    
+    CacheManager cacheManager = ProxyServer.getSingleton().getCache();
+    if (cacheManager != null) { 
+      sb.append("HDFSIndex.Generations:" + cacheManager.getHDFSIndexListSnapshot().size() + "\n");
+      HDFSIndexCompactor compactor = cacheManager.getHDFSIndexCompactor();
+      if (compactor != null) { 
+        sb.append("HDFSIndexCompactor.Compactions:" + compactor.getCompactionCount() + "\n");
+        sb.append("HDFSIndexCompactor.RunsMerged:" + compactor.getRunsMerged() + "\n");
+        sb.append("HDFSIndexCompactor.BytesWritten:" + compactor.getBytesWritten() + "\n");
+        sb.append("HDFSIndexCompactor.FingerprintsDropped:" + compactor.getFingerprintsDropped() + "\n");
+      }
+    }
+    BlockCache.getSingleton().dumpStats(sb);
+    
+    resp.setContentType("text/plain");
+    PrintWriter writer = resp.getWriter();
+    try { 
+      writer.print(sb.toString());
+    }
+    finally { 
+      writer.flush();
+      writer.close();
+    }
+  }
+}
@@ -22,11 +22,11 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedOutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,29 +43,15 @@ import org.commoncrawl.util.shared.FlexBuffer;
  */
 final class CacheWriterThread implements Runnable {
   
-  private class ThriftyGZIPOutputStream extends GZIPOutputStream {
-    public ThriftyGZIPOutputStream(OutputStream os) throws IOException {
-      super(os);
-    }
-
-    @Override
-    public void finish() throws IOException {
-      super.finish();
-      def.end();
-    }
-
-    @Override
-    public void close() throws IOException {
-      super.finish();
-      def.end();
-    }
-  }
-  
-  
   public static final Log LOG = LogFactory.getLog(CacheWriterThread.class);
 
+  /** gzip member header (as written by GZIPOutputStream) **/
+  private static final byte GZIP_HEADER[] = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
   
   private CRC32 _crc32Out = new CRC32();
+  /** per thread deflater, reset and reused for every item **/
+  private Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,true);
+  private CRC32 _gzipCRC = new CRC32();
   private CacheManager _manager;
   private File _dataDirectory;
   private LinkedBlockingQueue<CacheWriteRequest> _writeRequestQueue;
@@ -105,10 +91,7 @@ final class CacheWriterThread implements Runnable {
               // figure out if we need to compress the item ... 
               if ((request._item.getFlags() & CacheItem.Flags.Flag_IsCompressed) == 0 && request._item.getContent().getCount() != 0) { 
                 LOG.info("Incoming Cache Request Content for:" + request._item.getUrl() + " is not compressed. Compressing...");
-                ByteStream compressedBytesOut = new ByteStream(request._item.getContent().getCount());
-                ThriftyGZIPOutputStream  gzipOutputStream = new ThriftyGZIPOutputStream(compressedBytesOut);
-                gzipOutputStream.write(request._item.getContent().getReadOnlyBytes(),0,request._item.getContent().getCount());
-                gzipOutputStream.finish();
+                ByteStream compressedBytesOut = gzip(request._item.getContent().getReadOnlyBytes(),request._item.getContent().getCount());
                 LOG.info("Finished Compressing Incoming Content for:" + request._item.getUrl() + 
                          " BytesIn:" + request._item.getContent().getCount() + 
                          " BytesOut:" + compressedBytesOut.size());
@@ -178,39 +161,17 @@ final class CacheWriterThread implements Runnable {
               _manager.getLocalLogAccessSemaphore().acquireUninterruptibly();
                             
               try { 
-              	
-              	// now time to acquire the write semaphore ... 
-              	_manager.getLocalLogWriteAccessSemaphore().acquireUninterruptibly();
-              	
-                // get the current file position 
-                long recordOffset = _manager.getLocalLogFilePos();
-              	
-              	try { 
-
-	                long ioTimeStart = System.currentTimeMillis();
-	                
-	                RandomAccessFile logFile = new RandomAccessFile(_manager.getActiveLogFilePath(),"rw");
-	                
-	                try { 
-	                	// seek to our known record offset 
-	                	logFile.seek(recordOffset);
-	                	// write out the data
-	                	logFile.write(logStream.getData(),0,logStream.getLength());
-	                }
-	                finally { 
-	                	logFile.close();
-	                }
-	                // now we need to update the file header 
-	                _manager.updateLogFileHeader(_manager.getActiveLogFilePath(),1,CacheItemHeader.SIZE + itemHeader._dataLength + 4 /*trailing bytes*/);
-	                
-	                CacheManager.LOG.info("#### Wrote Cache Item in:" + (System.currentTimeMillis() - timeStart) 
-	                		+ " iotime:" + (System.currentTimeMillis() - ioTimeStart) + " QueueSize:"  + _writeRequestQueue.size());
-	                
-              	}
-	              finally {
-	              	// release write semaphore quickly 
-	              	_manager.getLocalLogWriteAccessSemaphore().release();
-	              }
+                long ioTimeStart = System.currentTimeMillis();
+                
+                LocalLogAppender logAppender = _manager.getLocalLogAppender();
+                // reserve space at the end of the log and copy the record into the mapping (in parallel with other writers) ... 
+                long recordOffset = logAppender.reserve(logStream.getLength());
+                logAppender.write(recordOffset,logStream.getData(),0,logStream.getLength());
+                // then wait for the group commit that covers it 
+                logAppender.commit(recordOffset,logStream.getLength());
+                
+                CacheManager.LOG.info("#### Wrote Cache Item in:" + (System.currentTimeMillis() - timeStart) 
+                    + " iotime:" + (System.currentTimeMillis() - ioTimeStart) + " QueueSize:"  + _writeRequestQueue.size());
 	              
                 // now inform the manager of the completed request ... 
                 _manager.writeRequestComplete(request,recordOffset);
@@ -231,5 +192,33 @@ final class CacheWriterThread implements Runnable {
         
       }
     }
+    _deflater.end();
+  }
+  
+  /** gzip the given bytes, reusing this thread's deflater **/
+  private ByteStream gzip(byte data[],int length) throws IOException { 
+    ByteStream bytesOut = new ByteStream(length);
+    bytesOut.write(GZIP_HEADER);
+    
+    _deflater.reset();
+    DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut,_deflater);
+    deflaterStream.write(data,0,length);
+    // finishes the deflater without ending it 
+    deflaterStream.finish();
+    
+    _gzipCRC.reset();
+    _gzipCRC.update(data,0,length);
+    // trailer is crc and uncompressed size, little endian 
+    writeIntLE(bytesOut,(int)_gzipCRC.getValue());
+    writeIntLE(bytesOut,length);
+    
+    return bytesOut;
+  }
+  
+  private static void writeIntLE(OutputStream out,int value) throws IOException { 
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+    out.write((value >> 16) & 0xff);
+    out.write((value >> 24) & 0xff);
   }
 }
\ No newline at end of file
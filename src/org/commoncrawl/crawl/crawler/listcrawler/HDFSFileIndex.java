@@ -27,6 +27,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.rmi.server.UID;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Vector;
@@ -37,6 +38,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.util.StringUtils;
@@ -73,6 +76,16 @@ public class HDFSFileIndex {
   private int         _indexHintCount = -1;
   private int         _indexDataOffset = -1;
   private int         _indexDataSize   = -1;
+  private long        _dataFileSize = -1;
+  /** block cache ids for this index's (decoded) index blocks and data file records **/ 
+  private long        _indexBlockCacheId = BlockCache.allocateFileId();
+  private long        _dataBlockCacheId = BlockCache.allocateFileId();
+  
+  /** 
+   * generation file names are either <prefix>-<timestamp> for a flushed generation or 
+   * <prefix>-<newest timestamp>.<oldest timestamp> for the product of a compaction 
+   */
+  private static final Pattern GENERATION_NAME_PATTERN = Pattern.compile(".*-([0-9]+)(?:\\.([0-9]+))?");
      
   
   public HDFSFileIndex(FileSystem remoteFileSystem,Path remoteIndexFileLocation,Path remoteDataFileLocation,File localIndexDataDirectory) throws IOException {
@@ -99,11 +112,22 @@ public class HDFSFileIndex {
   }
 
   
+  /** the timestamp of the (newest) generation covered by this index **/
   public long getIndexTimestamp() {
+    return parseGenerationTimestamp(_remoteDataPath.getName(),true);
+  }
+  
+  /** the timestamp of the oldest generation covered by this index (same as getIndexTimestamp unless compacted) **/
+  public long getFirstIndexTimestamp() { 
+    return parseGenerationTimestamp(_remoteDataPath.getName(),false);
+  }
+  
+  /** parse the newest or oldest generation timestamp out of an index or data file name, returns 0 on failure **/
+  static long parseGenerationTimestamp(String fileName,boolean newest) { 
     try {
-      Matcher m = Pattern.compile(".*-([0-9]*)").matcher(_remoteDataPath.getName());
+      Matcher m = GENERATION_NAME_PATTERN.matcher(fileName);
       if (m.matches()) { 
-        return Long.parseLong(m.group(1));
+        return Long.parseLong((newest || m.group(2) == null) ? m.group(1) : m.group(2));
       }
     }
     catch (Exception e) { 
@@ -116,6 +140,18 @@ public class HDFSFileIndex {
     return _remoteDataPath;
   }
   
+  public File getLocalIndexFilePath() { 
+    return _localIndexFilePath;
+  }
+  
+  /** size of the remote data file (cached after the first call) **/
+  public synchronized long getDataFileSize() throws IOException { 
+    if (_dataFileSize == -1) { 
+      _dataFileSize = _remoteFileSystem.getFileStatus(_remoteDataPath).getLen();
+    }
+    return _dataFileSize;
+  }
+  
   private void loadIndexFromLocalFile()throws IOException {
     LOG.info("Loading Index from Local File:" + _localIndexFilePath);
     // now open an input stream to the local file ...
@@ -149,57 +185,196 @@ public class HDFSFileIndex {
   public CacheItem findItem(long targetFingerprint,boolean checkOnly)throws IOException { 
     // check bloom filter first ... 
     if (_bloomFilter.isPresent(targetFingerprint)) { 
-//      synchronized (this) { 
-        // find best hint ... 
-        HDFSFileIndex.IndexItem itemOut = _findBestIndexHintForFingerprint(targetFingerprint);
+      // find best hint ... 
+      HDFSFileIndex.IndexItem itemOut = _findBestIndexHintForFingerprint(targetFingerprint);
 
-        // if non null result returned   
-        if (itemOut != null) {
-            
-          // if no match, then this is the next lowest matching hint item ... 
-          if (itemOut.fingerprint != targetFingerprint) {
-            // demand load item data 
-            HDFSFileIndex.IndexDataBlock dataBlock = demandLoadIndexDataBlock(itemOut.fingerprint,itemOut.indexDataOffset,itemOut.indexDataSize);
-            // and search within it ...
-            itemOut = dataBlock.searchBlockFor(targetFingerprint);
-          }
+      // if non null result returned   
+      if (itemOut != null) {
           
-          if (itemOut != null && checkOnly) { 
-            CacheItem item = new CacheItem();
-            item.setUrlFingerprint(targetFingerprint);
-            return item;
-          }
-          
-          if (itemOut != null) {
-            LOG.info("Found Match in Index:" + _localIndexFilePath + " For FP:" + targetFingerprint + " Loading File:" + _remoteDataPath+ " at Offset:" + _indexDataOffset);
-            // open sequence file ... 
-            SequenceFile.Reader reader = new SequenceFile.Reader(_remoteFileSystem,_remoteDataPath,CrawlEnvironment.getHadoopConfig());
-            
-            try { 
-              reader.seek(itemOut.dataOffset);
-              
-              Text url = new Text();
-              CacheItem item = new CacheItem();
-
-              LOG.info("Reading Item and Data");
-              reader.next(url,item);
-              String strURL = url.toString();
-              
-              LOG.info("Read returned url:" + strURL);
-              item.setUrl(strURL);
-              
-              return item;
-            }
-            finally {
-              if (reader != null) 
-                reader.close();
-            }
-          }
+        // if no match, then this is the next lowest matching hint item ... 
+        if (itemOut.fingerprint != targetFingerprint) {
+          // search within its (decoded) data block ...
+          itemOut = searchIndexDataBlock(itemOut,targetFingerprint);
+        }
+        
+        if (itemOut != null && checkOnly) { 
+          CacheItem item = new CacheItem();
+          item.setUrlFingerprint(targetFingerprint);
+          return item;
         }
-//      }
+        
+        if (itemOut != null) {
+          LOG.info("Found Match in Index:" + _localIndexFilePath + " For FP:" + targetFingerprint + " Loading File:" + _remoteDataPath+ " at Offset:" + itemOut.dataOffset);
+          return loadItem(itemOut.dataOffset);
+        }
+      }
     }
     return null;
   }
+  
+  /** 
+   * search the data block following the given hint, via the shared block cache. blocks are cached 
+   * decoded, as a count followed by the sorted fingerprints and then their data offsets, so a cached 
+   * lookup is a binary search straight over cache memory  
+   */
+  private HDFSFileIndex.IndexItem searchIndexDataBlock(HDFSFileIndex.IndexItem hint,long targetFingerprint) throws IOException { 
+    BlockCache cache = BlockCache.getSingleton();
+    
+    BlockCache.Entry cachedBlock = cache.pin(_indexBlockCacheId,hint.indexDataOffset,BlockCache.BlockType.IndexBlock);
+    if (cachedBlock != null) { 
+      try { 
+        return searchDecodedBlock(cachedBlock.getData(),targetFingerprint);
+      }
+      finally { 
+        cache.unpin(cachedBlock);
+      }
+    }
+    
+    // demand load and decode item data 
+    HDFSFileIndex.IndexDataBlock dataBlock = demandLoadIndexDataBlock(hint.fingerprint,hint.indexDataOffset,hint.indexDataSize);
+    ArrayList<FingerprintAndOffsetTuple> entries = new ArrayList<FingerprintAndOffsetTuple>();
+    dataBlock.readAll(entries);
+    
+    ByteBuffer decodedBlock = ByteBuffer.allocate(4 + entries.size() * (8 + 4));
+    decodedBlock.putInt(entries.size());
+    for (FingerprintAndOffsetTuple entry : entries) { 
+      decodedBlock.putLong(entry._fingerprint);
+    }
+    for (FingerprintAndOffsetTuple entry : entries) { 
+      decodedBlock.putInt((int)entry._offset);
+    }
+    cache.put(_indexBlockCacheId,hint.indexDataOffset,decodedBlock.array(),0,decodedBlock.capacity());
+    
+    return searchDecodedBlock(decodedBlock,targetFingerprint);
+  }
+  
+  private static HDFSFileIndex.IndexItem searchDecodedBlock(ByteBuffer block,long targetFingerprint) { 
+    int count = block.getInt(0);
+    int low = 0;
+    int high = count - 1;
+    
+    while (low <= high) {
+      int mid = low + ((high - low) / 2);
+      long fingerprint = block.getLong(4 + mid * 8);
+      
+      if (fingerprint > targetFingerprint)
+        high = mid - 1;
+      else if (fingerprint < targetFingerprint)
+        low = mid + 1;
+      else 
+        return new IndexItem(fingerprint,block.getInt(4 + count * 8 + mid * 4));
+    }
+    return null;
+  }
+  
+  /** 
+   * load the item at the given data file offset. raw records are kept in the shared block cache, 
+   * so repeat lookups of hot urls don't go back to hdfs 
+   */
+  private CacheItem loadItem(int dataOffset) throws IOException { 
+    BlockCache cache = BlockCache.getSingleton();
+    
+    DataInputBuffer recordStream = new DataInputBuffer();
+    
+    BlockCache.Entry cachedRecord = cache.pin(_dataBlockCacheId,dataOffset,BlockCache.BlockType.DataBlock);
+    if (cachedRecord != null) { 
+      try { 
+        byte recordData[] = new byte[cachedRecord.getLength()];
+        cachedRecord.getData().duplicate().get(recordData);
+        recordStream.reset(recordData,recordData.length);
+      }
+      finally { 
+        cache.unpin(cachedRecord);
+      }
+    }
+    else { 
+      // open sequence file ... 
+      SequenceFile.Reader reader = new SequenceFile.Reader(_remoteFileSystem,_remoteDataPath,CrawlEnvironment.getHadoopConfig());
+      
+      try { 
+        reader.seek(dataOffset);
+        
+        // raw key followed by the raw value, which is exactly the serialized url and item 
+        DataOutputBuffer recordData = new DataOutputBuffer();
+        SequenceFile.ValueBytes valueBytes = reader.createValueBytes();
+        
+        LOG.info("Reading Item and Data");
+        if (reader.nextRaw(recordData,valueBytes) == -1) { 
+          throw new IOException("No Record at Offset:" + dataOffset + " in:" + _remoteDataPath);
+        }
+        valueBytes.writeUncompressedBytes(recordData);
+        
+        if (recordData.getLength() <= BlockCache.MAX_BLOCK_SIZE) { 
+          cache.put(_dataBlockCacheId,dataOffset,recordData.getData(),0,recordData.getLength());
+        }
+        recordStream.reset(recordData.getData(),recordData.getLength());
+      }
+      finally {
+        reader.close();
+      }
+    }
+    
+    Text url = new Text();
+    CacheItem item = new CacheItem();
+    
+    url.readFields(recordStream);
+    item.readFields(recordStream);
+    String strURL = url.toString();
+    
+    LOG.info("Read returned url:" + strURL);
+    item.setUrl(strURL);
+    
+    return item;
+  }
+
+  /** 
+   * read every fingerprint / data offset pair in the index, in fingerprint order. 
+   * if a fingerprint was logged more than once, only the last (most recent) entry is returned 
+   */
+  public ArrayList<FingerprintAndOffsetTuple> readAllEntries() throws IOException { 
+    ArrayList<FingerprintAndOffsetTuple> entries = new ArrayList<FingerprintAndOffsetTuple>();
+    
+    if (_indexHintCount > 0) { 
+      // load the entire rice coded sub-index 
+      ByteBuffer indexData = ByteBuffer.allocate(_indexDataSize);
+      RandomAccessFile file = new RandomAccessFile(_localIndexFilePath,"r");
+      try { 
+        file.seek(_indexDataOffset);
+        file.readFully(indexData.array());
+      }
+      finally { 
+        file.close();
+      }
+      
+      // private cursor, lookups may be using the shared hint buffer concurrently 
+      ByteBuffer hints = _indexHints.duplicate();
+      
+      for (int hintIdx=0;hintIdx<_indexHintCount;++hintIdx) {
+        hints.position(hintIdx * INDEX_HINT_SIZE);
+        long hintFP = hints.getLong();
+        int  hintDataOffset = hints.getInt();
+        int  hintIndexDataOffset = hints.getInt();
+        
+        addEntry(entries,hintFP,hintDataOffset);
+        // the last hint has no sub-index block 
+        if (hintIdx < _indexHintCount - 1) { 
+          new IndexDataBlock(hintFP,hintIndexDataOffset,indexData).readAll(entries);
+        }
+      }
+    }
+    return entries;
+  }
+  
+  private static void addEntry(ArrayList<FingerprintAndOffsetTuple> entries,long fingerprint,long dataOffset) {
+    int lastIndex = entries.size() - 1;
+    // the last item in a run is written both as a hint and as part of the preceding block 
+    if (lastIndex >= 0 && entries.get(lastIndex)._fingerprint == fingerprint) { 
+      entries.get(lastIndex)._offset = dataOffset;
+    }
+    else { 
+      entries.add(new FingerprintAndOffsetTuple(fingerprint,dataOffset));
+    }
+  }
 
   private HDFSFileIndex.IndexDataBlock demandLoadIndexDataBlock(long fingerprint,int itemDataOffset,int itemDataSize) throws IOException { 
     // ok time to load this block ...
@@ -228,13 +403,13 @@ public class HDFSFileIndex {
   
   
   private HDFSFileIndex.IndexItem _findBestIndexHintForFingerprint(long targetFP) throws IOException { 
+    // absolute reads only, the hint buffer is shared by concurrent lookups 
     int low = 0;
     int high = _indexHintCount - 1;
     
     while (low <= high) {
       int mid = low + ((high - low) / 2);
-      _indexHints.position(mid * (INDEX_HINT_SIZE));
-      long hintFP = _indexHints.getLong();
+      long hintFP = _indexHints.getLong(mid * INDEX_HINT_SIZE);
       // compare to target 
       long comparisonResult = (hintFP > targetFP) ? 1 : (hintFP < targetFP) ? -1 : 0; 
       
@@ -243,19 +418,18 @@ public class HDFSFileIndex {
       else if (comparisonResult < 0)
           low = mid + 1;
       else {
-        return new IndexItem(targetFP,_indexHints.getInt());
+        return new IndexItem(targetFP,_indexHints.getInt(mid * INDEX_HINT_SIZE + 8));
       }
     }
     
     if (high >= 0 && low < _indexHintCount) { 
       
-      _indexHints.position(high * INDEX_HINT_SIZE);
+      int hintPos = high * INDEX_HINT_SIZE;
       // create nearest match ... 
-      HDFSFileIndex.IndexItem itemOut = new IndexItem(_indexHints.getLong(),_indexHints.getInt(),_indexHints.getInt(),-1);
+      HDFSFileIndex.IndexItem itemOut = new IndexItem(_indexHints.getLong(hintPos),_indexHints.getInt(hintPos + 8),_indexHints.getInt(hintPos + 12),-1);
       // figure out this items data block size ... 
       if (high < (_indexHintCount - 1)) {
-        _indexHints.position(((high+1) * INDEX_HINT_SIZE) + 12);
-        itemOut.indexDataSize =  _indexHints.getInt() - itemOut.indexDataOffset;
+        itemOut.indexDataSize =  _indexHints.getInt(((high+1) * INDEX_HINT_SIZE) + 12) - itemOut.indexDataOffset;
       }
       else { 
         itemOut.indexDataSize =  _indexDataSize - itemOut.indexDataOffset;
@@ -336,6 +510,34 @@ public class HDFSFileIndex {
       return null;
     }
     
+    /** decode every item in the block (excluding the base hint) **/
+    void readAll(ArrayList<FingerprintAndOffsetTuple> entriesOut) { 
+      _buffer.position(_dataOffset);
+      
+      int fingerprintMValue = _buffer.get();
+      int fingerprintBits   = (int)CacheManager.readVLongFromByteBuffer(_buffer);
+      
+      RiceCoding.RiceCodeReader fingerprintReader 
+        = new RiceCoding.RiceCodeReader(fingerprintMValue,fingerprintBits,_buffer.array(),_buffer.position());
+      
+      _buffer.position(_buffer.position() + ((fingerprintBits + 7) /8));
+      
+      RiceCoding.RiceCodeReader offsetReader 
+        = new RiceCoding.RiceCodeReader(
+          (int)_buffer.get(),
+          (int)CacheManager.readVLongFromByteBuffer(_buffer),
+          _buffer.array(),
+          _buffer.position());
+      
+      long fingerprintValue = _baseFingerprint;
+      
+      while (fingerprintReader.hasNext()) { 
+        // both values are offset by one (see searchBlockFor)
+        fingerprintValue += fingerprintReader.nextValue() - 1;
+        addEntry(entriesOut,fingerprintValue,offsetReader.nextValue() - 1);
+      }
+    }
+    
     public int          _dataOffset = -1;
     public ByteBuffer   _buffer    = null;
     public long         _lastUseTime = -1;
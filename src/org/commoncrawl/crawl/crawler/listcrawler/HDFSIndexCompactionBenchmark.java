@@ -0,0 +1,210 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.record.Buffer;
+import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
+import org.commoncrawl.protocol.CacheItem;
+import org.commoncrawl.util.shared.CCStringUtils;
+
+/**
+ * Benchmark of proxy cache hdfs lookup latency as a function of the number of
+ * flushed generations, before and after compaction by HDFSIndexCompactor.
+ *
+ * Builds synthetic generations (a fraction of each generation re-caches
+ * urls from older ones) on the local file system, then for 1,2,4 .. N
+ * generations times newest-first lookups the way CacheManager does them,
+ * both over the raw generations and over the compacted ones.
+ *
+ * usage: HDFSIndexCompactionBenchmark [generations] [items per generation] [lookups]
+ *
+ * @author rana
+ *
+ */
+public class HDFSIndexCompactionBenchmark {
+
+  static final float RECACHE_RATIO = .2f;
+  static final int   CONTENT_SIZE = 256;
+
+  public static void main(String[] args) {
+    int generations = (args.length >= 1) ? Integer.parseInt(args[0]) : 64;
+    int itemsPerGeneration = (args.length >= 2) ? Integer.parseInt(args[1]) : 2000;
+    int lookups = (args.length >= 3) ? Integer.parseInt(args[2]) : 20000;
+
+    PrintStream stdout = System.out;
+
+    try {
+      Configuration conf = new Configuration();
+      CrawlEnvironment.setHadoopConfig(conf);
+      FileSystem fs = FileSystem.getLocal(conf);
+
+      File baseDir = new File("/tmp/proxy/compactionBenchmark");
+      fs.delete(new Path(baseDir.getAbsolutePath()),true);
+      File localDir = new File(baseDir,"local");
+      localDir.mkdirs();
+      Path remoteDir = new Path(new File(baseDir,"remote").getAbsolutePath());
+      fs.mkdirs(remoteDir);
+
+      // writeIndex reports per block statistics on stdout
+      System.setOut(new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+      }));
+
+      Random random = new Random(42);
+      ArrayList<Long> allFingerprints = new ArrayList<Long>();
+      ArrayList<HDFSFileIndex> runs = new ArrayList<HDFSFileIndex>();
+      long timestamp = 1000000000000L;
+
+      for (int g=0;g<generations;++g) {
+        runs.add(writeGeneration(fs,remoteDir,localDir,timestamp + g,itemsPerGeneration,allFingerprints,random));
+      }
+
+      stdout.println("Generations Items/Generation:" + itemsPerGeneration + " Distinct Fingerprints:" + allFingerprints.size());
+      stdout.println(String.format("%12s | %8s %12s %12s | %8s %12s %12s %10s",
+          "generations","runs","miss(us)","hit(us)","runs","miss(us)","hit(us)","compact(ms)"));
+
+      for (int count=1;count<=generations;count*=2) {
+        List<HDFSFileIndex> raw = runs.subList(0,count);
+        double rawMiss = timeLookups(raw,random,null,lookups);
+        double rawHit = timeLookups(raw,random,allFingerprints.subList(0,distinctCount(itemsPerGeneration,count)),lookups);
+
+        Path outputDir = new Path(remoteDir,"compacted-" + count);
+        fs.mkdirs(outputDir);
+        long timeStart = System.currentTimeMillis();
+        List<HDFSFileIndex> compacted = compact(fs,raw,outputDir,localDir);
+        long compactTime = System.currentTimeMillis() - timeStart;
+
+        double compactedMiss = timeLookups(compacted,random,null,lookups);
+        double compactedHit = timeLookups(compacted,random,allFingerprints.subList(0,distinctCount(itemsPerGeneration,count)),lookups);
+
+        stdout.println(String.format("%12d | %8d %12.1f %12.1f | %8d %12.1f %12.1f %10d",
+            count,raw.size(),rawMiss,rawHit,compacted.size(),compactedMiss,compactedHit,compactTime));
+      }
+    }
+    catch (Exception e) {
+      stdout.println(CCStringUtils.stringifyException(e));
+    }
+    finally {
+      System.setOut(stdout);
+    }
+  }
+
+  /** number of distinct fingerprints in the first count generations **/
+  private static int distinctCount(int itemsPerGeneration,int count) {
+    return itemsPerGeneration + (count - 1) * (itemsPerGeneration - (int)(itemsPerGeneration * RECACHE_RATIO));
+  }
+
+  private static HDFSFileIndex writeGeneration(FileSystem fs,Path remoteDir,File localDir,long timestamp,int itemCount,ArrayList<Long> allFingerprints,Random random) throws IOException {
+    Path dataPath = new Path(remoteDir,CacheManager.PROXY_CACHE_FILE_DATA_PREFIX + "-" + timestamp);
+    File indexFile = new File(localDir,CacheManager.PROXY_CACHE_FILE_INDEX_PREFIX + "-" + timestamp);
+
+    int recacheCount = (allFingerprints.size() == 0) ? 0 : (int)(itemCount * RECACHE_RATIO);
+    // re-cached urls are picked from the existing set, without duplicates within the generation
+    ArrayList<Long> fingerprints = new ArrayList<Long>();
+    int start = random.nextInt(Math.max(1,allFingerprints.size() - recacheCount));
+    for (int i=0;i<recacheCount;++i) {
+      fingerprints.add(allFingerprints.get(start + i));
+    }
+    while (fingerprints.size() < itemCount) {
+      long fingerprint = random.nextLong();
+      fingerprints.add(fingerprint);
+      allFingerprints.add(fingerprint);
+    }
+
+    Vector<FingerprintAndOffsetTuple> tuples = new Vector<FingerprintAndOffsetTuple>();
+    byte content[] = new byte[CONTENT_SIZE];
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs,CrawlEnvironment.getHadoopConfig(),dataPath,Text.class,CacheItem.class,CompressionType.NONE);
+    try {
+      for (long fingerprint : fingerprints) {
+        CacheItem item = new CacheItem();
+        item.setUrlFingerprint(fingerprint);
+        random.nextBytes(content);
+        item.setContent(new Buffer(content));
+        tuples.add(new FingerprintAndOffsetTuple(fingerprint,writer.getLength()));
+        writer.append(new Text("http://host" + (fingerprint & 0xff) + "/" + fingerprint),item);
+      }
+    }
+    finally {
+      writer.close();
+    }
+    DataOutputStream indexStream = new DataOutputStream(new FileOutputStream(indexFile));
+    try {
+      HDFSFileIndex.writeIndex(tuples,indexStream);
+    }
+    finally {
+      indexStream.close();
+    }
+    return new HDFSFileIndex(fs,indexFile,dataPath);
+  }
+
+  /** apply the compaction policy to a copy of the run list until it has nothing left to do **/
+  private static List<HDFSFileIndex> compact(FileSystem fs,List<HDFSFileIndex> runs,Path outputDir,File localDir) throws IOException {
+    ArrayList<HDFSFileIndex> compacted = new ArrayList<HDFSFileIndex>(runs);
+    while (true) {
+      long runSizes[] = new long[compacted.size()];
+      for (int i=0;i<runSizes.length;++i) {
+        runSizes[i] = compacted.get(i).getDataFileSize();
+      }
+      int range[] = HDFSIndexCompactor.selectRunsToMerge(runSizes);
+      if (range == null) {
+        return compacted;
+      }
+      List<HDFSFileIndex> inputs = compacted.subList(range[0],range[1]);
+      HDFSFileIndex merged = HDFSIndexCompactor.mergeRuns(fs,inputs,new Path(outputDir,"temp"),outputDir,localDir,null);
+      inputs.clear();
+      compacted.add(range[0],merged);
+    }
+  }
+
+  /** average microseconds per newest-first lookup, of random misses or of random members of hitSet **/
+  private static double timeLookups(List<HDFSFileIndex> runs,Random random,List<Long> hitSet,int lookups) throws IOException {
+    long timeStart = System.nanoTime();
+    int found = 0;
+    for (int i=0;i<lookups;++i) {
+      long fingerprint = (hitSet == null) ? random.nextLong() : hitSet.get(random.nextInt(hitSet.size()));
+      for (int r=runs.size()-1;r>=0;--r) {
+        if (runs.get(r).findItem(fingerprint,true) != null) {
+          found++;
+          break;
+        }
+      }
+    }
+    if (hitSet != null && found != lookups) {
+      throw new IOException("Lookup Failed: Found " + found + " of " + lookups);
+    }
+    return (System.nanoTime() - timeStart) / 1000.0 / lookups;
+  }
+}
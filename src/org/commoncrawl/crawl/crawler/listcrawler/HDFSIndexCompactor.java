@@ -0,0 +1,406 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
+import org.commoncrawl.protocol.CacheItem;
+import org.commoncrawl.util.shared.CCStringUtils;
+
+/**
+ * Background compaction of the proxy cache's HDFS index / data generations.
+ *
+ * Every local cache flush adds a cacheIndex / cacheData generation, and a miss
+ * has to probe all of them. This thread periodically merges runs of adjacent
+ * generations (size tiered: TIER_FANOUT adjacent runs of the same size tier
+ * are merged into one run of the next tier) into a single sorted generation,
+ * keeping only the newest copy of each fingerprint, and swaps the merged run
+ * into the manager's index list in place of its inputs. Only adjacent runs
+ * are merged, so the list stays ordered oldest to newest and newest-first
+ * lookups keep returning the most recent copy of a document.
+ *
+ * Index offsets are 32 bits, so runs are never grown past MAX_RUN_DATA_SIZE.
+ * Once the cache outgrows that, the number of runs is bounded by
+ * (cache size / MAX_RUN_DATA_SIZE) plus at most MAX_RUNS_BEFORE_FORCED_MERGE
+ * smaller runs, independent of the number of flushes.
+ *
+ * A merged run is named <prefix>-<newest timestamp>.<oldest timestamp>, so on
+ * restart CacheManager can discard any generations a merged run covers
+ * (i.e. if we died between committing a merge and deleting its inputs).
+ * Inputs are deleted only after OBSOLETE_RUN_GRACE_PERIOD, since in flight
+ * lookups may still hold them.
+ *
+ * @author rana
+ *
+ */
+final class HDFSIndexCompactor implements Runnable {
+
+  public static final Log LOG = LogFactory.getLog(HDFSIndexCompactor.class);
+
+  /** number of adjacent same tier runs merged at a time **/
+  static final int  TIER_FANOUT = 4;
+  /** runs below this size are all tier zero **/
+  static final long MIN_TIER_SIZE = 16L * 1024 * 1024;
+  /** index data offsets are ints **/
+  static final long MAX_RUN_DATA_SIZE = 3L * (1L << 29);
+  /** past this many runs, merge the smallest adjacent runs even if their tiers differ **/
+  static final int  MAX_RUNS_BEFORE_FORCED_MERGE = 16;
+  /** how often to look for work **/
+  static final long COMPACTION_POLL_INTERVAL = 60 * 1000;
+  /** how long replaced runs are kept around for in flight lookups **/
+  static final long OBSOLETE_RUN_GRACE_PERIOD = 5 * 60 * 1000;
+
+  /** an index that has been compacted away, pending deletion **/
+  private static class ObsoleteRun {
+    HDFSFileIndex _index;
+    long          _obsoleteTime;
+
+    ObsoleteRun(HDFSFileIndex index,long obsoleteTime) {
+      _index = index;
+      _obsoleteTime = obsoleteTime;
+    }
+  }
+
+  private CacheManager _manager;
+  private LinkedList<ObsoleteRun> _obsoleteRuns = new LinkedList<ObsoleteRun>();
+  private volatile boolean _shutdown = false;
+
+  private long _compactionCount = 0;
+  private long _runsMerged = 0;
+  private long _bytesWritten = 0;
+  private long _fingerprintsDropped = 0;
+
+  public HDFSIndexCompactor(CacheManager manager) {
+    _manager = manager;
+  }
+
+  /** stop the compactor, the caller should interrupt and join the compactor thread **/
+  void shutdown() {
+    _shutdown = true;
+  }
+
+  @Override
+  public void run() {
+
+    while (!_shutdown) {
+      try {
+        Thread.sleep(COMPACTION_POLL_INTERVAL);
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      try {
+        // keep merging until the policy has nothing left to do
+        while (!_shutdown && compactOnce()) {
+          purgeObsoleteRuns(false);
+        }
+      }
+      catch (IOException e) {
+        LOG.error("Compaction Failed with Exception:" + CCStringUtils.stringifyException(e));
+      }
+      purgeObsoleteRuns(false);
+    }
+    LOG.info("Compactor Thread Received Shutdown. Exiting!");
+  }
+
+  /**
+   * run a single compaction if the policy finds a run of generations to merge
+   *
+   * @return true if a merge was committed
+   */
+  boolean compactOnce() throws IOException {
+    List<HDFSFileIndex> indexList = _manager.getHDFSIndexListSnapshot();
+
+    long runSizes[] = new long[indexList.size()];
+    for (int i=0;i<runSizes.length;++i) {
+      runSizes[i] = indexList.get(i).getDataFileSize();
+    }
+
+    int range[] = selectRunsToMerge(runSizes);
+    if (range == null) {
+      return false;
+    }
+    List<HDFSFileIndex> inputs = indexList.subList(range[0],range[1]);
+
+    LOG.info("Compacting Generations:" + range[0] + " to " + (range[1] - 1) + " of " + runSizes.length);
+    long timeStart = System.currentTimeMillis();
+
+    Path tempDir = new Path(CrawlEnvironment.getHadoopConfig().get("mapred.temp.dir", ".") + "/compactor-temp-"+ timeStart);
+
+    HDFSFileIndex merged = mergeRuns(_manager.getRemoteFileSystem(),inputs,tempDir,_manager.getRemoteDataDirectory(),_manager.getLocalDataDirectory(),this);
+
+    // swap the merged run in for its inputs
+    if (!_manager.replaceHDFSIndexes(inputs,merged)) {
+      // can't happen unless someone else edited the list
+      LOG.error("Index List Changed During Compaction. Discarding:" + merged.getIndexDataPath());
+      deleteRun(_manager.getRemoteFileSystem(),merged);
+      return false;
+    }
+    synchronized (this) {
+      for (HDFSFileIndex input : inputs) {
+        _obsoleteRuns.add(new ObsoleteRun(input,System.currentTimeMillis()));
+      }
+      _compactionCount++;
+      _runsMerged += inputs.size();
+    }
+    LOG.info("Compacted " + inputs.size() + " Generations into:" + merged.getIndexDataPath() + " TOOK:" + (System.currentTimeMillis() - timeStart));
+    return true;
+  }
+
+  /**
+   * tiered merge policy over the run sizes (oldest first).
+   *
+   * @return [first,last) range of adjacent runs to merge or null if there is nothing to do
+   */
+  static int[] selectRunsToMerge(long runSizes[]) {
+    // oldest window of TIER_FANOUT adjacent runs of the same tier
+    for (int i=0;i + TIER_FANOUT <= runSizes.length;++i) {
+      int tier = getTier(runSizes[i]);
+      int j=i+1;
+      while (j < i + TIER_FANOUT && getTier(runSizes[j]) == tier) {
+        j++;
+      }
+      if (j == i + TIER_FANOUT && sum(runSizes,i,j) <= MAX_RUN_DATA_SIZE) {
+        return new int[] { i, j };
+      }
+    }
+    // too many runs of mixed sizes, merge the smallest adjacent window that fits
+    if (runSizes.length > MAX_RUNS_BEFORE_FORCED_MERGE) {
+      int  best = -1;
+      long bestSize = Long.MAX_VALUE;
+      for (int i=0;i + TIER_FANOUT <= runSizes.length;++i) {
+        long size = sum(runSizes,i,i + TIER_FANOUT);
+        if (size <= MAX_RUN_DATA_SIZE && size < bestSize) {
+          best = i;
+          bestSize = size;
+        }
+      }
+      if (best != -1) {
+        return new int[] { best, best + TIER_FANOUT };
+      }
+    }
+    return null;
+  }
+
+  static int getTier(long runSize) {
+    int tier = 0;
+    for (long tierSize = MIN_TIER_SIZE;runSize >= tierSize;tierSize *= TIER_FANOUT) {
+      tier++;
+    }
+    return tier;
+  }
+
+  private static long sum(long values[],int from,int to) {
+    long total = 0;
+    for (int i=from;i<to;++i) {
+      total += values[i];
+    }
+    return total;
+  }
+
+  /**
+   * merge adjacent generations (oldest first) into a single generation in
+   * outputDir, keeping only the newest copy of each fingerprint.
+   *
+   * @return the index of the new generation
+   */
+  static HDFSFileIndex mergeRuns(FileSystem fs,List<HDFSFileIndex> inputs,Path tempDir,Path outputDir,File localIndexDir,HDFSIndexCompactor statsOut) throws IOException {
+
+    int runCount = inputs.size();
+    long fingerprints[][] = new long[runCount][];
+    long offsets[][] = new long[runCount][];
+    long inputCount = 0;
+
+    // load each run's (sorted, de-duplicated) index
+    for (int i=0;i<runCount;++i) {
+      ArrayList<FingerprintAndOffsetTuple> entries = inputs.get(i).readAllEntries();
+      fingerprints[i] = new long[entries.size()];
+      offsets[i] = new long[entries.size()];
+      for (int j=0;j<entries.size();++j) {
+        fingerprints[i][j] = entries.get(j)._fingerprint;
+        offsets[i][j] = entries.get(j)._offset;
+      }
+      inputCount += entries.size();
+    }
+
+    String generationName = inputs.get(runCount - 1).getIndexTimestamp() + "." + inputs.get(0).getFirstIndexTimestamp();
+    Path tempDataFile = new Path(tempDir,CacheManager.PROXY_CACHE_FILE_DATA_PREFIX + "-" + generationName);
+    Path tempIndexFile = new Path(tempDir,CacheManager.PROXY_CACHE_FILE_INDEX_PREFIX + "-" + generationName);
+    Path finalDataFile = new Path(outputDir,CacheManager.PROXY_CACHE_FILE_DATA_PREFIX + "-" + generationName);
+    Path finalIndexFile = new Path(outputDir,CacheManager.PROXY_CACHE_FILE_INDEX_PREFIX + "-" + generationName);
+    File localIndexFile = new File(localIndexDir,finalIndexFile.getName());
+
+    Vector<FingerprintAndOffsetTuple> mergedTuples = new Vector<FingerprintAndOffsetTuple>();
+    boolean committed = false;
+
+    try {
+      fs.mkdirs(tempDir);
+
+      SequenceFile.Writer writer = SequenceFile.createWriter(fs,CrawlEnvironment.getHadoopConfig(),tempDataFile,Text.class,CacheItem.class,CompressionType.NONE);
+      try {
+        DataOutputBuffer keyBuffer = new DataOutputBuffer();
+
+        for (int i=0;i<runCount;++i) {
+          // collect the entries in this run that no newer run in the merge supersedes
+          ArrayList<FingerprintAndOffsetTuple> survivors = new ArrayList<FingerprintAndOffsetTuple>();
+          for (int j=0;j<fingerprints[i].length;++j) {
+            boolean superseded = false;
+            for (int k=i+1;k<runCount && !superseded;++k) {
+              superseded = Arrays.binarySearch(fingerprints[k],fingerprints[i][j]) >= 0;
+            }
+            if (!superseded) {
+              survivors.add(new FingerprintAndOffsetTuple(fingerprints[i][j],offsets[i][j]));
+            }
+          }
+          // and copy them across in data file order, so the source file is read front to back
+          Collections.sort(survivors,new Comparator<FingerprintAndOffsetTuple>() {
+
+            @Override
+            public int compare(FingerprintAndOffsetTuple o1, FingerprintAndOffsetTuple o2) {
+              return (o1._offset < o2._offset) ? -1 : o1._offset > o2._offset ? 1 : 0;
+            }
+          });
+
+          SequenceFile.Reader reader = new SequenceFile.Reader(fs,inputs.get(i).getIndexDataPath(),CrawlEnvironment.getHadoopConfig());
+          try {
+            SequenceFile.ValueBytes valueBytes = reader.createValueBytes();
+            for (FingerprintAndOffsetTuple survivor : survivors) {
+              reader.seek(survivor._offset);
+              keyBuffer.reset();
+              if (reader.nextRaw(keyBuffer,valueBytes) == -1) {
+                throw new IOException("Unexpected EOF in:" + inputs.get(i).getIndexDataPath() + " at Offset:" + survivor._offset);
+              }
+              long newOffset = writer.getLength();
+              if (newOffset > Integer.MAX_VALUE) {
+                throw new IOException("Merged Data File exceeds max index offset");
+              }
+              writer.appendRaw(keyBuffer.getData(),0,keyBuffer.getLength(),valueBytes);
+              mergedTuples.add(new FingerprintAndOffsetTuple(survivor._fingerprint,newOffset));
+            }
+          }
+          finally {
+            reader.close();
+          }
+        }
+      }
+      finally {
+        writer.close();
+      }
+
+      if (mergedTuples.size() == 0) {
+        throw new IOException("Merged Run is Empty");
+      }
+
+      FSDataOutputStream indexOutputStream = fs.create(tempIndexFile);
+      try {
+        HDFSFileIndex.writeIndex(mergedTuples,indexOutputStream);
+      }
+      finally {
+        indexOutputStream.close();
+      }
+      long bytesWritten = fs.getFileStatus(tempDataFile).getLen();
+
+      // commit - data first, the index file is what marks a generation as present
+      if (!fs.rename(tempDataFile,finalDataFile) || !fs.rename(tempIndexFile,finalIndexFile)) {
+        throw new IOException("Rename of Merged Run Failed:" + finalIndexFile);
+      }
+
+      localIndexFile.delete();
+      fs.copyToLocalFile(finalIndexFile,new Path(localIndexFile.getAbsolutePath()));
+      HDFSFileIndex mergedIndex = new HDFSFileIndex(fs,localIndexFile,finalDataFile);
+      committed = true;
+
+      LOG.info("Merged " + runCount + " Runs Fingerprints In:" + inputCount + " Out:" + mergedTuples.size() + " DataBytes:" + bytesWritten);
+
+      if (statsOut != null) {
+        synchronized (statsOut) {
+          statsOut._bytesWritten += bytesWritten;
+          statsOut._fingerprintsDropped += inputCount - mergedTuples.size();
+        }
+      }
+      return mergedIndex;
+    }
+    finally {
+      try {
+        fs.delete(tempDir,true);
+        // the inputs are untouched until the merged run is swapped in, so a partial merge can simply be discarded
+        if (!committed) {
+          fs.delete(finalIndexFile,false);
+          fs.delete(finalDataFile,false);
+          localIndexFile.delete();
+        }
+      }
+      catch (IOException e) {
+        LOG.error(CCStringUtils.stringifyException(e));
+      }
+    }
+  }
+
+  /** delete runs that have been obsolete for longer than the grace period (or all of them) **/
+  void purgeObsoleteRuns(boolean all) {
+    long now = System.currentTimeMillis();
+    while (true) {
+      ObsoleteRun run = null;
+      synchronized (this) {
+        if (_obsoleteRuns.size() != 0 && (all || now - _obsoleteRuns.getFirst()._obsoleteTime >= OBSOLETE_RUN_GRACE_PERIOD)) {
+          run = _obsoleteRuns.removeFirst();
+        }
+      }
+      if (run == null)
+        break;
+      try {
+        deleteRun(_manager.getRemoteFileSystem(),run._index);
+      }
+      catch (IOException e) {
+        LOG.error("Failed to Delete Obsolete Run:" + run._index.getIndexDataPath() + " Exception:" + CCStringUtils.stringifyException(e));
+      }
+    }
+  }
+
+  /** delete a generation's remote index, data and local index files (index first) **/
+  static void deleteRun(FileSystem fs,HDFSFileIndex index) throws IOException {
+    Path dataPath = index.getIndexDataPath();
+    Path indexPath = new Path(dataPath.getParent(),CacheManager.PROXY_CACHE_FILE_INDEX_PREFIX + dataPath.getName().substring(CacheManager.PROXY_CACHE_FILE_DATA_PREFIX.length()));
+    LOG.info("Deleting Run:" + indexPath);
+    fs.delete(indexPath,false);
+    fs.delete(dataPath,false);
+    index.getLocalIndexFilePath().delete();
+  }
+
+  synchronized long getCompactionCount() { return _compactionCount; }
+  synchronized long getRunsMerged() { return _runsMerged; }
+  synchronized long getBytesWritten() { return _bytesWritten; }
+  synchronized long getFingerprintsDropped() { return _fingerprintsDropped; }
+}
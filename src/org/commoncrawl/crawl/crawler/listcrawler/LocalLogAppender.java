@@ -0,0 +1,479 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ * 
+ * CommonCrawl licenses this file to you under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+/**
+ * Append path of the local cache log (ActiveLog), shared by all cache writer threads.
+ *
+ * The log is mapped in REGION_SIZE regions, the file being extended (pre-allocated)
+ * a region at a time, so the file is generally longer than the header's file size;
+ * anything past the header's file size is either padding or uncommitted records.
+ *
+ * Writers reserve space with a compare and set on the log end, copy their
+ * (already serialized and compressed) record into the mapping in parallel, then
+ * wait in commit() for a group commit covering their record. Commits are leader /
+ * follower: whichever writer finds no commit in progress forces the mapped
+ * records, then writes and syncs a header covering every contiguously written
+ * record, once for the whole batch, while writers arriving in the meantime queue
+ * up for the next batch. The in memory header only advances once a commit is
+ * durable. A failed commit fails the appender until it is reopened: every
+ * pending and later append fails, so no record whose writer was told it failed
+ * is ever committed by a later batch.
+ *
+ * Readers stream committed records straight out of the mapping.
+ *
+ * Callers hold a local log access semaphore permit while using the appender, so
+ * close() / open() (under all permits, around a checkpoint) never race with them.
+ *
+ * @author rana
+ *
+ */
+final class LocalLogAppender {
+
+  public static final Log LOG = LogFactory.getLog(LocalLogAppender.class);
+
+  static final int REGION_SIZE = 64 << 20;
+
+  private CacheManager _manager;
+  private File _logFilePath;
+  private RandomAccessFile _file = null;
+  private FileChannel _channel = null;
+  /** mapped regions, replaced (copy on write) as the log grows **/
+  private volatile MappedByteBuffer _regions[] = new MappedByteBuffer[0];
+  /** end of the last reservation **/
+  private AtomicLong _reservedEnd = new AtomicLong();
+
+  /** end of the contiguous run of records copied into the mapping **/
+  private long _writtenEnd;
+  private long _writtenItemCount = 0;
+  /** records copied ahead of the written end (start offset -> end offset) **/
+  private TreeMap<Long,Long> _writtenAhead = new TreeMap<Long,Long>();
+  /** end of the last group commit **/
+  private long _committedEnd;
+  private long _committedItemCount = 0;
+  private boolean _commitInProgress = false;
+  /** why the appender failed (null if it hasn't) **/
+  private volatile IOException _failure = null;
+
+  private long _commitCount = 0;
+  private long _committedRecords = 0;
+
+  LocalLogAppender(CacheManager manager,File logFilePath) {
+    _manager = manager;
+    _logFilePath = logFilePath;
+  }
+
+  /** open (and map) the log, appending from the given (committed) file size **/
+  synchronized void open(long fileSize) throws IOException {
+    _file = new RandomAccessFile(_logFilePath,"rw");
+    _channel = _file.getChannel();
+    _regions = new MappedByteBuffer[0];
+    _reservedEnd.set(fileSize);
+    _writtenEnd = fileSize;
+    _committedEnd = fileSize;
+    _writtenItemCount = 0;
+    _committedItemCount = 0;
+    _writtenAhead.clear();
+    _failure = null;
+    ensureMapped(fileSize);
+  }
+
+  /**
+   * close the log. regions stay mapped until collected (there is no portable unmap),
+   * which is harmless as the checkpointed file is renamed, not rewritten in place
+   */
+  synchronized void close() throws IOException {
+    _regions = new MappedByteBuffer[0];
+    if (_file != null) {
+      _file.close();
+      _file = null;
+      _channel = null;
+    }
+  }
+
+  /** reserve space for a record of the given length, returning its file offset **/
+  long reserve(int length) throws IOException {
+    while (true) {
+      if (_failure != null) {
+        throw new IOException("Local Log Appender Failed:" + _failure.getMessage());
+      }
+      long offset = _reservedEnd.get();
+      if (offset + length > (long)_regions.length * REGION_SIZE) {
+        // map first, a reservation that could not be written would stall every later commit
+        ensureMapped(offset + length);
+      }
+      else if (_reservedEnd.compareAndSet(offset,offset + length)) {
+        return offset;
+      }
+    }
+  }
+
+  private synchronized void ensureMapped(long endOffset) throws IOException {
+    if (_channel == null) {
+      throw new IOException("Local Log is Closed");
+    }
+    MappedByteBuffer regions[] = _regions;
+    int regionsNeeded = (int)((endOffset + REGION_SIZE - 1) / REGION_SIZE);
+    if (regionsNeeded > regions.length) {
+      MappedByteBuffer newRegions[] = new MappedByteBuffer[regionsNeeded];
+      System.arraycopy(regions,0,newRegions,0,regions.length);
+      for (int i=regions.length;i<regionsNeeded;++i) {
+        // mapping past the end of the file extends it
+        newRegions[i] = _channel.map(FileChannel.MapMode.READ_WRITE,(long)i * REGION_SIZE,REGION_SIZE);
+      }
+      _regions = newRegions;
+    }
+  }
+
+  /** copy a record into its reserved space **/
+  void write(long offset,byte data[],int dataOffset,int length) {
+    MappedByteBuffer regions[] = _regions;
+    while (length != 0) {
+      ByteBuffer region = regions[(int)(offset / REGION_SIZE)].duplicate();
+      int regionOffset = (int)(offset % REGION_SIZE);
+      int bytesToCopy = Math.min(length,REGION_SIZE - regionOffset);
+      region.position(regionOffset);
+      region.put(data,dataOffset,bytesToCopy);
+      offset += bytesToCopy;
+      dataOffset += bytesToCopy;
+      length -= bytesToCopy;
+    }
+  }
+
+  /**
+   * mark a written record complete, and block until a group commit covers it
+   *
+   * @throws IOException if the commit covering the record failed
+   */
+  void commit(long offset,int length) throws IOException {
+    long endOffset = offset + length;
+
+    synchronized (this) {
+      _writtenAhead.put(offset,endOffset);
+      // advance the written end over contiguous records
+      while (_writtenAhead.size() != 0 && _writtenAhead.firstKey() == _writtenEnd) {
+        _writtenEnd = _writtenAhead.remove(_writtenEnd);
+        _writtenItemCount++;
+      }
+      notifyAll();
+    }
+
+    while (true) {
+      long batchStart;
+      long batchEnd;
+      long batchItemCount;
+
+      synchronized (this) {
+        while (true) {
+          if (_committedEnd >= endOffset) {
+            return;
+          }
+          if (_failure != null) {
+            throw new IOException("Group Commit Failed:" + _failure.getMessage());
+          }
+          if (!_commitInProgress && _writtenEnd > _committedEnd) {
+            // lead the next commit
+            _commitInProgress = true;
+            batchStart = _committedEnd;
+            batchEnd = _writtenEnd;
+            batchItemCount = _writtenItemCount - _committedItemCount;
+            break;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+          }
+        }
+      }
+
+      IOException failure = null;
+      try {
+        // the batch's records (dirtied through the mapping) are durable before a header covering them is written ...
+        MappedByteBuffer regions[] = _regions;
+        for (int i=(int)(batchStart / REGION_SIZE);i<=(int)((batchEnd - 1) / REGION_SIZE);++i) {
+          regions[i].force();
+        }
+        _manager.writeLogFileHeader(_file,batchItemCount,batchEnd - batchStart);
+        _channel.force(true);
+        // and the header is only published once it is durable
+        _manager.logFileHeaderCommitted(batchItemCount,batchEnd - batchStart);
+      }
+      catch (IOException e) {
+        LOG.error("Local Log Group Commit Failed:" + e.getMessage());
+        failure = e;
+      }
+
+      synchronized (this) {
+        if (failure == null) {
+          _committedEnd = batchEnd;
+          _committedItemCount += batchItemCount;
+          _commitCount++;
+          _committedRecords += batchItemCount;
+        }
+        else {
+          _failure = failure;
+        }
+        _commitInProgress = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /** stream a committed record (or anything else below the end of the mapping) out of the mapping **/
+  InputStream openStream(long offset) {
+    return new MappedLogInputStream(_regions,offset);
+  }
+
+  synchronized long getCommitCount() { return _commitCount; }
+  synchronized long getCommittedRecordCount() { return _committedRecords; }
+
+  private static final class MappedLogInputStream extends InputStream {
+
+    private MappedByteBuffer _regions[];
+    private long _position;
+    private long _end;
+
+    MappedLogInputStream(MappedByteBuffer regions[],long position) {
+      _regions = regions;
+      _position = position;
+      _end = (long)regions.length * REGION_SIZE;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (_position >= _end) {
+        return -1;
+      }
+      int value = _regions[(int)(_position / REGION_SIZE)].get((int)(_position % REGION_SIZE)) & 0xff;
+      _position++;
+      return value;
+    }
+
+    @Override
+    public int read(byte buffer[],int offset,int length) throws IOException {
+      if (_position >= _end) {
+        return -1;
+      }
+      int bytesRead = 0;
+      while (bytesRead < length && _position < _end) {
+        ByteBuffer region = _regions[(int)(_position / REGION_SIZE)].duplicate();
+        int regionOffset = (int)(_position % REGION_SIZE);
+        int bytesToCopy = Math.min(length - bytesRead,REGION_SIZE - regionOffset);
+        region.position(regionOffset);
+        region.get(buffer,offset + bytesRead,bytesToCopy);
+        bytesRead += bytesToCopy;
+        _position += bytesToCopy;
+      }
+      return bytesRead;
+    }
+  }
+
+  /** test record: [int length][int writer][int sequence][filler] **/
+  private static byte[] testRecord(int writer,int sequence) {
+    byte record[] = new byte[12 + ((writer * 31 + sequence) % 200)];
+    ByteBuffer.wrap(record).putInt(record.length).putInt(writer).putInt(sequence);
+    for (int i=12;i<record.length;++i)
+      record[i] = (byte)(writer + sequence + i);
+    return record;
+  }
+
+  private static long append(LocalLogAppender appender,byte record[]) throws IOException {
+    long offset = appender.reserve(record.length);
+    appender.write(offset,record,0,record.length);
+    appender.commit(offset,record.length);
+    return offset;
+  }
+
+  private static LocalLogFileHeader readTestHeader(File logFile) throws IOException {
+    LocalLogFileHeader header = new LocalLogFileHeader();
+    RandomAccessFile file = new RandomAccessFile(logFile,"r");
+    try {
+      header.readHeader(file);
+    }
+    finally {
+      file.close();
+    }
+    return header;
+  }
+
+  private static File testDirectory(String name) {
+    File directory = new File(System.getProperty("java.io.tmpdir"),name);
+    directory.mkdirs();
+    new File(directory,"ActiveLog").delete();
+    return directory;
+  }
+
+  @Test
+  public void testConcurrentGroupCommit() throws Exception {
+    File directory = testDirectory("localLogAppenderTest");
+    File logFile = new File(directory,"ActiveLog");
+    final LocalLogAppender appender = new LocalLogAppender(new CacheManager(null,directory,null),logFile);
+    appender.open(LocalLogFileHeader.SIZE);
+
+    try {
+      final int writerCount = 8;
+      final int recordsPerWriter = 500;
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      Thread writers[] = new Thread[writerCount];
+      for (int i=0;i<writerCount;++i) {
+        final int writer = i;
+        writers[i] = new Thread(new Runnable() {
+          public void run() {
+            try {
+              for (int sequence=0;sequence<recordsPerWriter;++sequence) {
+                byte record[] = testRecord(writer,sequence);
+                long offset = append(appender,record);
+                // a committed record is readable straight out of the mapping
+                DataInputStream stream = new DataInputStream(appender.openStream(offset));
+                byte readBack[] = new byte[record.length];
+                stream.readFully(readBack);
+                assertTrue(Arrays.equals(record,readBack));
+              }
+            }
+            catch (Exception e) {
+              failure.set(e);
+            }
+          }
+        });
+        writers[i].start();
+      }
+      for (Thread writer : writers)
+        writer.join();
+      if (failure.get() != null)
+        throw failure.get();
+
+      int totalRecords = writerCount * recordsPerWriter;
+      assertEquals(totalRecords,appender.getCommittedRecordCount());
+      assertTrue(appender.getCommitCount() >= 1 && appender.getCommitCount() <= totalRecords);
+
+      // the durable header covers every record, and the records follow it back to back,
+      // each writer's records in the order it appended them
+      LocalLogFileHeader header = readTestHeader(logFile);
+      assertEquals(totalRecords,header._itemCount);
+      DataInputStream stream = new DataInputStream(appender.openStream(LocalLogFileHeader.SIZE));
+      int nextSequence[] = new int[writerCount];
+      long position = LocalLogFileHeader.SIZE;
+      for (int i=0;i<totalRecords;++i) {
+        int length = stream.readInt();
+        int writer = stream.readInt();
+        int sequence = stream.readInt();
+        assertEquals(nextSequence[writer]++,sequence);
+        assertEquals(testRecord(writer,sequence).length,length);
+        stream.readFully(new byte[length - 12]);
+        position += length;
+      }
+      assertEquals(position,header._fileSize);
+    }
+    finally {
+      appender.close();
+      logFile.delete();
+    }
+  }
+
+  @Test
+  public void testCommitFailure() throws Exception {
+    File directory = testDirectory("localLogAppenderFailureTest");
+    File logFile = new File(directory,"ActiveLog");
+    final AtomicInteger headersPublished = new AtomicInteger();
+    final AtomicReference<IOException> headerFailure = new AtomicReference<IOException>();
+
+    CacheManager manager = new CacheManager(null,directory,null) {
+      @Override
+      void writeLogFileHeader(RandomAccessFile file,long newlyAddedItemsCount,long newItemsFileSize) throws IOException {
+        if (headerFailure.get() != null)
+          throw headerFailure.get();
+        super.writeLogFileHeader(file,newlyAddedItemsCount,newItemsFileSize);
+      }
+
+      @Override
+      void logFileHeaderCommitted(long newlyAddedItemsCount,long newItemsFileSize) {
+        headersPublished.incrementAndGet();
+        super.logFileHeaderCommitted(newlyAddedItemsCount,newItemsFileSize);
+      }
+    };
+    LocalLogAppender appender = new LocalLogAppender(manager,logFile);
+    appender.open(LocalLogFileHeader.SIZE);
+
+    try {
+      byte first[] = testRecord(0,0);
+      append(appender,first);
+      assertEquals(1,headersPublished.get());
+
+      // a failed header write fails the commit, and is never published
+      headerFailure.set(new IOException("injected"));
+      byte second[] = testRecord(0,1);
+      long offset = appender.reserve(second.length);
+      appender.write(offset,second,0,second.length);
+      try {
+        appender.commit(offset,second.length);
+        fail();
+      }
+      catch (IOException e) {
+      }
+      assertEquals(1,headersPublished.get());
+      assertEquals(1,appender.getCommittedRecordCount());
+
+      // the appender stays failed, even once the cause goes away
+      headerFailure.set(null);
+      try {
+        appender.reserve(second.length);
+        fail();
+      }
+      catch (IOException e) {
+      }
+      LocalLogFileHeader header = readTestHeader(logFile);
+      assertEquals(1,header._itemCount);
+      assertEquals(LocalLogFileHeader.SIZE + first.length,header._fileSize);
+
+      // until it is reopened from the committed size, which drops the failed record
+      appender.close();
+      appender.open(header._fileSize);
+      byte third[] = testRecord(0,2);
+      assertEquals(header._fileSize,append(appender,third));
+      assertEquals(2,headersPublished.get());
+      header = readTestHeader(logFile);
+      assertEquals(2,header._itemCount);
+      assertEquals(LocalLogFileHeader.SIZE + first.length + third.length,header._fileSize);
+    }
+    finally {
+      appender.close();
+      logFile.delete();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point in time snapshot of the local log's fingerprint to position index,
+ * so that a restart only has to replay the log records appended after the
+ * snapshot instead of scanning the entire log.
+ *
+ * A snapshot records which log it belongs to (the log header's sync bytes),
+ * the virtual log offset its positions are relative to, and the log size and
+ * item count it covers. The file ends with a CRC32 of its contents, so a torn
+ * snapshot is rejected on load.
+ *
+ * @author rana
+ *
+ */
+final class LocalLogIndexSnapshot {
+
+  static final int SnapshotHeaderBytes = 0xCC01CC01;
+  static final int SnapshotVersion     = 1;
+
+  /** sync bytes of the log the snapshot was taken of **/
+  byte _sync[];
+  /** virtual offset of the log start (positions in the index are relative to this) **/
+  long _logStartOffset;
+  /** log file size (header included) and item count covered by the index **/
+  long _fileSize;
+  long _itemCount;
+  LongLongMultimap _index;
+
+  LocalLogIndexSnapshot(byte sync[],long logStartOffset,long fileSize,long itemCount,LongLongMultimap index) {
+    _sync = sync;
+    _logStartOffset = logStartOffset;
+    _fileSize = fileSize;
+    _itemCount = itemCount;
+    _index = index;
+  }
+
+  /** write (and sync) the snapshot to the given file **/
+  void write(File path) throws IOException {
+    FileOutputStream fileStream = new FileOutputStream(path);
+    try {
+      CheckedOutputStream checkedStream = new CheckedOutputStream(new BufferedOutputStream(fileStream,1 << 20),new CRC32());
+      DataOutputStream dataStream = new DataOutputStream(checkedStream);
+      dataStream.writeInt(SnapshotHeaderBytes);
+      dataStream.writeInt(SnapshotVersion);
+      dataStream.write(_sync);
+      dataStream.writeLong(_logStartOffset);
+      dataStream.writeLong(_fileSize);
+      dataStream.writeLong(_itemCount);
+      _index.write(dataStream);
+      // the checksum trails the checksummed data
+      dataStream.writeLong(checkedStream.getChecksum().getValue());
+      dataStream.flush();
+      fileStream.getFD().sync();
+    }
+    finally {
+      fileStream.close();
+    }
+  }
+
+  /** load a snapshot written by write() **/
+  static LocalLogIndexSnapshot load(File path) throws IOException {
+    BufferedInputStream bufferedStream = new BufferedInputStream(new FileInputStream(path),1 << 20);
+    try {
+      CheckedInputStream checkedStream = new CheckedInputStream(bufferedStream,new CRC32());
+      DataInputStream dataStream = new DataInputStream(checkedStream);
+
+      int headerBytes = dataStream.readInt();
+      int version = dataStream.readInt();
+      if (headerBytes != SnapshotHeaderBytes || version != SnapshotVersion) {
+        throw new IOException("Invalid Log Index Snapshot Header Detected!");
+      }
+      byte sync[] = new byte[LocalLogFileHeader.SYNC_BYTES_SIZE];
+      dataStream.readFully(sync);
+      long logStartOffset = dataStream.readLong();
+      long fileSize = dataStream.readLong();
+      long itemCount = dataStream.readLong();
+      LongLongMultimap index = LongLongMultimap.read(dataStream);
+
+      long checksum = checkedStream.getChecksum().getValue();
+      if (new DataInputStream(bufferedStream).readLong() != checksum) {
+        throw new IOException("Checksum failed while reading Log Index Snapshot!");
+      }
+      return new LocalLogIndexSnapshot(sync,logStartOffset,fileSize,itemCount,index);
+    }
+    finally {
+      bufferedStream.close();
+    }
+  }
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ * 
+ * CommonCrawl licenses this file to you under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.listcrawler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Open addressing (linear probing) multimap of long keys to long values,
+ * stored in two parallel primitive arrays, so there is no boxing and no per
+ * entry / per key objects. Each (key,value) pair occupies its own slot, and a
+ * key's values are found by scanning its probe chain. As with HashMultimap, a
+ * given (key,value) pair is stored at most once.
+ *
+ * Values must be non-negative (EMPTY marks a free slot). Not thread safe.
+ *
+ * @author rana
+ *
+ */
+final class LongLongMultimap {
+
+  private static final long  EMPTY = -1L;
+  private static final int   INITIAL_CAPACITY = 1 << 10;
+  private static final float MAX_LOAD_FACTOR = .5f;
+
+  private long _keys[];
+  private long _values[];
+  private int  _mask;
+  private int  _size = 0;
+
+  LongLongMultimap() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private LongLongMultimap(int capacity) {
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    _keys = new long[capacity];
+    _values = new long[capacity];
+    Arrays.fill(_values,EMPTY);
+    _mask = capacity - 1;
+  }
+
+  /** number of (key,value) pairs **/
+  int size() {
+    return _size;
+  }
+
+  /** @return false if the pair was already present **/
+  boolean put(long key,long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative Value:" + value);
+    }
+    int slot = slotFor(key);
+    while (_values[slot] != EMPTY) {
+      if (_keys[slot] == key && _values[slot] == value) {
+        return false;
+      }
+      slot = (slot + 1) & _mask;
+    }
+    _keys[slot] = key;
+    _values[slot] = value;
+    if (++_size > _keys.length * MAX_LOAD_FACTOR) {
+      rehash(_keys.length << 1);
+    }
+    return true;
+  }
+
+  boolean containsKey(long key) {
+    for (int slot = slotFor(key);_values[slot] != EMPTY;slot = (slot + 1) & _mask) {
+      if (_keys[slot] == key) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** all values for the key (in no particular order), or an empty array **/
+  long[] get(long key) {
+    int count = 0;
+    for (int slot = slotFor(key);_values[slot] != EMPTY;slot = (slot + 1) & _mask) {
+      if (_keys[slot] == key) {
+        count++;
+      }
+    }
+    long valuesOut[] = new long[count];
+    if (count != 0) {
+      int index = 0;
+      for (int slot = slotFor(key);index < count;slot = (slot + 1) & _mask) {
+        if (_keys[slot] == key) {
+          valuesOut[index++] = _values[slot];
+        }
+      }
+    }
+    return valuesOut;
+  }
+
+  /** @return the number of values removed **/
+  int removeAll(long key) {
+    int removed = 0;
+    int slot = slotFor(key);
+    while (_values[slot] != EMPTY) {
+      if (_keys[slot] == key) {
+        // deleting shifts a later entry into this slot, so re-examine it
+        deleteSlot(slot);
+        removed++;
+      }
+      else {
+        slot = (slot + 1) & _mask;
+      }
+    }
+    return removed;
+  }
+
+  void clear() {
+    Arrays.fill(_values,EMPTY);
+    _size = 0;
+  }
+
+  /** a deep copy of the map **/
+  LongLongMultimap copy() {
+    LongLongMultimap copy = new LongLongMultimap(_keys.length);
+    System.arraycopy(_keys,0,copy._keys,0,_keys.length);
+    System.arraycopy(_values,0,copy._values,0,_values.length);
+    copy._size = _size;
+    return copy;
+  }
+
+  /** serialize as the capacity and pair count followed by the pairs in slot order **/
+  void write(DataOutput stream) throws IOException {
+    stream.writeInt(_keys.length);
+    stream.writeInt(_size);
+    for (int i=0;i<_keys.length;++i) {
+      if (_values[i] != EMPTY) {
+        stream.writeLong(_keys[i]);
+        stream.writeLong(_values[i]);
+      }
+    }
+  }
+
+  /** deserialize a map written by write(). pairs are known to be distinct, so this skips the duplicate checks of put() **/
+  static LongLongMultimap read(DataInput stream) throws IOException {
+    int capacity = stream.readInt();
+    int size = stream.readInt();
+    if (capacity < INITIAL_CAPACITY || Integer.bitCount(capacity) != 1 || size < 0 || size > capacity * MAX_LOAD_FACTOR) {
+      throw new IOException("Invalid Map Capacity:" + capacity + " Size:" + size);
+    }
+    LongLongMultimap map = new LongLongMultimap(capacity);
+    for (int i=0;i<size;++i) {
+      long key = stream.readLong();
+      long value = stream.readLong();
+      if (value < 0) {
+        throw new IOException("Negative Value:" + value);
+      }
+      map.insert(key,value);
+    }
+    map._size = size;
+    return map;
+  }
+
+  /** backward shift deletion, which keeps probe chains intact without tombstones **/
+  private void deleteSlot(int slot) {
+    int hole = slot;
+    for (int next = (hole + 1) & _mask;_values[next] != EMPTY;next = (next + 1) & _mask) {
+      int home = slotFor(_keys[next]);
+      // move the entry back if its home slot is not (cyclically) in (hole,next]
+      boolean movable = (hole <= next) ? (home <= hole || home > next) : (home <= hole && home > next);
+      if (movable) {
+        _keys[hole] = _keys[next];
+        _values[hole] = _values[next];
+        hole = next;
+      }
+    }
+    _values[hole] = EMPTY;
+    _size--;
+  }
+
+  private void rehash(int newCapacity) {
+    long oldKeys[] = _keys;
+    long oldValues[] = _values;
+    allocate(newCapacity);
+    for (int i=0;i<oldKeys.length;++i) {
+      if (oldValues[i] != EMPTY) {
+        insert(oldKeys[i],oldValues[i]);
+      }
+    }
+  }
+
+  /** place a pair known not to be present, without touching the size **/
+  private void insert(long key,long value) {
+    int slot = slotFor(key);
+    while (_values[slot] != EMPTY) {
+      slot = (slot + 1) & _mask;
+    }
+    _keys[slot] = key;
+    _values[slot] = value;
+  }
+
+  private int slotFor(long key) {
+    // fingerprints are hashes already, but mix anyway so patterned keys don't cluster
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int)key & _mask;
+  }
+
+  /** check the map holds exactly the expected pairs **/
+  private static void assertContents(Map<Long,HashSet<Long>> expected,LongLongMultimap map,long maxKey) {
+    int expectedSize = 0;
+    for (HashSet<Long> values : expected.values())
+      expectedSize += values.size();
+    assertEquals(expectedSize,map.size());
+    for (long key=0;key<maxKey;++key) {
+      HashSet<Long> expectedValues = expected.get(key);
+      long values[] = map.get(key);
+      assertEquals(expectedValues != null,map.containsKey(key));
+      assertEquals((expectedValues != null) ? expectedValues.size() : 0,values.length);
+      for (long value : values)
+        assertTrue(expectedValues.contains(value));
+    }
+  }
+
+  private static byte[] writeToBytes(LongLongMultimap map) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    map.write(new DataOutputStream(stream));
+    return stream.toByteArray();
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    LongLongMultimap map = new LongLongMultimap();
+    HashMap<Long,HashSet<Long>> expected = new HashMap<Long,HashSet<Long>>();
+
+    // few keys with several values each makes long, wrapping probe chains, which
+    // removeAll has to close up with backward shifts
+    final long maxKey = 300;
+    Random random = new Random(1);
+    for (int op=0;op<100000;++op) {
+      long key = random.nextInt((int)maxKey);
+      if (random.nextInt(4) != 0) {
+        long value = random.nextInt(8);
+        HashSet<Long> values = expected.get(key);
+        if (values == null)
+          expected.put(key,values = new HashSet<Long>());
+        assertEquals(values.add(value),map.put(key,value));
+      }
+      else {
+        HashSet<Long> values = expected.remove(key);
+        assertEquals((values != null) ? values.size() : 0,map.removeAll(key));
+        assertTrue(!map.containsKey(key));
+      }
+      if (op % 1000 == 0)
+        assertContents(expected,map,maxKey);
+    }
+    assertContents(expected,map,maxKey);
+
+    try {
+      map.put(1,-1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+    }
+
+    map.clear();
+    assertEquals(0,map.size());
+    for (long key=0;key<maxKey;++key)
+      assertEquals(0,map.get(key).length);
+  }
+
+  @Test
+  public void testCopyAndReadWrite() throws Exception {
+    LongLongMultimap map = new LongLongMultimap();
+    HashMap<Long,HashSet<Long>> expected = new HashMap<Long,HashSet<Long>>();
+    final long maxKey = 5000;
+    Random random = new Random(2);
+    // enough pairs to rehash past the initial capacity
+    for (int i=0;i<3000;++i) {
+      long key = random.nextInt((int)maxKey);
+      long value = random.nextLong() & Long.MAX_VALUE;
+      HashSet<Long> values = expected.get(key);
+      if (values == null)
+        expected.put(key,values = new HashSet<Long>());
+      values.add(value);
+      map.put(key,value);
+    }
+
+    LongLongMultimap copy = map.copy();
+    byte serialized[] = writeToBytes(map);
+    LongLongMultimap loaded = read(new DataInputStream(new ByteArrayInputStream(serialized)));
+    assertContents(expected,loaded,maxKey);
+    // same capacity, so the same slot layout and an identical serialized form
+    assertTrue(Arrays.equals(serialized,writeToBytes(loaded)));
+
+    // the copy and the loaded map are independent of the original
+    map.removeAll(expected.keySet().iterator().next());
+    map.put(maxKey + 1,1);
+    assertContents(expected,copy,maxKey);
+    assertTrue(!copy.containsKey(maxKey + 1));
+    loaded.put(maxKey + 2,1);
+    assertTrue(loaded.containsKey(maxKey + 2));
+    assertTrue(!map.containsKey(maxKey + 2));
+
+    // corrupt headers are rejected
+    byte corrupt[] = serialized.clone();
+    corrupt[3] = 3;
+    try {
+      read(new DataInputStream(new ByteArrayInputStream(corrupt)));
+      fail();
+    }
+    catch (IOException e) {
+    }
+  }
+}
@@ -332,6 +332,8 @@ public class ProxyServer extends CrawlerServer implements CrawlQueueLoader {
       // ProxyServlet2.class);
       getWebServer().addServlet("logRequest", RequestLogServlet.servletPath,
           RequestLogServlet.class);
+      getWebServer().addServlet("cacheStats", CacheStatsServlet.servletPath,
+          CacheStatsServlet.class);
       // add uploader servlet
       getWebServer().addServlet("uploader", "/ListUploader",
           ListUploadServlet.class);
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ * CommonCrawl licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.commoncrawl.crawl.crawler.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.commoncrawl.protocol.URLFP;
+
+/**
+ * Compares URLFPBloomFilter against BlockedURLFPBloomFilter: single threaded
+ * and multi threaded lookup throughput, and false positive rate, at the same
+ * number of elements, hash functions and bits per element. Also times lookups
+ * against a memory mapped copy of the blocked filter.
+ *
+ * usage: BloomFilterBenchmark [elements] [hashCount] [bitsPerElement] [threads] [lookupsPerThread]
+ *
+ * @author rana
+ *
+ */
+public class BloomFilterBenchmark {
+
+  interface Filter {
+    boolean isPresent(URLFP fp);
+  }
+
+  static URLFP[] generateKeys(int count,long seed) {
+    Random random = new Random(seed);
+    URLFP keys[] = new URLFP[count];
+    for (int i=0;i<count;++i) {
+      URLFP fp = new URLFP();
+      // keep the domain space small the way real crawl data clusters by host
+      fp.setDomainHash(random.nextInt(count / 100 + 1));
+      fp.setUrlHash(random.nextLong());
+      keys[i] = fp;
+    }
+    return keys;
+  }
+
+  static double falsePositiveRate(Filter filter,URLFP notAdded[]) {
+    long hits = 0;
+    for (URLFP fp : notAdded) {
+      if (filter.isPresent(fp))
+        hits++;
+    }
+    return (double)hits / (double)notAdded.length;
+  }
+
+  /** returns lookups / second across all threads **/
+  static double lookupThroughput(final Filter filter,final URLFP keys[],int threadCount,final int lookupsPerThread) throws InterruptedException {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+    final AtomicLong sink = new AtomicLong();
+
+    for (int t=0;t<threadCount;++t) {
+      final int threadId = t;
+      Thread thread = new Thread(new Runnable() {
+
+        public void run() {
+          try {
+            startLatch.await();
+            long found = 0;
+            int index = (int)((threadId * 0x9E3779B9L) % keys.length);
+            for (int i=0;i<lookupsPerThread;++i) {
+              if (filter.isPresent(keys[index]))
+                found++;
+              if (++index == keys.length)
+                index = 0;
+            }
+            sink.addAndGet(found);
+          }
+          catch (InterruptedException e) {
+          }
+          finally {
+            doneLatch.countDown();
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    long startTime = System.nanoTime();
+    startLatch.countDown();
+    doneLatch.await();
+    long elapsed = Math.max(1,System.nanoTime() - startTime);
+    return (double)threadCount * lookupsPerThread * 1000000000.0 / elapsed;
+  }
+
+  static void report(String name,Filter filter,URLFP added[],URLFP notAdded[],int threadCount,int lookupsPerThread) throws InterruptedException {
+    // warm up
+    lookupThroughput(filter,added,1,lookupsPerThread / 10);
+
+    double single = lookupThroughput(filter,added,1,lookupsPerThread);
+    double multi  = lookupThroughput(filter,added,threadCount,lookupsPerThread);
+    double fpRate = falsePositiveRate(filter,notAdded);
+
+    System.out.println(String.format("%-10s 1 Thread:%12.0f lookups/sec %d Threads:%12.0f lookups/sec FalsePositiveRate:%.5f%%",
+        name,single,threadCount,multi,fpRate * 100.0));
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    int elements         = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+    int hashCount        = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+    int bitsPerElement   = (args.length > 2) ? Integer.parseInt(args[2]) : 11;
+    int threadCount      = (args.length > 3) ? Integer.parseInt(args[3]) : 32;
+    int lookupsPerThread = (args.length > 4) ? Integer.parseInt(args[4]) : 5000000;
+
+    System.out.println("Elements:" + elements + " Hashes:" + hashCount + " BitsPerElement:" + bitsPerElement + " Threads:" + threadCount + " LookupsPerThread:" + lookupsPerThread);
+
+    URLFP added[] = generateKeys(elements,1);
+    URLFP notAdded[] = generateKeys(Math.min(elements,10000000),2);
+
+    final URLFPBloomFilter oldFilter = new URLFPBloomFilter(elements,hashCount,bitsPerElement);
+    long startTime = System.currentTimeMillis();
+    for (URLFP fp : added)
+      oldFilter.add(fp);
+    System.out.println("URLFPBloomFilter Add Took:" + (System.currentTimeMillis() - startTime) + "ms");
+
+    final BlockedURLFPBloomFilter blockedFilter = new BlockedURLFPBloomFilter(elements,hashCount,bitsPerElement);
+    startTime = System.currentTimeMillis();
+    for (URLFP fp : added)
+      blockedFilter.add(fp);
+    System.out.println("BlockedURLFPBloomFilter Add Took:" + (System.currentTimeMillis() - startTime) + "ms");
+
+    report("Old",new Filter() {
+      public boolean isPresent(URLFP fp) {
+        return oldFilter.isPresent(fp);
+      }
+    },added,notAdded,threadCount,lookupsPerThread);
+
+    report("Blocked",new Filter() {
+      public boolean isPresent(URLFP fp) {
+        return blockedFilter.isPresent(fp);
+      }
+    },added,notAdded,threadCount,lookupsPerThread);
+
+    // serialize and map
+    File filterFile = File.createTempFile("blockedBloomFilter",".bin");
+    filterFile.deleteOnExit();
+    startTime = System.currentTimeMillis();
+    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(filterFile),1 << 20);
+    blockedFilter.serialize(outputStream);
+    outputStream.close();
+    System.out.println("Serialize Took:" + (System.currentTimeMillis() - startTime) + "ms Size:" + filterFile.length());
+
+    startTime = System.currentTimeMillis();
+    final BlockedURLFPBloomFilter mappedFilter = BlockedURLFPBloomFilter.map(filterFile);
+    System.out.println("Map Took:" + (System.currentTimeMillis() - startTime) + "ms");
+    for (URLFP fp : added) {
+      if (!mappedFilter.isPresent(fp)) {
+        throw new IllegalStateException("Mapped Filter Missing Key:" + fp.getDomainHash() + ":" + fp.getUrlHash());
+      }
+    }
+
+    report("Mapped",new Filter() {
+      public boolean isPresent(URLFP fp) {
+        return mappedFilter.isPresent(fp);
+      }
+    },added,notAdded,threadCount,lookupsPerThread);
+  }
+}